@@ -0,0 +1,113 @@
+package com.logginghub.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.common.AppenderHelper;
+import com.logginghub.connector.common.AppenderHelperCustomisationInterface;
+import com.logginghub.connector.common.AppenderHelperEventConvertor;
+import com.logginghub.connector.common.DefaultLogEvent;
+import com.logginghub.connector.common.EventSnapshot;
+import com.logginghub.connector.common.LogEvent;
+import com.logginghub.utils.CpuLogger;
+import com.logginghub.utils.GCWatcher;
+import com.logginghub.utils.HeapLogger;
+
+/**
+ * The cost of a logging call to the appenders, from one up to sixty four threads at once. The
+ * events go through the dispatch queue and out over a real connection to an {@link InProcessHub}.
+ * Under the dropNewest policy this is the time a logging thread spends handing its event over;
+ * under block the threads are held to the rate the dispatch thread can actually send at.
+ *
+ * @author James
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppenderHelperBenchmark {
+
+    @Param({ "dropNewest", "block" }) private String overflowPolicy;
+
+    @Param({ "1", "100" }) private int dispatchBatchSize;
+
+    private InProcessHub hub;
+    private AppenderHelper appenderHelper;
+
+    private final AppenderHelperCustomisationInterface customisation = new AppenderHelperCustomisationInterface() {
+        public HeapLogger createHeapLogger() {
+            return null;
+        }
+
+        public CpuLogger createCPULogger() {
+            return null;
+        }
+
+        public GCWatcher createGCWatcher() {
+            return null;
+        }
+    };
+
+    private final AppenderHelperEventConvertor convertor = new AppenderHelperEventConvertor() {
+        private final DefaultLogEvent event = BenchmarkFixtures.createEvent(0);
+        private final EventSnapshot snapshot = new EventSnapshot() {
+            public LogEvent rebuildEvent() {
+                return event;
+            }
+        };
+
+        public LogEvent createLogEvent() {
+            return event;
+        }
+
+        public EventSnapshot createSnapshot() {
+            return snapshot;
+        }
+    };
+
+    @Setup public void setup() throws Exception {
+        hub = new InProcessHub();
+
+        appenderHelper = new AppenderHelper("benchmark", customisation);
+        appenderHelper.setMaxDispatchQueueSize(10000);
+        appenderHelper.setDispatchQueueOverflowPolicy(overflowPolicy);
+        appenderHelper.setDispatchBatchSize(dispatchBatchSize);
+        appenderHelper.addConnectionPoint(hub.getAddress());
+    }
+
+    @TearDown public void teardown() throws Exception {
+        appenderHelper.close();
+        hub.stop();
+    }
+
+    @Benchmark @Threads(1) public void append1Thread() {
+        appenderHelper.append(convertor);
+    }
+
+    @Benchmark @Threads(4) public void append4Threads() {
+        appenderHelper.append(convertor);
+    }
+
+    @Benchmark @Threads(16) public void append16Threads() {
+        appenderHelper.append(convertor);
+    }
+
+    @Benchmark @Threads(64) public void append64Threads() {
+        appenderHelper.append(convertor);
+    }
+}
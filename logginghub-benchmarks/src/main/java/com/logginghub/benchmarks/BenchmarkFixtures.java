@@ -0,0 +1,124 @@
+package com.logginghub.benchmarks;
+
+import java.nio.ByteBuffer;
+
+import com.logginghub.connector.common.DefaultLogEvent;
+import com.logginghub.connector.common.LogEventCodex;
+import com.logginghub.connector.common.LogEventFactory;
+import com.logginghub.connector.common.messages.AggregatedPatternData;
+import com.logginghub.connector.common.messages.AggregationKey;
+import com.logginghub.connector.common.messages.AggregationType;
+import com.logginghub.connector.common.messages.ChannelMessage;
+import com.logginghub.connector.common.messages.HistoricalDataResponse;
+import com.logginghub.connector.common.messages.HistoricalIndexElement;
+import com.logginghub.connector.common.messages.HistoricalIndexResponse;
+import com.logginghub.sof.SerialisableObject;
+import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.FormattedRuntimeException;
+
+/**
+ * The objects and payloads the benchmarks share, so the same event shapes are measured everywhere.
+ *
+ * @author James
+ */
+public class BenchmarkFixtures {
+
+    /**
+     * The types the SOF benchmarks can be run against, by the simple name of the class. Log event
+     * messages aren't here as they go through the LogEventCodex rather than SOF.
+     */
+    public final static String sofTypes = "DefaultLogEvent,ChannelMessage,AggregationKey,AggregatedPatternData,HistoricalIndexResponse,HistoricalDataResponse";
+
+    public static DefaultLogEvent createEvent(int sequence) {
+        DefaultLogEvent event;
+        switch (sequence % 3) {
+            case 0:
+                event = LogEventFactory.createFullLogEvent1();
+                break;
+            case 1:
+                event = LogEventFactory.createFullLogEvent2();
+                break;
+            default:
+                event = LogEventFactory.createFullLogEvent3();
+                break;
+        }
+        event.setSequenceNumber(sequence);
+        return event;
+    }
+
+    public static DefaultLogEvent[] createEvents(int count) {
+        DefaultLogEvent[] events = new DefaultLogEvent[count];
+        for (int i = 0; i < count; i++) {
+            events[i] = createEvent(i);
+        }
+        return events;
+    }
+
+    public static AggregationKey createAggregationKey() {
+        return new AggregationKey("trade-latency", "Trade latency", AggregationType.Mean, 1000, new String[] { "instrument", "venue" });
+    }
+
+    public static SerialisableObject createSofObject(String type) {
+        if (type.equals("DefaultLogEvent")) {
+            return createEvent(0);
+        }
+        else if (type.equals("ChannelMessage")) {
+            return new ChannelMessage("events/trading/latency", createEvent(0));
+        }
+        else if (type.equals("AggregationKey")) {
+            return createAggregationKey();
+        }
+        else if (type.equals("AggregatedPatternData")) {
+            return new AggregatedPatternData(12.5, 1000000000L, "LSE", 1000, createAggregationKey());
+        }
+        else if (type.equals("HistoricalIndexResponse")) {
+            HistoricalIndexElement[] elements = new HistoricalIndexElement[100];
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = new HistoricalIndexElement(i * 1000L, 1000, i, i % 7, i % 3, 0);
+            }
+            HistoricalIndexResponse response = new HistoricalIndexResponse();
+            response.setElements(elements);
+            return response;
+        }
+        else if (type.equals("HistoricalDataResponse")) {
+            HistoricalDataResponse response = new HistoricalDataResponse();
+            response.setEvents(createEvents(100));
+            return response;
+        }
+        else {
+            throw new FormattedRuntimeException("Unknown benchmark type '{}', expected one of {}", type, sofTypes);
+        }
+    }
+
+    /**
+     * @return a flipped heap buffer of encoded log events, the sort of thing that gets compressed
+     *         on the wire, cut down to exactly the size requested
+     */
+    public static ByteBuffer createEncodedEvents(int size) {
+        ExpandingByteBuffer buffer = new ExpandingByteBuffer(size + 1024);
+        int sequence = 0;
+        while (buffer.position() < size) {
+            LogEventCodex.encode(buffer, createEvent(sequence++));
+        }
+
+        ByteBuffer encoded = ByteBuffer.allocate(size);
+        ByteBuffer contents = buffer.getBuffer();
+        contents.flip();
+        contents.limit(size);
+        encoded.put(contents);
+        encoded.flip();
+        return encoded;
+    }
+
+    /**
+     * @return a flipped heap copy of everything written to the buffer so far
+     */
+    public static ByteBuffer copy(ExpandingByteBuffer buffer) {
+        ByteBuffer contents = buffer.getBuffer().duplicate();
+        contents.flip();
+        ByteBuffer copy = ByteBuffer.allocate(contents.remaining());
+        copy.put(contents);
+        copy.flip();
+        return copy;
+    }
+}
@@ -0,0 +1,101 @@
+package com.logginghub.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.common.serialisation.CompressionStrategy;
+import com.logginghub.connector.common.serialisation.CompressionStrategyFactory;
+import com.logginghub.utils.FormattedRuntimeException;
+
+/**
+ * Each compression strategy over a range of payload sizes made from encoded log events. The into
+ * benchmarks write to buffers we hold on to, the way the wire compression and the framed blocks use
+ * them; the allocating ones go through the original methods that return a new buffer every time.
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionStrategyBenchmark {
+
+    @Param({ "snappy", "lz4", "zlib" }) private String strategy;
+
+    @Param({ "256", "4096", "65536", "1048576" }) private int size;
+
+    private CompressionStrategy compressionStrategy;
+    private ByteBuffer uncompressed;
+    private ByteBuffer compressed;
+    private ByteBuffer compressTarget;
+    private ByteBuffer decompressTarget;
+
+    /**
+     * The allocating compress of these strategies takes the buffer the block was written into and
+     * flips it itself, rather than taking it ready to read
+     */
+    private boolean allocatingCompressFlips;
+
+    @Setup public void setup() {
+        compressionStrategy = CompressionStrategyFactory.createStrategy(CompressionStrategyFactory.parseStrategy(strategy));
+
+        uncompressed = BenchmarkFixtures.createEncodedEvents(size);
+        compressTarget = ByteBuffer.allocate(compressionStrategy.getMaxCompressedLength(size));
+        decompressTarget = ByteBuffer.allocate(size);
+
+        allocatingCompressFlips = strategy.equals("snappy") || strategy.equals("zlib");
+
+        compressed = ByteBuffer.allocate(compressTarget.capacity());
+        compressionStrategy.compress(uncompressed.duplicate(), compressed);
+        compressed.flip();
+
+        // Make sure both compress paths are really compressing the whole payload
+        int allocatingLength = compressAllocating().remaining();
+        if (allocatingLength != compressed.remaining()) {
+            throw new FormattedRuntimeException("The allocating compress produced {} bytes but compressing into a buffer produced {}",
+                                                allocatingLength,
+                                                compressed.remaining());
+        }
+    }
+
+    @Benchmark public int compressInto() {
+        uncompressed.rewind();
+        compressTarget.clear();
+        compressionStrategy.compress(uncompressed, compressTarget);
+        return compressTarget.position();
+    }
+
+    @Benchmark public ByteBuffer compressAllocating() {
+        uncompressed.rewind();
+        if (allocatingCompressFlips) {
+            uncompressed.position(uncompressed.limit());
+        }
+        return compressionStrategy.compress(uncompressed);
+    }
+
+    @Benchmark public int decompressInto() {
+        compressed.rewind();
+        decompressTarget.clear();
+        compressionStrategy.decompress(compressed, decompressTarget);
+        return decompressTarget.position();
+    }
+
+    @Benchmark public ByteBuffer decompressAllocating() {
+        compressed.rewind();
+        return compressionStrategy.decompress(compressed);
+    }
+}
@@ -0,0 +1,102 @@
+package com.logginghub.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.common.DefaultLogEvent;
+import com.logginghub.connector.common.LogEventCodex;
+import com.logginghub.utils.BufferPool;
+import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.FormattedRuntimeException;
+import com.logginghub.utils.SegmentedByteBuffer;
+
+/**
+ * Encoding a batch of events into each kind of growable buffer, starting small so the growth is
+ * part of what gets measured:
+ * <ul>
+ * <li>expanding - a new unpooled buffer each time, doubling and copying as it goes</li>
+ * <li>pooled - a new buffer each time, but the buffers it grows through come from and go back to
+ * the heap pool</li>
+ * <li>reused - one buffer cleared between batches, so it only grows on the first one</li>
+ * <li>segmented - one segmented buffer cleared between batches, chaining pooled segments</li>
+ * </ul>
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpandingBufferBenchmark {
+
+    private final static int initialSize = 1024;
+
+    @Param({ "expanding", "pooled", "reused", "segmented" }) private String buffer;
+
+    @Param({ "10", "1000" }) private int events;
+
+    private DefaultLogEvent[] batch;
+    private BufferPool pool;
+    private ExpandingByteBuffer reused;
+    private SegmentedByteBuffer segmented;
+
+    @Setup public void setup() {
+        batch = BenchmarkFixtures.createEvents(events);
+        pool = new BufferPool(false, initialSize, BufferPool.defaultLargestSize, BufferPool.defaultBuffersPerSize);
+
+        if (buffer.equals("reused")) {
+            reused = new ExpandingByteBuffer(initialSize);
+        }
+        else if (buffer.equals("segmented")) {
+            segmented = new SegmentedByteBuffer(SegmentedByteBuffer.defaultSegmentSize, pool);
+        }
+        else if (!buffer.equals("expanding") && !buffer.equals("pooled")) {
+            throw new FormattedRuntimeException("Unknown buffer '{}'", buffer);
+        }
+    }
+
+    @Benchmark public int encodeBatch() {
+        if (segmented != null) {
+            segmented.clear();
+            for (DefaultLogEvent event : batch) {
+                LogEventCodex.encode(segmented, event);
+            }
+            return segmented.position();
+        }
+
+        ExpandingByteBuffer target;
+        if (reused != null) {
+            target = reused;
+            target.clear();
+        }
+        else if (buffer.equals("pooled")) {
+            target = new ExpandingByteBuffer(initialSize, pool);
+        }
+        else {
+            target = new ExpandingByteBuffer(initialSize);
+        }
+
+        for (DefaultLogEvent event : batch) {
+            LogEventCodex.encode(target, event);
+        }
+
+        int position = target.position();
+        if (reused == null) {
+            target.release();
+        }
+        return position;
+    }
+}
@@ -0,0 +1,77 @@
+package com.logginghub.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.common.DefaultLogEvent;
+import com.logginghub.connector.common.LoggingMessageCodex;
+import com.logginghub.connector.common.messages.HistoricalDataResponse;
+import com.logginghub.sof.SofConfiguration;
+import com.logginghub.sof.SofSerialiser;
+import com.logginghub.utils.Visitor;
+
+/**
+ * A batch of historical events going through the single compressed block against the framed
+ * block. Decoding streams the events out through a visitor, which is where the framed block should
+ * save the most as it only has one frame decompressed at a time.
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoricalBlockBenchmark {
+
+    @Param({ "false", "true" }) private boolean framedBlocks;
+
+    @Param({ "100", "10000" }) private int events;
+
+    private SofConfiguration configuration;
+    private DefaultLogEvent[] batch;
+    private byte[] encoded;
+
+    private final Visitor<DefaultLogEvent> counter = new Visitor<DefaultLogEvent>() {
+        public void visit(DefaultLogEvent t) {
+            visited++;
+        }
+    };
+    private int visited;
+
+    @Setup public void setup() throws Exception {
+        configuration = new LoggingMessageCodex().getSofConfiguration();
+        batch = BenchmarkFixtures.createEvents(events);
+        encoded = SofSerialiser.toBytes(createResponse(), configuration);
+    }
+
+    @Benchmark public int encode() throws Exception {
+        return SofSerialiser.toBytes(createResponse(), configuration).length;
+    }
+
+    @Benchmark public int decode() throws Exception {
+        HistoricalDataResponse response = SofSerialiser.fromBytes(encoded, configuration);
+        visited = 0;
+        response.visitEvents(counter);
+        return visited;
+    }
+
+    private HistoricalDataResponse createResponse() {
+        HistoricalDataResponse response = new HistoricalDataResponse();
+        response.setFramedBlocks(framedBlocks);
+        response.setEvents(batch);
+        return response;
+    }
+}
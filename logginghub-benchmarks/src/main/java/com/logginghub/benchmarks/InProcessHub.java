@@ -0,0 +1,113 @@
+package com.logginghub.benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.logginghub.connector.common.LogEventCollectionMessage;
+import com.logginghub.connector.common.LoggingMessage;
+import com.logginghub.connector.common.LoggingMessageListener;
+import com.logginghub.connector.common.SocketConnection;
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.connector.common.serialisation.CompressionStrategyFactory;
+import com.logginghub.utils.FormattedRuntimeException;
+
+/**
+ * Just enough of a hub for the transport benchmarks to talk to: it accepts connections on a local
+ * port, will take dictionary encoded and lz4 compressed traffic if the other end asks for it, and
+ * counts the log events that arrive. Nothing is ever sent back or passed on.
+ *
+ * @author James
+ */
+public class InProcessHub {
+
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final List<SocketConnection> connections = new CopyOnWriteArrayList<SocketConnection>();
+    private final AtomicLong eventsReceived = new AtomicLong();
+
+    private volatile boolean running = true;
+
+    private final LoggingMessageListener counter = new LoggingMessageListener() {
+        public void onNewLoggingMessage(LoggingMessage message) {
+            if (message instanceof LogEventMessage) {
+                eventsReceived.incrementAndGet();
+            }
+            else if (message instanceof LogEventCollectionMessage) {
+                eventsReceived.addAndGet(((LogEventCollectionMessage) message).getLogEventCollection().size());
+            }
+        }
+    };
+
+    public InProcessHub() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress("localhost", 0));
+
+        acceptThread = new Thread(new Runnable() {
+            public void run() {
+                acceptLoop();
+            }
+        }, "InProcessHub-Accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                SocketConnection connection = new SocketConnection(socket, "hub-" + connections.size());
+                connection.setDictionaryEncoding(true);
+                connection.setCompression(CompressionStrategyFactory.compression_lz4);
+                connection.addLoggingMessageListener(counter);
+                connections.add(connection);
+                connection.start();
+            }
+            catch (SocketException e) {
+                // Closed underneath us during stop
+            }
+            catch (IOException e) {
+                if (running) {
+                    throw new FormattedRuntimeException(e, "Failed to accept a benchmark connection");
+                }
+            }
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    public long getEventsReceived() {
+        return eventsReceived.get();
+    }
+
+    /**
+     * Spin until at least this many events have arrived in total, or give up after the timeout
+     */
+    public void waitForEvents(long total, long timeout, TimeUnit units) {
+        long deadline = System.nanoTime() + units.toNanos(timeout);
+        while (eventsReceived.get() < total) {
+            if (System.nanoTime() > deadline) {
+                throw new FormattedRuntimeException("Timed out waiting for {} events, only {} arrived", total, eventsReceived.get());
+            }
+            LockSupport.parkNanos(1000);
+        }
+    }
+
+    public void stop() throws IOException {
+        running = false;
+        serverSocket.close();
+        for (SocketConnection connection : connections) {
+            connection.close();
+        }
+        connections.clear();
+    }
+}
@@ -0,0 +1,65 @@
+package com.logginghub.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.log4j.Log4jDetailsSnapshot;
+
+/**
+ * Working out where a log4j logging call came from. The log4j location info prints a throwable's
+ * stack trace to a string and parses it; the snapshot walks the stack trace elements directly.
+ * Every operation builds a fresh logging event, as the location is cached on the event once it has
+ * been found. The events are created by the nested facade class so both approaches have the same
+ * stack to search for the frame after it.
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Log4jCallerLocationBenchmark {
+
+    private Logger logger;
+
+    @Setup public void setup() {
+        logger = Logger.getLogger(Log4jCallerLocationBenchmark.class);
+    }
+
+    @Benchmark public LocationInfo log4jLocationInfo() {
+        return Facade.log(logger).getLocationInformation();
+    }
+
+    @Benchmark public Log4jDetailsSnapshot snapshotWithCallerDetails() {
+        return Log4jDetailsSnapshot.fromLoggingEvent(Facade.log(logger), null, true);
+    }
+
+    @Benchmark public Log4jDetailsSnapshot snapshotWithoutCallerDetails() {
+        return Log4jDetailsSnapshot.fromLoggingEvent(Facade.log(logger), null, false);
+    }
+
+    /**
+     * Stands in for the log4j Category the events would normally be created by
+     */
+    static class Facade {
+        static LoggingEvent log(Logger logger) {
+            return new LoggingEvent(Facade.class.getName(), logger, Level.INFO, "Benchmark message", null);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.logginghub.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.common.DefaultLogEvent;
+import com.logginghub.connector.common.LogEvent;
+import com.logginghub.connector.common.LogEventCodex;
+import com.logginghub.connector.common.StringDictionary;
+import com.logginghub.utils.ExpandingByteBuffer;
+
+/**
+ * Encode and decode of a single log event with the plain version one format and with the string
+ * dictionary. The dictionary decode is measured against an event made up entirely of references,
+ * which is what a long running connection sees once all of the definitions have gone across.
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogEventCodexBenchmark {
+
+    private DefaultLogEvent event;
+    private ExpandingByteBuffer buffer;
+
+    private StringDictionary encodeDictionary;
+    private StringDictionary decodeDictionary;
+
+    private ByteBuffer encoded;
+    private ByteBuffer encodedReferences;
+
+    @Setup public void setup() throws Exception {
+        event = BenchmarkFixtures.createEvent(0);
+        buffer = new ExpandingByteBuffer(4096);
+
+        LogEventCodex.encode(buffer, event);
+        encoded = BenchmarkFixtures.copy(buffer);
+
+        encodeDictionary = new StringDictionary();
+        decodeDictionary = new StringDictionary();
+
+        // The first encode carries the definitions, the second just the references
+        buffer.clear();
+        LogEventCodex.encode(buffer, event, encodeDictionary);
+        LogEventCodex.decode(BenchmarkFixtures.copy(buffer), decodeDictionary);
+
+        buffer.clear();
+        LogEventCodex.encode(buffer, event, encodeDictionary);
+        encodedReferences = BenchmarkFixtures.copy(buffer);
+    }
+
+    @Benchmark public int encode() {
+        buffer.clear();
+        LogEventCodex.encode(buffer, event);
+        return buffer.position();
+    }
+
+    @Benchmark public int encodeDictionary() {
+        buffer.clear();
+        LogEventCodex.encode(buffer, event, encodeDictionary);
+        return buffer.position();
+    }
+
+    @Benchmark public LogEvent decode() throws Exception {
+        encoded.rewind();
+        return LogEventCodex.decode(encoded);
+    }
+
+    @Benchmark public LogEvent decodeDictionary() throws Exception {
+        encodedReferences.rewind();
+        return LogEventCodex.decode(encodedReferences, decodeDictionary);
+    }
+}
@@ -0,0 +1,111 @@
+package com.logginghub.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.common.LogEventCollection;
+import com.logginghub.connector.common.LogEventCollectionMessage;
+import com.logginghub.connector.common.LoggingMessage;
+import com.logginghub.connector.common.LoggingMessageCodex;
+import com.logginghub.connector.common.messages.ChannelMessage;
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.FormattedRuntimeException;
+
+/**
+ * Encode and decode of the messages that make up most of the traffic through a hub. The route
+ * benchmark decodes a channel message and only looks at the channel, which is all the hub does with
+ * most of them - with lazy nested decoding the log event payload is never decoded at all.
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggingMessageCodexBenchmark {
+
+    @Param({ "logEvent", "channelMessage", "collection" }) private String message;
+
+    @Param({ "false", "true" }) private boolean lazyNestedDecode;
+
+    @Param({ "false", "true" }) private boolean dictionary;
+
+    private LoggingMessageCodex encoder;
+    private LoggingMessageCodex decoder;
+    private LoggingMessage loggingMessage;
+    private ExpandingByteBuffer buffer;
+    private ByteBuffer encoded;
+
+    @Setup public void setup() throws Exception {
+        if (message.equals("logEvent")) {
+            loggingMessage = new LogEventMessage(BenchmarkFixtures.createEvent(0));
+        }
+        else if (message.equals("channelMessage")) {
+            loggingMessage = new ChannelMessage("events/trading/latency", BenchmarkFixtures.createEvent(0));
+        }
+        else if (message.equals("collection")) {
+            LogEventCollection collection = new LogEventCollection();
+            for (int i = 0; i < 100; i++) {
+                collection.add(BenchmarkFixtures.createEvent(i));
+            }
+            loggingMessage = new LogEventCollectionMessage(collection);
+        }
+        else {
+            throw new FormattedRuntimeException("Unknown message '{}'", message);
+        }
+
+        encoder = new LoggingMessageCodex();
+        decoder = new LoggingMessageCodex();
+        decoder.getSofConfiguration().setLazyDecodeOfNestedTypes(lazyNestedDecode);
+
+        buffer = new ExpandingByteBuffer(64 * 1024);
+
+        if (dictionary) {
+            encoder.enableDictionaryEncoding();
+            decoder.enableDictionaryEncoding();
+
+            // Get the definitions across so the measured messages are just references
+            encoder.encode(buffer, loggingMessage);
+            decoder.decode(BenchmarkFixtures.copy(buffer));
+            buffer.clear();
+        }
+
+        encoder.encode(buffer, loggingMessage);
+        encoded = BenchmarkFixtures.copy(buffer);
+    }
+
+    @Benchmark public int encode() {
+        buffer.clear();
+        encoder.encode(buffer, loggingMessage);
+        return buffer.position();
+    }
+
+    @Benchmark public LoggingMessage decode() throws Exception {
+        encoded.rewind();
+        return decoder.decode(encoded);
+    }
+
+    @Benchmark public Object route() throws Exception {
+        encoded.rewind();
+        LoggingMessage decoded = decoder.decode(encoded);
+        if (decoded instanceof ChannelMessage) {
+            return ((ChannelMessage) decoded).getChannel();
+        }
+        return decoded;
+    }
+}
@@ -0,0 +1,125 @@
+package com.logginghub.benchmarks;
+
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.utils.FormattedRuntimeException;
+import com.logginghub.utils.RingBuffer;
+
+import edu.emory.mathcs.backport.java.util.concurrent.BlockingDeque;
+import edu.emory.mathcs.backport.java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * The dispatch queue hand off between logging threads and the single dispatch thread: several
+ * producers offering and one consumer polling, for the ring buffer, the JDK queues and the
+ * backport LinkedBlockingDeque it replaced. Offers that find the queue full and polls that find it
+ * empty come back straight away, so the numbers are the raw hand off cost rather than anything to do
+ * with waiting.
+ *
+ * The backport deque is used the way AppenderHelper used to use it: unbounded, with the oldest
+ * event trimmed off the front whenever an add takes it over capacity.
+ *
+ * @author James
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RingBufferBenchmark {
+
+    @Param({ "ringBuffer", "backportDeque", "arrayBlockingQueue", "linkedBlockingQueue" }) private String queue;
+
+    @Param({ "1024" }) private int capacity;
+
+    private Queue<Object> implementation;
+    private RingBuffer<Object> ringBuffer;
+    private BlockingDeque backportDeque;
+
+    private final Object item = new Object();
+
+    @Setup public void setup() {
+        if (queue.equals("ringBuffer")) {
+            ringBuffer = new RingBuffer<Object>(capacity);
+        }
+        else if (queue.equals("backportDeque")) {
+            backportDeque = new LinkedBlockingDeque();
+        }
+        else if (queue.equals("arrayBlockingQueue")) {
+            implementation = new ArrayBlockingQueue<Object>(capacity);
+        }
+        else if (queue.equals("linkedBlockingQueue")) {
+            implementation = new LinkedBlockingQueue<Object>(capacity);
+        }
+        else {
+            throw new FormattedRuntimeException("Unknown queue '{}'", queue);
+        }
+    }
+
+    @Benchmark @Group("oneProducer") @GroupThreads(1) public boolean oneProducerOffer() {
+        return offer();
+    }
+
+    @Benchmark @Group("oneProducer") @GroupThreads(1) public Object oneProducerPoll() {
+        return poll();
+    }
+
+    @Benchmark @Group("fourProducers") @GroupThreads(4) public boolean fourProducersOffer() {
+        return offer();
+    }
+
+    @Benchmark @Group("fourProducers") @GroupThreads(1) public Object fourProducersPoll() {
+        return poll();
+    }
+
+    private boolean offer() {
+        if (ringBuffer != null) {
+            return ringBuffer.offer(item);
+        }
+        else if (backportDeque != null) {
+            backportDeque.addLast(item);
+            if (backportDeque.size() > capacity) {
+                try {
+                    backportDeque.removeFirst();
+                }
+                catch (NoSuchElementException e) {
+                    // The consumer got there first
+                }
+            }
+            return true;
+        }
+        else {
+            return implementation.offer(item);
+        }
+    }
+
+    private Object poll() {
+        if (ringBuffer != null) {
+            return ringBuffer.poll();
+        }
+        else if (backportDeque != null) {
+            return backportDeque.pollFirst();
+        }
+        else {
+            return implementation.poll();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.logginghub.benchmarks;
+
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.common.ReactorSocketConnection;
+import com.logginghub.connector.common.SocketChannelConnection;
+import com.logginghub.connector.common.SocketConnection;
+import com.logginghub.connector.common.SocketConnection.SlowSendingPolicy;
+import com.logginghub.connector.common.SocketReactor;
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.connector.common.serialisation.CompressionStrategyFactory;
+import com.logginghub.utils.FormattedRuntimeException;
+
+/**
+ * Log events sent over loopback to an {@link InProcessHub}, through each of the connection
+ * implementations, with wire compression and dictionary encoding switched on and off. Each
+ * invocation sends a burst of events and waits for the hub to have counted all of them, so the
+ * result is end to end throughput rather than just the cost of queuing the sends.
+ *
+ * @author James
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketConnectionBenchmark {
+
+    private final static int burst = 1000;
+
+    @Param({ "stream", "channel", "reactor" }) private String transport;
+
+    @Param({ "none", "lz4" }) private String compression;
+
+    @Param({ "false", "true" }) private boolean dictionary;
+
+    private InProcessHub hub;
+    private SocketReactor reactor;
+    private SocketConnection connection;
+    private LogEventMessage[] messages;
+    private long sent;
+
+    @Setup public void setup() throws Exception {
+        hub = new InProcessHub();
+
+        if (transport.equals("stream")) {
+            connection = new SocketConnection(new Socket(hub.getAddress().getAddress(), hub.getAddress().getPort()), "benchmark");
+        }
+        else if (transport.equals("channel")) {
+            connection = new SocketChannelConnection(SocketChannel.open(hub.getAddress()), "benchmark");
+        }
+        else if (transport.equals("reactor")) {
+            reactor = new SocketReactor("benchmark", 1);
+            connection = new ReactorSocketConnection(SocketChannel.open(hub.getAddress()), "benchmark", reactor);
+        }
+        else {
+            throw new FormattedRuntimeException("Unknown transport '{}'", transport);
+        }
+
+        byte strategy = CompressionStrategyFactory.parseStrategy(compression);
+        connection.setCompression(strategy);
+        connection.setDictionaryEncoding(dictionary);
+        connection.setSlowSendingApproach(SlowSendingPolicy.block);
+        connection.start();
+
+        // Give the capabilities messages time to go both ways before we start measuring; the hub
+        // sends its dictionary and compression ones together so waiting on either is enough
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean compressing = strategy != CompressionStrategyFactory.compression_none;
+        while (connection.isCompressing() != compressing && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        messages = new LogEventMessage[burst];
+        for (int i = 0; i < burst; i++) {
+            messages[i] = new LogEventMessage(BenchmarkFixtures.createEvent(i));
+        }
+
+        sent = 0;
+    }
+
+    @TearDown public void teardown() throws Exception {
+        connection.close();
+        if (reactor != null) {
+            reactor.stop();
+        }
+        hub.stop();
+    }
+
+    @Benchmark @OperationsPerInvocation(burst) public long sendBurst() throws Exception {
+        for (int i = 0; i < burst; i++) {
+            connection.send(messages[i]);
+        }
+        sent += burst;
+        hub.waitForEvents(sent, 30, TimeUnit.SECONDS);
+        return sent;
+    }
+}
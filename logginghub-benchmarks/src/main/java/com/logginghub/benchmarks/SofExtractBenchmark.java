@@ -0,0 +1,70 @@
+package com.logginghub.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.common.DefaultLogEvent;
+import com.logginghub.connector.common.LoggingMessageCodex;
+import com.logginghub.sof.SofConfiguration;
+import com.logginghub.sof.SofSerialiser;
+
+/**
+ * Pulling individual fields out of an encoded log event, with and without the field offset table,
+ * against decoding the whole event to get at the same values. The sequence number is the last field
+ * written so it is the worst case for the scan without a table.
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SofExtractBenchmark {
+
+    private final static int messageField = 3;
+    private final static int channelField = 10;
+    private final static int sequenceNumberField = 15;
+
+    @Param({ "false", "true" }) private boolean fieldOffsetTable;
+
+    private SofConfiguration configuration;
+    private byte[] encoded;
+    private int[] fields;
+
+    @Setup public void setup() throws Exception {
+        configuration = new LoggingMessageCodex().getSofConfiguration();
+        configuration.setFieldOffsetTable(fieldOffsetTable);
+
+        DefaultLogEvent event = BenchmarkFixtures.createEvent(0);
+        event.setChannel("events/trading/latency");
+        encoded = SofSerialiser.toBytes(event, configuration);
+
+        fields = new int[] { channelField, messageField, sequenceNumberField };
+    }
+
+    @Benchmark public Object extractLastField() throws Exception {
+        return SofSerialiser.extract(encoded, sequenceNumberField, configuration);
+    }
+
+    @Benchmark public Object[] extractThreeFields() throws Exception {
+        return SofSerialiser.extract(encoded, fields, configuration);
+    }
+
+    @Benchmark public long decodeWholeEvent() throws Exception {
+        DefaultLogEvent event = SofSerialiser.fromBytes(encoded, configuration);
+        return event.getSequenceNumber();
+    }
+}
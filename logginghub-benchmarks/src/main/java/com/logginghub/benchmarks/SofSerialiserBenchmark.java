@@ -0,0 +1,80 @@
+package com.logginghub.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.common.LoggingMessageCodex;
+import com.logginghub.sof.SerialisableObject;
+import com.logginghub.sof.SofConfiguration;
+import com.logginghub.sof.SofExpandingBufferSerialiser;
+import com.logginghub.utils.ExpandingByteBuffer;
+
+/**
+ * Encode and decode of each of the SOF types that carry real data, using the same configuration
+ * the connections use, with and without single pass encoding, byte length strings and the direct
+ * codecs for the hottest types.
+ *
+ * @author James
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SofSerialiserBenchmark {
+
+    @Param({ "DefaultLogEvent",
+            "ChannelMessage",
+            "AggregationKey",
+            "AggregatedPatternData",
+            "HistoricalIndexResponse",
+            "HistoricalDataResponse" }) private String type;
+
+    @Param({ "false", "true" }) private boolean singlePassEncoding;
+
+    @Param({ "false", "true" }) private boolean byteLengthStrings;
+
+    @Param({ "true", "false" }) private boolean useCodecs;
+
+    private SofConfiguration configuration;
+    private SerialisableObject object;
+    private ExpandingByteBuffer buffer;
+    private ByteBuffer encoded;
+
+    @Setup public void setup() throws Exception {
+        configuration = new LoggingMessageCodex().getSofConfiguration();
+        configuration.setSinglePassEncoding(singlePassEncoding);
+        configuration.setByteLengthStrings(byteLengthStrings);
+        configuration.setUseCodecs(useCodecs);
+
+        object = BenchmarkFixtures.createSofObject(type);
+        buffer = new ExpandingByteBuffer(64 * 1024);
+
+        SofExpandingBufferSerialiser.write(buffer, object, configuration);
+        encoded = BenchmarkFixtures.copy(buffer);
+    }
+
+    @Benchmark public int encode() throws Exception {
+        buffer.clear();
+        SofExpandingBufferSerialiser.write(buffer, object, configuration);
+        return buffer.position();
+    }
+
+    @Benchmark public SerialisableObject decode() throws Exception {
+        encoded.rewind();
+        return SofExpandingBufferSerialiser.read(encoded, configuration);
+    }
+}
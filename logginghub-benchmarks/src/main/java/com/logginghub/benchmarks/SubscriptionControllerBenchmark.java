@@ -0,0 +1,91 @@
+package com.logginghub.benchmarks;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.logginghub.connector.common.SubscriptionController;
+import com.logginghub.connector.common.messages.ChannelMessage;
+import com.logginghub.utils.Destination;
+
+/**
+ * Routing channel messages through the subscription controller with 10k subscriptions spread
+ * across a three level channel hierarchy. fanOut of them are on the dispatched message's channel
+ * or its parents, the rest are elsewhere in the tree, so the numbers cover both the lookup and the
+ * delivery cost. The threaded variant shows whether dispatchers contend with each other.
+ *
+ * @author James
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SubscriptionControllerBenchmark {
+
+    @Param({ "10000" }) private int subscriptions;
+
+    @Param({ "1", "10", "1000" }) private int fanOut;
+
+    private SubscriptionController<Destination<ChannelMessage>> controller;
+    private ChannelMessage hit;
+    private ChannelMessage miss;
+
+    // Doesn't keep any state, so the threaded variant measures the routing rather than
+    // destinations fighting over a counter
+    private static final class NullDestination implements Destination<ChannelMessage> {
+        public void send(ChannelMessage t) {}
+    }
+
+    @Setup public void setup() {
+        controller = new SubscriptionController<Destination<ChannelMessage>>() {
+            @Override protected Future<Boolean> handleFirstSubscription(String channel) {
+                return null;
+            }
+
+            @Override protected Future<Boolean> handleLastSubscription(String channel) {
+                return null;
+            }
+        };
+
+        // The message's own channel and its parents share the fan out subscriptions
+        String[] hitChannels = new String[] { "prices", "prices/equities", "prices/equities/VOD" };
+        for (int i = 0; i < fanOut; i++) {
+            controller.addSubscription(hitChannels[i % hitChannels.length], new NullDestination());
+        }
+
+        // Everything else is spread over the rest of the tree
+        for (int i = 0; i < subscriptions - fanOut; i++) {
+            String channel = "region" + (i % 10) + "/desk" + (i % 100) + "/book" + (i % 1000);
+            controller.addSubscription(channel, new NullDestination());
+        }
+
+        hit = new ChannelMessage("prices/equities/VOD", null);
+        miss = new ChannelMessage("orders/fx/GBPUSD", null);
+    }
+
+    @Benchmark public void dispatchHit() {
+        controller.dispatch(hit, null);
+    }
+
+    @Benchmark public void dispatchMiss() {
+        controller.dispatch(miss, null);
+    }
+
+    @Benchmark @Threads(4) public void dispatchHitFourThreads() {
+        controller.dispatch(hit, null);
+    }
+}
@@ -2,11 +2,19 @@ package com.logginghub.connector.common;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.StringInterner;
+import com.logginghub.utils.WritableByteBuffer;
 
 public abstract class AbstractCodex {
     protected final static int nullValue = -1;
@@ -18,7 +26,75 @@ public abstract class AbstractCodex {
      */
     private static final int stringSizeCutoff = Integer.getInteger("abstractCodex.stringSizeCutoff", 100 * 1024 * 1024);
 
-    protected static void encodeInetAddress(ExpandingByteBuffer buffer, InetAddress sourceHost) {
+    /**
+     * Strings always go over the wire as UTF-8, regardless of the platform default charsets at
+     * either end.
+     */
+    public static final Charset wireCharset = Charset.forName("UTF-8");
+
+    /**
+     * The biggest the per-thread scratch arrays are allowed to grow to. Anything bigger gets arrays
+     * of its own that are dropped afterwards, so one huge message doesn't leave a pooled thread
+     * holding on to that much memory for the rest of its life.
+     */
+    private static final int maximumScratchSize = Integer.getInteger("abstractCodex.maximumScratchSize", 64 * 1024);
+
+    /**
+     * Encoders and decoders aren't thread safe and the scratch arrays grow to the biggest string
+     * seen (up to the maximumScratchSize), so each thread gets its own set. This means encoding and
+     * decoding a string doesn't allocate anything other than the decoded String itself.
+     */
+    private static final class StringScratch {
+        final CharsetEncoder encoder;
+        final CharsetDecoder decoder;
+        final int maxBytesPerChar;
+
+        char[] chars = new char[1024];
+        CharBuffer charBuffer = CharBuffer.wrap(chars);
+        byte[] bytes = new byte[1024];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+
+        StringScratch() {
+            // Match the behaviour of String.getBytes and new String(byte[]) for bad input
+            encoder = wireCharset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoder = wireCharset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            maxBytesPerChar = (int) Math.ceil(encoder.maxBytesPerChar());
+        }
+
+        CharBuffer chars(int length) {
+            if (length > maximumScratchSize) {
+                return CharBuffer.allocate(length);
+            }
+
+            if (chars.length < length) {
+                chars = new char[length];
+                charBuffer = CharBuffer.wrap(chars);
+            }
+            charBuffer.clear();
+            return charBuffer;
+        }
+
+        ByteBuffer bytes(int length) {
+            if (length > maximumScratchSize) {
+                return ByteBuffer.allocate(length);
+            }
+
+            if (bytes.length < length) {
+                bytes = new byte[length];
+                byteBuffer = ByteBuffer.wrap(bytes);
+            }
+            byteBuffer.clear();
+            return byteBuffer;
+        }
+    }
+
+    private static final ThreadLocal<StringScratch> stringScratch = new ThreadLocal<StringScratch>() {
+        @Override protected StringScratch initialValue() {
+            return new StringScratch();
+        }
+    };
+
+    protected static void encodeInetAddress(WritableByteBuffer buffer, InetAddress sourceHost) {
         encodeString(buffer, sourceHost.getHostName());
         encodeString(buffer, sourceHost.getHostAddress());
     }
@@ -58,7 +134,97 @@ public abstract class AbstractCodex {
         return ip;
     }
 
-    protected static void encodeStringArray(ExpandingByteBuffer buffer, String[] formattedObject) {
+    /**
+     * Writes a non-negative int seven bits at a time, low bits first, with the top bit of each byte
+     * flagging that there is more to come.
+     */
+    protected static void encodeVarInt(WritableByteBuffer buffer, int value) {
+        while ((value & ~0x7f) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    protected static int decodeVarInt(ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 28) {
+                throw new RuntimeException("Malformed varint, more than five bytes long");
+            }
+            b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Writes a non-negative long seven bits at a time, the same way as
+     * {@link #encodeVarInt(WritableByteBuffer, int)}
+     */
+    protected static void encodeVarLong(WritableByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    protected static long decodeVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new RuntimeException("Malformed varlong, more than ten bytes long");
+            }
+            b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    protected static void encodeCompactStringArray(WritableByteBuffer buffer, String[] array) {
+        if (array == null) {
+            encodeVarInt(buffer, 0);
+        }
+        else {
+            encodeVarInt(buffer, array.length + 1);
+            for (String string : array) {
+                encodeCompactString(buffer, string);
+            }
+        }
+    }
+
+    protected static String[] decodeCompactStringArray(ByteBuffer buffer) {
+        String[] array;
+
+        int code = decodeVarInt(buffer);
+        if (code == 0) {
+            array = null;
+        }
+        else {
+            int count = code - 1;
+            if (count < 0 || count > buffer.remaining()) {
+                throw new RuntimeException(String.format("Illegal array length decoded : %d", count));
+            }
+
+            array = new String[count];
+            for (int i = 0; i < count; i++) {
+                array[i] = decodeCompactString(buffer);
+            }
+        }
+
+        return array;
+    }
+
+    protected static void encodeStringArray(WritableByteBuffer buffer, String[] formattedObject) {
         if (formattedObject == null) {
             buffer.putInt(nullValue);
         }
@@ -89,17 +255,144 @@ public abstract class AbstractCodex {
         return array;
     }
 
-    protected static void encodeString(ExpandingByteBuffer buffer, String string) {
+    protected static void encodeString(WritableByteBuffer buffer, String string) {
         if (string == null) {
             buffer.putInt(nullValue);
         }
         else {
             // Remember not to use the length of the string - different encoding
-            // schemes will use variable-length chars!
-            byte[] bytes = string.getBytes();
-            buffer.putInt(bytes.length);
-            buffer.put(bytes);
+            // schemes will use variable-length chars! We encode straight into the buffer and then go
+            // back and fill in the real length.
+            int lengthPosition = buffer.position();
+            buffer.putInt(0);
+            int encodedLength = encodeChars(buffer, string);
+            buffer.setInt(lengthPosition, encodedLength);
+        }
+    }
+
+    /**
+     * Encodes a string with a varint length prefix rather than a fixed four byte one; zero means
+     * null, otherwise the value is the encoded length plus one.
+     */
+    protected static void encodeCompactString(WritableByteBuffer buffer, String string) {
+        if (string == null) {
+            encodeVarInt(buffer, 0);
+        }
+        else {
+            int encodedLength = utf8Length(string);
+            encodeVarInt(buffer, encodedLength + 1);
+            int written = encodeChars(buffer, string);
+            if (written != encodedLength) {
+                throw new RuntimeException(String.format("Encoded string length %d didn't match the expected length %d", written, encodedLength));
+            }
+        }
+    }
+
+    protected static String decodeCompactString(ByteBuffer buffer) {
+        int code = decodeVarInt(buffer);
+
+        String string;
+        if (code == 0) {
+            string = null;
+        }
+        else {
+            int length = code - 1;
+            if (length < 0 || length > stringSizeCutoff) {
+                throw new RuntimeException(String.format("Illegal string length decoded : %d", length));
+            }
+
+            if (buffer.remaining() < length) {
+                throw new BufferUnderflowException();
+            }
+
+            string = decodeChars(buffer, length);
         }
+
+        return string;
+    }
+
+    /**
+     * @return the number of bytes the string will take up once encoded with the wire charset,
+     *         including the replacement character written for any unpaired surrogates
+     */
+    protected static int utf8Length(String string) {
+        int length = string.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            }
+            else if (c < 0x800) {
+                bytes += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            }
+            else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                bytes++;
+            }
+            else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes the string straight into the buffer at its current position, reserving enough space
+     * for the worst case first.
+     *
+     * @return the number of bytes written
+     */
+    private static int encodeChars(WritableByteBuffer buffer, String string) {
+        StringScratch scratch = stringScratch.get();
+
+        int length = string.length();
+        CharBuffer chars = scratch.chars(length);
+        string.getChars(0, length, chars.array(), 0);
+        chars.limit(length);
+
+        ByteBuffer target = buffer.getBuffer(length * scratch.maxBytesPerChar);
+        int start = target.position();
+
+        CharsetEncoder encoder = scratch.encoder;
+        encoder.reset();
+        CoderResult result = encoder.encode(chars, target, true);
+        if (!result.isUnderflow()) {
+            throw new RuntimeException(String.format("Failed to encode string into the buffer : %s", result));
+        }
+        encoder.flush(target);
+
+        return target.position() - start;
+    }
+
+    /**
+     * Decodes a string written by {@link #encodeString(WritableByteBuffer, String)}, going through
+     * the interner so repeated values share the same String instance and skip the charset decode.
+     */
+    protected static String decodeString(ByteBuffer buffer, StringInterner interner) {
+        int length = buffer.getInt();
+
+        String string;
+
+        if (length == nullValue) {
+            string = null;
+        }
+        else {
+            if (length < 0 || length > stringSizeCutoff) {
+                throw new RuntimeException(String.format("Illegal string length decoded : %d", length));
+            }
+
+            if (buffer.remaining() < length) {
+                throw new BufferUnderflowException();
+            }
+
+            string = interner.intern(buffer, length);
+        }
+
+        return string;
     }
 
     protected static String decodeString(ByteBuffer buffer) {
@@ -119,9 +412,11 @@ public abstract class AbstractCodex {
                 logger.finer(String.format("Decoding string with length '%d'", length));
             }
 
-            byte[] message = new byte[length];
-            buffer.get(message);
-            string = new String(message);
+            if (buffer.remaining() < length) {
+                throw new BufferUnderflowException();
+            }
+
+            string = decodeChars(buffer, length);
 
             if (logger.isLoggable(Level.FINER)) {
                 logger.finer(String.format("String decoded '%s'", string));
@@ -131,4 +426,24 @@ public abstract class AbstractCodex {
         return string;
     }
 
+    private static String decodeChars(ByteBuffer buffer, int length) {
+        // Bulk copy into the scratch array first, the decoder is much quicker working from a
+        // heap array than it is a byte at a time out of a direct buffer
+        StringScratch scratch = stringScratch.get();
+        ByteBuffer bytes = scratch.bytes(length);
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        bytes.put(buffer);
+        buffer.limit(limit);
+        bytes.flip();
+
+        // UTF-8 never decodes to more chars than there were bytes
+        CharBuffer chars = scratch.chars(length);
+        CharsetDecoder decoder = scratch.decoder;
+        decoder.reset();
+        decoder.decode(bytes, chars, true);
+        decoder.flush(chars);
+
+        return new String(chars.array(), 0, chars.position());
+    }
 }
@@ -1,20 +1,25 @@
 package com.logginghub.connector.common;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
 
 import com.logginghub.connector.common.SocketConnection.SlowSendingPolicy;
 import com.logginghub.connector.common.messages.LogEventMessage;
 import com.logginghub.utils.CpuLogger;
+import com.logginghub.utils.Destination;
 import com.logginghub.utils.GCWatcher;
 import com.logginghub.utils.HeapLogger;
 import com.logginghub.utils.Logger;
 import com.logginghub.utils.NotImplementedException;
+import com.logginghub.utils.RingBuffer;
+import com.logginghub.utils.RingBuffer.OverflowPolicy;
 import com.logginghub.utils.RunnableWorkerThread;
 import com.logginghub.utils.StringUtils;
 import com.logginghub.utils.ThreadUtils;
@@ -22,9 +27,6 @@ import com.logginghub.utils.TimeProvider;
 import com.logginghub.utils.TimeUtils;
 import com.logginghub.utils.VLPorts;
 
-import edu.emory.mathcs.backport.java.util.concurrent.BlockingDeque;
-import edu.emory.mathcs.backport.java.util.concurrent.LinkedBlockingDeque;
-
 /**
  * Because the j.u.l and log4j handlers/appenders need to extend base classes, we have to include
  * our generic implementation via composition.
@@ -40,7 +42,28 @@ public class AppenderHelper {
     private SocketClient socketClient;
     private String sourceApplication = "<unknown source application>";
 
-    private BlockingDeque eventsToBeDispatched = new LinkedBlockingDeque();
+    private int maxDispatchQueueSize = 1000;
+    private volatile RingBuffer<EventSnapshot> eventsToBeDispatched = new RingBuffer<EventSnapshot>(maxDispatchQueueSize);
+
+    /**
+     * The snapshot (or batch of events in batching mode) the dispatch thread is currently trying to
+     * send. It is only cleared once it has gone out, so anything that failed gets retried before
+     * more is taken from the queue. Only written by the dispatch thread.
+     */
+    private volatile EventSnapshot pendingSnapshot = null;
+    private volatile LogEventCollection pendingBatch = null;
+
+    /**
+     * The most events the dispatch thread will put into a single LogEventCollectionMessage; one
+     * turns batching off and each event is sent in its own LogEventMessage. Can be changed whilst
+     * the dispatch thread is running.
+     */
+    private volatile int dispatchBatchSize = 1;
+
+    /**
+     * How long the dispatch thread will wait for a batch to fill up once it has the first event
+     */
+    private volatile long dispatchBatchTimeoutMicros = 1000;
     private long failureDelay = 50;
     private long currentFailureDelay = failureDelay;
 
@@ -52,7 +75,6 @@ public class AppenderHelper {
     private boolean dontThrowExceptionsIfHubIsntUp = false;
     private boolean publishProcessTelemetry = false;
     private boolean publishMachineTelemetry = false;
-    private int maxDispatchQueueSize = 1000;
     private int pid = -1;
 
     /**
@@ -64,15 +86,36 @@ public class AppenderHelper {
     private String telemetry;
     private TimeProvider timeProvider = null;
 
+    /**
+     * Optional disk spool that takes the events we can't dispatch during an outage, or that won't
+     * fit in the dispatch queue. It is opened the first time it is needed, so the spool settings can
+     * be applied in any order.
+     */
+    private volatile DiskSpool spool = null;
+    private String spoolDirectory = null;
+    private int spoolSegmentSize = DiskSpool.defaultSegmentSize;
+    private long spoolMaximumSize = DiskSpool.defaultMaximumSize;
+    private boolean spoolFailed = false;
+
+    /**
+     * The most spooled events replayed per second once we are connected again, so the hub doesn't
+     * get the whole outage in one go; zero replays them as fast as they will go.
+     */
+    private int spoolReplayRate = 1000;
+    private int spoolReplayBatchSize = 100;
+    private long nextSpoolReplayNanos = 0;
+
     private boolean gatheringCallerDetails = false;
     private boolean closing = false;
     private String channel;
     private double failureDelayMultiplier = 2;
     private long failureDelayMaximum = TimeUtils.minutes(1);
-    private int discards;
 
     public AppenderHelper(String name, AppenderHelperCustomisationInterface ahci) {
         customisationInterface = ahci;
+
+        // Picks up socketClient.connectionShards, as the kind of connector has to be decided before
+        // any of the appender configuration is applied
         socketClient = new SocketClient(name);
 
         // Set the connection to throw old messages away if the write side of
@@ -147,11 +190,87 @@ public class AppenderHelper {
     }
 
     private void runDispatchLoop() throws InterruptedException {
-        EventSnapshot snapshot = (EventSnapshot) eventsToBeDispatched.takeFirst();
+        DiskSpool spool = getSpool();
+        if (spool != null && pendingSnapshot == null && pendingBatch == null && !spool.isEmpty() && System.nanoTime() >= nextSpoolReplayNanos) {
+            replaySpool(spool);
+        }
+        else if (dispatchBatchSize > 1 || pendingBatch != null) {
+            // A batch that failed to go out still has to be sent even if batching has since been
+            // turned off
+            runBatchedDispatchLoop();
+        }
+        else {
+            runSingleDispatchLoop();
+        }
+    }
+
+    /**
+     * Send the next batch from the spool. This is also how we find out the hub is back after an
+     * outage, as everything that turns up in the meantime goes straight into the spool. Live
+     * events carry on being dispatched in between the replay batches, so spooled events can reach
+     * the hub after newer ones; they keep their original times.
+     */
+    private void replaySpool(DiskSpool spool) {
+        LogEventCollection batch = new LogEventCollection();
+        int count = spool.peek(spoolReplayBatchSize, batch);
+        if (count == 0) {
+            return;
+        }
+
+        try {
+            socketClient.send(new LogEventCollectionMessage(batch));
+            spool.remove(count);
+
+            if (spoolReplayRate > 0) {
+                long now = System.nanoTime();
+                nextSpoolReplayNanos = Math.max(now, nextSpoolReplayNanos) + (count * 1000000000L) / spoolReplayRate;
+            }
+
+            if (publishingListener != null) {
+                for (LogEvent event : batch) {
+                    publishingListener.onSuccessfullyPublished(event);
+                }
+            }
+
+            // Reset the failure delay
+            currentFailureDelay = failureDelay;
+        }
+        catch (LoggingMessageSenderException ftse) {
+            if (!closing) {
+                if (publishingListener != null) {
+                    for (LogEvent event : batch) {
+                        publishingListener.onUnsuccessfullyPublished(event, ftse);
+                    }
+                }
+
+                onDispatchFailure();
+            }
+        }
+    }
+
+    private void runSingleDispatchLoop() throws InterruptedException {
+        EventSnapshot snapshot = pendingSnapshot;
+        if (snapshot == null) {
+            // jshaw - we use a timed poll rather than a take so we pick up the new queue if it gets
+            // replaced by setMaxDispatchQueueSize
+            snapshot = eventsToBeDispatched.poll(100, TimeUnit.MILLISECONDS);
+            if (snapshot == null) {
+                return;
+            }
+            pendingSnapshot = snapshot;
+
+            // Batching might have been turned on whilst we were waiting; if so the batched loop
+            // will pick this snapshot up as the start of its first batch
+            if (dispatchBatchSize > 1) {
+                return;
+            }
+        }
+
         LogEvent event = snapshot.rebuildEvent();
 
         try {
             socketClient.send(new LogEventMessage(event));
+            pendingSnapshot = null;
             if (publishingListener != null) {
                 publishingListener.onSuccessfullyPublished(event);
             }
@@ -165,22 +284,116 @@ public class AppenderHelper {
                     publishingListener.onUnsuccessfullyPublished(event, ftse);
                 }
 
-                // Stick the event back
-                eventsToBeDispatched.putFirst(snapshot);
+                // The snapshot is still pending, so it will go out first next time around
+                onDispatchFailure();
+            }
+        }
+    }
+
+    private void runBatchedDispatchLoop() throws InterruptedException {
+        LogEventCollection batch = pendingBatch;
+        if (batch == null) {
+            EventSnapshot snapshot = pendingSnapshot;
+            if (snapshot == null) {
+                snapshot = eventsToBeDispatched.poll(100, TimeUnit.MILLISECONDS);
+                if (snapshot == null) {
+                    return;
+                }
+            }
+
+            batch = new LogEventCollection();
+            batch.add(snapshot.rebuildEvent());
+            pendingBatch = batch;
+            pendingSnapshot = null;
+
+            // Now keep draining until the batch is full or we've waited long enough for stragglers
+            long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(dispatchBatchTimeoutMicros);
+            while (batch.size() < dispatchBatchSize) {
+                snapshot = eventsToBeDispatched.poll();
+                if (snapshot == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining > 0) {
+                        snapshot = eventsToBeDispatched.poll(remaining, TimeUnit.NANOSECONDS);
+                    }
 
-                if (!isDontThrowExceptionsIfHubIsntUp()) {
-                    logger.info("Couldnt connect to any hubs; waiting {} ms until the next connection attempt", currentFailureDelay);
+                    if (snapshot == null) {
+                        break;
+                    }
                 }
 
-                // Do the failure delay sleep
-                ThreadUtils.sleep(currentFailureDelay);
+                batch.add(snapshot.rebuildEvent());
+            }
+        }
 
-                currentFailureDelay *= failureDelayMultiplier;
+        try {
+            socketClient.send(new LogEventCollectionMessage(batch));
+            pendingBatch = null;
+            if (publishingListener != null) {
+                for (LogEvent event : batch) {
+                    publishingListener.onSuccessfullyPublished(event);
+                }
+            }
 
-                // Make sure it doesn't get too crazy
-                currentFailureDelay = Math.min(currentFailureDelay, failureDelayMaximum);
+            // Reset the failure delay
+            currentFailureDelay = failureDelay;
+        }
+        catch (LoggingMessageSenderException ftse) {
+            if (!closing) {
+                if (publishingListener != null) {
+                    for (LogEvent event : batch) {
+                        publishingListener.onUnsuccessfullyPublished(event, ftse);
+                    }
+                }
+
+                // The batch is still pending, so it will go out first next time around
+                onDispatchFailure();
+            }
+        }
+    }
+
+    private void onDispatchFailure() {
+        DiskSpool spool = getSpool();
+        if (spool != null) {
+            spillToSpool(spool);
+        }
+
+        if (!isDontThrowExceptionsIfHubIsntUp()) {
+            logger.info("Couldnt connect to any hubs; waiting {} ms until the next connection attempt", currentFailureDelay);
+        }
+
+        // Do the failure delay sleep
+        ThreadUtils.sleep(currentFailureDelay);
+
+        currentFailureDelay *= failureDelayMultiplier;
+
+        // Make sure it doesn't get too crazy
+        currentFailureDelay = Math.min(currentFailureDelay, failureDelayMaximum);
+    }
+
+    /**
+     * Move everything we are holding on to for the hub into the spool, so it isn't kept on the heap
+     * or lost off the end of the dispatch queue while the hub is away
+     */
+    private void spillToSpool(final DiskSpool spool) {
+        LogEventCollection batch = pendingBatch;
+        if (batch != null) {
+            for (LogEvent event : batch) {
+                spool.append(event);
             }
+            pendingBatch = null;
         }
+
+        EventSnapshot snapshot = pendingSnapshot;
+        if (snapshot != null) {
+            spool.append(snapshot.rebuildEvent());
+            pendingSnapshot = null;
+        }
+
+        eventsToBeDispatched.drainTo(new Destination<EventSnapshot>() {
+            public void send(EventSnapshot t) {
+                spool.append(t.rebuildEvent());
+            }
+        });
     }
 
     public void setFailureDelayMaximum(long failureDelayMaximum) {
@@ -218,27 +431,141 @@ public class AppenderHelper {
     }
 
     public void addToQueue(EventSnapshot snapshot) {
-        eventsToBeDispatched.addLast(snapshot);
+        RingBuffer<EventSnapshot> queue = eventsToBeDispatched;
+
+        DiskSpool spool = getSpool();
+        if (spool == null) {
+            queue.put(snapshot);
+        }
+        else if (!queue.offer(snapshot)) {
+            spool.append(snapshot.rebuildEvent());
+        }
+
+        // If the queue was replaced whilst we were adding to it, our snapshot may have gone in
+        // after everything was moved across
+        if (queue != eventsToBeDispatched) {
+            moveToCurrentQueue(queue);
+        }
+    }
+
+    /**
+     * @return the disk spool, opening it if a directory has been set and it isn't open yet; null
+     *         if there isn't one
+     */
+    public DiskSpool getSpool() {
+        DiskSpool current = spool;
+        if (current == null && spoolDirectory != null) {
+            current = openSpool();
+        }
+        return current;
+    }
 
-        if (eventsToBeDispatched.size() > maxDispatchQueueSize) {
-            discards++;
+    private synchronized DiskSpool openSpool() {
+        if (spool == null && spoolDirectory != null && !spoolFailed && !closing) {
             try {
-                eventsToBeDispatched.removeFirst();
+                spool = new DiskSpool(new File(spoolDirectory), spoolSegmentSize, spoolMaximumSize);
             }
-            catch (NoSuchElementException e) {
-                // jshaw - it is possible that the dispatcher thread has just sent the entire queue
-                // in one go. As we aren't synchronising the queue access on the writer side we just
-                // have to suck this up and move on
+            catch (IOException e) {
+                // Only try once, we don't want every logging call to have a go
+                spoolFailed = true;
+                logger.warn(e, "Failed to open the disk spool in '{}', events will only be queued in memory", spoolDirectory);
             }
         }
+        return spool;
     }
 
     // //////////////////////////////////////////////////////////////////
     // Accessors
     // //////////////////////////////////////////////////////////////////
 
-    public int getDiscards() {
-        return discards;
+    /**
+     * @return the number of events thrown away by the dispatch queue overflow policy
+     */
+    public long getDiscards() {
+        return eventsToBeDispatched.getDiscards();
+    }
+
+    /**
+     * Turns on the disk spool: events that can't be sent because the hub is unavailable, or that
+     * won't fit in the dispatch queue, are written to memory mapped files in this directory and
+     * replayed once the hub is back. The dispatch queue overflow policy no longer applies when
+     * there is a spool. Anything left in the directory from a previous run is replayed too.
+     */
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = StringUtils.environmentReplacement(spoolDirectory);
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * Use a spool that has already been opened, rather than opening one from the spool directory
+     */
+    public void setSpool(DiskSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * The size of each of the spool's segment files, in bytes
+     */
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    /**
+     * The most disk space the spool will use, in bytes; once it is full the oldest spooled events
+     * are thrown away to make room
+     */
+    public void setSpoolMaximumSize(long spoolMaximumSize) {
+        this.spoolMaximumSize = spoolMaximumSize;
+    }
+
+    /**
+     * The most spooled events to replay per second once the hub is back, or zero to replay them as
+     * fast as they can be sent
+     */
+    public void setSpoolReplayRate(int eventsPerSecond) {
+        this.spoolReplayRate = Math.max(0, eventsPerSecond);
+    }
+
+    public int getSpoolReplayRate() {
+        return spoolReplayRate;
+    }
+
+    /**
+     * The most spooled events sent together in one LogEventCollectionMessage during a replay
+     */
+    public void setSpoolReplayBatchSize(int spoolReplayBatchSize) {
+        this.spoolReplayBatchSize = Math.max(1, spoolReplayBatchSize);
+    }
+
+    public int getSpoolReplayBatchSize() {
+        return spoolReplayBatchSize;
+    }
+
+    /**
+     * Sets what happens when the dispatch queue is full; one of dropOldest (the default),
+     * dropNewest or block.
+     */
+    public void setDispatchQueueOverflowPolicy(String policy) {
+        setDispatchQueueOverflowPolicy(OverflowPolicy.valueOf(policy));
+    }
+
+    public void setDispatchQueueOverflowPolicy(OverflowPolicy policy) {
+        eventsToBeDispatched.setOverflowPolicy(policy);
+    }
+
+    public OverflowPolicy getDispatchQueueOverflowPolicy() {
+        return eventsToBeDispatched.getOverflowPolicy();
+    }
+
+    /**
+     * How long a logging thread will wait for space in the dispatch queue under the block overflow
+     * policy before its event is discarded.
+     */
+    public void setDispatchQueueBlockTimeout(long milliseconds) {
+        eventsToBeDispatched.setBlockTimeout(milliseconds, TimeUnit.MILLISECONDS);
     }
 
     public void setWriteQueueOverflowPolicy(String policy) {
@@ -253,8 +580,58 @@ public class AppenderHelper {
         socketClient.removeConnectionPoint(inetSocketAddress);
     }
 
-    public void setMaxDispatchQueueSize(int maxQueueSize) {
+    /**
+     * Resizes the dispatch queue. The queue is preallocated so this should be done as part of the
+     * configuration, before events start arriving; the actual capacity will be rounded up to the
+     * next power of two.
+     */
+    public synchronized void setMaxDispatchQueueSize(int maxQueueSize) {
         this.maxDispatchQueueSize = maxQueueSize;
+
+        // The new queue carries on the old one's discard count
+        RingBuffer<EventSnapshot> oldQueue = eventsToBeDispatched;
+        eventsToBeDispatched = new RingBuffer<EventSnapshot>(maxQueueSize, oldQueue);
+
+        // Anyone still adding to the old queue moves their own snapshot across once they see it has
+        // been replaced
+        moveToCurrentQueue(oldQueue);
+    }
+
+    private void moveToCurrentQueue(RingBuffer<EventSnapshot> oldQueue) {
+        EventSnapshot snapshot;
+        while ((snapshot = oldQueue.poll()) != null) {
+            RingBuffer<EventSnapshot> queue = eventsToBeDispatched;
+            queue.put(snapshot);
+
+            // Replaced again whilst we were moving things over
+            if (queue != eventsToBeDispatched) {
+                moveToCurrentQueue(queue);
+            }
+        }
+    }
+
+    /**
+     * Turns on batching in the dispatch thread: up to this many queued events will be sent together
+     * in one LogEventCollectionMessage. One (the default) sends each event on its own.
+     */
+    public void setDispatchBatchSize(int dispatchBatchSize) {
+        this.dispatchBatchSize = Math.max(1, dispatchBatchSize);
+    }
+
+    public int getDispatchBatchSize() {
+        return dispatchBatchSize;
+    }
+
+    /**
+     * How long, in microseconds, the dispatch thread will wait for more events to fill a batch
+     * before sending what it has.
+     */
+    public void setDispatchBatchTimeout(long dispatchBatchTimeoutMicros) {
+        this.dispatchBatchTimeoutMicros = dispatchBatchTimeoutMicros;
+    }
+
+    public long getDispatchBatchTimeout() {
+        return dispatchBatchTimeoutMicros;
     }
 
     public int getMaxDispatchQueueSize() {
@@ -420,6 +797,14 @@ public class AppenderHelper {
             logger.debug("Stopped dispatcher thread");
         }
 
+        if (spool != null) {
+            // Anything we didn't get round to sending will go out the next time a spool is opened
+            // on the same directory
+            spillToSpool(spool);
+            spool.close();
+            logger.debug("Closed disk spool");
+        }
+
         if (gcWatcher != null) {
             gcWatcher.stop();
             logger.debug("Stopped gc watcher thread");
@@ -454,9 +839,8 @@ public class AppenderHelper {
         boolean done = false;
 
         while (!done) {
-            synchronized (eventsToBeDispatched) {
-                done = eventsToBeDispatched.isEmpty();
-            }
+            DiskSpool spool = this.spool;
+            done = eventsToBeDispatched.isEmpty() && pendingSnapshot == null && pendingBatch == null && (spool == null || spool.isEmpty());
 
             if (!done) {
                 try {
@@ -481,6 +865,28 @@ public class AppenderHelper {
         socketClient.setWriteQueueOverflowPolicy(valueOf);
     }
 
+    /**
+     * Keep a standby connection open to the next hub, and switch straight over to it when the
+     * current one goes rather than backing off and reconnecting
+     */
+    public void setHotStandby(boolean hotStandby) {
+        socketClient.setHotStandby(hotStandby);
+    }
+
+    /**
+     * How long each connection attempt waits for the hub to answer, in milliseconds
+     */
+    public void setConnectTimeout(int milliseconds) {
+        socketClient.setConnectTimeout(milliseconds);
+    }
+
+    /**
+     * How many hubs to try at once when connecting; the first to answer wins
+     */
+    public void setParallelConnectAttempts(int parallelConnectAttempts) {
+        socketClient.setParallelConnectAttempts(parallelConnectAttempts);
+    }
+
     public TimeProvider getTimeProvider() {
         return timeProvider;
     }
@@ -518,7 +924,7 @@ public class AppenderHelper {
 
     }
 
-    public BlockingDeque getEventsToBeDispatched() {
+    public RingBuffer<EventSnapshot> getEventsToBeDispatched() {
         return eventsToBeDispatched;
     }
 
@@ -1,5 +1,6 @@
 package com.logginghub.connector.common;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.InetAddress;
@@ -8,10 +9,17 @@ import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
+import com.logginghub.sof.DefaultSofWriter;
+import com.logginghub.sof.ReaderAbstraction;
 import com.logginghub.sof.SerialisableObject;
+import com.logginghub.sof.SofCodec;
+import com.logginghub.sof.SofConfiguration;
 import com.logginghub.sof.SofException;
 import com.logginghub.sof.SofReader;
+import com.logginghub.sof.SofSerialiser;
 import com.logginghub.sof.SofWriter;
+import com.logginghub.sof.TypeCodex;
+import com.logginghub.sof.WriterAbstraction;
 import com.logginghub.utils.Logger;
 import com.logginghub.utils.Metadata;
 import com.logginghub.utils.TimeProvider;
@@ -481,6 +489,63 @@ public class DefaultLogEvent implements LogEvent, SerialisableObject, TimeProvid
         writer.write(15, sequenceNumber);
     }
 
+    /**
+     * Reads and writes exactly what {@link #read(SofReader)} and {@link #write(SofWriter)} do, but
+     * straight to the wire with precomputed field headers.
+     */
+    public final static SofCodec<DefaultLogEvent> sofCodec = new SofCodec<DefaultLogEvent>() {
+        public int write(DefaultLogEvent event, WriterAbstraction writer, SofWriter fields, SofConfiguration configuration) throws IOException,
+                        SofException {
+            boolean byteLength = configuration.isByteLengthStrings();
+
+            TypeCodex.writeFieldHeader(writer, 1, DefaultSofWriter.TYPE_LONG);
+            SofSerialiser.writeLong(writer, event.localCreationTimeMillis);
+            TypeCodex.writeFieldHeader(writer, 2, DefaultSofWriter.TYPE_INT);
+            SofSerialiser.writeInt(writer, event.level);
+            TypeCodex.writeStringField(writer, 3, event.message, byteLength);
+            TypeCodex.writeStringField(writer, 4, event.sourceHost, byteLength);
+            TypeCodex.writeStringField(writer, 5, event.sourceApplication, byteLength);
+            TypeCodex.writeFieldHeader(writer, 6, DefaultSofWriter.TYPE_INT);
+            SofSerialiser.writeInt(writer, event.pid);
+            TypeCodex.writeStringField(writer, 7, event.threadName, byteLength);
+            TypeCodex.writeStringField(writer, 8, event.loggerName, byteLength);
+            TypeCodex.writeStringField(writer, 9, event.sourceAddress, byteLength);
+            TypeCodex.writeStringField(writer, 10, event.channel, byteLength);
+            TypeCodex.writeStringField(writer, 11, event.sourceClassName, byteLength);
+            TypeCodex.writeStringField(writer, 12, event.sourceMethodName, byteLength);
+            TypeCodex.writeStringField(writer, 13, event.formattedException, byteLength);
+            TypeCodex.writeFieldHeader(writer, 14, DefaultSofWriter.TYPE_UTF8_ARRAY);
+            TypeCodex.writeStringArray(writer, event.formattedObject);
+            TypeCodex.writeFieldHeader(writer, 15, DefaultSofWriter.TYPE_LONG);
+            SofSerialiser.writeLong(writer, event.sequenceNumber);
+            return 15;
+        }
+
+        public void read(DefaultLogEvent event, ReaderAbstraction reader, SofReader fields, SofConfiguration configuration) throws IOException,
+                        SofException {
+            TypeCodex.readFieldHeader(reader, 1, DefaultSofWriter.TYPE_LONG);
+            event.localCreationTimeMillis = SofSerialiser.readLong(reader);
+            TypeCodex.readFieldHeader(reader, 2, DefaultSofWriter.TYPE_INT);
+            event.level = SofSerialiser.readInt(reader);
+            event.message = TypeCodex.readStringField(reader, 3);
+            event.sourceHost = TypeCodex.readStringField(reader, 4);
+            event.sourceApplication = TypeCodex.readStringField(reader, 5);
+            TypeCodex.readFieldHeader(reader, 6, DefaultSofWriter.TYPE_INT);
+            event.pid = SofSerialiser.readInt(reader);
+            event.threadName = TypeCodex.readStringField(reader, 7);
+            event.loggerName = TypeCodex.readStringField(reader, 8);
+            event.sourceAddress = TypeCodex.readStringField(reader, 9);
+            event.channel = TypeCodex.readStringField(reader, 10);
+            event.sourceClassName = TypeCodex.readStringField(reader, 11);
+            event.sourceMethodName = TypeCodex.readStringField(reader, 12);
+            event.formattedException = TypeCodex.readStringField(reader, 13);
+            TypeCodex.readFieldHeader(reader, 14, DefaultSofWriter.TYPE_UTF8_ARRAY);
+            event.formattedObject = TypeCodex.readStringArray(reader);
+            TypeCodex.readFieldHeader(reader, 15, DefaultSofWriter.TYPE_LONG);
+            event.sequenceNumber = SofSerialiser.readLong(reader);
+        }
+    };
+
     public void setMetadata(Metadata metadata) {
         this.metadata = metadata;
     }
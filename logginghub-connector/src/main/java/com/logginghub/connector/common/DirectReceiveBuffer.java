@@ -0,0 +1,157 @@
+package com.logginghub.connector.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import com.logginghub.utils.Logger;
+
+/**
+ * Receive side buffer for the channel based connections. The channel reads straight into a large
+ * direct buffer and the codex decodes frames from that same buffer in place, so the bytes are never
+ * copied on their way from the socket to the decoder.
+ *
+ * The buffer tracks two positions - the start of the data that hasn't been decoded yet, and the end
+ * of the data that has been read. Rather than compacting after every read (which would memmove a
+ * big partial frame over and over as it trickles in) we only shuffle the undecoded bytes back to
+ * the start once the free space at the end drops below the compact threshold. If a single frame is
+ * bigger than the whole buffer, the buffer doubles in size, and goes back to its original size once
+ * everything in it has been decoded.
+ *
+ * Only the thread reading from the connection should use this.
+ *
+ * @author James
+ */
+public class DirectReceiveBuffer {
+
+    private static final Logger logger = Logger.getLoggerFor(DirectReceiveBuffer.class);
+
+    public final static int defaultCapacity = Integer.getInteger("directReceiveBuffer.capacity", 256 * 1024);
+    public final static int defaultCompactThreshold = Integer.getInteger("directReceiveBuffer.compactThreshold", 32 * 1024);
+
+    private final int initialCapacity;
+    private final int compactThreshold;
+
+    private ByteBuffer buffer;
+    private int decodePosition = 0;
+    private int writePosition = 0;
+
+    private long bytesRead = 0;
+    private long compactions = 0;
+
+    public DirectReceiveBuffer() {
+        this(defaultCapacity, defaultCompactThreshold);
+    }
+
+    public DirectReceiveBuffer(int capacity, int compactThreshold) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.initialCapacity = capacity;
+        this.compactThreshold = compactThreshold;
+    }
+
+    /**
+     * Read whatever the channel has for us into the free space at the end of the buffer.
+     *
+     * @return the number of bytes read, or -1 if the channel has reached end of stream
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (writePosition == buffer.capacity()) {
+            makeSpace();
+        }
+
+        buffer.limit(buffer.capacity());
+        buffer.position(writePosition);
+        int read = channel.read(buffer);
+        if (read > 0) {
+            writePosition += read;
+            bytesRead += read;
+        }
+        return read;
+    }
+
+    /**
+     * @return the buffer set up with its position at the first undecoded byte and its limit at the
+     *         end of the data read so far. Decode from it, leaving the position at the start of any
+     *         partial frame, and then call {@link #endDecode()}.
+     */
+    public ByteBuffer beginDecode() {
+        buffer.limit(writePosition);
+        buffer.position(decodePosition);
+        return buffer;
+    }
+
+    public void endDecode() {
+        decodePosition = buffer.position();
+
+        if (decodePosition == writePosition) {
+            // Everything has been decoded, so we can start again from the top for free
+            decodePosition = 0;
+            writePosition = 0;
+
+            if (buffer.capacity() > initialCapacity) {
+                // Don't hang on to the space a large frame needed for the life of the connection
+                logger.fine("Shrinking receive buffer back to {} bytes", initialCapacity);
+                buffer = ByteBuffer.allocateDirect(initialCapacity);
+            }
+        }
+        else if (decodePosition > 0 && buffer.capacity() - writePosition < compactThreshold) {
+            compact();
+        }
+    }
+
+    private void makeSpace() {
+        if (decodePosition > 0) {
+            compact();
+        }
+        else {
+            // A single partial frame has filled the whole buffer
+            int newCapacity = buffer.capacity() * 2;
+            logger.fine("Growing receive buffer to {} bytes to fit a large frame", newCapacity);
+
+            ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+            buffer.limit(writePosition);
+            buffer.position(0);
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+
+    private void compact() {
+        buffer.limit(writePosition);
+        buffer.position(decodePosition);
+        buffer.compact();
+
+        writePosition -= decodePosition;
+        decodePosition = 0;
+        compactions++;
+    }
+
+    /**
+     * @return the number of bytes read but not yet decoded
+     */
+    public int getPending() {
+        return writePosition - decodePosition;
+    }
+
+    public int getCapacity() {
+        return buffer.capacity();
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getCompactions() {
+        return compactions;
+    }
+
+    public void clear() {
+        decodePosition = 0;
+        writePosition = 0;
+        buffer.clear();
+    }
+
+    @Override public String toString() {
+        return "[DirectReceiveBuffer capacity=" + buffer.capacity() + ", pending=" + getPending() + ", bytesRead=" + bytesRead + "]";
+    }
+}
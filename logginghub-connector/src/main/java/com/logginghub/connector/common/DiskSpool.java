@@ -0,0 +1,455 @@
+package com.logginghub.connector.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.FileUtils;
+import com.logginghub.utils.FormattedRuntimeException;
+import com.logginghub.utils.Logger;
+
+/**
+ * Store and forward spool for log events that can't be dispatched to a hub, so an outage doesn't
+ * cost us everything past the end of the dispatch queue. Events are encoded with the
+ * {@link LogEventCodex} and appended to a chain of memory mapped segment files in a directory;
+ * they are read back in the order they went in, and only removed once whoever read them says they
+ * have gone out.
+ *
+ * Each segment starts with a header of a magic number, the segment's sequence number and the read
+ * position, followed by length prefixed frames. A zero length marks the end of what has been
+ * written, so whatever was left in the files by a previous process is picked up again when the
+ * spool is opened on the same directory. Writes go straight into the mapped files, so they survive
+ * the process dying but not necessarily the machine.
+ *
+ * Segments are recycled rather than deleted once they have been read, as a mapped file can't be
+ * unmapped until the garbage collector gets round to it. When the size cap is reached the oldest
+ * segment is recycled with whatever is still in it, and those events are counted as discarded.
+ *
+ * @author James
+ */
+public class DiskSpool implements Closeable {
+
+    private static final Logger logger = Logger.getLoggerFor(DiskSpool.class);
+
+    public final static int defaultSegmentSize = Integer.getInteger("diskSpool.segmentSize", 4 * 1024 * 1024);
+    public final static long defaultMaximumSize = Long.getLong("diskSpool.maximumSize", 256L * 1024 * 1024);
+
+    private final static int magic = 0x4c485350;
+    private final static int sequenceOffset = 4;
+    private final static int readPositionOffset = 12;
+    private final static int headerLength = 16;
+
+    private final static String prefix = "spool-";
+    private final static String postfix = ".segment";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maximumSegments;
+
+    /**
+     * The segments with events in, oldest first; the last one is the one being written to
+     */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final LinkedList<Segment> recycled = new LinkedList<Segment>();
+
+    private final ExpandingByteBuffer encodeBuffer = new ExpandingByteBuffer(4096);
+
+    private long nextSequence = 0;
+    private int nextFile = 0;
+    private int events = 0;
+
+    /**
+     * The number of events that have ever been taken off the front of the spool, either by being
+     * removed or by being discarded, and the value it had at the last peek. The difference tells
+     * remove how many of the peeked events have already gone.
+     */
+    private long head = 0;
+    private long peekedFrom = 0;
+
+    private long spooled = 0;
+    private long replayed = 0;
+    private long discarded = 0;
+
+    private boolean closed = false;
+
+    private static class Segment {
+        File file;
+        MappedByteBuffer buffer;
+        long sequence;
+        int readPosition;
+        int writePosition;
+        int events;
+    }
+
+    public DiskSpool(File directory) throws IOException {
+        this(directory, defaultSegmentSize, defaultMaximumSize);
+    }
+
+    public DiskSpool(File directory, int segmentSize, long maximumSize) throws IOException {
+        if (segmentSize <= headerLength + 4) {
+            throw new IllegalArgumentException("Segment size " + segmentSize + " is too small");
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maximumSegments = (int) Math.max(2, maximumSize / segmentSize);
+
+        directory.mkdirs();
+        recover();
+
+        if (segments.isEmpty()) {
+            segments.add(nextSegment());
+        }
+    }
+
+    /**
+     * Pick up the segments a previous spool left in the directory
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(prefix) && file.getName().endsWith(postfix);
+            }
+        });
+
+        List<Segment> found = new ArrayList<Segment>();
+        if (files != null) {
+            for (File file : files) {
+                nextFile = Math.max(nextFile, parseFileNumber(file) + 1);
+
+                boolean sameSize = file.length() == segmentSize;
+                Segment segment = map(file);
+                if (sameSize && segment.buffer.getInt(0) == magic) {
+                    segment.sequence = segment.buffer.getLong(sequenceOffset);
+                    segment.readPosition = segment.buffer.getInt(readPositionOffset);
+                    scan(segment);
+                    found.add(segment);
+                }
+                else {
+                    // Not one of ours, or left over from a different segment size
+                    found.add(reset(segment, -1));
+                }
+            }
+        }
+
+        Collections.sort(found, new Comparator<Segment>() {
+            public int compare(Segment a, Segment b) {
+                return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+            }
+        });
+
+        for (Segment segment : found) {
+            nextSequence = Math.max(nextSequence, segment.sequence + 1);
+            if (segment.events > 0) {
+                segments.add(segment);
+                events += segment.events;
+            }
+            else {
+                recycled.add(segment);
+            }
+        }
+
+        if (events > 0) {
+            logger.info("Recovered {} spooled events from {} segments in '{}'", events, segments.size(), directory.getAbsolutePath());
+        }
+    }
+
+    private static int parseFileNumber(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - postfix.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Walk the frames from the read position to find where the writing stopped
+     */
+    private void scan(Segment segment) {
+        int position = headerLength;
+        int readPosition = Math.max(headerLength, segment.readPosition);
+        int events = 0;
+
+        while (position + 4 <= segmentSize) {
+            int length = segment.buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > segmentSize) {
+                break;
+            }
+
+            if (position >= readPosition) {
+                events++;
+            }
+            position += 4 + length;
+        }
+
+        segment.writePosition = position;
+        segment.readPosition = Math.min(readPosition, position);
+        segment.events = events;
+    }
+
+    private Segment map(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(segmentSize);
+
+            Segment segment = new Segment();
+            segment.file = file;
+            segment.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            return segment;
+        }
+        finally {
+            // The mapping stays valid once the file is closed
+            FileUtils.close(randomAccessFile);
+        }
+    }
+
+    private Segment reset(Segment segment, long sequence) {
+        segment.sequence = sequence;
+        segment.readPosition = headerLength;
+        segment.writePosition = headerLength;
+        segment.events = 0;
+
+        segment.buffer.putInt(headerLength, 0);
+        segment.buffer.putLong(sequenceOffset, sequence);
+        segment.buffer.putInt(readPositionOffset, headerLength);
+        segment.buffer.putInt(0, magic);
+        return segment;
+    }
+
+    private Segment nextSegment() throws IOException {
+        Segment segment;
+        if (recycled.isEmpty()) {
+            segment = map(new File(directory, prefix + nextFile++ + postfix));
+        }
+        else {
+            segment = recycled.removeFirst();
+        }
+        return reset(segment, nextSequence++);
+    }
+
+    /**
+     * Move on to a new segment, making room for it by dropping the oldest one if we are at the size
+     * cap
+     */
+    private Segment roll() throws IOException {
+        if (recycled.isEmpty() && segments.size() >= maximumSegments) {
+            Segment oldest = segments.removeFirst();
+            if (oldest.events > 0) {
+                logger.warn("Disk spool in '{}' is full, discarding the oldest {} spooled events", directory.getAbsolutePath(), oldest.events);
+                discarded += oldest.events;
+                events -= oldest.events;
+                head += oldest.events;
+            }
+            recycled.add(oldest);
+        }
+
+        Segment segment = nextSegment();
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Encode the event onto the end of the spool.
+     *
+     * @return false if the event was discarded, because it is bigger than a segment or the spool
+     *         has been closed
+     */
+    public synchronized boolean append(LogEvent event) {
+        if (closed) {
+            discarded++;
+            return false;
+        }
+
+        encodeBuffer.clear();
+        LogEventCodex.encode(encodeBuffer, event);
+        ByteBuffer encoded = encodeBuffer.getBuffer();
+        encoded.flip();
+
+        int length = encoded.remaining();
+        int frameLength = 4 + length;
+        if (headerLength + frameLength > segmentSize) {
+            logger.warn("Log event encoded to {} bytes, which won't fit in a {} byte spool segment; it has been discarded", length, segmentSize);
+            discarded++;
+            return false;
+        }
+
+        Segment segment = segments.getLast();
+        if (segment.writePosition + frameLength > segmentSize) {
+            try {
+                segment = roll();
+            }
+            catch (IOException e) {
+                logger.warn(e, "Failed to create a new spool segment in '{}'; the event has been discarded", directory.getAbsolutePath());
+                discarded++;
+                return false;
+            }
+        }
+
+        // Put the terminator after the new frame before its length goes in, so anyone scanning the
+        // file never sees a frame that isn't all there
+        int position = segment.writePosition;
+        ByteBuffer destination = segment.buffer.duplicate();
+        destination.position(position + 4);
+        destination.put(encoded);
+        if (position + frameLength + 4 <= segmentSize) {
+            segment.buffer.putInt(position + frameLength, 0);
+        }
+        segment.buffer.putInt(position, length);
+
+        segment.writePosition += frameLength;
+        segment.events++;
+        events++;
+        spooled++;
+        return true;
+    }
+
+    /**
+     * Decode up to the maximum number of events from the front of the spool into the destination,
+     * without removing them. Call {@link #remove(int)} once they have been dealt with.
+     *
+     * @return the number of events added to the destination
+     */
+    public synchronized int peek(int maximum, Collection<LogEvent> destination) {
+        peekedFrom = head;
+
+        int count = 0;
+        for (Segment segment : segments) {
+            int position = segment.readPosition;
+            while (count < maximum && position < segment.writePosition) {
+                int length = segment.buffer.getInt(position);
+                ByteBuffer frame = segment.buffer.duplicate();
+                frame.limit(position + 4 + length);
+                frame.position(position + 4);
+
+                try {
+                    destination.add(LogEventCodex.decode(frame));
+                }
+                catch (PartialMessageException e) {
+                    throw new FormattedRuntimeException(e, "Spooled event at position {} in '{}' is incomplete", position, segment.file.getAbsolutePath());
+                }
+
+                position += 4 + length;
+                count++;
+            }
+
+            if (count == maximum) {
+                break;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Take events from the front of the spool once they have been sent. The count is relative to
+     * the last peek, so if any of the peeked events have been discarded in the meantime to make
+     * room, only the rest are removed.
+     */
+    public synchronized void remove(int count) {
+        int remaining = count - (int) (head - peekedFrom);
+
+        while (remaining > 0 && events > 0) {
+            Segment segment = segments.getFirst();
+            while (remaining > 0 && segment.readPosition < segment.writePosition) {
+                segment.readPosition += 4 + segment.buffer.getInt(segment.readPosition);
+                segment.events--;
+                events--;
+                head++;
+                replayed++;
+                remaining--;
+            }
+            segment.buffer.putInt(readPositionOffset, segment.readPosition);
+
+            if (segment.readPosition == segment.writePosition) {
+                if (segments.size() > 1) {
+                    recycled.add(segments.removeFirst());
+                }
+                else {
+                    reset(segment, segment.sequence);
+                }
+            }
+        }
+
+        peekedFrom = head;
+    }
+
+    public synchronized boolean isEmpty() {
+        return events == 0;
+    }
+
+    /**
+     * @return the number of events waiting in the spool
+     */
+    public synchronized int size() {
+        return events;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getSpooled() {
+        return spooled;
+    }
+
+    public synchronized long getReplayed() {
+        return replayed;
+    }
+
+    public synchronized long getDiscarded() {
+        return discarded;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Flush the segments to disk; anything still in the spool will be picked up by the next spool
+     * opened on the same directory. A closed spool reports itself as empty, as it has nothing left
+     * to give back.
+     */
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+            segments.clear();
+            recycled.clear();
+            events = 0;
+            head = 0;
+            peekedFrom = 0;
+        }
+    }
+
+    @Override public synchronized String toString() {
+        return "[DiskSpool directory=" +
+               directory.getAbsolutePath() +
+               " events=" +
+               events +
+               " segments=" +
+               segments.size() +
+               " spooled=" +
+               spooled +
+               " replayed=" +
+               replayed +
+               " discarded=" +
+               discarded +
+               "]";
+    }
+}
@@ -1,21 +1,51 @@
 package com.logginghub.connector.common;
 
-import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
-import com.logginghub.utils.ExpandingByteBuffer;
 import com.logginghub.utils.FormattedRuntimeException;
 import com.logginghub.utils.Logger;
+import com.logginghub.utils.StringInterner;
+import com.logginghub.utils.WritableByteBuffer;
 
 public class LogEventCodex extends AbstractCodex {
 
     private static final Logger logger = Logger.getLoggerFor(LogEventCodex.class);
 
     private final static byte versionOne = 1;
+
+    /**
+     * Version two sends the descriptive fields through a per-connection {@link StringDictionary},
+     * so it can only be used once both ends have agreed to it - see {@link LoggingMessageCodex}.
+     * The other strings, the level, pid and sequence number go as varints and varint prefixed
+     * strings rather than fixed width values.
+     */
+    private final static byte versionTwo = 2;
     private final static int lengthPlaceHolder = 0;
 
+    /**
+     * The descriptive fields of an event (host, application, logger, class, method, thread, address
+     * and channel) come from a small set of values that we see again and again, so they are decoded
+     * through a shared interner rather than allocating a new String every time. The message, exception
+     * and parameters are always decoded normally.
+     */
+    private static final StringInterner interner = new StringInterner(Integer.getInteger("logEventCodex.internerCapacity", 8192),
+                                                                      Integer.getInteger("logEventCodex.internerMaximumLength", 256),
+                                                                      wireCharset);
+
+    public static StringInterner getInterner() {
+        return interner;
+    }
+
     public static LogEvent decode(ByteBuffer buffer) throws PartialMessageException {
+        return decode(buffer, null);
+    }
+
+    /**
+     * Decode an event in either version; the dictionary is only needed for version two events, and
+     * is updated with any new definitions they carry.
+     */
+    public static LogEvent decode(ByteBuffer buffer, StringDictionary dictionary) throws PartialMessageException {
         logger.finer("Attempting to decode log event from buffer '{}'", buffer);
 
         DefaultLogEvent event = null;
@@ -48,25 +78,25 @@ public class LogEventCodex extends AbstractCodex {
                         decodeProgress = 2;
                         event.setLocalCreationTimeMillis(buffer.getLong());
                         decodeProgress = 3;
-                        event.setSourceApplication(decodeString(buffer));
+                        event.setSourceApplication(decodeString(buffer, interner));
                         decodeProgress = 4;
                         event.setFormattedException(decodeString(buffer));
                         decodeProgress = 5;
                         event.setFormattedObject(decodeStringArray(buffer));
                         decodeProgress = 6;
-                        event.setLoggerName(decodeString(buffer));
+                        event.setLoggerName(decodeString(buffer, interner));
                         decodeProgress = 7;
                         event.setSequenceNumber(buffer.getLong());
                         decodeProgress = 8;
-                        event.setSourceClassName(decodeString(buffer));
+                        event.setSourceClassName(decodeString(buffer, interner));
                         decodeProgress = 9;
-                        event.setSourceHost(decodeString(buffer));
+                        event.setSourceHost(decodeString(buffer, interner));
                         decodeProgress = 10;
-                        event.setSourceAddress(decodeString(buffer));
+                        event.setSourceAddress(decodeString(buffer, interner));
                         decodeProgress = 11;
-                        event.setSourceMethodName(decodeString(buffer));
+                        event.setSourceMethodName(decodeString(buffer, interner));
                         decodeProgress = 12;
-                        event.setThreadName(decodeString(buffer));
+                        event.setThreadName(decodeString(buffer, interner));
                        
                         // Read optional fields - pid
                         int progress = buffer.position() - payloadStart;
@@ -78,7 +108,7 @@ public class LogEventCodex extends AbstractCodex {
                         // Read optional fields - channel
                         progress = buffer.position() - payloadStart;
                         if (progress < length) {
-                            event.setChannel(decodeString(buffer));
+                            event.setChannel(decodeString(buffer, interner));
                             decodeProgress = 15;
                         }
                         
@@ -97,6 +127,12 @@ public class LogEventCodex extends AbstractCodex {
                     buffer.reset();
                     throw new PartialMessageException();
                 }
+            } else if (version == versionTwo) {
+                if (dictionary == null) {
+                    throw new RuntimeException("Dictionary encoded log event received, but dictionary encoding hasn't been agreed for this connection");
+                }
+
+                event = decodeVersion2(buffer, dictionary);
             } else {
                 throw new RuntimeException("Unknown encoding version number " + version);
             }
@@ -112,7 +148,78 @@ public class LogEventCodex extends AbstractCodex {
         return event;
     }
 
-    public static void encodeInternal_version1(ExpandingByteBuffer buffer, LogEvent event) {
+    private static DefaultLogEvent decodeVersion2(ByteBuffer buffer, StringDictionary dictionary) throws PartialMessageException {
+        int length = buffer.getInt();
+        int payloadStart = buffer.position();
+
+        if (length == 0) {
+            throw new RuntimeException(String.format("Invalid event size '%d'", length));
+        }
+
+        // The whole event has to be here before we start, otherwise we'd be applying dictionary
+        // definitions from an event we then can't finish decoding
+        if (buffer.remaining() < length) {
+            buffer.reset();
+            throw new PartialMessageException();
+        }
+
+        DefaultLogEvent event = new DefaultLogEvent();
+        try {
+            event.setLevel(decodeVarInt(buffer));
+            event.setMessage(decodeCompactString(buffer));
+            event.setLocalCreationTimeMillis(buffer.getLong());
+            event.setSourceApplication(dictionary.decode(buffer));
+            event.setFormattedException(decodeCompactString(buffer));
+            event.setFormattedObject(decodeCompactStringArray(buffer));
+            event.setLoggerName(dictionary.decode(buffer));
+            event.setSequenceNumber(decodeVarLong(buffer));
+            event.setSourceClassName(dictionary.decode(buffer));
+            event.setSourceHost(dictionary.decode(buffer));
+            event.setSourceAddress(dictionary.decode(buffer));
+            event.setSourceMethodName(dictionary.decode(buffer));
+            event.setThreadName(dictionary.decode(buffer));
+            event.setPid(decodeVarInt(buffer));
+            event.setChannel(dictionary.decode(buffer));
+
+            // Skip anything we dont support at the end of the message
+            buffer.position(payloadStart + length);
+        }
+        catch (RuntimeException re) {
+            throw new FormattedRuntimeException(re, "Decoding version two event failed at position {} : {}", buffer.position(), re.getMessage());
+        }
+
+        return event;
+    }
+
+    public static void encodeInternal_version2(WritableByteBuffer buffer, LogEvent event, StringDictionary dictionary) {
+        buffer.put(versionTwo);
+
+        int lengthPosition = buffer.position();
+        buffer.putInt(lengthPlaceHolder);
+
+        int contentPosition = buffer.position();
+
+        encodeVarInt(buffer, event.getLevel());
+        encodeCompactString(buffer, event.getMessage());
+        buffer.putLong(event.getLocalCreationTimeMillis());
+        dictionary.encode(buffer, event.getSourceApplication());
+        encodeCompactString(buffer, event.getFormattedException());
+        encodeCompactStringArray(buffer, event.getFormattedObject());
+        dictionary.encode(buffer, event.getLoggerName());
+        encodeVarLong(buffer, event.getSequenceNumber());
+        dictionary.encode(buffer, event.getSourceClassName());
+        dictionary.encode(buffer, event.getSourceHost());
+        dictionary.encode(buffer, event.getSourceAddress());
+        dictionary.encode(buffer, event.getSourceMethodName());
+        dictionary.encode(buffer, event.getThreadName());
+        encodeVarInt(buffer, event.getPid());
+        dictionary.encode(buffer, event.getChannel());
+
+        int length = buffer.position() - contentPosition;
+        buffer.setInt(lengthPosition, length);
+    }
+
+    public static void encodeInternal_version1(WritableByteBuffer buffer, LogEvent event) {
         buffer.put(versionOne);
 
         int lengthPosition = buffer.position();
@@ -134,15 +241,11 @@ public class LogEventCodex extends AbstractCodex {
         encodeString(buffer, event.getSourceMethodName());
         encodeString(buffer, event.getThreadName());
 
-        int endPosition = buffer.position();
-        int length = endPosition - contentPosition;
-
-        buffer.position(lengthPosition);
-        buffer.putInt(length);
-        buffer.position(endPosition);
+        int length = buffer.position() - contentPosition;
+        buffer.setInt(lengthPosition, length);
     }
 
-    public static void encodeInternal_version1_with_pid(ExpandingByteBuffer buffer, LogEvent event) {
+    public static void encodeInternal_version1_with_pid(WritableByteBuffer buffer, LogEvent event) {
         buffer.put(versionOne);
 
         int lengthPosition = buffer.position();
@@ -165,15 +268,11 @@ public class LogEventCodex extends AbstractCodex {
         encodeString(buffer, event.getThreadName());
         buffer.putInt(event.getPid());
 
-        int endPosition = buffer.position();
-        int length = endPosition - contentPosition;
-
-        buffer.position(lengthPosition);
-        buffer.putInt(length);
-        buffer.position(endPosition);
+        int length = buffer.position() - contentPosition;
+        buffer.setInt(lengthPosition, length);
     }
     
-    public static void encodeInternal_version1_with_channel_and_pid(ExpandingByteBuffer buffer, LogEvent event) {
+    public static void encodeInternal_version1_with_channel_and_pid(WritableByteBuffer buffer, LogEvent event) {
         buffer.put(versionOne);
 
         int lengthPosition = buffer.position();
@@ -197,29 +296,30 @@ public class LogEventCodex extends AbstractCodex {
         buffer.putInt(event.getPid());
         encodeString(buffer, event.getChannel());
 
-        int endPosition = buffer.position();
-        int length = endPosition - contentPosition;
-
-        buffer.position(lengthPosition);
-        buffer.putInt(length);
-        buffer.position(endPosition);
+        int length = buffer.position() - contentPosition;
+        buffer.setInt(lengthPosition, length);
     }
 
 
-    public static void encode(ExpandingByteBuffer buffer, LogEvent event) {
+    public static void encode(WritableByteBuffer buffer, LogEvent event) {
         logger.finer("Attempting to encode log event '{}' into buffer '{}'", event, buffer);
 
-        boolean done = false;
+        // The buffer makes room for each value as it goes, so there is nothing to retry
+        encodeInternal_version1_with_channel_and_pid(buffer, event);
+    }
 
-        while (!done) {
-            try {
-                encodeInternal_version1_with_channel_and_pid(buffer, event);
-                done = true;
-            } catch (BufferOverflowException blow) {
-                buffer.doubleSize();
-                buffer.clear();
-                done = false;
-            }
+    /**
+     * Encode the event in the dictionary format, or fall back to the plain format if the dictionary
+     * is null. Callers are responsible for rolling back the dictionary if the message the event is
+     * part of doesn't make it on to the wire.
+     */
+    public static void encode(WritableByteBuffer buffer, LogEvent event, StringDictionary dictionary) {
+        if (dictionary == null) {
+            encode(buffer, event);
+        }
+        else {
+            logger.finer("Attempting to dictionary encode log event '{}' into buffer '{}'", event, buffer);
+            encodeInternal_version2(buffer, event, dictionary);
         }
     }
 }
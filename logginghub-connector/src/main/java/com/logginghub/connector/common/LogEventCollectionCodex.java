@@ -2,30 +2,38 @@ package com.logginghub.connector.common;
 
 import java.nio.ByteBuffer;
 
-import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.WritableByteBuffer;
 
 public class LogEventCollectionCodex {
 
     public static LogEventCollection decode(ByteBuffer buffer) throws PartialMessageException {
+        return decode(buffer, null);
+    }
+
+    public static LogEventCollection decode(ByteBuffer buffer, StringDictionary dictionary) throws PartialMessageException {
         int size = buffer.getInt();
 
         LogEventCollection collection = new LogEventCollection();
 
         for (int i = 0; i < size; i++) {
-            LogEvent decoded = LogEventCodex.decode(buffer);
+            LogEvent decoded = LogEventCodex.decode(buffer, dictionary);
             collection.add(decoded);
         }
 
         return collection;
     }
 
-    public static void encode(ExpandingByteBuffer expandingBuffer, LogEventCollection collection) {
+    public static void encode(WritableByteBuffer expandingBuffer, LogEventCollection collection) {
+        encode(expandingBuffer, collection, null);
+    }
+
+    public static void encode(WritableByteBuffer expandingBuffer, LogEventCollection collection, StringDictionary dictionary) {
         int size = collection.size();
 
         expandingBuffer.putInt(size);
 
         for (LogEvent logEvent : collection) {
-            LogEventCodex.encode(expandingBuffer, logEvent);
+            LogEventCodex.encode(expandingBuffer, logEvent, dictionary);
         }
     }
 }
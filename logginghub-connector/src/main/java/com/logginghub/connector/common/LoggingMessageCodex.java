@@ -11,6 +11,7 @@ import com.logginghub.connector.common.messages.AggregationKey;
 import com.logginghub.connector.common.messages.ChannelMessage;
 import com.logginghub.connector.common.messages.ChannelSubscriptionRequestMessage;
 import com.logginghub.connector.common.messages.ChannelSubscriptionResponseMessage;
+import com.logginghub.connector.common.messages.CodecCapabilitiesMessage;
 import com.logginghub.connector.common.messages.EventSubscriptionRequestMessage;
 import com.logginghub.connector.common.messages.EventSubscriptionResponseMessage;
 import com.logginghub.connector.common.messages.FilterRequestMessage;
@@ -24,11 +25,16 @@ import com.logginghub.connector.common.messages.SubscriptionRequestMessage;
 import com.logginghub.connector.common.messages.SubscriptionResponseMessage;
 import com.logginghub.connector.common.messages.UnsubscriptionRequestMessage;
 import com.logginghub.connector.common.messages.UnsubscriptionResponseMessage;
+import com.logginghub.connector.common.messages.WireCompressionMessage;
 import com.logginghub.connector.common.serialisation.CompressedBlock;
+import com.logginghub.connector.common.serialisation.CompressionStrategy;
+import com.logginghub.connector.common.serialisation.CompressionStrategyFactory;
+import com.logginghub.connector.common.serialisation.FramedCompressedBlock;
 import com.logginghub.sof.SerialisableObject;
 import com.logginghub.sof.SofConfiguration;
 import com.logginghub.sof.SofException;
 import com.logginghub.sof.SofExpandingBufferSerialiser;
+import com.logginghub.sof.SofObjectFactory;
 import com.logginghub.sof.SofPartialDecodeException;
 import com.logginghub.sof.SofUnknownTypeException;
 import com.logginghub.utils.ByteUtils;
@@ -39,6 +45,7 @@ import com.logginghub.utils.FormattedRuntimeException;
 import com.logginghub.utils.HexDump;
 import com.logginghub.utils.Logger;
 import com.logginghub.utils.NotImplementedException;
+import com.logginghub.utils.WritableByteBuffer;
 
 public class LoggingMessageCodex {
 
@@ -56,12 +63,50 @@ public class LoggingMessageCodex {
     // public final static byte JavaSerialised = 99;
 
 //    public final static byte Encrypted = 100;
-//    public final static byte Compressed = 101;
+    public final static byte Compressed = 101;
 
     public final static byte ExtendedType = -127;
 
     private boolean logUnknownSofTypes = !Boolean.getBoolean("loggingMessageCodex.suppressLoggingOfUnknownSofTypes");
 
+    /**
+     * The version of the dictionary encoded log event format this codex understands
+     */
+    public final static int logEventDictionaryVersion = 1;
+
+    /**
+     * Batches of frames smaller than this aren't worth compressing, they go out as they are
+     */
+    public final static int compressionThreshold = Integer.getInteger("loggingMessageCodex.compressionThreshold", 256);
+
+    /**
+     * The type byte, strategy byte and compressed length in front of a compressed batch
+     */
+    public final static int compressedHeaderLength = 6;
+
+    /**
+     * The dictionary for the events we send - null until the other end has told us it can decode
+     * dictionary encoded events
+     */
+    private volatile StringDictionary outgoingDictionary = null;
+
+    /**
+     * The dictionary for the events we receive; we can always decode them, the other end just
+     * won't send them unless we've told it we can
+     */
+    private final StringDictionary incomingDictionary = new StringDictionary();
+
+    /**
+     * How we compress batches of frames on the way out - none until the other end has told us what
+     * it can decode
+     */
+    private volatile byte outgoingCompression = CompressionStrategyFactory.compression_none;
+    private final WireCompressionStats compressionStats = new WireCompressionStats();
+
+    // Only used by the writing side and the reading side respectively
+    private ByteBuffer compressedBatch;
+    private ByteBuffer decompressedBatch;
+
     public enum Flags {
         Encrypted,
         Compressed
@@ -74,24 +119,44 @@ public class LoggingMessageCodex {
 //        }
 //    };
 
-    // jshaw - this is very important, dont change the IDs!!
+    // jshaw - this is very important, dont change the IDs!! The types we see the most of have
+    // factories so they don't have to be created reflectively, and the very hottest have codecs
+    // that skip the per-field header handling.
     private SofConfiguration sofConfiguration = new SofConfiguration() {
         {
             // registerType(AggregatedPatternDataMessage.class, 1);
             // registerType(AggregatedPatternDataSubscriptionRequestMessage.class, 2);
             // registerType(AggregatedPatternDataSubscriptionResponseMessage.class, 3);
-            registerType(AggregationKey.class, 4);
+            registerType(AggregationKey.class, 4, new SofObjectFactory<AggregationKey>() {
+                public AggregationKey create() {
+                    return new AggregationKey();
+                }
+            });
 
-            registerType(HistoricalIndexElement.class, 5);
+            registerType(HistoricalIndexElement.class, 5, new SofObjectFactory<HistoricalIndexElement>() {
+                public HistoricalIndexElement create() {
+                    return new HistoricalIndexElement();
+                }
+            });
             registerType(HistoricalIndexRequest.class, 6);
             registerType(HistoricalIndexResponse.class, 7);
 
-            registerType(DefaultLogEvent.class, 8);
+            registerType(DefaultLogEvent.class, 8, new SofObjectFactory<DefaultLogEvent>() {
+                public DefaultLogEvent create() {
+                    return new DefaultLogEvent();
+                }
+            });
+            registerCodec(DefaultLogEvent.class, DefaultLogEvent.sofCodec);
             registerType(HistoricalDataRequest.class, 9);
             registerType(HistoricalDataResponse.class, 10);
 
             registerType(CompressedBlock.class, 11);
-            registerType(ChannelMessage.class, 12);
+            registerType(ChannelMessage.class, 12, new SofObjectFactory<ChannelMessage>() {
+                public ChannelMessage create() {
+                    return new ChannelMessage();
+                }
+            });
+            registerCodec(ChannelMessage.class, ChannelMessage.sofCodec);
 
             registerType(LogEventMessage.class, 13);
 
@@ -104,7 +169,11 @@ public class LoggingMessageCodex {
             registerType(DataStructure.class, 22);
             registerType(DataElement.class, 23);
 
-            registerType(AggregatedPatternData.class, 24);
+            registerType(AggregatedPatternData.class, 24, new SofObjectFactory<AggregatedPatternData>() {
+                public AggregatedPatternData create() {
+                    return new AggregatedPatternData();
+                }
+            });
             
             registerType(SubscriptionRequestMessage.class, 25);
             registerType(SubscriptionResponseMessage.class, 26);
@@ -114,6 +183,26 @@ public class LoggingMessageCodex {
             
             registerType(FilterRequestMessage.class, 29);
 
+            registerType(CodecCapabilitiesMessage.class, 30);
+
+            registerType(FramedCompressedBlock.class, 31);
+
+            registerType(WireCompressionMessage.class, 32);
+
+            // Processes that mostly route messages on (hubs and bridges) can turn this on so channel
+            // message payloads and historical data blocks are only decoded if someone looks at them
+            setLazyDecodeOfNestedTypes(Boolean.getBoolean("loggingMessageCodex.lazyDecodeOfNestedTypes"));
+
+            // Only safe once every process we talk to can read the byte length prefixed strings
+            setByteLengthStrings(Boolean.getBoolean("loggingMessageCodex.byteLengthStrings"));
+
+            // The padded header slots are still valid varints, so any reader can decode this; it
+            // can be turned off to get the old, slightly smaller, two-pass encoding back
+            setSinglePassEncoding(Boolean.parseBoolean(System.getProperty("loggingMessageCodex.singlePassEncoding", "true")));
+
+            // The codecs write the same bytes as the types' own methods, this is only here so the
+            // two can be compared
+            setUseCodecs(Boolean.parseBoolean(System.getProperty("loggingMessageCodex.useCodecs", "true")));
         }
     };
 
@@ -127,7 +216,7 @@ public class LoggingMessageCodex {
             switch (type) {
                 case LogEvent: {
                     try {
-                        LogEvent logEvent = LogEventCodex.decode(buffer);
+                        LogEvent logEvent = LogEventCodex.decode(buffer, incomingDictionary);
                         LogEventMessage message = new LogEventMessage(logEvent);
                         return message;
                     }
@@ -157,7 +246,7 @@ public class LoggingMessageCodex {
                 // }
                 // }
                 case LogEventCollection: {
-                    LogEventCollection logEventCollection = LogEventCollectionCodex.decode(buffer);
+                    LogEventCollection logEventCollection = LogEventCollectionCodex.decode(buffer, incomingDictionary);
                     LogEventCollectionMessage message = new LogEventCollectionMessage(logEventCollection);
                     return message;
                 }
@@ -185,10 +274,11 @@ public class LoggingMessageCodex {
 //                    ByteBuffer decrypted = encryptingCodex.get().decrypt(buffer);
 //                    return decode(decrypted);
 //                }
-//                case Compressed: {
-//                    ByteBuffer uncompressed = compressingCodex.uncompress(buffer);
-//                    return decode(uncompressed);
-//                }
+                case Compressed: {
+                    // A compressed batch holds a whole run of frames, so the connection has to
+                    // unpack it with decompressFrames and decode them one at a time
+                    throw new FormattedRuntimeException("Compressed batches can't be decoded as a single message, use decompressFrames");
+                }
 
                 // case JavaSerialised: {
                 // throw new
@@ -244,7 +334,7 @@ public class LoggingMessageCodex {
         return message;
     }
 
-    public void encode(ExpandingByteBuffer expandingByteBuffer, LoggingMessage message) {
+    public void encode(WritableByteBuffer expandingByteBuffer, LoggingMessage message) {
         if (message instanceof LogEventMessage) {
             LogEventMessage logEventMessage = (LogEventMessage) message;
             encode(expandingByteBuffer, logEventMessage.getLogEvent());
@@ -295,7 +385,7 @@ public class LoggingMessageCodex {
         }
     }
 
-    private void encode(ExpandingByteBuffer expandingByteBuffer, SerialisableObject object) {
+    private void encode(WritableByteBuffer expandingByteBuffer, SerialisableObject object) {
         expandingByteBuffer.put(LoggingMessageCodex.SerialisableObject);
 
         try {
@@ -330,7 +420,7 @@ public class LoggingMessageCodex {
     // LogEventCodex.encodeStringArray(expandingBuffer, message.getChannels());
     // }
 
-    public void encode(ExpandingByteBuffer expandingBuffer, LogEvent logEvent) {
+    public void encode(WritableByteBuffer expandingBuffer, LogEvent logEvent) {
         encode(expandingBuffer, logEvent, EnumSet.noneOf(Flags.class));
     }
 
@@ -338,14 +428,29 @@ public class LoggingMessageCodex {
     // encode(expandingBuffer, telemetryStack, EnumSet.noneOf(Flags.class));
     // }
 
-    public void encode(ExpandingByteBuffer expandingBuffer, LogEvent logEvent, EnumSet<Flags> flags) {
+    public void encode(WritableByteBuffer expandingBuffer, LogEvent logEvent, EnumSet<Flags> flags) {
         logger.finest("Encoding event into buffer '{}'", expandingBuffer);
         int position = expandingBuffer.position();
         expandingBuffer.put(LoggingMessageCodex.LogEvent);
 
         logger.finest("Type byte written, buffer is now '{}'", expandingBuffer);
 
-        LogEventCodex.encode(expandingBuffer, logEvent);
+        StringDictionary dictionary = outgoingDictionary;
+        if (dictionary == null) {
+            LogEventCodex.encode(expandingBuffer, logEvent);
+        }
+        else {
+            synchronized (dictionary) {
+                dictionary.mark();
+                try {
+                    LogEventCodex.encode(expandingBuffer, logEvent, dictionary);
+                }
+                catch (RuntimeException e) {
+                    dictionary.rollback();
+                    throw e;
+                }
+            }
+        }
 
         logger.finest("Log event written, buffer is now '{}'", expandingBuffer);
 
@@ -371,14 +476,30 @@ public class LoggingMessageCodex {
     // logger.finest("Flag processing complete, buffer is now '{}'", expandingBuffer);
     // }
 
-    public void encode(ExpandingByteBuffer expandingBuffer, LogEventCollection logEventCollection) {
+    public void encode(WritableByteBuffer expandingBuffer, LogEventCollection logEventCollection) {
         encode(expandingBuffer, logEventCollection, EnumSet.noneOf(Flags.class));
     }
 
-    public void encode(ExpandingByteBuffer expandingBuffer, LogEventCollection collection, EnumSet<Flags> flags) {
-        int position = expandingBuffer.getBuffer().position();
+    public void encode(WritableByteBuffer expandingBuffer, LogEventCollection collection, EnumSet<Flags> flags) {
+        int position = expandingBuffer.position();
         expandingBuffer.put(LoggingMessageCodex.LogEventCollection);
-        LogEventCollectionCodex.encode(expandingBuffer, collection);
+
+        StringDictionary dictionary = outgoingDictionary;
+        if (dictionary == null) {
+            LogEventCollectionCodex.encode(expandingBuffer, collection);
+        }
+        else {
+            synchronized (dictionary) {
+                dictionary.mark();
+                try {
+                    LogEventCollectionCodex.encode(expandingBuffer, collection, dictionary);
+                }
+                catch (RuntimeException e) {
+                    dictionary.rollback();
+                    throw e;
+                }
+            }
+        }
 
         processFlags(expandingBuffer, flags, position);
     }
@@ -387,14 +508,9 @@ public class LoggingMessageCodex {
     // Private methods
     // //////////////////////////////////////////////////////////////////
 
-    private void processFlags(ExpandingByteBuffer expandingBuffer, EnumSet<Flags> flags, int position) {
-//        if (flags.contains(Flags.Compressed)) {
-//            expandingBuffer.insertByte(position, (byte) LoggingMessageCodex.Compressed);
-//            compressingCodex.compress(expandingBuffer, position + 1);
-//
-//            // The compression will hopefully make the message shorter =)
-//            // position = expandingBuffer.getBuffer().position();
-//        }
+    private void processFlags(WritableByteBuffer expandingBuffer, EnumSet<Flags> flags, int position) {
+        // Single messages are too small to compress well; compression is applied to batches of
+        // frames by compressFrames once the connection has negotiated it
 
 //        if (flags.contains(Flags.Encrypted)) {
 //            expandingBuffer.insertByte(position, (byte) LoggingMessageCodex.Encrypted);
@@ -406,6 +522,146 @@ public class LoggingMessageCodex {
 
     }
 
+    /**
+     * Start dictionary encoding the log events we send. Only call this once the other end has told
+     * us it can decode them. Messages have to be written in the same order they were encoded from
+     * here on, as each one can depend on definitions made by the ones before it.
+     */
+    public void enableDictionaryEncoding() {
+        if (outgoingDictionary == null) {
+            outgoingDictionary = new StringDictionary();
+        }
+    }
+
+    public boolean isDictionaryEncoding() {
+        return outgoingDictionary != null;
+    }
+
+    /**
+     * Start compressing the batches passed to {@link #compressFrames(ExpandingByteBuffer, int)}. Only
+     * call this once the other end has told us it can decode the strategy.
+     */
+    public void enableCompression(byte compressionStrategy) {
+        // Make sure we know about it before we start sending it
+        CompressionStrategyFactory.createStrategy(compressionStrategy);
+        this.outgoingCompression = compressionStrategy;
+    }
+
+    public boolean isCompressing() {
+        return outgoingCompression != CompressionStrategyFactory.compression_none;
+    }
+
+    public byte getCompressionStrategy() {
+        return outgoingCompression;
+    }
+
+    public WireCompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    /**
+     * Replace the frames that have been encoded into the buffer from the position given with a
+     * single compressed batch frame, if compression has been enabled and the batch is big enough
+     * to bother with. The batch is left as it is if it doesn't get any smaller. Calls have to be
+     * serialised by the caller, in the same way the encodes are.
+     *
+     * @return true if the frames were compressed
+     */
+    public boolean compressFrames(ExpandingByteBuffer buffer, int position) {
+        byte strategyId = outgoingCompression;
+        int length = buffer.position() - position;
+        if (strategyId == CompressionStrategyFactory.compression_none || length < compressionThreshold) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        CompressionStrategy strategy = CompressionStrategyFactory.createStrategy(strategyId);
+
+        ByteBuffer frames = buffer.getBuffer().duplicate();
+        frames.limit(buffer.position());
+        frames.position(position);
+
+        int maximumLength = strategy.getMaxCompressedLength(length);
+        if (compressedBatch == null || compressedBatch.capacity() < maximumLength) {
+            compressedBatch = ByteBuffer.allocate(maximumLength);
+        }
+
+        compressedBatch.clear();
+        strategy.compress(frames, compressedBatch);
+        compressedBatch.flip();
+
+        int compressedLength = compressedBatch.remaining();
+        boolean worthIt = compressedHeaderLength + compressedLength < length;
+        if (worthIt) {
+            buffer.position(position);
+            buffer.put(Compressed);
+            buffer.put(strategyId);
+            buffer.putInt(compressedLength);
+            buffer.put(compressedBatch);
+        }
+
+        compressionStats.onCompressed(length, worthIt ? compressedHeaderLength + compressedLength : length, System.nanoTime() - start);
+        return worthIt;
+    }
+
+    /**
+     * Decompress the batch frame at the buffer's position, leaving the position after it.
+     *
+     * @return the frames that were in the batch; the buffer belongs to this codex and is reused by
+     *         the next batch, so they have to be decoded before this is called again
+     * @throws PartialMessageException
+     *             if the whole batch hasn't been read yet, in which case the buffer position is left
+     *             where it was
+     */
+    public ByteBuffer decompressFrames(ByteBuffer buffer) throws PartialMessageException {
+        int start = buffer.position();
+        try {
+            byte type = buffer.get();
+            if (type != Compressed) {
+                throw new FormattedRuntimeException("Expected a compressed batch but found message type {}", type);
+            }
+
+            byte strategyId = buffer.get();
+            int compressedLength = buffer.getInt();
+            if (buffer.remaining() < compressedLength) {
+                buffer.position(start);
+                throw new PartialMessageException();
+            }
+
+            long startNanos = System.nanoTime();
+            CompressionStrategy strategy = CompressionStrategyFactory.createStrategy(strategyId);
+
+            ByteBuffer compressed = buffer.duplicate();
+            compressed.limit(buffer.position() + compressedLength);
+
+            int decompressedLength = strategy.getDecompressedLength(compressed);
+            if (decompressedBatch == null || decompressedBatch.capacity() < decompressedLength) {
+                decompressedBatch = ByteBuffer.allocate(decompressedLength);
+            }
+
+            decompressedBatch.clear();
+            strategy.decompress(compressed, decompressedBatch);
+            decompressedBatch.flip();
+
+            buffer.position(buffer.position() + compressedLength);
+
+            compressionStats.onDecompressed(compressedHeaderLength + compressedLength, decompressedLength, System.nanoTime() - startNanos);
+            return decompressedBatch;
+        }
+        catch (BufferUnderflowException e) {
+            buffer.position(start);
+            throw new PartialMessageException();
+        }
+    }
+
+    public StringDictionary getOutgoingDictionary() {
+        return outgoingDictionary;
+    }
+
+    public StringDictionary getIncomingDictionary() {
+        return incomingDictionary;
+    }
+
     public SofConfiguration getSofConfiguration() {
         return sofConfiguration;
     }
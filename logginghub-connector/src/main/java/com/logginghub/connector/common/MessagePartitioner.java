@@ -0,0 +1,30 @@
+package com.logginghub.connector.common;
+
+import com.logginghub.connector.common.messages.ChannelMessage;
+
+/**
+ * Decides which of a {@link ShardedSocketConnector}'s connections a message goes down. Everything
+ * with the same key goes down the same connection, so the order is kept for each key while
+ * different keys are encoded and written in parallel. See {@link MessagePartitioners} for the
+ * standard ones.
+ *
+ * @author James
+ */
+public interface MessagePartitioner {
+
+    /**
+     * @return the partition for this event, from 0 to partitions - 1
+     */
+    int partition(LogEvent event, int partitions);
+
+    /**
+     * @return the partition for this channel message, from 0 to partitions - 1
+     */
+    int partition(ChannelMessage message, int partitions);
+
+    /**
+     * @return true if the events in a collection need routing one by one to keep the order for
+     *         each key, false if the whole collection can go to the partition of its first event
+     */
+    boolean isKeyed();
+}
@@ -0,0 +1,118 @@
+package com.logginghub.connector.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.logginghub.connector.common.messages.ChannelMessage;
+import com.logginghub.utils.FormattedRuntimeException;
+
+/**
+ * The standard {@link MessagePartitioner}s. The keyed ones hash strings the messages already hold,
+ * so choosing a partition doesn't allocate anything.
+ *
+ * @author James
+ */
+public class MessagePartitioners {
+
+    /**
+     * Spread the messages evenly with no regard for ordering between them.
+     */
+    public static MessagePartitioner roundRobin() {
+        return new MessagePartitioner() {
+            private final AtomicInteger next = new AtomicInteger();
+
+            public int partition(LogEvent event, int partitions) {
+                return next(partitions);
+            }
+
+            public int partition(ChannelMessage message, int partitions) {
+                return next(partitions);
+            }
+
+            private int next(int partitions) {
+                return (next.getAndIncrement() & Integer.MAX_VALUE) % partitions;
+            }
+
+            public boolean isKeyed() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Keep the order for each logger.
+     */
+    public static MessagePartitioner byLoggerName() {
+        return new MessagePartitioner() {
+            public int partition(LogEvent event, int partitions) {
+                return bucket(hash(event.getLoggerName()), partitions);
+            }
+
+            public int partition(ChannelMessage message, int partitions) {
+                return bucket(hash(message.getChannel()), partitions);
+            }
+
+            public boolean isKeyed() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Keep the order for each channel.
+     */
+    public static MessagePartitioner byChannel() {
+        return new MessagePartitioner() {
+            public int partition(LogEvent event, int partitions) {
+                return bucket(hash(event.getChannel()), partitions);
+            }
+
+            public int partition(ChannelMessage message, int partitions) {
+                return bucket(hash(message.getChannel()), partitions);
+            }
+
+            public boolean isKeyed() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Turn a partitioner name from a configuration property ("roundRobin", "loggerName" or
+     * "channel") into a partitioner.
+     */
+    public static MessagePartitioner parse(String name) {
+        String trimmed = name.trim();
+        if (trimmed.equalsIgnoreCase("roundRobin")) {
+            return roundRobin();
+        }
+        else if (trimmed.equalsIgnoreCase("loggerName")) {
+            return byLoggerName();
+        }
+        else if (trimmed.equalsIgnoreCase("channel")) {
+            return byChannel();
+        }
+        else {
+            throw new FormattedRuntimeException("We dont recognise MessagePartitioner '{}'", name);
+        }
+    }
+
+    private static int hash(String key) {
+        return key == null ? 0 : key.hashCode();
+    }
+
+    private static int hash(String[] key) {
+        int hash = 1;
+        if (key != null) {
+            for (int i = 0; i < key.length; i++) {
+                hash = 31 * hash + hash(key[i]);
+            }
+        }
+        return hash;
+    }
+
+    static int bucket(int hash, int partitions) {
+        // Spread the bits a little, String hashes of similar names only differ at the bottom
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % partitions;
+    }
+}
@@ -0,0 +1,265 @@
+package com.logginghub.connector.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.Logger;
+import com.logginghub.utils.Out;
+import com.logginghub.utils.StacktraceUtils;
+
+/**
+ * Version of the {@link SocketConnection} that doesn't have any threads of its own; instead it
+ * puts its channel into non-blocking mode and registers it with a {@link SocketReactor}, which
+ * reads and writes for it as the channel becomes ready.
+ *
+ * The write queue, slow sending policy, message listeners and connection listeners all behave as
+ * they do in the threaded connection, but the listeners are called from the reactor thread.
+ * sendBlocking can't write straight to a non-blocking channel, so it puts the message on the write
+ * queue (waiting for space if it has to) and returns.
+ *
+ * @author James
+ */
+public class ReactorSocketConnection extends SocketConnection {
+
+    private static final Logger logger = Logger.getLoggerFor(ReactorSocketConnection.class);
+
+    /**
+     * The most messages we'll encode in one go before handing the buffer to the channel
+     */
+    public final static int maximumMessagesPerWrite = 1000;
+
+    private final SocketChannel channel;
+    private final SocketReactor reactor;
+
+    private final DirectReceiveBuffer receiveBuffer = new DirectReceiveBuffer();
+    private final ExpandingByteBuffer writeBuffer = new ExpandingByteBuffer();
+    private final List<LoggingMessage> messagesToSend = new ArrayList<LoggingMessage>();
+
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private final AtomicBoolean deregistered = new AtomicBoolean(false);
+
+    private volatile SocketReactor.EventLoop loop;
+    private volatile SelectionKey selectionKey;
+
+    /**
+     * Set when the last write couldn't get the whole buffer out; we finish that off before encoding
+     * anything else
+     */
+    private boolean partialWrite = false;
+    private int messagesInWriteBuffer = 0;
+
+    public ReactorSocketConnection(SocketChannel channel, String name, SocketReactor reactor) throws IOException {
+        super(channel.socket(), name);
+        this.channel = channel;
+        this.reactor = reactor;
+
+        channel.configureBlocking(false);
+    }
+
+    @Override protected void startIO() {
+        SocketReactor.EventLoop chosen = reactor.nextLoop();
+        loop = chosen;
+        chosen.register(this);
+    }
+
+    @Override protected void onMessageQueued() {
+        requestWrite();
+    }
+
+    private void requestWrite() {
+        if (writeRequested.compareAndSet(false, true)) {
+            SocketReactor.EventLoop currentLoop = loop;
+
+            // If we've not been handed to a loop yet, the registration will pick up the flag
+            if (currentLoop != null) {
+                currentLoop.requestWrite(this);
+            }
+        }
+    }
+
+    @Override public void sendInternal(LoggingMessage message) throws IOException {
+        if (isClosing()) {
+            return;
+        }
+
+        SocketReactor.EventLoop currentLoop = loop;
+        if (currentLoop != null && currentLoop.isLoopThread()) {
+            // We can't wait for space on the reactor thread, as we're the ones who'd be making it
+            if (!getWriteQueue().offer(message)) {
+                throw new IOException("The write queue is full, and blocking sends from the reactor thread can't wait for space");
+            }
+        }
+        else {
+            try {
+                getWriteQueue().put(message);
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("Interupted waiting for space in the write queue");
+            }
+        }
+
+        requestWrite();
+    }
+
+    // //////////////////////////////////////////////////////////////////
+    // Called from the reactor thread
+    // //////////////////////////////////////////////////////////////////
+
+    void onRegistered(SelectionKey key) {
+        this.selectionKey = key;
+        if (isClosing()) {
+            key.cancel();
+        }
+        else if (writeRequested.get()) {
+            // A write might have been asked for after the loop chose our interest ops, and before
+            // we had a key for it to set OP_WRITE on
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void onReadable() {
+        if (isClosing()) {
+            return;
+        }
+
+        try {
+            int read = receiveBuffer.readFrom(channel);
+            if (read == -1) {
+                close("The incomming stream closed gracefully");
+            }
+            else if (read > 0) {
+                if (isDebug()) {
+                    Out.out("{} | Read {} bytes", getName(), read);
+                }
+
+                onBytesRead(read);
+                logger.finest("Read '{}' bytes from the channel, receive buffer is now '{}'", read, receiveBuffer);
+                decodeMessages(receiveBuffer.beginDecode());
+                receiveBuffer.endDecode();
+            }
+        }
+        catch (IOException e) {
+            if (!isClosing()) {
+                close("An exception was caught whilst reading from the stream :" + e.getMessage());
+                getExceptionPolicy().handle(e, "An exception was caught reading data from the stream");
+            }
+        }
+        catch (RuntimeException e) {
+            logger.warn(e, "A non-io exception was caught processing a message");
+        }
+    }
+
+    void onWritable() {
+        if (isClosing()) {
+            return;
+        }
+
+        try {
+            if (!partialWrite) {
+                messagesToSend.clear();
+                getWriteQueue().drainTo(messagesToSend, maximumMessagesPerWrite);
+
+                for (LoggingMessage message : messagesToSend) {
+                    getCodex().encode(writeBuffer, message);
+                }
+                getCodex().compressFrames(writeBuffer, 0);
+                messagesInWriteBuffer = messagesToSend.size();
+                messagesToSend.clear();
+                writeBuffer.flip();
+            }
+
+            ByteBuffer buffer = writeBuffer.getBuffer();
+            int written = channel.write(buffer);
+
+            if (isDebug()) {
+                Out.out("{} | wrote {} bytes", getName(), written);
+            }
+
+            if (buffer.hasRemaining()) {
+                // The socket buffer is full, wait to be told there is space again
+                partialWrite = true;
+                return;
+            }
+
+            partialWrite = false;
+            writeBuffer.clear();
+            for (int i = 0; i < messagesInWriteBuffer; i++) {
+                onMessageSent();
+            }
+            messagesInWriteBuffer = 0;
+
+            // Stop asking for writes once we've caught up; anyone who queues something after we
+            // clear the flag will ask again
+            writeRequested.set(false);
+            if (getWriteQueue().isEmpty()) {
+                SelectionKey key = selectionKey;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            else {
+                writeRequested.set(true);
+            }
+        }
+        catch (IOException e) {
+            handleWriteFailure(e);
+        }
+        catch (IllegalArgumentException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            handleWriteFailure(e);
+        }
+    }
+
+    private void handleWriteFailure(Exception e) {
+        if (!isClosing()) {
+            close("An exception was caught sending data to the stream : " + StacktraceUtils.combineMessages(e));
+            getExceptionPolicy().handle(e, "An exception was caught sending data to the stream");
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////////
+    // Everything else
+    // //////////////////////////////////////////////////////////////////
+
+    @Override protected void close(String reason, Object... params) {
+        super.close(reason, params);
+
+        // Closing the channel cancels its key, but the selector only lets go of it on its next
+        // select, so give it a nudge
+        SocketReactor.EventLoop currentLoop = loop;
+        if (currentLoop != null && deregistered.compareAndSet(false, true)) {
+            currentLoop.deregistered();
+        }
+    }
+
+    boolean isWriteRequested() {
+        return writeRequested.get();
+    }
+
+    SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public SocketReactor getReactor() {
+        return reactor;
+    }
+
+    @Override public void flush() {
+        // Nothing to do, the reactor writes everything as soon as the channel will take it
+    }
+
+    @Override public String toString() {
+        return "[ReactorSocketConnection socket=" + getSocket() + "]";
+    }
+}
@@ -0,0 +1,106 @@
+package com.logginghub.connector.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.logginghub.utils.TimerWheel;
+
+/**
+ * Future for a single request sent through the SocketClient, completed by the response carrying
+ * the same request ID, or failed if the request times out, can't be sent or the connection drops
+ * before the response arrives.
+ *
+ * @author James
+ */
+public class RequestFuture<T extends LoggingMessage> implements Future<T> {
+
+    private final int requestID;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile T response;
+    private volatile Throwable failure;
+    private volatile TimerWheel.Entry timeout;
+
+    public RequestFuture(int requestID) {
+        this.requestID = requestID;
+    }
+
+    public int getRequestID() {
+        return requestID;
+    }
+
+    void setTimeout(TimerWheel.Entry timeout) {
+        this.timeout = timeout;
+    }
+
+    synchronized boolean complete(T response) {
+        if (latch.getCount() == 0) {
+            return false;
+        }
+        this.response = response;
+        finish();
+        return true;
+    }
+
+    synchronized boolean fail(Throwable failure) {
+        if (latch.getCount() == 0) {
+            return false;
+        }
+        this.failure = failure;
+        finish();
+        return true;
+    }
+
+    private void finish() {
+        latch.countDown();
+        TimerWheel.Entry entry = timeout;
+        if (entry != null) {
+            entry.cancel();
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    public T get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return result();
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException("Timed out waiting for the response to request " + requestID);
+        }
+        return result();
+    }
+
+    private T result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return response;
+    }
+
+    @Override public String toString() {
+        return "RequestFuture [requestID=" + requestID + ", done=" + isDone() + ", failure=" + failure + "]";
+    }
+}
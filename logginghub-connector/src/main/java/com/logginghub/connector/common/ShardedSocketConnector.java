@@ -0,0 +1,329 @@
+package com.logginghub.connector.common;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.logginghub.connector.common.SocketConnection.SlowSendingPolicy;
+import com.logginghub.connector.common.messages.ChannelMessage;
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.utils.Logger;
+
+/**
+ * A SocketConnector that keeps several connections open at once, so the encoding and writing of
+ * events is spread over that many writer threads instead of queueing up behind one. The log events
+ * and channel messages are split between the connections by a {@link MessagePartitioner}, which
+ * keeps the order for each key; everything else - requests, subscriptions, filters - goes down the
+ * first connection, which also drives the connection listeners, so the request/response traffic
+ * sees a single ordinary connection.
+ *
+ * Each shard is a plain SocketConnector. Shard i starts i places along the connection point list,
+ * so given several hubs the shards spread across them, and given one they all share it. A shard
+ * that has dropped reconnects on the next message routed to it; if that fails the message goes
+ * down the first connection instead.
+ *
+ * @author James
+ */
+public class ShardedSocketConnector extends SocketConnector {
+
+    private static final Logger logger = Logger.getLoggerFor(ShardedSocketConnector.class);
+
+    private final SocketConnector[] shards;
+    private final MessagePartitioner partitioner;
+
+    public ShardedSocketConnector(String name, int shardCount, MessagePartitioner partitioner) {
+        super(name);
+
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("A sharded connector needs at least one shard");
+        }
+
+        this.partitioner = partitioner;
+        this.shards = new SocketConnector[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new SocketConnector(shardCount == 1 ? name : name + "-" + i);
+            // Anything the hub sends us on any of the connections comes out of this connector
+            shards[i].addLoggingMessageListener(this);
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public SocketConnector getShard(int index) {
+        return shards[index];
+    }
+
+    public MessagePartitioner getPartitioner() {
+        return partitioner;
+    }
+
+    @Override public SocketConnection getCurrentConnection() {
+        return shards[0].getCurrentConnection();
+    }
+
+    @Override public void send(LoggingMessage message) throws LoggingMessageSenderException {
+        route(message, false);
+    }
+
+    @Override public void sendBlocking(LoggingMessage message) throws LoggingMessageSenderException {
+        route(message, true);
+    }
+
+    private void route(LoggingMessage message, boolean blocking) throws LoggingMessageSenderException {
+        if (message instanceof LogEventMessage) {
+            send(partitioner.partition(((LogEventMessage) message).getLogEvent(), shards.length), message, blocking);
+        }
+        else if (message instanceof ChannelMessage) {
+            send(partitioner.partition((ChannelMessage) message, shards.length), message, blocking);
+        }
+        else if (message instanceof LogEventCollectionMessage) {
+            routeCollection((LogEventCollectionMessage) message, blocking);
+        }
+        else {
+            send(0, message, blocking);
+        }
+    }
+
+    private void routeCollection(LogEventCollectionMessage message, boolean blocking) throws LoggingMessageSenderException {
+        LogEventCollection collection = message.getLogEventCollection();
+        if (collection.isEmpty()) {
+            return;
+        }
+
+        if (!partitioner.isKeyed()) {
+            send(partitioner.partition(collection.get(0), shards.length), message, blocking);
+            return;
+        }
+
+        // Only split the collection up if its events really do belong on different shards
+        int first = partitioner.partition(collection.get(0), shards.length);
+        LogEventCollection[] split = null;
+        int size = collection.size();
+        for (int i = 1; i < size; i++) {
+            LogEvent event = collection.get(i);
+            int shard = partitioner.partition(event, shards.length);
+            if (split == null && shard != first) {
+                split = new LogEventCollection[shards.length];
+                split[first] = new LogEventCollection();
+                split[first].addAll(collection.subList(0, i));
+            }
+
+            if (split != null) {
+                if (split[shard] == null) {
+                    split[shard] = new LogEventCollection();
+                }
+                split[shard].add(event);
+            }
+        }
+
+        if (split == null) {
+            send(first, message, blocking);
+        }
+        else {
+            for (int i = 0; i < split.length; i++) {
+                if (split[i] != null) {
+                    send(i, new LogEventCollectionMessage(split[i]), blocking);
+                }
+            }
+        }
+    }
+
+    private void send(int shard, LoggingMessage message, boolean blocking) throws LoggingMessageSenderException {
+        if (isDebug()) {
+            debug("sending '{}' on shard {}", message, shard);
+        }
+
+        try {
+            send(shards[shard], message, blocking);
+        }
+        catch (LoggingMessageSenderException e) {
+            if (shard == 0) {
+                throw e;
+            }
+
+            logger.fine(e, "Shard {} couldn't send, falling back to the first connection", shard);
+            send(shards[0], message, blocking);
+        }
+    }
+
+    private void send(SocketConnector connector, LoggingMessage message, boolean blocking) throws LoggingMessageSenderException {
+        if (blocking) {
+            connector.sendBlocking(message);
+        }
+        else {
+            connector.send(message);
+        }
+    }
+
+    /**
+     * Connect every shard. Only the first one has to succeed; the others will try again the next
+     * time something is routed to them.
+     */
+    @Override public void connect() throws ConnectorException {
+        for (int i = 0; i < shards.length; i++) {
+            updateConnectionPoints(i);
+        }
+
+        shards[0].connect();
+
+        for (int i = 1; i < shards.length; i++) {
+            if (!shards[i].isConnected()) {
+                try {
+                    shards[i].connect();
+                }
+                catch (ConnectorException e) {
+                    logger.fine(e, "Shard {} failed to connect, it will try again when it is next used", i);
+                }
+            }
+        }
+    }
+
+    private void updateConnectionPoints(int shard) {
+        ConnectionPointManager manager = shards[shard].getConnectionPointManager();
+        manager.setDefaultConnectionPoint(getConnectionPointManager().getDefaultConnectionPoint());
+        manager.clearConnectionPoints();
+        manager.addConnectionPoints(rotate(getConnectionPointManager().getConnectionPoints(), shard));
+    }
+
+    private List<InetSocketAddress> rotate(List<InetSocketAddress> points, int offset) {
+        List<InetSocketAddress> rotated = new ArrayList<InetSocketAddress>(points.size());
+        for (int i = 0; i < points.size(); i++) {
+            rotated.add(points.get((i + offset) % points.size()));
+        }
+        return rotated;
+    }
+
+    @Override public void addConnectionPoint(InetSocketAddress connectionPoint) {
+        super.addConnectionPoint(connectionPoint);
+        for (int i = 0; i < shards.length; i++) {
+            updateConnectionPoints(i);
+        }
+    }
+
+    @Override public void removeConnectionPoint(InetSocketAddress connectionPoint) {
+        super.removeConnectionPoint(connectionPoint);
+        for (int i = 0; i < shards.length; i++) {
+            updateConnectionPoints(i);
+        }
+    }
+
+    @Override public void replaceConnectionList(List<InetSocketAddress> newConnectionPointList) {
+        super.replaceConnectionList(newConnectionPointList);
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].replaceConnectionList(rotate(newConnectionPointList, i));
+        }
+    }
+
+    @Override public void disconnect() {
+        for (SocketConnector shard : shards) {
+            shard.disconnect();
+        }
+    }
+
+    @Override public boolean isConnected() {
+        return shards[0].isConnected();
+    }
+
+    @Override public void close() {
+        for (SocketConnector shard : shards) {
+            shard.close();
+        }
+    }
+
+    @Override public void flush() {
+        for (SocketConnector shard : shards) {
+            shard.flush();
+        }
+    }
+
+    @Override public void sendWhenConnected(LoggingMessage message) {
+        shards[0].sendWhenConnected(message);
+    }
+
+    @Override public void addSocketConnectorListener(SocketConnectorListener listener) {
+        shards[0].addSocketConnectorListener(listener);
+    }
+
+    @Override public void removeSocketConnectorListener(SocketConnectorListener listener) {
+        shards[0].removeSocketConnectorListener(listener);
+    }
+
+    @Override public void setUseSocketChannels(boolean useSocketChannels) {
+        super.setUseSocketChannels(useSocketChannels);
+        for (SocketConnector shard : shards) {
+            shard.setUseSocketChannels(useSocketChannels);
+        }
+    }
+
+    @Override public void setSocketReactor(SocketReactor socketReactor) {
+        super.setSocketReactor(socketReactor);
+        for (SocketConnector shard : shards) {
+            shard.setSocketReactor(socketReactor);
+        }
+    }
+
+    @Override public void setDictionaryEncoding(boolean dictionaryEncoding) {
+        super.setDictionaryEncoding(dictionaryEncoding);
+        for (SocketConnector shard : shards) {
+            shard.setDictionaryEncoding(dictionaryEncoding);
+        }
+    }
+
+    @Override public void setForceFlush(boolean forceFlush) {
+        super.setForceFlush(forceFlush);
+        for (SocketConnector shard : shards) {
+            shard.setForceFlush(forceFlush);
+        }
+    }
+
+    @Override public void setWriteQueueMaximumSize(int writeQueueMaximumSize) {
+        super.setWriteQueueMaximumSize(writeQueueMaximumSize);
+        for (SocketConnector shard : shards) {
+            shard.setWriteQueueMaximumSize(writeQueueMaximumSize);
+        }
+    }
+
+    @Override public void setWriteQueueOverflowPolicy(SlowSendingPolicy policy) {
+        super.setWriteQueueOverflowPolicy(policy);
+        for (SocketConnector shard : shards) {
+            shard.setWriteQueueOverflowPolicy(policy);
+        }
+    }
+
+    @Override public void setConnectTimeout(int connectTimeout) {
+        super.setConnectTimeout(connectTimeout);
+        for (SocketConnector shard : shards) {
+            shard.setConnectTimeout(connectTimeout);
+        }
+    }
+
+    @Override public void setParallelConnectAttempts(int parallelConnectAttempts) {
+        super.setParallelConnectAttempts(parallelConnectAttempts);
+        for (SocketConnector shard : shards) {
+            shard.setParallelConnectAttempts(parallelConnectAttempts);
+        }
+    }
+
+    @Override public void setHotStandby(boolean hotStandby) {
+        super.setHotStandby(hotStandby);
+        for (SocketConnector shard : shards) {
+            shard.setHotStandby(hotStandby);
+        }
+    }
+
+    @Override public void setStandbyCheckInterval(long standbyCheckInterval) {
+        super.setStandbyCheckInterval(standbyCheckInterval);
+        for (SocketConnector shard : shards) {
+            shard.setStandbyCheckInterval(standbyCheckInterval);
+        }
+    }
+
+    @Override public void setDebug(boolean debug) {
+        super.setDebug(debug);
+        for (SocketConnector shard : shards) {
+            shard.setDebug(debug);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.logginghub.connector.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.logginghub.utils.BufferPool;
+import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.Logger;
+import com.logginghub.utils.Out;
+import com.logginghub.utils.SegmentedByteBuffer;
+import com.logginghub.utils.StacktraceUtils;
+
+/**
+ * SocketChannel based version of the {@link SocketConnection}. Rather than encoding each message
+ * into the shared send buffer, copying it out and writing it to the socket output stream one at a
+ * time, the writer thread encodes everything it drains from the write queue into a
+ * {@link SegmentedByteBuffer} of pooled direct segments and hands them to the channel in a single
+ * gathering write.
+ *
+ * The reader thread also goes straight through the channel, as the stream adaptors around a
+ * channel socket serialise reads and writes against each other. It reads into a large
+ * {@link DirectReceiveBuffer} and the messages are decoded from there in place.
+ *
+ * Queueing, the slow sending policy and the connection listeners all behave exactly as they do in
+ * the stream based connection.
+ *
+ * @author James
+ */
+public class SocketChannelConnection extends SocketConnection {
+
+    private static final Logger logger = Logger.getLoggerFor(SocketChannelConnection.class);
+
+    /**
+     * The most messages we'll encode for a single gathering write
+     */
+    public final static int maximumGatherSize = 128;
+
+    /**
+     * If the compression buffer has had to grow past this size to encode a particularly big batch,
+     * we hand it back rather than hang on to all that memory
+     */
+    public final static int maximumPooledBufferSize = 1024 * 1024;
+
+    private final SocketChannel channel;
+
+    /**
+     * The writer thread and sendBlocking callers can't be allowed to interleave their writes
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Everything is encoded into pooled segments, which go to the channel as a gathering write
+     */
+    private final SegmentedByteBuffer writeBuffer = new SegmentedByteBuffer();
+    private ByteBuffer[] gatherBuffers = new ByteBuffer[16];
+    private ExpandingByteBuffer compressionBuffer;
+
+    private final List<LoggingMessage> messagesToSend = new ArrayList<LoggingMessage>();
+    private final DirectReceiveBuffer receiveBuffer = new DirectReceiveBuffer();
+
+    /**
+     * Only ever updated holding the write lock, as the writer thread and sendBlocking callers both
+     * write
+     */
+    private volatile long gatheringWrites = 0;
+    private volatile long bytesWritten = 0;
+
+    public SocketChannelConnection(SocketChannel channel) throws IOException {
+        this(channel, "channel-" + System.identityHashCode(channel));
+    }
+
+    public SocketChannelConnection(SocketChannel channel, String name) throws IOException {
+        super(channel.socket(), name);
+        this.channel = channel;
+
+        // The reader and writer threads both expect to block
+        channel.configureBlocking(true);
+    }
+
+    @Override protected void writeMessages() {
+        messagesToSend.clear();
+
+        try {
+            // This run from a worker thread, so its nice to return back there every now and again
+            LoggingMessage nextMessage = getWriteQueue().poll(1, TimeUnit.SECONDS);
+            if (nextMessage != null) {
+                messagesToSend.add(nextMessage);
+                getWriteQueue().drainTo(messagesToSend);
+
+                int sent = 0;
+                while (sent < messagesToSend.size() && !isClosing()) {
+                    sent += writeGathered(messagesToSend, sent);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // This is ok, just loop around again
+        }
+        catch (IllegalArgumentException iae) {
+            throw iae;
+        }
+        catch (RuntimeException t) {
+            handleWriteFailure(t);
+        }
+        catch (IOException t) {
+            handleWriteFailure(t);
+        }
+    }
+
+    private void handleWriteFailure(Exception t) {
+        if (!isClosing()) {
+            close("An exception was caught sending data to the stream : " + StacktraceUtils.combineMessages(t));
+            getExceptionPolicy().handle(t, "An exception was caught sending data to the stream");
+        }
+    }
+
+    /**
+     * Encodes up to maximumGatherSize messages, starting at the index provided, and writes them
+     * with a single gathering write.
+     *
+     * @return the number of messages written
+     */
+    private int writeGathered(List<LoggingMessage> messages, int from) throws IOException {
+        if (getCodex().isCompressing()) {
+            return writeCompressed(messages, from);
+        }
+
+        int count = Math.min(maximumGatherSize, messages.size() - from);
+
+        long written;
+
+        // Encode under the lock too, dictionary encoded messages have to be written in the order
+        // they were encoded
+        synchronized (writeLock) {
+            try {
+                for (int i = 0; i < count; i++) {
+                    getCodex().encode(writeBuffer, messages.get(from + i));
+                }
+
+                written = writeSegments();
+                bytesWritten += written;
+                gatheringWrites++;
+            }
+            finally {
+                writeBuffer.clear();
+            }
+        }
+
+        if (isDebug()) {
+            Out.out("{} | wrote {} bytes from {} messages", getName(), written, count);
+        }
+
+        logger.finer("Gathering write sent {} messages in {} bytes", count, written);
+
+        for (int i = 0; i < count; i++) {
+            onMessageSent();
+        }
+
+        return count;
+    }
+
+    /**
+     * Once compression has been negotiated there is nothing to gain from gathering, so we encode as
+     * many messages as will fit in a batch into a single buffer, compress it and write that.
+     *
+     * @return the number of messages written
+     */
+    private int writeCompressed(List<LoggingMessage> messages, int from) throws IOException {
+        int count = 0;
+        long written;
+
+        synchronized (writeLock) {
+            if (compressionBuffer == null) {
+                compressionBuffer = new ExpandingByteBuffer(SegmentedByteBuffer.defaultSegmentSize, BufferPool.getDirectPool());
+            }
+
+            try {
+                while (from + count < messages.size() && compressionBuffer.position() < maximumCompressedBatchSize) {
+                    getCodex().encode(compressionBuffer, messages.get(from + count));
+                    count++;
+                }
+
+                getCodex().compressFrames(compressionBuffer, 0);
+                compressionBuffer.flip();
+                gatherBuffers[0] = compressionBuffer.getBuffer();
+                written = writeFully(gatherBuffers, 1);
+                bytesWritten += written;
+                gatheringWrites++;
+            }
+            finally {
+                gatherBuffers[0] = null;
+                if (compressionBuffer.getBuffer().capacity() > maximumPooledBufferSize) {
+                    compressionBuffer.release();
+                    compressionBuffer = null;
+                }
+                else {
+                    compressionBuffer.clear();
+                }
+            }
+        }
+
+        logger.finer("Compressed write sent {} messages in {} bytes", count, written);
+
+        for (int i = 0; i < count; i++) {
+            onMessageSent();
+        }
+
+        return count;
+    }
+
+    /**
+     * Flips the write buffer and writes all of its segments; has to be called holding the write
+     * lock.
+     */
+    private long writeSegments() throws IOException {
+        writeBuffer.flip();
+        int count = writeBuffer.getSegmentCount();
+        gatherBuffers = writeBuffer.toArray(gatherBuffers);
+        try {
+            return writeFully(gatherBuffers, count);
+        }
+        finally {
+            Arrays.fill(gatherBuffers, 0, count, null);
+        }
+    }
+
+    private long writeFully(ByteBuffer[] buffers, int count) throws IOException {
+        long total = 0;
+        int offset = 0;
+        while (offset < count) {
+            total += channel.write(buffers, offset, count - offset);
+
+            // Skip past anything that has been completely written
+            while (offset < count && !buffers[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+        return total;
+    }
+
+    @Override public void sendInternal(LoggingMessage message) throws IOException {
+        synchronized (writeLock) {
+            try {
+                getCodex().encode(writeBuffer, message);
+                bytesWritten += writeSegments();
+            }
+            finally {
+                writeBuffer.clear();
+            }
+        }
+
+        onMessageSent();
+    }
+
+    @Override protected void readMessages() {
+        try {
+            int read = receiveBuffer.readFrom(channel);
+            if (read != -1) {
+                if (isDebug()) {
+                    Out.out("{} | Read {} bytes", getName(), read);
+                }
+
+                onBytesRead(read);
+                logger.finest("Read '{}' bytes from the channel, receive buffer is now '{}'", read, receiveBuffer);
+                decodeMessages(receiveBuffer.beginDecode());
+                receiveBuffer.endDecode();
+            }
+            else {
+                close("The incomming stream closed gracefully");
+            }
+        }
+        catch (IOException e) {
+            if (!isClosing()) {
+                close("An exception was caught whilst reading from the stream :" + e.getMessage());
+                getExceptionPolicy().handle(e, "An exception was caught reading data from the stream");
+            }
+        }
+        catch (Exception ioe) {
+            logger.warn(ioe, "A non-io exception was caught processing a message");
+        }
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the number of gathering writes made by the writer thread - compare this with the
+     *         number of messages sent to see how well the batching is working
+     */
+    public long getGatheringWrites() {
+        return gatheringWrites;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override public String toString() {
+        return "[SocketChannelConnection socket=" + getSocket() + "]";
+    }
+}
@@ -2,14 +2,17 @@ package com.logginghub.connector.common;
 
 import java.io.Closeable;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
@@ -30,9 +33,9 @@ import com.logginghub.utils.Destination;
 import com.logginghub.utils.ExceptionPolicy;
 import com.logginghub.utils.ExceptionPolicy.Policy;
 import com.logginghub.utils.FormattedRuntimeException;
-import com.logginghub.utils.Handler;
 import com.logginghub.utils.LatchFuture;
 import com.logginghub.utils.Logger;
+import com.logginghub.utils.TimerWheel;
 
 /**
  * Wraps the business logic side of being a logging client, backed by a SocketConnector to do the
@@ -50,10 +53,28 @@ public class SocketClient extends AbstractLoggingMessageSource implements Loggin
     private int levelFilter = Level.ALL.intValue();
     private AtomicInteger nextRequestID = new AtomicInteger(0);
 
-    private Map<Integer, Handler<LoggingMessage>> requestResponseHandlers = new HashMap<Integer, Handler<LoggingMessage>>();
+    public final static long defaultRequestTimeout = Long.getLong("socketClient.requestTimeout", 10000);
+
+    /**
+     * More than one spreads the log events and channel messages over that many connections, see
+     * {@link ShardedSocketConnector}; the partitioner is one of the names
+     * {@link MessagePartitioners#parse(String)} understands.
+     */
+    public final static int defaultConnectionShards = Integer.getInteger("socketClient.connectionShards", 1);
+    public final static String defaultShardPartitioner = System.getProperty("socketClient.shardPartitioner", "loggerName");
+
+    private long requestTimeout = defaultRequestTimeout;
+    private TimerWheel timerWheel = TimerWheel.getShared();
+
+    // Requests waiting for a response, keyed on request ID. The reader thread completes them,
+    // callers add them and the timer wheel expires them, so this has to be concurrent.
+    private Map<Integer, RequestFuture<RequestResponseMessage>> requestResponseHandlers = new ConcurrentHashMap<Integer, RequestFuture<RequestResponseMessage>>();
+
+    // The global subscribe/unsubscribe messages don't carry a request ID, so their responses are
+    // matched up in the order they were sent
+    private Queue<RequestFuture<LoggingMessage>> pendingSubscriptionResponses = new ConcurrentLinkedQueue<RequestFuture<LoggingMessage>>();
+    private Queue<RequestFuture<LoggingMessage>> pendingUnsubscriptionResponses = new ConcurrentLinkedQueue<RequestFuture<LoggingMessage>>();
 
-    
-    
     // private List<LoggingMessage> queued = new ArrayList<LoggingMessage>();
 
     private SubscriptionController<Destination<ChannelMessage>> subscriptionController = new SubscriptionController<Destination<ChannelMessage>>() {
@@ -106,7 +127,9 @@ public class SocketClient extends AbstractLoggingMessageSource implements Loggin
                 reestablishSubscriptions();
             }
 
-            public void onConnectionLost(String reason) {}
+            public void onConnectionLost(String reason) {
+                failPendingRequests(reason);
+            }
         });
     }
 
@@ -140,7 +163,11 @@ public class SocketClient extends AbstractLoggingMessageSource implements Loggin
     // }
 
     public SocketClient(String name) {
-        this(new SocketConnector(name));
+        this(name, defaultConnectionShards, defaultConnectionShards > 1 ? MessagePartitioners.parse(defaultShardPartitioner) : null);
+    }
+
+    public SocketClient(String name, int connectionShards, MessagePartitioner partitioner) {
+        this(connectionShards > 1 ? new ShardedSocketConnector(name, connectionShards, partitioner) : new SocketConnector(name));
     }
 
     public void addAutoSubscription(String channel) {
@@ -283,10 +310,34 @@ public class SocketClient extends AbstractLoggingMessageSource implements Loggin
         connector.setDebug(b);
     }
 
+    public void setUseSocketChannels(boolean useSocketChannels) {
+        connector.setUseSocketChannels(useSocketChannels);
+    }
+
+    public void setUseSharedReactor(boolean useSharedReactor) {
+        connector.setUseSharedReactor(useSharedReactor);
+    }
+
+    public void setDictionaryEncoding(boolean dictionaryEncoding) {
+        connector.setDictionaryEncoding(dictionaryEncoding);
+    }
+
     public void setForceFlush(boolean forceFlush) {
         connector.setForceFlush(forceFlush);
     }
 
+    public void setHotStandby(boolean hotStandby) {
+        connector.setHotStandby(hotStandby);
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        connector.setConnectTimeout(connectTimeout);
+    }
+
+    public void setParallelConnectAttempts(int parallelConnectAttempts) {
+        connector.setParallelConnectAttempts(parallelConnectAttempts);
+    }
+
     public void setLevelFilter(int levelFilter) throws LoggingMessageSenderException {
         this.levelFilter = levelFilter;
         sendLevelFilter();
@@ -301,60 +352,159 @@ public class SocketClient extends AbstractLoggingMessageSource implements Loggin
     }
 
     public void subscribe() throws LoggingMessageSenderException {
-        final CountDownLatch latch = new CountDownLatch(1);
-        addLoggingMessageListener(new LoggingMessageListener() {
-            public void onNewLoggingMessage(LoggingMessage message) {
-                if (message instanceof SubscriptionResponseMessage) {
-                    latch.countDown();
+        waitForResponse(subscribeAsync(), "Subscribe");
+    }
+
+    public void subscribe(String... channels) throws LoggingMessageSenderException {
+        checkSuccess(waitForResponse(subscribeAsync(channels), "Channel subscribe"), "Channel subscribe");
+    }
+
+    public void subscribe(String channel) throws LoggingMessageSenderException {
+        subscribe(new String[] { channel });
+    }
+
+    /**
+     * Subscribe to all events, without waiting for the hub to respond.
+     */
+    public RequestFuture<LoggingMessage> subscribeAsync() throws LoggingMessageSenderException {
+        return sendUncorrelatedRequest(new SubscriptionRequestMessage(), pendingSubscriptionResponses);
+    }
+
+    /**
+     * Subscribe to events for any number of channels in a single request, without waiting for the
+     * hub to respond.
+     */
+    public RequestFuture<RequestResponseMessage> subscribeAsync(String... channels) throws LoggingMessageSenderException {
+        return sendRequest(new EventSubscriptionRequestMessage(getNextRequestID(), true, channels));
+    }
+
+    /**
+     * Send a request and return a future that will be completed by the response with the same
+     * request ID, or failed if it doesn't arrive within the request timeout.
+     */
+    public RequestFuture<RequestResponseMessage> sendRequest(RequestResponseMessage request) throws LoggingMessageSenderException {
+        return sendRequest(request, requestTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    public RequestFuture<RequestResponseMessage> sendRequest(RequestResponseMessage request, long timeout, TimeUnit units) throws LoggingMessageSenderException {
+        return sendRequest(request, new RequestFuture<RequestResponseMessage>(request.getRequestID()), timeout, units);
+    }
+
+    private RequestFuture<RequestResponseMessage> sendRequest(RequestResponseMessage request,
+                                                              final RequestFuture<RequestResponseMessage> future,
+                                                              long timeout,
+                                                              TimeUnit units) throws LoggingMessageSenderException {
+        final int requestID = request.getRequestID();
+        if (requestResponseHandlers.put(requestID, future) != null) {
+            logger.warning("Request ID {} was already waiting for a response; the earlier request will be left to time out", requestID);
+        }
+
+        future.setTimeout(timerWheel.schedule(timeout, units, new Runnable() {
+            public void run() {
+                if (requestResponseHandlers.remove(requestID) == future) {
+                    future.fail(new TimeoutException("Timed out waiting for the response to request " + requestID));
                 }
             }
-        });
+        }));
 
-        SubscriptionRequestMessage subscriptionMessage = new SubscriptionRequestMessage();
-        send(subscriptionMessage);
         try {
-            if (latch.await(10, TimeUnit.SECONDS)) {
-                // Happy
-            }
-            else {
-                throw new LoggingMessageSenderException("Subscribe request failed; timed out waiting for the response message");
-            }
+            send(request);
         }
-        catch (InterruptedException e) {
-            throw new LoggingMessageSenderException("Subscribe request may have failed; the thread was interupted waiting for the response message");
+        catch (LoggingMessageSenderException e) {
+            requestResponseHandlers.remove(requestID);
+            future.fail(e);
+            throw e;
         }
-    }
 
-    public void subscribe(String... channels) throws LoggingMessageSenderException {
-        // TODO : multiple channel subscriptions
-        for (String channel : channels) {
-            subscribe(channel);
-        }
+        return future;
     }
 
-    public void subscribe(String channel) throws LoggingMessageSenderException {
-        final CountDownLatch latch = new CountDownLatch(1);
-        addLoggingMessageListener(new LoggingMessageListener() {
-            public void onNewLoggingMessage(LoggingMessage message) {
-                if (message instanceof EventSubscriptionResponseMessage) {
-                    latch.countDown();
+    private RequestFuture<LoggingMessage> sendUncorrelatedRequest(LoggingMessage request, final Queue<RequestFuture<LoggingMessage>> pending)
+                    throws LoggingMessageSenderException {
+        final RequestFuture<LoggingMessage> future = new RequestFuture<LoggingMessage>(-1);
+        pending.add(future);
+
+        future.setTimeout(timerWheel.schedule(requestTimeout, TimeUnit.MILLISECONDS, new Runnable() {
+            public void run() {
+                if (pending.remove(future)) {
+                    future.fail(new TimeoutException("Timed out waiting for the response message"));
                 }
             }
-        });
+        }));
+
+        try {
+            send(request);
+        }
+        catch (LoggingMessageSenderException e) {
+            pending.remove(future);
+            future.fail(e);
+            throw e;
+        }
 
-        EventSubscriptionRequestMessage subscriptionMessage = new EventSubscriptionRequestMessage(getNextRequestID(), true, channel);
-        send(subscriptionMessage);
+        return future;
+    }
+
+    private <T extends LoggingMessage> T waitForResponse(RequestFuture<T> future, String description) throws LoggingMessageSenderException {
         try {
-            if (latch.await(10, TimeUnit.SECONDS)) {
-                // Happy
+            // The timer wheel fails the future if the response doesn't turn up, so this wont block
+            // for longer than the request timeout
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            throw new LoggingMessageSenderException(description + " request may have failed; the thread was interupted waiting for the response message");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw new LoggingMessageSenderException(description + " request failed; timed out waiting for the response message");
             }
-            else {
-                throw new LoggingMessageSenderException("Channel subscribe request failed; timed out waiting for the response message");
+            throw new LoggingMessageSenderException(description + " request failed", e.getCause());
+        }
+    }
+
+    private void checkSuccess(RequestResponseMessage response, String description) throws LoggingMessageSenderException {
+        if (response instanceof EventSubscriptionResponseMessage) {
+            EventSubscriptionResponseMessage eventResponse = (EventSubscriptionResponseMessage) response;
+            if (!eventResponse.isSuccess()) {
+                throw new LoggingMessageSenderException(description + " request was rejected by the hub : " + eventResponse.getReason());
             }
         }
-        catch (InterruptedException e) {
-            throw new LoggingMessageSenderException("Channel subscribe request may have failed; the thread was interupted waiting for the response message");
+    }
+
+    private void failPendingRequests(String reason) {
+        LoggingMessageSenderException exception = new LoggingMessageSenderException("Connection lost before the response arrived : " + reason);
+
+        for (Integer requestID : requestResponseHandlers.keySet()) {
+            RequestFuture<RequestResponseMessage> future = requestResponseHandlers.remove(requestID);
+            if (future != null) {
+                future.fail(exception);
+            }
         }
+
+        failAll(pendingSubscriptionResponses, exception);
+        failAll(pendingUnsubscriptionResponses, exception);
+    }
+
+    private void failAll(Queue<RequestFuture<LoggingMessage>> pending, Throwable exception) {
+        RequestFuture<LoggingMessage> future;
+        while ((future = pending.poll()) != null) {
+            future.fail(exception);
+        }
+    }
+
+    public int getPendingRequestCount() {
+        return requestResponseHandlers.size() + pendingSubscriptionResponses.size() + pendingUnsubscriptionResponses.size();
+    }
+
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    public void setTimerWheel(TimerWheel timerWheel) {
+        this.timerWheel = timerWheel;
     }
 
     public void subscribe(String channel, Destination<ChannelMessage> destination) {
@@ -373,28 +523,11 @@ public class SocketClient extends AbstractLoggingMessageSource implements Loggin
     // }
 
     public void unsubscribe() throws LoggingMessageSenderException {
-        final CountDownLatch latch = new CountDownLatch(1);
-        addLoggingMessageListener(new LoggingMessageListener() {
-            public void onNewLoggingMessage(LoggingMessage message) {
-                if (message instanceof UnsubscriptionResponseMessage) {
-                    latch.countDown();
-                }
-            }
-        });
+        waitForResponse(unsubscribeAsync(), "Unsubscribe");
+    }
 
-        UnsubscriptionRequestMessage unsubscriptionMessage = new UnsubscriptionRequestMessage();
-        send(unsubscriptionMessage);
-        try {
-            if (latch.await(10, TimeUnit.SECONDS)) {
-                // Happy
-            }
-            else {
-                throw new LoggingMessageSenderException("Subscribe request failed; timed out waiting for the response message");
-            }
-        }
-        catch (InterruptedException e) {
-            throw new LoggingMessageSenderException("Subscribe request may have failed; the thread was interupted waiting for the response message");
-        }
+    public RequestFuture<LoggingMessage> unsubscribeAsync() throws LoggingMessageSenderException {
+        return sendUncorrelatedRequest(new UnsubscriptionRequestMessage(), pendingUnsubscriptionResponses);
     }
 
     public void unsubscribe(String channel, Destination<ChannelMessage> destination) {
@@ -454,23 +587,34 @@ public class SocketClient extends AbstractLoggingMessageSource implements Loggin
 
         if (message instanceof RequestResponseMessage) {
             RequestResponseMessage requestResponseMessage = (RequestResponseMessage) message;
-            int requestID = requestResponseMessage.getRequestID();
-            Handler<LoggingMessage> handler = requestResponseHandlers.get(requestID);
-            if (handler != null) {
-                if (handler.handle(message)) {
-                    requestResponseHandlers.remove(requestID);
-                }
+            RequestFuture<RequestResponseMessage> future = requestResponseHandlers.remove(requestResponseMessage.getRequestID());
+            if (future != null) {
+                future.complete(requestResponseMessage);
             }
         }
+        else if (message instanceof SubscriptionResponseMessage) {
+            completeNext(pendingSubscriptionResponses, message);
+        }
+        else if (message instanceof UnsubscriptionResponseMessage) {
+            completeNext(pendingUnsubscriptionResponses, message);
+        }
+    }
+
+    private void completeNext(Queue<RequestFuture<LoggingMessage>> pending, LoggingMessage message) {
+        RequestFuture<LoggingMessage> future = pending.poll();
+        if (future != null) {
+            future.complete(message);
+        }
     }
 
     protected void reestablishSubscriptions() {
         Set<String> channels = subscriptionController.getChannels();
         if (channels.size() > 0) {
             String[] channelsArray = channels.toArray(new String[channels.size()]);
-            ChannelSubscriptionRequestMessage subscriptionMessage = new ChannelSubscriptionRequestMessage(getNextRequestID(), true, channelsArray);
+
+            // All of the channels go in one request, rather than a round trip each
             try {
-                send(subscriptionMessage);
+                sendRequest(new ChannelSubscriptionRequestMessage(getNextRequestID(), true, channelsArray));
             }
             catch (LoggingMessageSenderException e) {
                 exceptionPolicy.handle(e);
@@ -480,58 +624,51 @@ public class SocketClient extends AbstractLoggingMessageSource implements Loggin
     }
 
     private Future<Boolean> handleFirstSubscriptionInternal(String channel) {
-        final LatchFuture<Boolean> future = new LatchFuture<Boolean>();
+        return sendChannelSubscription(channel, true);
+    }
 
-        final ChannelSubscriptionRequestMessage request = new ChannelSubscriptionRequestMessage(getNextRequestID(), true, channel);
+    private Future<Boolean> handleLastSubscriptionInternal(String channel) {
+        return sendChannelSubscription(channel, false);
+    }
 
-        requestResponseHandlers.put(request.getRequestID(), new Handler<LoggingMessage>() {
-            public boolean handle(LoggingMessage t) {
-                boolean handled = false;
-                if (t instanceof ChannelSubscriptionResponseMessage) {
-                    ChannelSubscriptionResponseMessage response = (ChannelSubscriptionResponseMessage) t;
-                    if (response.getRequestID() == request.getRequestID()) {
-                        future.trigger(response.isSuccess());
-                        handled = true;
+    private Future<Boolean> sendChannelSubscription(String channel, boolean subscribe) {
+        final LatchFuture<Boolean> future = new LatchFuture<Boolean>();
+
+        if (isConnected()) {
+            ChannelSubscriptionRequestMessage request = new ChannelSubscriptionRequestMessage(getNextRequestID(), subscribe, channel);
+            RequestFuture<RequestResponseMessage> requestFuture = new RequestFuture<RequestResponseMessage>(request.getRequestID()) {
+                @Override synchronized boolean complete(RequestResponseMessage response) {
+                    boolean completed = super.complete(response);
+                    if (completed) {
+                        future.trigger(response instanceof ChannelSubscriptionResponseMessage &&
+                                       ((ChannelSubscriptionResponseMessage) response).isSuccess());
                     }
+                    return completed;
+                }
 
+                @Override synchronized boolean fail(Throwable failure) {
+                    boolean failed = super.fail(failure);
+                    if (failed) {
+                        future.trigger(false);
+                    }
+                    return failed;
                 }
-                return handled;
-            }
-        });
+            };
 
-        boolean sent = false;
-        if (isConnected()) {
             try {
-                send(request);
-                sent = true;
+                sendRequest(request, requestFuture, requestTimeout, TimeUnit.MILLISECONDS);
             }
             catch (LoggingMessageSenderException e) {
-                sent = false;
-                // TODO : this is probably ok, as the subscription will get re-created automatically
-                // when we reconnect
+                // This is ok, the subscriptions will get re-created when we reconnect
+                logger.fine(e, "Failed to send channel subscription request for '{}'", channel);
             }
         }
-
-        // if (!sent) {
-        // // Queue it up to be sent when we make a connection
-        // synchronized (queued) {
-        // queued.add(request);
-        // }
-        // }
-
-        return future;
-    }
-
-    private Future<Boolean> handleLastSubscriptionInternal(String channel) {
-        try {
-            send(new ChannelSubscriptionRequestMessage(getNextRequestID(), false, channel));
-        }
-        catch (final LoggingMessageSenderException e) {
-            throw new FormattedRuntimeException("Failed to send message", e);
+        else if (!subscribe) {
+            // Nothing to tell the hub, the subscriptions will not be re-created when we reconnect
+            future.trigger(true);
         }
 
-        // TODO : implement unsubscribe futures
-        return null;
+        return future;
     }
 
     public void send(ChannelMessage message) throws LoggingMessageSenderException {
@@ -3,9 +3,11 @@ package com.logginghub.connector.common;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
@@ -16,11 +18,15 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
+import com.logginghub.connector.common.messages.CodecCapabilitiesMessage;
 import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.connector.common.messages.WireCompressionMessage;
+import com.logginghub.connector.common.serialisation.CompressionStrategyFactory;
 import com.logginghub.utils.Destination;
 import com.logginghub.utils.ExceptionPolicy;
 import com.logginghub.utils.ExceptionPolicy.Policy;
 import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.FormattedRuntimeException;
 import com.logginghub.utils.HexDump;
 import com.logginghub.utils.IntegerStat;
 import com.logginghub.utils.Logger;
@@ -51,6 +57,10 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
     private WorkerThread readerThread;
     private WorkerThread writerThread;
     private LinkedBlockingQueue<LoggingMessage> writeQueue;
+    private volatile boolean retainUnsentMessages = false;
+    private volatile boolean started = false;
+    private InetSocketAddress connectionPoint;
+    private final List<LoggingMessage> unsentMessages = Collections.synchronizedList(new ArrayList<LoggingMessage>());
     private Object closeLock = new Object();
     private volatile boolean closing = false;
     private SlowSendingPolicy slowSendingPolicy = SlowSendingPolicy.disconnect;
@@ -65,6 +75,17 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
     private List<LoggingMessageListener> messageListeners = new CopyOnWriteArrayList<LoggingMessageListener>();
 
     public final static int writeBufferDefaultSize = 20000;
+
+    /**
+     * The compression strategy new connections offer to use - "none", "snappy", "lz4" or "zlib"
+     */
+    public final static byte defaultCompression = parseCompression(System.getProperty("socketConnection.compression", "none"));
+
+    /**
+     * When we are compressing, batches are cut once their encoded frames get to this size so the
+     * other end can start decoding them before we've encoded the whole write queue
+     */
+    public final static int maximumCompressedBatchSize = Integer.getInteger("socketConnection.maximumCompressedBatchSize", 256 * 1024);
     private Socket socket;
 
     private ExpandingByteBuffer sendBuffer = new ExpandingByteBuffer();
@@ -91,6 +112,10 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
 
     private int messagesReceived;
 
+    // Only ever updated by the thread reading from the connection
+    private volatile long bytesRead;
+    private volatile long framesDecoded;
+
     private int messagesSent;
 
     private boolean statusLogging;
@@ -102,6 +127,16 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
     private boolean readThreadDaemon = true;
     private boolean writeThreadDaemon = true;
 
+    private boolean dictionaryEncoding = false;
+
+    private byte compression = defaultCompression;
+
+    /**
+     * Once dictionary encoding is in play the messages have to go out in the order they were
+     * encoded, so the writer thread and blocking senders can't overlap
+     */
+    private final Object sendLock = new Object();
+
     private Destination<LoggingMessage> messageDestination = new Destination<LoggingMessage>() {
         public void send(LoggingMessage t) {
             try {
@@ -176,8 +211,28 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
     }
 
     public void start() {
-        startReaderThread();
-        startWriterThread();
+        started = true;
+
+        if (dictionaryEncoding) {
+            // Make sure this is the first thing the other end hears from us
+            try {
+                send(new CodecCapabilitiesMessage(LoggingMessageCodex.logEventDictionaryVersion));
+            }
+            catch (LoggingMessageSenderException e) {
+                exceptionPolicy.handle(e, "Failed to queue the codec capabilities message");
+            }
+        }
+
+        if (compression != CompressionStrategyFactory.compression_none) {
+            try {
+                send(new WireCompressionMessage(compression, CompressionStrategyFactory.getSupportedStrategies()));
+            }
+            catch (LoggingMessageSenderException e) {
+                exceptionPolicy.handle(e, "Failed to queue the wire compression message");
+            }
+        }
+
+        startIO();
         if (statusLogging) {
             startTimer();
         }
@@ -199,6 +254,15 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
         stopTimer();
     }
 
+    /**
+     * Starts whatever is going to do the reading and writing for this connection; by default
+     * that's a pair of dedicated worker threads.
+     */
+    protected void startIO() {
+        startReaderThread();
+        startWriterThread();
+    }
+
     private void startReaderThread() {
 
         if (readerThread != null) {
@@ -250,26 +314,36 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
                 temporaryMessagesToSendBuffer.add(nextMessage);
                 writeQueue.drainTo(temporaryMessagesToSendBuffer);
 
-                for (LoggingMessage message : temporaryMessagesToSendBuffer) {
+                if (codex.isCompressing()) {
                     try {
-                        sendInternal(message);
+                        sendCompressedBatches(temporaryMessagesToSendBuffer);
                     }
                     catch (IllegalArgumentException iae) {
                         throw iae;
                     }
                     catch (RuntimeException t) {
-                        if (!closing) {
-                            close("An exception was caught sending data to the stream : " + StacktraceUtils.combineMessages(t));
-                            exceptionPolicy.handle(t, "An exception was caught sending data to the stream");
-                        }
-                        break;
+                        handleSendFailure(t);
                     }
                     catch (IOException t) {
-                        if (!closing) {
-                            close("An exception was caught sending data to the stream : " + StacktraceUtils.combineMessages(t));
-                            exceptionPolicy.handle(t, "An exception was caught sending data to the stream");
+                        handleSendFailure(t);
+                    }
+                }
+                else {
+                    for (LoggingMessage message : temporaryMessagesToSendBuffer) {
+                        try {
+                            sendInternal(message);
+                        }
+                        catch (IllegalArgumentException iae) {
+                            throw iae;
+                        }
+                        catch (RuntimeException t) {
+                            handleSendFailure(t);
+                            break;
+                        }
+                        catch (IOException t) {
+                            handleSendFailure(t);
+                            break;
                         }
-                        break;
                     }
                 }
             }
@@ -279,6 +353,46 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
         }
     }
 
+    private void handleSendFailure(Exception t) {
+        if (!closing) {
+            close("An exception was caught sending data to the stream : " + StacktraceUtils.combineMessages(t));
+            exceptionPolicy.handle(t, "An exception was caught sending data to the stream");
+        }
+    }
+
+    /**
+     * Encodes the messages into the send buffer and writes them out as compressed batches, cutting
+     * a new batch each time the encoded frames reach maximumCompressedBatchSize.
+     */
+    private void sendCompressedBatches(List<LoggingMessage> messages) throws IOException {
+        int batched = 0;
+        synchronized (sendLock) {
+            for (int i = 0; i < messages.size(); i++) {
+                codex.encode(sendBuffer, messages.get(i));
+                batched++;
+
+                if (sendBuffer.position() >= maximumCompressedBatchSize || i == messages.size() - 1) {
+                    codex.compressFrames(sendBuffer, 0);
+                    sendBuffer.flip();
+
+                    byte[] contents = sendBuffer.getContents();
+                    outputStream.write(contents);
+                    if (forceFlush) {
+                        outputStream.flush();
+                    }
+
+                    logger.finer("Sent {} messages in a {} byte batch", batched, contents.length);
+
+                    sendBuffer.compact();
+                    for (int j = 0; j < batched; j++) {
+                        onMessageSent();
+                    }
+                    batched = 0;
+                }
+            }
+        }
+    }
+
     private void closeSocketAndStreams() {
         try {
             inputStream.close();
@@ -309,6 +423,7 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
                 if (debug) {
                     Out.out("{} | Read {} bytes", name, read);
                 }
+                onBytesRead(read);
                 receiveBuffer.put(fixedReceiverBuffer, 0, read);
                 logger.finest("Read '{}' bytes from the input stream, and appended to buffer '{}'", read, receiveBuffer);
                 processReceiveBuffer();
@@ -328,7 +443,7 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
         }
     }
 
-    private void processReceiveBuffer() {
+    protected void processReceiveBuffer() {
         ByteBuffer buffer = receiveBuffer.getBuffer();
         buffer.flip();
 
@@ -336,17 +451,25 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
             logger.finest("Incomming receive buffer content {}", HexDump.format(buffer));
         }
 
+        decodeMessages(buffer);
+
+        buffer.compact();
+    }
+
+    /**
+     * Decode and dispatch every complete message in the buffer, leaving its position at the start
+     * of whatever partial message is left over.
+     */
+    protected void decodeMessages(ByteBuffer buffer) {
         int position = 0;
         try {
             while (buffer.hasRemaining() && !isClosing()) {
                 position = buffer.position();
-                LoggingMessage message = codex.decode(buffer);
-                if (message != null) {
-                    processMessage(message);
+                if (buffer.get(position) == LoggingMessageCodex.Compressed) {
+                    decodeCompressedBatch(codex.decompressFrames(buffer));
                 }
                 else {
-                    // If the message was null, it means the codex had to reject
-                    // something in the buffer as it couldn't decode it
+                    decodeFrame(buffer);
                 }
             }
         }
@@ -354,11 +477,43 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
             // Fine, need to read more shit, set the position back
             buffer.position(position);
         }
+    }
 
-        buffer.compact();
+    private void decodeFrame(ByteBuffer buffer) throws PartialMessageException {
+        LoggingMessage message = codex.decode(buffer);
+        framesDecoded++;
+        if (message != null) {
+            processMessage(message);
+        }
+        else {
+            // If the message was null, it means the codex had to reject
+            // something in the buffer as it couldn't decode it
+        }
+    }
+
+    private void decodeCompressedBatch(ByteBuffer frames) {
+        try {
+            while (frames.hasRemaining() && !isClosing()) {
+                decodeFrame(frames);
+            }
+        }
+        catch (PartialMessageException e) {
+            // The batch was cut on a frame boundary, so there is no more to come
+            throw new FormattedRuntimeException("Compressed batch ended part way through a message at position {} of {}", frames.position(), frames.limit());
+        }
     }
 
     private void processMessage(LoggingMessage message) {
+        if (message instanceof CodecCapabilitiesMessage) {
+            processCapabilities((CodecCapabilitiesMessage) message);
+            return;
+        }
+
+        if (message instanceof WireCompressionMessage) {
+            processWireCompression((WireCompressionMessage) message);
+            return;
+        }
+
         messagesReceived++;
         try {
             fireNewMessage(message);
@@ -368,9 +523,39 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
         }
     }
 
+    /**
+     * The other end has told us what it can decode; if we've both opted in to dictionary encoding
+     * we can switch the events we send over to it. This is connection level housekeeping, so it
+     * isn't passed on to the message listeners.
+     */
+    private void processCapabilities(CodecCapabilitiesMessage capabilities) {
+        logger.fine("Connection {} received codec capabilities {}", name, capabilities);
+        if (dictionaryEncoding && capabilities.getLogEventDictionaryVersion() >= LoggingMessageCodex.logEventDictionaryVersion) {
+            codex.enableDictionaryEncoding();
+            logger.fine("Connection {} is now dictionary encoding log events", name);
+        }
+    }
+
+    /**
+     * The other end has turned wire compression on; if we have too, and it can decode the strategy
+     * we want to use, we start compressing the batches we send.
+     */
+    private void processWireCompression(WireCompressionMessage message) {
+        logger.fine("Connection {} received wire compression offer {}", name, message);
+        if (compression != CompressionStrategyFactory.compression_none) {
+            if (message.canDecode(compression)) {
+                codex.enableCompression(compression);
+                logger.fine("Connection {} is now compressing with strategy {}", name, compression);
+            }
+            else {
+                logger.info("Connection {} can't compress, the other end doesn't support compression strategy {}", name, compression);
+            }
+        }
+    }
+
     public void sendBlocking(LoggingMessage message) throws LoggingMessageSenderException {
         if (isClosing()) {
-
+            checkLateSend();
         }
         else {
             try {
@@ -389,6 +574,8 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
 
     public void send(LoggingMessage message) throws LoggingMessageSenderException {
         if (isClosing()) {
+            checkLateSend();
+
             // This is protected against the race condition where we've killed
             // the threads that are pulling things from the blockingSends queue
             // but we've not quite notified the outside world we've closed. So
@@ -434,29 +621,54 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
                     }
                 }
             }
+
+            // If we closed whilst that went on the queue it might have missed being kept as unsent
+            if (retainUnsentMessages && isClosing() && writeQueue.remove(message)) {
+                checkLateSend();
+            }
+
+            onMessageQueued();
+        }
+    }
+
+    /**
+     * When we're keeping hold of the unsent messages, whoever is sending has to find out that a
+     * message arrived too late to be one of them, so they can send it somewhere else.
+     */
+    private void checkLateSend() throws LoggingMessageSenderException {
+        if (retainUnsentMessages) {
+            throw new LoggingMessageSenderException("Connection " + name + " has closed, the message was not sent");
         }
     }
 
-    private boolean isClosing() {
+    /**
+     * Called after a message has been put on the write queue; lets sub-classes that don't have a
+     * writer thread blocked on the queue know there is something to send.
+     */
+    protected void onMessageQueued() {}
+
+    public boolean isClosing() {
         synchronized (closeLock) {
             return closing;
         }
     }
 
     public void sendInternal(LoggingMessage message) throws IOException {
-        if (logger.willLog(Logger.finer)) {
-            logger.fine("Sending message '{}', sendBuffer is currently '{}'", message, sendBuffer);
-        }
+        synchronized (sendLock) {
+            if (logger.willLog(Logger.finer)) {
+                logger.fine("Sending message '{}', sendBuffer is currently '{}'", message, sendBuffer);
+            }
 
-        codex.encode(sendBuffer, message);
+            codex.encode(sendBuffer, message);
 
-        if (logger.willLog(Logger.finer)) {
-            logger.fine("Codex encoded to sendBuffer '{}'", sendBuffer);
-        }
+            if (logger.willLog(Logger.finer)) {
+                logger.fine("Codex encoded to sendBuffer '{}'", sendBuffer);
+            }
 
-        sendBuffer.flip();
+            sendBuffer.flip();
 
-        sendBufferInternal(sendBuffer, message);
+            sendBufferInternal(sendBuffer, message);
+        }
 
         if (messagesOut != null) {
             messagesOut.increment();
@@ -492,8 +704,13 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
     }
 
     private void stopThreads() {
-        readerThread.stop();
-        writerThread.stop();
+        if (readerThread != null) {
+            readerThread.stop();
+        }
+
+        if (writerThread != null) {
+            writerThread.stop();
+        }
 
         readerThread = null;
         writerThread = null;
@@ -507,13 +724,16 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
         close("close() was called");
     }
 
-    private synchronized void close(String reason, Object... params) {
+    protected void close(String reason, Object... params) {
         boolean needToAct;
 
         if (debug) {
             Out.out("{} | Closing socket connection {} : {}", name, System.identityHashCode(this), reason);
         }
 
+        // Only the first caller does the work. Anyone else - often the reader or writer thread
+        // noticing the socket go - returns straight away; if they waited here they'd deadlock with
+        // the first caller joining their thread
         synchronized (closeLock) {
             if (!closing) {
                 needToAct = true;
@@ -566,7 +786,55 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
     private void clearBuffers() {
         sendBuffer.clear();
         receiveBuffer.clear();
-        writeQueue.clear();
+        if (retainUnsentMessages) {
+            // Not followed by a clear, anything that lands after this is taken back out by its
+            // sender
+            writeQueue.drainTo(unsentMessages);
+        }
+        else {
+            writeQueue.clear();
+        }
+    }
+
+    /**
+     * @return true once start has been called
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * The connection point this connection was made to, if it was made by a SocketConnector.
+     */
+    public InetSocketAddress getConnectionPoint() {
+        return connectionPoint;
+    }
+
+    public void setConnectionPoint(InetSocketAddress connectionPoint) {
+        this.connectionPoint = connectionPoint;
+    }
+
+    /**
+     * Keep hold of anything still sitting in the write queue when the connection closes, rather
+     * than throwing it away, so it can be replayed down another connection; see
+     * {@link #takeUnsentMessages()}. Messages the writer thread had already picked up are not
+     * included, as there is no telling how much of them reached the other end. Anything sent once
+     * the connection is closing is refused with a {@link LoggingMessageSenderException}.
+     */
+    public void setRetainUnsentMessages(boolean retainUnsentMessages) {
+        this.retainUnsentMessages = retainUnsentMessages;
+    }
+
+    /**
+     * @return the messages that were still queued when the connection closed, in the order they
+     *         were sent; each call hands them over once
+     */
+    public List<LoggingMessage> takeUnsentMessages() {
+        synchronized (unsentMessages) {
+            List<LoggingMessage> taken = new ArrayList<LoggingMessage>(unsentMessages);
+            unsentMessages.clear();
+            return taken;
+        }
     }
 
     private void fireConnectionClosed(String reason) {
@@ -589,11 +857,12 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
     }
 
     protected void logStatus() {
-        logger.info("Socket connection status : {}, {} messages in, {} message out, {} messages discarded",
+        logger.info("Socket connection status : {}, {} messages in, {} message out, {} messages discarded, compression {}",
                     socket,
                     messagesReceived,
                     messagesSent,
-                    messagesDiscarded);
+                    messagesDiscarded,
+                    codex.getCompressionStats());
         messagesSent = 0;
         messagesReceived = 0;
     }
@@ -692,7 +961,104 @@ public class SocketConnection implements LoggingMessageSource, Destination<LogEv
         this.messagesOut = messagesOut;
     }
 
+    /**
+     * Offer dictionary encoding of log events to the other end when the connection starts. Events
+     * we send are only dictionary encoded once the other end has offered it too; older versions
+     * will just ignore the offer. Has to be set before the connection is started.
+     */
+    public void setDictionaryEncoding(boolean dictionaryEncoding) {
+        this.dictionaryEncoding = dictionaryEncoding;
+    }
+
+    public boolean isDictionaryEncoding() {
+        return dictionaryEncoding;
+    }
+
+    /**
+     * Offer to compress batches of messages on the wire with the given
+     * {@link CompressionStrategyFactory} strategy. We only start compressing once the other end has
+     * offered it too; older versions just ignore the offer. Has to be set before the connection is
+     * started.
+     */
+    public void setCompression(byte compression) {
+        CompressionStrategyFactory.createStrategy(compression);
+        this.compression = compression;
+    }
+
+    public byte getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return true once compression has been negotiated with the other end
+     */
+    public boolean isCompressing() {
+        return codex.isCompressing();
+    }
+
+    /**
+     * @return the compression ratio and time spent compressing and decompressing on this connection
+     */
+    public WireCompressionStats getCompressionStats() {
+        return codex.getCompressionStats();
+    }
+
+    private static byte parseCompression(String name) {
+        try {
+            return CompressionStrategyFactory.parseStrategy(name);
+        }
+        catch (RuntimeException e) {
+            logger.warn(e, "Wire compression is off, as we couldn't understand the socketConnection.compression property");
+            return CompressionStrategyFactory.compression_none;
+        }
+    }
+
     public void setDebug(boolean debug) {
         this.debug = debug;
     }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    protected void onBytesRead(int count) {
+        bytesRead += count;
+    }
+
+    /**
+     * @return the total number of bytes read from the socket
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return the total number of message frames decoded from the socket, including any the codex
+     *         didn't recognise and discarded
+     */
+    public long getFramesDecoded() {
+        return framesDecoded;
+    }
+
+    protected ExpandingByteBuffer getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    protected LoggingMessageCodex getCodex() {
+        return codex;
+    }
+
+    /**
+     * Lets sub-classes that do their own writing keep the sent message counters up to date
+     */
+    protected void onMessageSent() {
+        messagesSent++;
+        if (messagesOut != null) {
+            messagesOut.increment();
+        }
+    }
 }
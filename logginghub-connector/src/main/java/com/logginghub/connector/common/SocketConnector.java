@@ -3,13 +3,20 @@ package com.logginghub.connector.common;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.logginghub.connector.common.SocketConnection.SlowSendingPolicy;
 import com.logginghub.utils.Logger;
 import com.logginghub.utils.Out;
 import com.logginghub.utils.StringUtils;
+import com.logginghub.utils.WorkerThread;
 
 /**
  * Class that is in charge of making and maintaining socket connections seamlessly.
@@ -22,7 +29,7 @@ public class SocketConnector extends AbstractLoggingMessageSource implements Log
     private List<SocketConnectorListener> listeners = new CopyOnWriteArrayList<SocketConnectorListener>();
     private List<LoggingMessage> sendWhenConnected = new CopyOnWriteArrayList<LoggingMessage>();
     private Object connectionLock = new Object();
-    private SocketConnection currentConnection = null;
+    private volatile SocketConnection currentConnection = null;
     private ConnectionPointManager connectionPointManager = new ConnectionPointManager();
     private boolean forceFlush = false;
     private String name;
@@ -31,6 +38,30 @@ public class SocketConnector extends AbstractLoggingMessageSource implements Log
 
     private static final Logger logger = Logger.getLoggerFor(SocketConnector.class);
     private boolean debug = false;
+    private boolean useSocketChannels = false;
+    private boolean dictionaryEncoding = false;
+    private SocketReactor socketReactor = null;
+
+    public final static int defaultConnectTimeout = Integer.getInteger("socketConnector.connectTimeout", 5000);
+    public final static int defaultParallelConnectAttempts = Integer.getInteger("socketConnector.parallelConnectAttempts", 1);
+    public final static boolean defaultHotStandby = Boolean.getBoolean("socketConnector.hotStandby");
+    public final static long defaultStandbyCheckInterval = Long.getLong("socketConnector.standbyCheckInterval", 1000);
+
+    private int connectTimeout = defaultConnectTimeout;
+    private int parallelConnectAttempts = defaultParallelConnectAttempts;
+
+    /**
+     * In hot standby mode we keep a second, already established connection to the next connection
+     * point, and switch straight over to it when the current one fails rather than going through a
+     * fresh connect.
+     */
+    private volatile boolean hotStandby = defaultHotStandby;
+    private long standbyCheckInterval = defaultStandbyCheckInterval;
+    private volatile SocketConnection standbyConnection = null;
+    private volatile InetSocketAddress standbyConnectionPoint = null;
+    private volatile InetSocketAddress currentConnectionPoint = null;
+    private WorkerThread standbyThread = null;
+    private volatile int failovers = 0;
 
     public SocketConnector() {
         this("");
@@ -62,11 +93,10 @@ public class SocketConnector extends AbstractLoggingMessageSource implements Log
     }
 
     public void sendBlocking(LoggingMessage message) throws LoggingMessageSenderException {
-        ensureConnectedBeforeSendingMessage();
-        currentConnection.sendBlocking(message);
+        send(message, true);
     }
 
-    private void ensureConnectedBeforeSendingMessage() throws LoggingMessageSenderException {
+    private SocketConnection ensureConnectedBeforeSendingMessage() throws LoggingMessageSenderException {
         synchronized (connectionLock) {
             if (currentConnection == null) {
                 try {
@@ -76,6 +106,7 @@ public class SocketConnector extends AbstractLoggingMessageSource implements Log
                     throw new LoggingMessageSenderException("The connection attempt failed, so we are unable to send the message", ce);
                 }
             }
+            return currentConnection;
         }
     }
 
@@ -83,8 +114,53 @@ public class SocketConnector extends AbstractLoggingMessageSource implements Log
         if (debug) {
             debug("sending '{}'", message);
         }
-        ensureConnectedBeforeSendingMessage();
-        currentConnection.send(message);
+        send(message, false);
+    }
+
+    private void send(LoggingMessage message, boolean blocking) throws LoggingMessageSenderException {
+        SocketConnection connection = ensureConnectedBeforeSendingMessage();
+        try {
+            send(connection, message, blocking);
+        }
+        catch (LoggingMessageSenderException e) {
+            if (!connection.isClosing()) {
+                throw e;
+            }
+
+            // The connection closed after we picked it up; in hot standby mode it refuses anything
+            // that arrives too late to be replayed with the rest of its unsent messages, so this
+            // one goes after them down whatever replaces it
+            waitForReplacement(connection);
+            send(ensureConnectedBeforeSendingMessage(), message, blocking);
+        }
+    }
+
+    private void send(SocketConnection connection, LoggingMessage message, boolean blocking) throws LoggingMessageSenderException {
+        if (blocking) {
+            connection.sendBlocking(message);
+        }
+        else {
+            connection.send(message);
+        }
+    }
+
+    /**
+     * Wait for the connection closed notification to have been dealt with, so we don't pick the
+     * closed connection up again.
+     */
+    private void waitForReplacement(SocketConnection closed) {
+        long deadline = System.currentTimeMillis() + Math.max(connectTimeout, 1000);
+        synchronized (connectionLock) {
+            while (currentConnection == closed && System.currentTimeMillis() < deadline) {
+                try {
+                    connectionLock.wait(100);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
     }
 
     // //////////////////////////////////////////////////////////////////
@@ -93,7 +169,6 @@ public class SocketConnector extends AbstractLoggingMessageSource implements Log
 
     public void connect() throws ConnectorException {
         synchronized (connectionLock) {
-            InetSocketAddress nextConnectionPoint = connectionPointManager.getNextConnectionPoint();
             int retriesMax = connectionPointManager.getConnectionPoints().size();
 
             if (retriesMax == 0) {
@@ -101,32 +176,26 @@ public class SocketConnector extends AbstractLoggingMessageSource implements Log
             }
 
             int retries = 0;
+            int attemptsPerRound = Math.max(1, parallelConnectAttempts);
 
             SocketConnection connection = null;
 
             while (connection == null && retries < retriesMax) {
-                try {
-                    Socket socket = new Socket();
-
-                    InetSocketAddress inetSocketAddress = new InetSocketAddress(nextConnectionPoint.getHostName(), nextConnectionPoint.getPort());
-                    logger.trace("Connecting to {}...", inetSocketAddress);
-                    socket.connect(inetSocketAddress);
-                    logger.trace("Connection successful");
-
-                    connection = new SocketConnection(socket, name);
-                    connection.addLoggingMessageListener(this);
-                    connection.addConnectionListener(this);
-                    connection.setForceFlush(forceFlush);
-                    connection.setWriteQueueMaximumSize(writeQueueMaximumSize);
-                    connection.setWriteQueueOverflowPolicy(writeQueueOverflowPolicy);
-                    connection.start();
-                    connection.setDebug(debug);
+                // Each attempt moves on to the next connection point
+                List<InetSocketAddress> points = new ArrayList<InetSocketAddress>();
+                while (points.size() < attemptsPerRound && retries < retriesMax) {
+                    InetSocketAddress point = connectionPointManager.getNextConnectionPoint();
+                    if (!points.contains(point)) {
+                        points.add(point);
+                    }
+                    retries++;
+                }
 
+                if (points.size() == 1) {
+                    connection = connectTo(points.get(0));
                 }
-                catch (IOException e) {
-                    logger.trace("Connection failed {}", e.getMessage());
-                    // Try the next one
-                    retries++;
+                else {
+                    connection = connectToFirstOf(points);
                 }
             }
 
@@ -136,27 +205,337 @@ public class SocketConnector extends AbstractLoggingMessageSource implements Log
                                              " connection points provided");
             }
             else {
-                currentConnection = connection;
+                configure(connection);
+                activate(connection);
+            }
+        }
+
+        if (hotStandby) {
+            startStandbyThread();
+        }
+    }
+
+    /**
+     * @return the new connection, or null if the attempt failed
+     */
+    private SocketConnection connectTo(InetSocketAddress connectionPoint) {
+        try {
+            return openConnection(connectionPoint);
+        }
+        catch (IOException e) {
+            logger.trace("Connection to {} failed {}", connectionPoint, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Try all of the connection points at once, and go with whichever one answers first.
+     * 
+     * @return the new connection, or null if all of the attempts failed
+     */
+    private SocketConnection connectToFirstOf(List<InetSocketAddress> connectionPoints) {
+        final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+        final AtomicBoolean connected = new AtomicBoolean(false);
+
+        for (final InetSocketAddress connectionPoint : connectionPoints) {
+            WorkerThread.executeDaemon("LoggingHub-SocketConnector-connect-" + connectionPoint, new Runnable() {
+                public void run() {
+                    SocketConnection connection = connectTo(connectionPoint);
+                    if (connection != null && connected.compareAndSet(false, true)) {
+                        results.add(connection);
+                    }
+                    else {
+                        if (connection != null) {
+                            // Someone else beat us to it
+                            connection.close();
+                        }
+                        results.add(Boolean.FALSE);
+                    }
+                }
+            });
+        }
+
+        try {
+            for (int i = 0; i < connectionPoints.size(); i++) {
+                Object result;
+                if (connectTimeout > 0) {
+                    result = results.poll(connectTimeout * 2L, TimeUnit.MILLISECONDS);
+                }
+                else {
+                    result = results.take();
+                }
 
-                for (SocketConnectorListener socketConnectorListener : listeners) {
-                    socketConnectorListener.onConnectionEstablished();
+                if (result instanceof SocketConnection) {
+                    return (SocketConnection) result;
                 }
+                else if (result == null) {
+                    break;
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Nobody has won yet, and from here on nobody can - any late connections get closed
+        if (connected.compareAndSet(false, true)) {
+            return null;
+        }
 
-                for (LoggingMessage message : sendWhenConnected) {
-                    try {
-                        send(message);
+        // Someone won just as we gave up waiting; their connection is on its way to the queue
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    Object result = results.take();
+                    if (result instanceof SocketConnection) {
+                        return (SocketConnection) result;
                     }
-                    catch (Exception e) {
-                        e.printStackTrace();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Make the socket connection, using channels or the reactor if we've been asked to, but don't
+     * start it or hook it up to anything yet.
+     */
+    private SocketConnection openConnection(InetSocketAddress connectionPoint) throws IOException {
+        InetSocketAddress inetSocketAddress = new InetSocketAddress(connectionPoint.getHostName(), connectionPoint.getPort());
+        logger.trace("Connecting to {}...", inetSocketAddress);
+
+        SocketConnection connection;
+        if (useSocketChannels || socketReactor != null) {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().connect(inetSocketAddress, connectTimeout);
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            logger.trace("Connection successful");
+
+            if (socketReactor != null) {
+                connection = new ReactorSocketConnection(channel, name, socketReactor);
+            }
+            else {
+                connection = new SocketChannelConnection(channel, name);
+            }
+        }
+        else {
+            Socket socket = new Socket();
+            try {
+                socket.connect(inetSocketAddress, connectTimeout);
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            logger.trace("Connection successful");
+
+            connection = new SocketConnection(socket, name);
+        }
+
+        connection.setConnectionPoint(connectionPoint);
+        return connection;
+    }
+
+    private void configure(SocketConnection connection) {
+        connection.setForceFlush(forceFlush);
+        connection.setWriteQueueMaximumSize(writeQueueMaximumSize);
+        connection.setWriteQueueOverflowPolicy(writeQueueOverflowPolicy);
+        connection.setDictionaryEncoding(dictionaryEncoding);
+        connection.setRetainUnsentMessages(hotStandby);
+    }
+
+    /**
+     * Make this connection the current one and tell everyone about it. Must be called holding the
+     * connection lock.
+     */
+    private void activate(SocketConnection connection) {
+        connection.addLoggingMessageListener(this);
+        connection.addConnectionListener(this);
+        if (!connection.isStarted()) {
+            connection.start();
+        }
+        connection.setDebug(debug);
+
+        currentConnection = connection;
+        currentConnectionPoint = connection.getConnectionPoint();
+
+        for (SocketConnectorListener socketConnectorListener : listeners) {
+            socketConnectorListener.onConnectionEstablished();
+        }
+
+        for (LoggingMessage message : sendWhenConnected) {
+            try {
+                send(message);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // //////////////////////////////////////////////////////////////////
+    // Hot standby
+    // //////////////////////////////////////////////////////////////////
+
+    private synchronized void startStandbyThread() {
+        if (standbyThread == null) {
+            standbyThread = new WorkerThread("LoggingHub-SocketConnector-standby-" + name) {
+                @Override protected void onRun() throws Throwable {
+                    maintainStandby();
+                }
+            };
+            standbyThread.setIterationDelay(standbyCheckInterval);
+            standbyThread.startDaemon();
+        }
+    }
+
+    private synchronized void stopStandbyThread() {
+        if (standbyThread != null) {
+            standbyThread.dontRunAgain();
+            standbyThread = null;
+        }
+    }
+
+    /**
+     * Check the standby connection is still there, and make a new one if it isn't. The standby
+     * connection runs its reader like any other, so we hear about it dying straight away; this just
+     * puts it back.
+     */
+    protected void maintainStandby() {
+        SocketConnection standby = standbyConnection;
+        if (standby != null && standby.getSocket() != null && standby.getSocket().isClosed()) {
+            discardStandby();
+            standby = null;
+        }
+
+        if (!hotStandby || currentConnection == null || standby != null) {
+            return;
+        }
+
+        InetSocketAddress connectionPoint = chooseStandbyConnectionPoint();
+        if (connectionPoint == null) {
+            return;
+        }
+
+        final SocketConnection connection = connectTo(connectionPoint);
+        if (connection != null) {
+            configure(connection);
+            connection.addConnectionListener(new ConnectionListener() {
+                public void onConnectionClosed(String reason) {
+                    if (standbyConnection == connection) {
+                        logger.fine("Standby connection to {} closed : {}", connection.getConnectionPoint(), reason);
+                        standbyConnection = null;
+                        standbyConnectionPoint = null;
                     }
                 }
+            });
+            connection.start();
+            connection.setDebug(debug);
+
+            boolean keep;
+            synchronized (connectionLock) {
+                keep = hotStandby && currentConnection != null && standbyConnection == null;
+                if (keep) {
+                    standbyConnection = connection;
+                    standbyConnectionPoint = connectionPoint;
+                }
+            }
+
+            if (keep) {
+                logger.fine("Standby connection established to {}", connectionPoint);
+            }
+            else {
+                connection.close();
             }
         }
     }
 
+    /**
+     * @return the connection point after the current one, or the current one itself if it's the
+     *         only one we have
+     */
+    private InetSocketAddress chooseStandbyConnectionPoint() {
+        List<InetSocketAddress> points = connectionPointManager.getConnectionPoints();
+        InetSocketAddress current = currentConnectionPoint;
+
+        if (points.isEmpty()) {
+            return current != null ? current : connectionPointManager.getDefaultConnectionPoint();
+        }
+
+        int index = points.indexOf(current);
+        return points.get((index + 1) % points.size());
+    }
+
+    private void discardStandby() {
+        SocketConnection standby;
+        synchronized (connectionLock) {
+            standby = standbyConnection;
+            standbyConnection = null;
+            standbyConnectionPoint = null;
+        }
+
+        if (standby != null) {
+            standby.close();
+        }
+    }
+
+    /**
+     * Switch over to the standby connection, replaying whatever the failed connection hadn't got
+     * round to writing before anything new goes out. Must be called holding the connection lock.
+     */
+    private boolean failover(SocketConnection failed, String reason) {
+        SocketConnection standby = standbyConnection;
+        if (!hotStandby || standby == null || standby.isClosing()) {
+            return false;
+        }
+
+        standbyConnection = null;
+        standbyConnectionPoint = null;
+
+        int replayed = 0;
+        if (failed != null) {
+            for (LoggingMessage message : failed.takeUnsentMessages()) {
+                try {
+                    standby.send(message);
+                    replayed++;
+                }
+                catch (LoggingMessageSenderException e) {
+                    logger.fine(e, "Failed to replay unsent message onto the standby connection");
+                }
+            }
+        }
+
+        logger.info("Connection to {} lost ({}), failed over to the standby connection to {} and replayed {} unsent messages",
+                    failed != null ? failed.getConnectionPoint() : null,
+                    reason,
+                    standby.getConnectionPoint(),
+                    replayed);
+
+        activate(standby);
+        failovers++;
+        return true;
+    }
+
     public void disconnect() {
-        if (currentConnection != null) {
-            currentConnection.close();
+        stopStandbyThread();
+        discardStandby();
+
+        SocketConnection connection = currentConnection;
+        if (connection != null) {
+            connection.close();
             currentConnection = null;
         }
     }
@@ -170,8 +549,12 @@ public class SocketConnector extends AbstractLoggingMessageSource implements Log
     }
 
     public void close() {
-        if (currentConnection != null) {
-            currentConnection.close();
+        stopStandbyThread();
+        discardStandby();
+
+        SocketConnection connection = currentConnection;
+        if (connection != null) {
+            connection.close();
         }
     }
 
@@ -198,13 +581,137 @@ public class SocketConnector extends AbstractLoggingMessageSource implements Log
     // //////////////////////////////////////////////////////////////////
 
     public void onConnectionClosed(String reason) {
-        currentConnection = null;
+        synchronized (connectionLock) {
+            SocketConnection failed = currentConnection;
+            currentConnection = null;
 
-        for (SocketConnectorListener socketConnectorListener : listeners) {
-            socketConnectorListener.onConnectionLost(reason);
+            for (SocketConnectorListener socketConnectorListener : listeners) {
+                socketConnectorListener.onConnectionLost(reason);
+            }
+
+            failover(failed, reason);
+            connectionLock.notifyAll();
         }
     }
 
+    /**
+     * How long to wait for each connection attempt before giving up on it, in milliseconds; zero
+     * waits for as long as the operating system does.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * How many connection points to try at once when connecting; the first to answer wins.
+     */
+    public void setParallelConnectAttempts(int parallelConnectAttempts) {
+        this.parallelConnectAttempts = parallelConnectAttempts;
+    }
+
+    public int getParallelConnectAttempts() {
+        return parallelConnectAttempts;
+    }
+
+    /**
+     * Keep a standby connection open to the next connection point and fail over to it as soon as
+     * the current connection goes. Takes effect from the next connection attempt.
+     */
+    public void setHotStandby(boolean hotStandby) {
+        this.hotStandby = hotStandby;
+        if (!hotStandby) {
+            stopStandbyThread();
+            discardStandby();
+        }
+        else if (currentConnection != null) {
+            startStandbyThread();
+        }
+    }
+
+    public boolean isHotStandby() {
+        return hotStandby;
+    }
+
+    public void setStandbyCheckInterval(long standbyCheckInterval) {
+        this.standbyCheckInterval = standbyCheckInterval;
+    }
+
+    public SocketConnection getStandbyConnection() {
+        return standbyConnection;
+    }
+
+    public InetSocketAddress getStandbyConnectionPoint() {
+        return standbyConnectionPoint;
+    }
+
+    public InetSocketAddress getCurrentConnectionPoint() {
+        return currentConnectionPoint;
+    }
+
+    /**
+     * @return the number of times we've switched over to the standby connection
+     */
+    public int getFailovers() {
+        return failovers;
+    }
+
+    /**
+     * Use {@link SocketChannelConnection}s, which send each batch of queued messages with a single
+     * gathering write, rather than the stream based {@link SocketConnection}s. Takes effect from
+     * the next connection attempt.
+     */
+    public void setUseSocketChannels(boolean useSocketChannels) {
+        this.useSocketChannels = useSocketChannels;
+    }
+
+    public boolean isUseSocketChannels() {
+        return useSocketChannels;
+    }
+
+    /**
+     * Have the JVM wide {@link SocketReactor} do the IO for our connections, rather than each
+     * connection running its own reader and writer threads. Takes effect from the next connection
+     * attempt.
+     */
+    public void setUseSharedReactor(boolean useSharedReactor) {
+        if (useSharedReactor) {
+            setSocketReactor(SocketReactor.getShared());
+        }
+        else {
+            setSocketReactor(null);
+        }
+    }
+
+    /**
+     * Use the given reactor to do the IO for our connections, or null to go back to each connection
+     * running its own threads. Takes effect from the next connection attempt, and takes priority over
+     * {@link #setUseSocketChannels(boolean)}.
+     */
+    public void setSocketReactor(SocketReactor socketReactor) {
+        this.socketReactor = socketReactor;
+    }
+
+    public SocketReactor getSocketReactor() {
+        return socketReactor;
+    }
+
+    /**
+     * Offer the dictionary encoded log event format to the hub on each new connection; see
+     * {@link SocketConnection#setDictionaryEncoding(boolean)}. Takes effect from the next connection
+     * attempt.
+     */
+    public void setDictionaryEncoding(boolean dictionaryEncoding) {
+        this.dictionaryEncoding = dictionaryEncoding;
+    }
+
+    public boolean isDictionaryEncoding() {
+        return dictionaryEncoding;
+    }
+
     public void setForceFlush(boolean forceFlush) {
         this.forceFlush = forceFlush;
         if (currentConnection != null) {
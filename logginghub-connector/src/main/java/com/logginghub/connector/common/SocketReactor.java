@@ -0,0 +1,216 @@
+package com.logginghub.connector.common;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.logginghub.utils.FormattedRuntimeException;
+import com.logginghub.utils.Logger;
+import com.logginghub.utils.WorkerThread;
+
+/**
+ * A small, fixed pool of selector threads that do the reading and writing for any number of
+ * {@link ReactorSocketConnection}s. Processes that hold lots of connections open (aggregators
+ * subscribing to many hubs for example) would otherwise need a reader and a writer thread for each
+ * one, and the writers all wake up every second just to poll their queues.
+ *
+ * Each connection is pinned to one of the event loops when it registers, so all of its IO and its
+ * listener callbacks happen on that one thread. Listeners must not block, as they hold up every
+ * other connection on the same loop.
+ *
+ * Most processes should just use {@link #getShared()}, which is created on first use with
+ * <code>socketReactor.threads</code> (default two) daemon threads and lives as long as the JVM.
+ *
+ * @author James
+ */
+public class SocketReactor {
+
+    private static final Logger logger = Logger.getLoggerFor(SocketReactor.class);
+
+    public final static int defaultThreads = Integer.getInteger("socketReactor.threads", 2);
+
+    private static SocketReactor shared = null;
+
+    private final String name;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public static synchronized SocketReactor getShared() {
+        if (shared == null) {
+            shared = new SocketReactor("Shared", defaultThreads);
+        }
+        return shared;
+    }
+
+    public SocketReactor(String name, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("A socket reactor needs at least one thread, was " + threads);
+        }
+
+        this.name = name;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("LoggingHub-SocketReactor-" + name + "-" + i);
+        }
+
+        for (EventLoop loop : loops) {
+            loop.setDaemon(true);
+            loop.start();
+        }
+    }
+
+    /**
+     * Pick the event loop for a new connection. The connection has to hold on to the loop before
+     * it calls {@link EventLoop#register}, as the loop thread can pick the registration up - and
+     * the connection can be asked to write - before register returns.
+     */
+    EventLoop nextLoop() {
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    public void stop() {
+        for (EventLoop loop : loops) {
+            loop.stop();
+        }
+    }
+
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    /**
+     * @return the number of connections currently being served across all of the event loops
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (EventLoop loop : loops) {
+            count += loop.connections.get();
+        }
+        return count;
+    }
+
+    @Override public String toString() {
+        return "[SocketReactor name=" + name + ", threads=" + loops.length + ", connections=" + getConnectionCount() + "]";
+    }
+
+    static final class EventLoop extends WorkerThread {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<ReactorSocketConnection> registrations = new ConcurrentLinkedQueue<ReactorSocketConnection>();
+        private final ConcurrentLinkedQueue<ReactorSocketConnection> writeRequests = new ConcurrentLinkedQueue<ReactorSocketConnection>();
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private volatile Thread loopThread;
+
+        EventLoop(String threadName) {
+            super(threadName);
+            setKeepRunningOnExceptions(true);
+            try {
+                selector = Selector.open();
+            }
+            catch (IOException e) {
+                throw new FormattedRuntimeException(e, "Failed to open selector for socket reactor thread '{}'", threadName);
+            }
+        }
+
+        void register(ReactorSocketConnection connection) {
+            connections.incrementAndGet();
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        void requestWrite(ReactorSocketConnection connection) {
+            writeRequests.add(connection);
+            if (!isLoopThread()) {
+                selector.wakeup();
+            }
+        }
+
+        void deregistered() {
+            connections.decrementAndGet();
+            selector.wakeup();
+        }
+
+        boolean isLoopThread() {
+            return Thread.currentThread() == loopThread;
+        }
+
+        @Override protected void beforeStart() {
+            loopThread = Thread.currentThread();
+        }
+
+        @Override protected void onRun() throws Throwable {
+            selector.select();
+
+            processRegistrations();
+            processWriteRequests();
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+
+                ReactorSocketConnection connection = (ReactorSocketConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+                catch (CancelledKeyException e) {
+                    // The connection was closed underneath us, nothing more to do
+                }
+            }
+        }
+
+        private void processRegistrations() {
+            ReactorSocketConnection connection;
+            while ((connection = registrations.poll()) != null) {
+                try {
+                    int ops = SelectionKey.OP_READ;
+                    if (connection.isWriteRequested()) {
+                        ops |= SelectionKey.OP_WRITE;
+                    }
+
+                    SelectionKey key = connection.getChannel().register(selector, ops, connection);
+                    connection.onRegistered(key);
+                }
+                catch (ClosedChannelException e) {
+                    logger.fine("Connection {} was closed before it could be registered", connection.getName());
+                }
+            }
+        }
+
+        private void processWriteRequests() {
+            ReactorSocketConnection connection;
+            while ((connection = writeRequests.poll()) != null) {
+                SelectionKey key = connection.getSelectionKey();
+                try {
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+                catch (CancelledKeyException e) {
+                    // Closed since it asked to write
+                }
+            }
+        }
+
+        @Override protected void beforeStop() {
+            try {
+                selector.close();
+            }
+            catch (IOException e) {
+                logger.warn(e, "Failed to close socket reactor selector");
+            }
+        }
+    }
+}
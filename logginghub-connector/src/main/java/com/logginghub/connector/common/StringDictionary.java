@@ -0,0 +1,189 @@
+package com.logginghub.connector.common;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.logginghub.utils.FormattedRuntimeException;
+import com.logginghub.utils.WritableByteBuffer;
+
+/**
+ * One direction of the string dictionary used by the dictionary encoded log event format. The first
+ * time the sending side encodes a string it assigns it the next id and sends the definition along
+ * with the string; after that it just sends the id as a varint. The receiving side keeps its own
+ * instance in step by recording the definitions as it decodes them.
+ *
+ * Each string is written as a single varint code, optionally followed by a compact encoded string :
+ *
+ * <pre>
+ * 0               null
+ * 1               literal string follows, not added to the dictionary
+ * (id << 1)       reference to a previously defined id
+ * (id << 1) | 1   definition of id, the string follows
+ * </pre>
+ *
+ * Ids start from one. Once the dictionary is full new strings are sent as literals, so a connection
+ * that sees lots of unique values can't grow the dictionary without bound.
+ *
+ * Instances aren't thread safe - the sending side is only ever used from the thread encoding for a
+ * connection, and the receiving side from its reader thread.
+ *
+ * @author James
+ */
+public class StringDictionary {
+
+    public final static int defaultMaximumSize = Integer.getInteger("stringDictionary.maximumSize", 4096);
+
+    private final static int nullCode = 0;
+    private final static int literalCode = 1;
+
+    private final int maximumSize;
+
+    // Sending side
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private int nextId = 1;
+    private int markedId = 1;
+
+    // Receiving side
+    private String[] values = new String[64];
+
+    private long references = 0;
+    private long definitions = 0;
+    private long literals = 0;
+
+    public StringDictionary() {
+        this(defaultMaximumSize);
+    }
+
+    public StringDictionary(int maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public void encode(WritableByteBuffer buffer, String string) {
+        if (string == null) {
+            AbstractCodex.encodeVarInt(buffer, nullCode);
+        }
+        else {
+            Integer id = ids.get(string);
+            if (id != null) {
+                AbstractCodex.encodeVarInt(buffer, id << 1);
+                references++;
+            }
+            else if (nextId <= maximumSize) {
+                int newId = nextId++;
+                ids.put(string, newId);
+                values = ensureCapacity(values, newId);
+                values[newId] = string;
+
+                AbstractCodex.encodeVarInt(buffer, (newId << 1) | 1);
+                AbstractCodex.encodeCompactString(buffer, string);
+                definitions++;
+            }
+            else {
+                AbstractCodex.encodeVarInt(buffer, literalCode);
+                AbstractCodex.encodeCompactString(buffer, string);
+                literals++;
+            }
+        }
+    }
+
+    public String decode(ByteBuffer buffer) {
+        int code = AbstractCodex.decodeVarInt(buffer);
+
+        String string;
+        if (code == nullCode) {
+            string = null;
+        }
+        else if (code == literalCode) {
+            string = AbstractCodex.decodeCompactString(buffer);
+            literals++;
+        }
+        else {
+            int id = code >>> 1;
+            if ((code & 1) == 1) {
+                if (id > maximumSize) {
+                    throw new FormattedRuntimeException("Dictionary definition for id {} is outside of the maximum size {}", id, maximumSize);
+                }
+
+                // Definitions are idempotent, as a partially received collection of events will get
+                // decoded again from the start once the rest of it arrives
+                string = AbstractCodex.decodeCompactString(buffer);
+                values = ensureCapacity(values, id);
+                values[id] = string;
+                definitions++;
+            }
+            else {
+                if (id >= values.length || values[id] == null) {
+                    throw new FormattedRuntimeException("Dictionary reference to id {} which hasn't been defined", id);
+                }
+                string = values[id];
+                references++;
+            }
+        }
+
+        return string;
+    }
+
+    /**
+     * Remember the current state of the sending side, so any definitions made after this point
+     * can be undone if the encode fails part way through.
+     */
+    public void mark() {
+        markedId = nextId;
+    }
+
+    /**
+     * Forget any definitions made since the last call to {@link #mark()}; they never made it on to
+     * the wire, so the other end won't know about them.
+     */
+    public void rollback() {
+        while (nextId > markedId) {
+            nextId--;
+            ids.remove(values[nextId]);
+            values[nextId] = null;
+            definitions--;
+        }
+    }
+
+    private static String[] ensureCapacity(String[] array, int index) {
+        if (index < array.length) {
+            return array;
+        }
+
+        int newLength = array.length;
+        while (newLength <= index) {
+            newLength <<= 1;
+        }
+
+        String[] grown = new String[newLength];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * @return the number of strings defined so far on the sending side
+     */
+    public int getSize() {
+        return nextId - 1;
+    }
+
+    public long getReferences() {
+        return references;
+    }
+
+    public long getDefinitions() {
+        return definitions;
+    }
+
+    public long getLiterals() {
+        return literals;
+    }
+
+    @Override public String toString() {
+        return "[StringDictionary size=" + getSize() + ", references=" + references + ", definitions=" + definitions + ", literals=" + literals + "]";
+    }
+}
@@ -2,35 +2,60 @@ package com.logginghub.connector.common;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 
 import com.logginghub.connector.common.messages.ChannelMessage;
 import com.logginghub.utils.Destination;
 
+/**
+ * Keeps track of who is subscribed to which channels, letting the subclass know when the first
+ * subscription to a channel is made and the last one removed, and routes channel messages to
+ * everyone subscribed to the message's channel or any of its parents.
+ * 
+ * Subscriptions are changed under a lock, but routing goes through a trie of the channel segments
+ * whose nodes carry an array snapshot of their destinations, so dispatch doesn't lock or allocate.
+ * 
+ * @author James
+ */
 public abstract class SubscriptionController<T extends Destination> {
 
     private Map<String, List<T>> counterparts = new HashMap<String, List<T>>();
 
     private Map<String, Future<Boolean>> subscriptionFutures = new HashMap<String, Future<Boolean>>();
 
+    private final ChannelNode root = new ChannelNode();
+
+    private static final Object[] empty = new Object[0];
+
+    /**
+     * One segment of the channel hierarchy. Children and destinations are only modified while
+     * holding the counterparts lock; readers just follow the volatile references.
+     */
+    private static final class ChannelNode {
+        private final ConcurrentHashMap<String, ChannelNode> children = new ConcurrentHashMap<String, ChannelNode>();
+        private volatile Object[] destinations = empty;
+    }
+
     public Future<Boolean> addSubscription(String channel, T counterpart) {
         channel = tidy(channel);
-        List<T> list;
         synchronized (counterparts) {
-            list = counterparts.get(channel);
+            List<T> list = counterparts.get(channel);
             if (list == null) {
                 list = new CopyOnWriteArrayList<T>();
                 counterparts.put(channel, list);
                 subscriptionFutures.put(channel, handleFirstSubscription(channel));
             }
-        }
 
-        list.add(counterpart);
+            list.add(counterpart);
+            updateNode(channel, list);
+        }
 
         Future<Boolean> future = subscriptionFutures.get(channel);
         return future;
@@ -52,8 +77,11 @@ public abstract class SubscriptionController<T extends Destination> {
             for (Entry<String, List<T>> entry : entrySet) {
                 List<T> value = entry.getValue();
                 boolean removed = value.remove(counterpart);
-                if (removed && value.size() == 0) {
-                    emptySubscriptions.add(entry.getKey());
+                if (removed) {
+                    updateNode(entry.getKey(), value);
+                    if (value.size() == 0) {
+                        emptySubscriptions.add(entry.getKey());
+                    }
                 }
             }
 
@@ -73,6 +101,7 @@ public abstract class SubscriptionController<T extends Destination> {
 
             if (list != null) {
                 list.remove(counterpart);
+                updateNode(channel, list);
                 if (list.size() == 0) {
                     counterparts.remove(channel);
                     handleLastSubscription(channel);
@@ -81,66 +110,51 @@ public abstract class SubscriptionController<T extends Destination> {
         }
     }
 
-    @SuppressWarnings("unchecked") public void dispatch(ChannelMessage message, T sourceCounterpart) {
+    /**
+     * Send the message on to everyone subscribed to its channel or any of the channel's parents.
+     * Only the channel is looked at here; if the payload was read lazily it stays encoded, and is
+     * copied straight back out when the message is sent on.
+     */
+    public void dispatch(ChannelMessage message, T sourceCounterpart) {
 
-        StringBuilder sb = new StringBuilder();
         String[] channels = message.getChannel();
-        String div = "";
-        for (String channelPart : channels) {
 
-            sb.append(div).append(channelPart);
-            div = "/";
-
-            String channel = sb.toString();
-            List<T> list;
-            synchronized (counterparts) {
-                list = counterparts.get(channel);
-            }
-
-            if (list != null) {
-                for (T t : list) {
-                    if (t != sourceCounterpart) {
-                        t.send(message);
-                    }
-                }
+        ChannelNode node = root;
+        for (int i = 0; i < channels.length; i++) {
+            node = node.children.get(channels[i]);
+            if (node == null) {
+                break;
             }
 
+            send(node.destinations, message, sourceCounterpart);
         }
 
         // Remember to check the global listeners too
-        List<T> list;
-        synchronized (counterparts) {
-            list = counterparts.get("");
-        }
+        send(root.destinations, message, sourceCounterpart);
+    }
 
-        if (list != null) {
-            for (T t : list) {
-                if (t != sourceCounterpart) {
-                    t.send(message);
-                }
+    @SuppressWarnings("unchecked") private void send(Object[] destinations, ChannelMessage message, T sourceCounterpart) {
+        for (int i = 0; i < destinations.length; i++) {
+            T t = (T) destinations[i];
+            if (t != sourceCounterpart) {
+                t.send(message);
             }
         }
-
     }
 
-    public List<T> getDestinations(String... channels) {
+    @SuppressWarnings("unchecked") public List<T> getDestinations(String... channels) {
 
         List<T> destinations = new ArrayList<T>();
 
-        StringBuilder sb = new StringBuilder();
-        String div = "";
+        ChannelNode node = root;
         for (String channelPart : channels) {
-            sb.append(div).append(channelPart);
-            div = "/";
-
-            String channel = sb.toString();
-            List<T> list;
-            synchronized (counterparts) {
-                list = counterparts.get(channel);
+            node = node.children.get(channelPart);
+            if (node == null) {
+                break;
             }
 
-            if (list != null) {
-                destinations.addAll(list);
+            for (Object destination : node.destinations) {
+                destinations.add((T) destination);
             }
         }
 
@@ -154,8 +168,59 @@ public abstract class SubscriptionController<T extends Destination> {
 
     public Set<String> getChannels() {
         synchronized (counterparts) {
-            return counterparts.keySet();
+            return new HashSet<String>(counterparts.keySet());
+        }
+    }
+
+    /**
+     * Refresh the trie's snapshot of the destinations for this channel, creating the path down to
+     * it if there are destinations and pruning it if there aren't. Must be called holding the
+     * counterparts lock.
+     */
+    private void updateNode(String channel, List<T> list) {
+        String[] path = ChannelMessage.parseChannel(channel);
+
+        if (list.isEmpty()) {
+            ChannelNode node = findNode(path);
+            if (node != null) {
+                node.destinations = empty;
+                prune(root, path, 0);
+            }
+        }
+        else {
+            ChannelNode node = root;
+            for (String segment : path) {
+                ChannelNode child = node.children.get(segment);
+                if (child == null) {
+                    child = new ChannelNode();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            node.destinations = list.toArray();
+        }
+    }
+
+    private ChannelNode findNode(String[] path) {
+        ChannelNode node = root;
+        for (int i = 0; i < path.length && node != null; i++) {
+            node = node.children.get(path[i]);
         }
+        return node;
+    }
+
+    /**
+     * @return true if the node at this depth is now empty and can be removed by its parent
+     */
+    private boolean prune(ChannelNode node, String[] path, int depth) {
+        if (depth < path.length) {
+            ChannelNode child = node.children.get(path[depth]);
+            if (child != null && prune(child, path, depth + 1)) {
+                node.children.remove(path[depth]);
+            }
+        }
+
+        return node != root && node.children.isEmpty() && node.destinations.length == 0;
     }
 
 }
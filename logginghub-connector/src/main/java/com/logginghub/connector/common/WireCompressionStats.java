@@ -0,0 +1,102 @@
+package com.logginghub.connector.common;
+
+/**
+ * Counters for the batches a connection has compressed on the way out and decompressed on the way
+ * in. The outgoing counters are only updated by whoever is writing to the connection and the
+ * incoming ones by whoever is reading from it, so they are just volatiles rather than atomics.
+ *
+ * @author James
+ */
+public class WireCompressionStats {
+
+    private volatile long batchesCompressed;
+    private volatile long bytesBeforeCompression;
+    private volatile long bytesAfterCompression;
+    private volatile long compressionNanos;
+
+    private volatile long batchesDecompressed;
+    private volatile long bytesBeforeDecompression;
+    private volatile long bytesAfterDecompression;
+    private volatile long decompressionNanos;
+
+    void onCompressed(int before, int after, long nanos) {
+        batchesCompressed++;
+        bytesBeforeCompression += before;
+        bytesAfterCompression += after;
+        compressionNanos += nanos;
+    }
+
+    void onDecompressed(int before, int after, long nanos) {
+        batchesDecompressed++;
+        bytesBeforeDecompression += before;
+        bytesAfterDecompression += after;
+        decompressionNanos += nanos;
+    }
+
+    public long getBatchesCompressed() {
+        return batchesCompressed;
+    }
+
+    /**
+     * @return the encoded size of every batch we've tried to compress; batches that didn't get any
+     *         smaller are sent as they are, so they count the same on both sides
+     */
+    public long getBytesBeforeCompression() {
+        return bytesBeforeCompression;
+    }
+
+    public long getBytesAfterCompression() {
+        return bytesAfterCompression;
+    }
+
+    public long getCompressionNanos() {
+        return compressionNanos;
+    }
+
+    public long getBatchesDecompressed() {
+        return batchesDecompressed;
+    }
+
+    public long getBytesBeforeDecompression() {
+        return bytesBeforeDecompression;
+    }
+
+    public long getBytesAfterDecompression() {
+        return bytesAfterDecompression;
+    }
+
+    public long getDecompressionNanos() {
+        return decompressionNanos;
+    }
+
+    /**
+     * @return the uncompressed size divided by the compressed size of everything we've sent, or 1
+     *         if we haven't compressed anything yet
+     */
+    public double getCompressionRatio() {
+        long after = bytesAfterCompression;
+        return after == 0 ? 1d : (double) bytesBeforeCompression / after;
+    }
+
+    /**
+     * @return the same ratio for everything we've received
+     */
+    public double getDecompressionRatio() {
+        long before = bytesBeforeDecompression;
+        return before == 0 ? 1d : (double) bytesAfterDecompression / before;
+    }
+
+    @Override public String toString() {
+        return String.format("[WireCompressionStats out=%d batches %d->%d bytes (%.2f) in %.3f ms, in=%d batches %d->%d bytes (%.2f) in %.3f ms]",
+                             batchesCompressed,
+                             bytesBeforeCompression,
+                             bytesAfterCompression,
+                             getCompressionRatio(),
+                             compressionNanos / 1e6,
+                             batchesDecompressed,
+                             bytesBeforeDecompression,
+                             bytesAfterDecompression,
+                             getDecompressionRatio(),
+                             decompressionNanos / 1e6);
+    }
+}
@@ -1,14 +1,22 @@
 package com.logginghub.connector.common.messages;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import com.logginghub.connector.common.LoggingMessage;
+import com.logginghub.sof.DefaultSofWriter;
+import com.logginghub.sof.LazySofObject;
+import com.logginghub.sof.ReaderAbstraction;
 import com.logginghub.sof.SerialisableObject;
+import com.logginghub.sof.SofCodec;
+import com.logginghub.sof.SofConfiguration;
 import com.logginghub.sof.SofException;
 import com.logginghub.sof.SofReader;
 import com.logginghub.sof.SofWriter;
+import com.logginghub.sof.TypeCodex;
+import com.logginghub.sof.WriterAbstraction;
 
 public class ChannelMessage implements SerialisableObject, LoggingMessage {
 
@@ -60,7 +68,7 @@ public class ChannelMessage implements SerialisableObject, LoggingMessage {
 
     public void read(SofReader reader) throws SofException {
         this.channel = reader.readStringArray(1);
-        this.payload = (SerialisableObject) reader.readObject(2);
+        this.payload = reader.readLazyObject(2);
     }
 
     public void write(SofWriter writer) throws SofException {
@@ -68,14 +76,48 @@ public class ChannelMessage implements SerialisableObject, LoggingMessage {
         writer.write(2, payload);
     }
 
+    /**
+     * Writes the channel directly and leaves the payload to the normal nested object handling, so
+     * lazily decoded payloads are still passed through as they came in.
+     */
+    public final static SofCodec<ChannelMessage> sofCodec = new SofCodec<ChannelMessage>() {
+        public int write(ChannelMessage message, WriterAbstraction writer, SofWriter fields, SofConfiguration configuration) throws IOException,
+                        SofException {
+            TypeCodex.writeFieldHeader(writer, 1, DefaultSofWriter.TYPE_UTF8_ARRAY);
+            TypeCodex.writeStringArray(writer, message.channel);
+            fields.write(2, message.payload);
+            return 1;
+        }
+
+        public void read(ChannelMessage message, ReaderAbstraction reader, SofReader fields, SofConfiguration configuration) throws IOException,
+                        SofException {
+            TypeCodex.readFieldHeader(reader, 1, DefaultSofWriter.TYPE_UTF8_ARRAY);
+            message.channel = TypeCodex.readStringArray(reader);
+            message.payload = fields.readLazyObject(2);
+        }
+    };
+
     public String[] getChannel() {
         return channel;
     }
 
+    /**
+     * @return the payload, decoding it first if it was received lazily
+     */
     public SerialisableObject getPayload() {
+        if (payload instanceof LazySofObject) {
+            payload = LazySofObject.resolve(payload);
+        }
         return payload;
     }
 
+    /**
+     * @return false if the payload was received lazily and nobody has asked for it yet
+     */
+    public boolean isPayloadDecoded() {
+        return !(payload instanceof LazySofObject) || ((LazySofObject) payload).isDecoded();
+    }
+
     @Override public String toString() {
         return "ChannelMessage [channel=" + Arrays.toString(channel) + ", payload=" + payload + "]";
     }
@@ -0,0 +1,42 @@
+package com.logginghub.connector.common.messages;
+
+import com.logginghub.connector.common.LoggingMessage;
+import com.logginghub.sof.SerialisableObject;
+import com.logginghub.sof.SofException;
+import com.logginghub.sof.SofReader;
+import com.logginghub.sof.SofWriter;
+
+/**
+ * Sent by each end of a connection when it starts, to tell the other end which optional wire
+ * formats it is able to decode. Older versions don't know this type and will just ignore it, so
+ * neither end moves off the original formats unless it hears back from the other.
+ */
+public class CodecCapabilitiesMessage implements LoggingMessage, SerialisableObject {
+
+    /**
+     * The version of the dictionary encoded log event format we can decode, or zero if we can't
+     */
+    private int logEventDictionaryVersion;
+
+    public CodecCapabilitiesMessage() {}
+
+    public CodecCapabilitiesMessage(int logEventDictionaryVersion) {
+        this.logEventDictionaryVersion = logEventDictionaryVersion;
+    }
+
+    public int getLogEventDictionaryVersion() {
+        return logEventDictionaryVersion;
+    }
+
+    @Override public String toString() {
+        return "CodecCapabilitiesMessage [logEventDictionaryVersion=" + logEventDictionaryVersion + "]";
+    }
+
+    public void read(SofReader reader) throws SofException {
+        logEventDictionaryVersion = reader.readInt(0);
+    }
+
+    public void write(SofWriter writer) throws SofException {
+        writer.write(0, logEventDictionaryVersion);
+    }
+}
@@ -2,43 +2,140 @@ package com.logginghub.connector.common.messages;
 
 import com.logginghub.connector.common.DefaultLogEvent;
 import com.logginghub.connector.common.serialisation.CompressedBlock;
+import com.logginghub.connector.common.serialisation.FramedCompressedBlock;
+import com.logginghub.sof.LazySofObject;
 import com.logginghub.sof.SerialisableObject;
 import com.logginghub.sof.SofException;
 import com.logginghub.sof.SofReader;
 import com.logginghub.sof.SofWriter;
+import com.logginghub.utils.Visitor;
 
 public class HistoricalDataResponse extends BaseRequestResponseMessage implements SerialisableObject {
 
+    /**
+     * Framed blocks can carry batches of any size, but processes from before they existed can't read
+     * them, so they have to be asked for
+     */
+    public final static boolean defaultFramedBlocks = Boolean.getBoolean("historicalDataResponse.framedBlocks");
+
     private DefaultLogEvent[] events;
 
     private CompressedBlock<DefaultLogEvent> compressedBlock = new CompressedBlock<DefaultLogEvent>();
 
+    private boolean framedBlocks = defaultFramedBlocks;
+
+    /**
+     * The framed version of the events, built the first time we're written and kept until the events
+     * change, so the SOF counting pass doesn't compress everything twice
+     */
+    private FramedCompressedBlock<DefaultLogEvent> framedBlock;
+
+    /**
+     * The block the events are still sitting in, if nobody has asked for them as an array yet. This
+     * is either a lazily read block of either kind, a framed block we read off the wire, or a framed
+     * block handed to us ready built by {@link #setEvents(FramedCompressedBlock)}. Framed blocks are
+     * kept as they are so {@link #visitEvents(Visitor)} can stream them a frame at a time.
+     */
+    private SerialisableObject undecodedBlock;
+
     private boolean lastBatch;
 
     public HistoricalDataResponse() {}
 
     public DefaultLogEvent[] getEvents() {
+        if (undecodedBlock != null) {
+            decodeEvents(LazySofObject.resolve(undecodedBlock));
+        }
         return events;
     }
 
     public void setEvents(DefaultLogEvent[] events) {
         this.events = events;
+        this.undecodedBlock = null;
+        this.framedBlock = null;
+    }
+
+    /**
+     * Send a framed block that has already been filled with events rather than an array of them;
+     * see {@link HistoricalDataResponseBatcher}.
+     */
+    public void setEvents(FramedCompressedBlock<DefaultLogEvent> block) {
+        this.events = null;
+        this.undecodedBlock = block;
+        this.framedBlock = null;
+    }
+
+    /**
+     * Hand each event to the visitor in turn. If the events haven't been decoded yet they are
+     * streamed straight out of the block rather than being decoded into an array first.
+     */
+    public void visitEvents(Visitor<DefaultLogEvent> visitor) {
+        if (undecodedBlock != null) {
+            visitBlock(LazySofObject.resolve(undecodedBlock), visitor);
+        }
+        else if (events != null) {
+            for (DefaultLogEvent event : events) {
+                visitor.visit(event);
+            }
+        }
     }
 
     public void read(SofReader reader) throws SofException {
         setRequestID(reader.readInt(1));
-        this.compressedBlock = (CompressedBlock<DefaultLogEvent>) reader.readObject(2);
-        this.events = compressedBlock.decodeAll(DefaultLogEvent.class);
+
+        SerialisableObject block = reader.readLazyObject(2);
+        if (block instanceof LazySofObject || block instanceof FramedCompressedBlock) {
+            this.undecodedBlock = block;
+            this.events = null;
+        }
+        else {
+            this.undecodedBlock = null;
+            decodeEvents(block);
+        }
+
         this.lastBatch = reader.readBoolean(3);
     }
 
+    @SuppressWarnings("unchecked") private void decodeEvents(SerialisableObject block) {
+        if (block instanceof FramedCompressedBlock) {
+            this.events = ((FramedCompressedBlock<DefaultLogEvent>) block).decodeAll(DefaultLogEvent.class);
+        }
+        else {
+            this.events = ((CompressedBlock<DefaultLogEvent>) block).decodeAll(DefaultLogEvent.class);
+        }
+        this.undecodedBlock = null;
+    }
+
+    @SuppressWarnings("unchecked") private void visitBlock(SerialisableObject block, Visitor<DefaultLogEvent> visitor) {
+        if (block instanceof FramedCompressedBlock) {
+            ((FramedCompressedBlock<DefaultLogEvent>) block).decodeObjects(visitor);
+        }
+        else {
+            ((CompressedBlock<DefaultLogEvent>) block).decodeObjects(visitor);
+        }
+    }
+
     public void write(SofWriter writer) throws SofException {
-        compressedBlock.clear();
-        compressedBlock.addAll(events);
         writer.write(1, getRequestID());
-        writer.write(2, compressedBlock);
+
+        if (undecodedBlock != null) {
+            // We are passing on a response we haven't looked inside, so send the block as it is
+            writer.write(2, undecodedBlock);
+        }
+        else if (framedBlocks) {
+            if (framedBlock == null) {
+                framedBlock = new FramedCompressedBlock<DefaultLogEvent>();
+                framedBlock.addAll(events);
+            }
+            writer.write(2, framedBlock);
+        }
+        else {
+            compressedBlock.clear();
+            compressedBlock.addAll(events);
+            writer.write(2, compressedBlock);
+        }
+
         writer.write(3, lastBatch);
-        
     }
 
     public void setLastBatch(boolean lastBatch) {
@@ -48,4 +145,13 @@ public class HistoricalDataResponse extends BaseRequestResponseMessage implement
     public boolean isLastBatch() {
         return lastBatch;
     }
+
+    public void setFramedBlocks(boolean framedBlocks) {
+        this.framedBlocks = framedBlocks;
+        this.framedBlock = null;
+    }
+
+    public boolean isFramedBlocks() {
+        return framedBlocks;
+    }
 }
@@ -0,0 +1,96 @@
+package com.logginghub.connector.common.messages;
+
+import com.logginghub.connector.common.DefaultLogEvent;
+import com.logginghub.connector.common.serialisation.FramedCompressedBlock;
+import com.logginghub.utils.Destination;
+
+/**
+ * Cuts a replay of any size up into a run of framed {@link HistoricalDataResponse}s. Events are
+ * compressed into a {@link FramedCompressedBlock} as they are added, and as soon as the block has
+ * filled maximumFrames frames, it goes off to the destination as a response of its own. The batcher
+ * only ever holds one response's worth of compressed events, the receiver only ever has to read
+ * one in, and it can start visiting the events in the first response while the rest are still on
+ * their way. The final response, sent by {@link #finish()}, is flagged as the last batch.
+ *
+ * The receiving end has to be able to read framed blocks, see
+ * {@link HistoricalDataResponse#setFramedBlocks(boolean)}.
+ *
+ * @author James
+ */
+public class HistoricalDataResponseBatcher {
+
+    public final static int defaultMaximumFrames = Integer.getInteger("historicalDataResponseBatcher.maximumFrames", 16);
+
+    private final int requestID;
+    private final int frameSize;
+    private final int maximumFrames;
+    private final Destination<HistoricalDataResponse> destination;
+
+    private FramedCompressedBlock<DefaultLogEvent> block;
+
+    private int responses = 0;
+
+    public HistoricalDataResponseBatcher(int requestID, Destination<HistoricalDataResponse> destination) {
+        this(requestID, FramedCompressedBlock.defaultFrameSize, defaultMaximumFrames, destination);
+    }
+
+    public HistoricalDataResponseBatcher(int requestID, int frameSize, int maximumFrames, Destination<HistoricalDataResponse> destination) {
+        if (maximumFrames < 1) {
+            throw new IllegalArgumentException("Each response needs room for at least one frame, maximumFrames was " + maximumFrames);
+        }
+
+        this.requestID = requestID;
+        this.frameSize = frameSize;
+        this.maximumFrames = maximumFrames;
+        this.destination = destination;
+    }
+
+    public void add(DefaultLogEvent event) {
+        if (block == null) {
+            block = new FramedCompressedBlock<DefaultLogEvent>(frameSize);
+        }
+
+        block.addObject(event);
+
+        if (block.getFrameCount() >= maximumFrames) {
+            send(false);
+        }
+    }
+
+    public void addAll(DefaultLogEvent[] events) {
+        for (DefaultLogEvent event : events) {
+            add(event);
+        }
+    }
+
+    /**
+     * Send whatever is left as the last batch. This always sends a response, even if it has no
+     * events in it, so the receiver knows the replay is over.
+     */
+    public void finish() {
+        if (block == null) {
+            block = new FramedCompressedBlock<DefaultLogEvent>(frameSize);
+        }
+        send(true);
+    }
+
+    /**
+     * @return the number of responses sent to the destination so far
+     */
+    public int getResponses() {
+        return responses;
+    }
+
+    private void send(boolean lastBatch) {
+        HistoricalDataResponse response = new HistoricalDataResponse();
+        response.setRequestID(requestID);
+        response.setEvents(block);
+        response.setLastBatch(lastBatch);
+
+        // The response keeps hold of the block until it is written, so start a fresh one
+        block = null;
+        responses++;
+
+        destination.send(response);
+    }
+}
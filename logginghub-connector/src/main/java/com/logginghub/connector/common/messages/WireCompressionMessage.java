@@ -0,0 +1,62 @@
+package com.logginghub.connector.common.messages;
+
+import java.util.Arrays;
+
+import com.logginghub.connector.common.LoggingMessage;
+import com.logginghub.sof.SerialisableObject;
+import com.logginghub.sof.SofException;
+import com.logginghub.sof.SofReader;
+import com.logginghub.sof.SofWriter;
+
+/**
+ * Sent by each end of a connection that has wire compression turned on, when the connection
+ * starts. It carries the compression strategy that end would like to send with and every strategy
+ * it is able to decode. Batches are only compressed once we've heard from the other end, so older
+ * versions (which just ignore this type) keep getting the uncompressed frames.
+ */
+public class WireCompressionMessage implements LoggingMessage, SerialisableObject {
+
+    private byte compressionStrategy;
+    private byte[] supportedStrategies;
+
+    public WireCompressionMessage() {}
+
+    public WireCompressionMessage(byte compressionStrategy, byte[] supportedStrategies) {
+        this.compressionStrategy = compressionStrategy;
+        this.supportedStrategies = supportedStrategies;
+    }
+
+    public byte getCompressionStrategy() {
+        return compressionStrategy;
+    }
+
+    public byte[] getSupportedStrategies() {
+        return supportedStrategies;
+    }
+
+    /**
+     * @return true if the end that sent this can decode batches compressed with the strategy
+     */
+    public boolean canDecode(byte strategy) {
+        for (byte supported : supportedStrategies) {
+            if (supported == strategy) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override public String toString() {
+        return "WireCompressionMessage [compressionStrategy=" + compressionStrategy + ", supportedStrategies=" + Arrays.toString(supportedStrategies) + "]";
+    }
+
+    public void read(SofReader reader) throws SofException {
+        compressionStrategy = reader.readByte(0);
+        supportedStrategies = reader.readByteArray(1);
+    }
+
+    public void write(SofWriter writer) throws SofException {
+        writer.write(0, compressionStrategy);
+        writer.write(1, supportedStrategies);
+    }
+}
@@ -2,6 +2,7 @@ package com.logginghub.connector.common.serialisation;
 
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -21,6 +22,8 @@ public class CompressedBlock<T extends SerialisableObject> implements Serialisab
     private List<T> objects = new ArrayList<T>();
 
     private static ThreadLocalBuffers buffers = new ThreadLocalBuffers();
+    private static ThreadLocalBuffers compressedBuffers = new ThreadLocalBuffers();
+    private static ThreadLocalBuffers decompressedBuffers = new ThreadLocalBuffers();
 
     private byte[] byteArray;
 
@@ -57,10 +60,16 @@ public class CompressedBlock<T extends SerialisableObject> implements Serialisab
 
     }
 
+    /**
+     * Decompresses into a buffer owned by the calling thread, so the visitor mustn't decode another
+     * block on the same thread.
+     */
     public void decodeObjects(Visitor<T> visitor) {
 
         ByteBuffer compressed = ByteBuffer.wrap(byteArray);
-        ByteBuffer decompressed = compression.decompress(compressed);
+        ByteBuffer decompressed = decompressedBuffers.get(compression.getDecompressedLength(compressed));
+        compression.decompress(compressed, decompressed);
+        decompressed.flip();
 
         while (decompressed.hasRemaining()) {
             try {
@@ -88,23 +97,37 @@ public class CompressedBlock<T extends SerialisableObject> implements Serialisab
         int size = objects.size();
         writer.write(3, size);
 
-        ByteBuffer byteBuffer = buffers.get((int) ByteUtils.megabytes(1));
+        ByteBuffer byteBuffer = serialiseObjects((int) ByteUtils.megabytes(1));
 
-        for (T object : objects) {
+        ByteBuffer compressed = compressedBuffers.get(compression.getMaxCompressedLength(byteBuffer.remaining()));
+        compression.compress(byteBuffer, compressed);
+        compressed.flip();
+        writer.write(4, compressed.array(), 0, compressed.remaining());
+
+    }
+
+    /**
+     * Serialise everything into a thread local buffer, starting again with a bigger one if it doesn't
+     * all fit. Batches that are likely to be this big should use a {@link FramedCompressedBlock}
+     * instead, which never holds more than one frame of them uncompressed.
+     */
+    private ByteBuffer serialiseObjects(int capacity) throws SofException {
+        while (true) {
+            ByteBuffer byteBuffer = buffers.get(capacity);
             try {
-                serialisation.serialise(byteBuffer, object);
+                for (T object : objects) {
+                    serialisation.serialise(byteBuffer, object);
+                }
+                byteBuffer.flip();
+                return byteBuffer;
+            }
+            catch (BufferOverflowException e) {
+                capacity = byteBuffer.capacity() * 2;
             }
             catch (IOException e) {
                 throw new SofException(e);
             }
         }
-        byteBuffer.flip();
-
-        // TODO : handle buffer overflow
-
-        ByteBuffer compressed = compression.compress(byteBuffer);
-        writer.write(4, compressed.array(), 0, compressed.remaining());
-
     }
 
     public void setCompressionStrategy(byte compression) {
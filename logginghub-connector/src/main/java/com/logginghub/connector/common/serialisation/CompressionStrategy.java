@@ -7,4 +7,34 @@ public interface CompressionStrategy {
     ByteBuffer compress(ByteBuffer currentBlock);
     ByteBuffer decompress(ByteBuffer currentBlock);
 
+    /**
+     * Compress the bytes between the position and limit of the source onto the end of the
+     * destination, without allocating anything. Both positions are moved past the bytes used.
+     * 
+     * @throws java.nio.BufferOverflowException
+     *             if the destination has less than {@link #getMaxCompressedLength(int)} bytes left
+     */
+    void compress(ByteBuffer source, ByteBuffer destination);
+
+    /**
+     * Decompress the block between the position and limit of the source onto the end of the
+     * destination, without allocating anything. Both positions are moved past the bytes used.
+     * 
+     * @throws java.nio.BufferOverflowException
+     *             if the destination has less than {@link #getDecompressedLength(ByteBuffer)} bytes
+     *             left
+     */
+    void decompress(ByteBuffer source, ByteBuffer destination);
+
+    /**
+     * @return the most bytes compressing this many bytes could possibly produce
+     */
+    int getMaxCompressedLength(int length);
+
+    /**
+     * @return the size the compressed block starting at the position of this buffer will be once it
+     *         has been decompressed; the buffer is left untouched
+     */
+    int getDecompressedLength(ByteBuffer compressed);
+
 }
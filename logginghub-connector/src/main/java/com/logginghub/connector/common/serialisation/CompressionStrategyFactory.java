@@ -10,15 +10,53 @@ public class CompressionStrategyFactory {
     public final static byte compression_lz4 = 2;
     public final static byte compression_zlib = 3;
 
+    // The strategies keep their codecs in thread locals, so one instance of each can be shared by
+    // everyone
+    private final static CompressionStrategy none = new NoopCompressionStrategy();
+    private final static CompressionStrategy snappy = new SnappyCompressionStrategy();
+    private final static CompressionStrategy lz4 = new LZ4CompressionStrategy();
+    private final static CompressionStrategy zlib = new FlatorCompressionStrategy();
+
     public static CompressionStrategy createStrategy(byte strategy) {
         switch (strategy) {
-            case compression_none: return new NoopCompressionStrategy();
-            case compression_snappy : return new SnappyCompressionStrategy();
-            case compression_lz4 : return new LZ4CompressionStrategy();
-            case compression_zlib : return new FlatorCompressionStrategy();
+            case compression_none: return none;
+            case compression_snappy : return snappy;
+            case compression_lz4 : return lz4;
+            case compression_zlib : return zlib;
             default:
                 throw new FormattedRuntimeException("We dont recognise CompressionStrategy '{}'", strategy);
         }
     }
+
+    /**
+     * @return the ids of every strategy we can decode, which is what we advertise to the other end
+     *         of a connection
+     */
+    public static byte[] getSupportedStrategies() {
+        return new byte[] { compression_snappy, compression_lz4, compression_zlib };
+    }
+
+    /**
+     * Turn a strategy name from a configuration property ("none", "snappy", "lz4" or "zlib") into
+     * its id.
+     */
+    public static byte parseStrategy(String name) {
+        String trimmed = name.trim().toLowerCase();
+        if (trimmed.length() == 0 || trimmed.equals("none")) {
+            return compression_none;
+        }
+        else if (trimmed.equals("snappy")) {
+            return compression_snappy;
+        }
+        else if (trimmed.equals("lz4")) {
+            return compression_lz4;
+        }
+        else if (trimmed.equals("zlib")) {
+            return compression_zlib;
+        }
+        else {
+            throw new FormattedRuntimeException("We dont recognise CompressionStrategy '{}'", name);
+        }
+    }
     
 }
@@ -1,65 +1,179 @@
 package com.logginghub.connector.common.serialisation;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
+import com.logginghub.sof.ThreadLocalBuffers;
 import com.logginghub.utils.FormattedRuntimeException;
 
 public class FlatorCompressionStrategy implements CompressionStrategy {
 
+    // Deflaters and inflaters hold on to a fair chunk of native memory, so each thread keeps one of
+    // each and resets it rather than making new ones for every block
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override protected Deflater initialValue() {
+            return new Deflater();
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private static final ThreadLocalBuffers inputScratch = new ThreadLocalBuffers();
+    private static final ThreadLocalBuffers outputScratch = new ThreadLocalBuffers();
+
     public ByteBuffer compress(ByteBuffer sourceBuffer) {
 
         sourceBuffer.flip();
-        
-        Deflater deflater = new Deflater();
-        int decompressedLength = sourceBuffer.limit();
-        deflater.setInput(sourceBuffer.array(), 0, decompressedLength);
-        deflater.finish();
 
-        ByteBuffer destinationBuffer = ByteBuffer.allocate(sourceBuffer.capacity() * 2);
-        
-        byte[] array = destinationBuffer.array();
-        int compressedLength = deflater.deflate(array, 4, destinationBuffer.capacity() - 4);
-        
-        // Write the decompressed length to the front of the buffer
-        destinationBuffer.putInt(0, decompressedLength);
-
-        // Move the position to the end of the compressed data
-        destinationBuffer.position(compressedLength + 4);     
-        
+        ByteBuffer destinationBuffer = ByteBuffer.allocate(getMaxCompressedLength(sourceBuffer.remaining()));
+        compress(sourceBuffer, destinationBuffer);
+
         // Flip the buffer so people can read the compressed data
         destinationBuffer.flip();
-        
+
         return destinationBuffer;
 
     }
 
     public ByteBuffer decompress(ByteBuffer sourceBlock) {
-        
-        int decompressedSize = sourceBlock.getInt();
-        
-        ByteBuffer destinationBuffer = ByteBuffer.allocate(decompressedSize);
-        
-        Inflater inflater = new Inflater();
-        byte[] inputArray = sourceBlock.array();
-        inflater.setInput(inputArray, 4, inputArray.length - 4);
-        
-        byte[] array = destinationBuffer.array();
 
+        ByteBuffer destinationBuffer = ByteBuffer.allocate(getDecompressedLength(sourceBlock));
+        decompress(sourceBlock, destinationBuffer);
+        destinationBuffer.flip();
+
+        return destinationBuffer;
+
+    }
+
+    public void compress(ByteBuffer source, ByteBuffer destination) {
+        int decompressedLength = source.remaining();
+        if (destination.remaining() < getMaxCompressedLength(decompressedLength)) {
+            throw new BufferOverflowException();
+        }
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+
+        if (source.hasArray()) {
+            deflater.setInput(source.array(), source.arrayOffset() + source.position(), decompressedLength);
+        }
+        else {
+            byte[] input = inputScratch.get(decompressedLength).array();
+            source.duplicate().get(input, 0, decompressedLength);
+            deflater.setInput(input, 0, decompressedLength);
+        }
+        deflater.finish();
+
+        // Write the decompressed length to the front of the block
+        destination.putInt(decompressedLength);
+
+        byte[] output;
+        int offset;
+        int space = destination.remaining();
+        if (destination.hasArray()) {
+            output = destination.array();
+            offset = destination.arrayOffset() + destination.position();
+        }
+        else {
+            output = outputScratch.get(space).array();
+            offset = 0;
+        }
+
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < space) {
+            int count = deflater.deflate(output, offset + compressedLength, space - compressedLength);
+            if (count == 0) {
+                break;
+            }
+            compressedLength += count;
+        }
+
+        if (!deflater.finished()) {
+            throw new BufferOverflowException();
+        }
+
+        if (destination.hasArray()) {
+            destination.position(destination.position() + compressedLength);
+        }
+        else {
+            destination.put(output, 0, compressedLength);
+        }
+
+        source.position(source.limit());
+    }
+
+    public void decompress(ByteBuffer source, ByteBuffer destination) {
+        int decompressedSize = source.getInt();
+        int compressedLength = source.remaining();
+        if (destination.remaining() < decompressedSize) {
+            throw new BufferOverflowException();
+        }
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+
+        if (source.hasArray()) {
+            inflater.setInput(source.array(), source.arrayOffset() + source.position(), compressedLength);
+        }
+        else {
+            byte[] input = inputScratch.get(compressedLength).array();
+            source.duplicate().get(input, 0, compressedLength);
+            inflater.setInput(input, 0, compressedLength);
+        }
+
+        byte[] output;
+        int offset;
+        if (destination.hasArray()) {
+            output = destination.array();
+            offset = destination.arrayOffset() + destination.position();
+        }
+        else {
+            output = outputScratch.get(decompressedSize).array();
+            offset = 0;
+        }
+
+        int inflated = 0;
         try {
-            inflater.inflate(array);            
+            while (inflated < decompressedSize && !inflater.finished()) {
+                int count = inflater.inflate(output, offset + inflated, decompressedSize - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
         }
         catch (DataFormatException e) {
             throw new FormattedRuntimeException(e, "Decompression failed");
         }
-        
-        destinationBuffer.position(decompressedSize);
-        destinationBuffer.flip();
-        
-        return destinationBuffer;
-         
+
+        if (inflated != decompressedSize) {
+            throw new FormattedRuntimeException("Decompression failed, expected {} bytes but got {}", decompressedSize, inflated);
+        }
+
+        if (destination.hasArray()) {
+            destination.position(destination.position() + inflated);
+        }
+        else {
+            destination.put(output, 0, inflated);
+        }
+
+        source.position(source.limit());
+    }
+
+    public int getMaxCompressedLength(int length) {
+        // zlib's compressBound, plus our length prefix
+        return 4 + length + (length >>> 12) + (length >>> 14) + (length >>> 25) + 13;
+    }
+
+    public int getDecompressedLength(ByteBuffer compressed) {
+        return compressed.getInt(compressed.position());
     }
 
 }
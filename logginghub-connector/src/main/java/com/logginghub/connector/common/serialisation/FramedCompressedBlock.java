@@ -0,0 +1,266 @@
+package com.logginghub.connector.common.serialisation;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import com.logginghub.sof.SerialisableObject;
+import com.logginghub.sof.SofException;
+import com.logginghub.sof.SofReader;
+import com.logginghub.sof.SofRuntimeException;
+import com.logginghub.sof.SofWriter;
+import com.logginghub.sof.ThreadLocalBuffers;
+import com.logginghub.utils.Visitor;
+
+/**
+ * Version of the {@link CompressedBlock} for batches that could be too big to serialise in one go.
+ * Objects are serialised into a fixed size frame as they are added, and each time the frame fills up
+ * it is compressed and appended to the encoded frames, so we only ever hold one uncompressed frame
+ * plus the compressed output. Decoding works the same way in reverse - the frames are decompressed
+ * one at a time and the objects visited as they come out, so a reader never needs more than a
+ * single frame of decompressed data either.
+ *
+ * Each encoded frame is a four byte length followed by the output of the compression strategy for
+ * that frame. An object bigger than the frame size gets a frame of its own.
+ *
+ * This bounds the uncompressed data, not the compressed: the frames all travel in a single SOF byte
+ * array field, so a block is written and read in one piece. Large replays are kept bounded by
+ * cutting them up into a run of responses with a few frames each, which the receiver can start
+ * decoding as soon as the first one arrives - see
+ * {@link com.logginghub.connector.common.messages.HistoricalDataResponseBatcher}.
+ *
+ * @author James
+ */
+public class FramedCompressedBlock<T extends SerialisableObject> implements SerialisableObject {
+
+    public final static int defaultFrameSize = Integer.getInteger("framedCompressedBlock.frameSize", 64 * 1024);
+
+    private static ThreadLocalBuffers decompressedFrames = new ThreadLocalBuffers();
+
+    private byte serialisationStrategy;
+    private byte compressionStrategy;
+
+    private CompressionStrategy compression;
+    private SerialisationStrategy serialisation;
+
+    private final int frameSize;
+    private ByteBuffer frame;
+    private int itemsInFrame = 0;
+
+    private ByteBuffer frames;
+    private int frameCount = 0;
+    private int items = 0;
+
+    // Set once we've been read off the wire
+    private byte[] byteArray;
+
+    public FramedCompressedBlock() {
+        this(defaultFrameSize);
+    }
+
+    public FramedCompressedBlock(int frameSize) {
+        this.frameSize = frameSize;
+        setSerialisationStrategy(SerialisationStrategyFactory.serialisation_sof_no_headers_and_no_fields);
+        setCompressionStrategy(CompressionStrategyFactory.compression_lz4);
+    }
+
+    public void addObject(T object) {
+        if (byteArray != null) {
+            throw new IllegalStateException("This block was decoded from the wire, new objects can't be added to it");
+        }
+
+        if (frame == null) {
+            frame = ByteBuffer.allocate(frameSize);
+        }
+
+        int start = frame.position();
+        while (true) {
+            try {
+                serialisation.serialise(frame, object);
+                break;
+            }
+            catch (BufferOverflowException e) {
+                frame.position(start);
+                if (start > 0) {
+                    // Didn't fit after the objects already in there, so start a new frame
+                    flushFrame();
+                    start = 0;
+                }
+                else {
+                    // Doesn't fit in an empty frame either, so this one gets an oversized frame
+                    frame = ByteBuffer.allocate(frame.capacity() * 2);
+                }
+            }
+            catch (IOException e) {
+                throw new SofRuntimeException(e);
+            }
+        }
+
+        itemsInFrame++;
+        items++;
+
+        if (frame.capacity() > frameSize) {
+            // Don't hang on to the oversized frame
+            flushFrame();
+            frame = ByteBuffer.allocate(frameSize);
+        }
+    }
+
+    public void addAll(T[] objects) {
+        for (T t : objects) {
+            addObject(t);
+        }
+    }
+
+    private void flushFrame() {
+        if (itemsInFrame == 0) {
+            return;
+        }
+
+        frame.flip();
+
+        ensureSpace(4 + compression.getMaxCompressedLength(frame.remaining()));
+
+        int lengthPosition = frames.position();
+        frames.putInt(0);
+        compression.compress(frame, frames);
+        frames.putInt(lengthPosition, frames.position() - lengthPosition - 4);
+
+        frame.clear();
+        itemsInFrame = 0;
+        frameCount++;
+    }
+
+    private void ensureSpace(int required) {
+        if (frames == null) {
+            frames = ByteBuffer.allocate(Math.max(required, frameSize / 2));
+        }
+        else if (frames.remaining() < required) {
+            int newCapacity = frames.capacity() * 2;
+            while (newCapacity - frames.position() < required) {
+                newCapacity *= 2;
+            }
+
+            ByteBuffer newFrames = ByteBuffer.allocate(newCapacity);
+            frames.flip();
+            newFrames.put(frames);
+            frames = newFrames;
+        }
+    }
+
+    public void clear() {
+        if (frame != null) {
+            frame.clear();
+        }
+        if (frames != null) {
+            frames.clear();
+        }
+        itemsInFrame = 0;
+        frameCount = 0;
+        items = 0;
+        byteArray = null;
+    }
+
+    public int getItems() {
+        return items;
+    }
+
+    /**
+     * @return the number of frames encoded so far; the frame currently being filled isn't counted
+     *         until it is full or the block is written
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Decode each object in turn and hand it to the visitor. Only one frame is decompressed at a
+     * time, into a buffer owned by the calling thread, so the visitor mustn't decode another block
+     * on the same thread.
+     */
+    @SuppressWarnings("unchecked") public void decodeObjects(Visitor<T> visitor) {
+        ByteBuffer encoded = getEncodedFrames();
+
+        while (encoded.hasRemaining()) {
+            int length = encoded.getInt();
+            int end = encoded.position() + length;
+
+            ByteBuffer compressed = encoded.duplicate();
+            compressed.limit(end);
+
+            ByteBuffer decompressed = decompressedFrames.get(compression.getDecompressedLength(compressed));
+            compression.decompress(compressed, decompressed);
+            decompressed.flip();
+
+            while (decompressed.hasRemaining()) {
+                try {
+                    visitor.visit((T) serialisation.deserialise(decompressed));
+                }
+                catch (IOException e) {
+                    throw new SofRuntimeException(e);
+                }
+            }
+
+            encoded.position(end);
+        }
+    }
+
+    @SuppressWarnings("unchecked") public T[] decodeAll(Class<T> clazz) {
+        final T[] array = (T[]) Array.newInstance(clazz, items);
+        decodeObjects(new Visitor<T>() {
+            int index = 0;
+
+            public void visit(T t) {
+                array[index++] = t;
+            }
+        });
+
+        return array;
+    }
+
+    private ByteBuffer getEncodedFrames() {
+        if (byteArray != null) {
+            return ByteBuffer.wrap(byteArray);
+        }
+        else {
+            flushFrame();
+            if (frames == null) {
+                return ByteBuffer.allocate(0);
+            }
+
+            ByteBuffer encoded = frames.duplicate();
+            encoded.flip();
+            return encoded;
+        }
+    }
+
+    public void read(SofReader reader) throws SofException {
+        setCompressionStrategy(reader.readByte(1));
+        setSerialisationStrategy(reader.readByte(2));
+        this.items = reader.readInt(3);
+        this.frameCount = reader.readInt(4);
+        this.byteArray = reader.readByteArray(5);
+    }
+
+    public void write(SofWriter writer) throws SofException {
+        ByteBuffer encoded = getEncodedFrames();
+
+        writer.write(1, compressionStrategy);
+        writer.write(2, serialisationStrategy);
+        writer.write(3, items);
+        writer.write(4, frameCount);
+        writer.write(5, encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+    }
+
+    public void setCompressionStrategy(byte compression) {
+        this.compressionStrategy = compression;
+        this.compression = CompressionStrategyFactory.createStrategy(compression);
+    }
+
+    public void setSerialisationStrategy(byte serialisationStrategy) {
+        this.serialisationStrategy = serialisationStrategy;
+        this.serialisation = SerialisationStrategyFactory.createStrategy(serialisationStrategy);
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.logginghub.connector.common.serialisation;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import com.logginghub.kanzi.ByteFunction;
+import com.logginghub.kanzi.IndexedByteArray;
+import com.logginghub.sof.ThreadLocalBuffers;
+import com.logginghub.utils.FormattedRuntimeException;
+
+/**
+ * Base for the strategies backed by the kanzi block codecs. The codecs carry a large hash table
+ * around with them, so rather than creating a new one for every block each thread keeps hold of its
+ * own codec (and the indexed array wrappers that go with it) and sets it up for each call.
+ *
+ * The compressed format is the decompressed length as a four byte int, followed by the codec
+ * output. Heap buffers are handed to the codec directly; direct buffers are staged through thread
+ * local scratch arrays.
+ *
+ * @author James
+ */
+public abstract class KanziCompressionStrategy implements CompressionStrategy {
+
+    private static final int overrunAllowance = 8;
+
+    private static final ThreadLocalBuffers inputScratch = new ThreadLocalBuffers();
+    private static final ThreadLocalBuffers outputScratch = new ThreadLocalBuffers();
+
+    /**
+     * The per-thread state for one codec
+     */
+    protected static final class Context {
+        final ByteFunction codec;
+        final IndexedByteArray source = new IndexedByteArray(new byte[0], 0);
+        final IndexedByteArray destination = new IndexedByteArray(new byte[0], 0);
+
+        protected Context(ByteFunction codec) {
+            this.codec = codec;
+        }
+    }
+
+    /**
+     * @return this thread's context, with its codec set up to work on exactly size bytes
+     */
+    protected abstract Context getContext(int size);
+
+    public int getMaxCompressedLength(int length) {
+        return 4 + getContext(0).codec.getMaxEncodedLength(length);
+    }
+
+    public int getDecompressedLength(ByteBuffer compressed) {
+        return compressed.getInt(compressed.position());
+    }
+
+    public ByteBuffer compress(ByteBuffer sourceBuffer) {
+        ByteBuffer destinationBuffer = ByteBuffer.allocate(getMaxCompressedLength(sourceBuffer.remaining()));
+        compress(sourceBuffer, destinationBuffer);
+
+        // Flip the buffer so people can read the compressed data
+        destinationBuffer.flip();
+        return destinationBuffer;
+    }
+
+    public ByteBuffer decompress(ByteBuffer sourceBuffer) {
+        ByteBuffer destinationBuffer = ByteBuffer.allocate(getDecompressedLength(sourceBuffer));
+        decompress(sourceBuffer, destinationBuffer);
+        destinationBuffer.flip();
+        return destinationBuffer;
+    }
+
+    public void compress(ByteBuffer source, ByteBuffer destination) {
+        int length = source.remaining();
+        if (destination.remaining() < getMaxCompressedLength(length)) {
+            throw new BufferOverflowException();
+        }
+
+        destination.putInt(length);
+        if (length == 0) {
+            // The codecs treat a size of zero as 'the whole array', so don't ask them
+            return;
+        }
+
+        Context context = getContext(length);
+        IndexedByteArray input = context.source;
+        IndexedByteArray output = context.destination;
+
+        if (source.hasArray()) {
+            input.array = source.array();
+            input.index = source.arrayOffset() + source.position();
+        }
+        else {
+            input.array = inputScratch.get(length).array();
+            input.index = 0;
+            source.duplicate().get(input.array, 0, length);
+        }
+
+        boolean staged = !destination.hasArray();
+        if (staged) {
+            output.array = outputScratch.get(getMaxCompressedLength(length)).array();
+            output.index = 0;
+        }
+        else {
+            output.array = destination.array();
+            output.index = destination.arrayOffset() + destination.position();
+        }
+
+        int outputStart = output.index;
+        boolean succeeded = context.codec.forward(input, output);
+        int written = output.index - outputStart;
+
+        // Don't keep the callers' arrays reachable from the thread
+        input.array = null;
+        output.array = null;
+
+        if (!succeeded) {
+            throw new FormattedRuntimeException("Failed to compress {} bytes", length);
+        }
+
+        if (staged) {
+            destination.put(outputScratch.get(0).array(), 0, written);
+        }
+        else {
+            destination.position(destination.position() + written);
+        }
+
+        source.position(source.limit());
+    }
+
+    public void decompress(ByteBuffer source, ByteBuffer destination) {
+        int decompressedLength = source.getInt();
+        int compressedLength = source.remaining();
+        if (destination.remaining() < decompressedLength) {
+            throw new BufferOverflowException();
+        }
+
+        if (decompressedLength == 0) {
+            source.position(source.limit());
+            return;
+        }
+
+        Context context = getContext(compressedLength);
+        IndexedByteArray input = context.source;
+        IndexedByteArray output = context.destination;
+
+        if (source.hasArray()) {
+            input.array = source.array();
+            input.index = source.arrayOffset() + source.position();
+        }
+        else {
+            input.array = inputScratch.get(compressedLength).array();
+            input.index = 0;
+            source.duplicate().get(input.array, 0, compressedLength);
+        }
+
+        // The LZ4 decoder copies in eight byte chunks, so it can scribble up to seven bytes past the
+        // end of its output. That's fine in free space, but not past the limit of a slice
+        boolean staged = !destination.hasArray() ||
+                         (destination.remaining() - decompressedLength < overrunAllowance && destination.arrayOffset() + destination.limit() != destination.array().length);
+        if (staged) {
+            output.array = outputScratch.get(decompressedLength + overrunAllowance).array();
+            output.index = 0;
+        }
+        else {
+            output.array = destination.array();
+            output.index = destination.arrayOffset() + destination.position();
+        }
+
+        int outputStart = output.index;
+        boolean succeeded = context.codec.inverse(input, output);
+        int written = output.index - outputStart;
+
+        input.array = null;
+        output.array = null;
+
+        if (!succeeded || written != decompressedLength) {
+            throw new FormattedRuntimeException("Failed to decompress block, expected {} bytes but got {}", decompressedLength, written);
+        }
+
+        if (staged) {
+            destination.put(outputScratch.get(0).array(), 0, written);
+        }
+        else {
+            destination.position(destination.position() + written);
+        }
+
+        source.position(source.limit());
+    }
+}
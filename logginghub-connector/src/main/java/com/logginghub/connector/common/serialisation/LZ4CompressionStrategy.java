@@ -1,51 +1,19 @@
 package com.logginghub.connector.common.serialisation;
 
-import java.nio.ByteBuffer;
-
-import com.logginghub.kanzi.ByteFunction;
-import com.logginghub.kanzi.IndexedByteArray;
 import com.logginghub.kanzi.LZ4Codec;
 
-public class LZ4CompressionStrategy implements CompressionStrategy {
-
-    public ByteBuffer compress(ByteBuffer sourceBuffer) {
-
-        ByteFunction codec = new LZ4Codec(0);
-        byte[] input = new byte[sourceBuffer.remaining()];
-        sourceBuffer.get(input);
-        
-        int decompressedLength = input.length;
-        byte[] output = new byte[codec.getMaxEncodedLength(decompressedLength)];
-                        
-        IndexedByteArray source = new IndexedByteArray(input,0);
-        IndexedByteArray destination = new IndexedByteArray(output, 0);
-        codec.forward(source, destination);
-
-        ByteBuffer destinationBuffer = ByteBuffer.allocate(destination.index + 4);
-        destinationBuffer.putInt(decompressedLength);
-        destinationBuffer.put(output, 0, destination.index);
-        
-        // Flip the buffer so people can read the compressed data
-        destinationBuffer.flip();
-
-        return destinationBuffer;
-
-    }
-
-    public ByteBuffer decompress(ByteBuffer sourceBuffer) {
-        
-        int decompressedSize = sourceBuffer.getInt();
-        byte[] destinationBytes = new byte[decompressedSize];
-        
-        ByteBuffer destinationByteBuffer = ByteBuffer.wrap(destinationBytes);
+public class LZ4CompressionStrategy extends KanziCompressionStrategy {
 
-        ByteFunction codec = new LZ4Codec(sourceBuffer.remaining());
-        
-        IndexedByteArray source = new IndexedByteArray(sourceBuffer.array(), sourceBuffer.position());
-        IndexedByteArray destination = new IndexedByteArray(destinationBytes, 0);
-        codec.inverse(source, destination);
+    private static final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+        @Override protected Context initialValue() {
+            return new Context(new LZ4Codec());
+        }
+    };
 
-        return destinationByteBuffer;
+    @Override protected Context getContext(int size) {
+        Context context = contexts.get();
+        ((LZ4Codec) context.codec).setSize(size);
+        return context;
     }
 
 }
@@ -12,4 +12,20 @@ public class NoopCompressionStrategy implements CompressionStrategy {
         return sourceBuffer;
     }
 
+    public void compress(ByteBuffer source, ByteBuffer destination) {
+        destination.put(source);
+    }
+
+    public void decompress(ByteBuffer source, ByteBuffer destination) {
+        destination.put(source);
+    }
+
+    public int getMaxCompressedLength(int length) {
+        return length;
+    }
+
+    public int getDecompressedLength(ByteBuffer compressed) {
+        return compressed.remaining();
+    }
+
 }
@@ -2,52 +2,29 @@ package com.logginghub.connector.common.serialisation;
 
 import java.nio.ByteBuffer;
 
-import com.logginghub.kanzi.ByteFunction;
-import com.logginghub.kanzi.IndexedByteArray;
 import com.logginghub.kanzi.SnappyCodec;
 
-public class SnappyCompressionStrategy implements CompressionStrategy {
+public class SnappyCompressionStrategy extends KanziCompressionStrategy {
 
-    public ByteBuffer compress(ByteBuffer sourceBuffer) {
-
-        sourceBuffer.flip();
-
-        ByteFunction codec = new SnappyCodec(0);
-        byte[] input = new byte[sourceBuffer.remaining()];
-        sourceBuffer.get(input);
-        
-        int decompressedLength = input.length;
-        byte[] output = new byte[codec.getMaxEncodedLength(decompressedLength)];
-                        
-        IndexedByteArray source = new IndexedByteArray(input,0);
-        IndexedByteArray destination = new IndexedByteArray(output, 0);
-        codec.forward(source, destination);
-
-        ByteBuffer destinationBuffer = ByteBuffer.allocate(destination.index + 4);
-        destinationBuffer.putInt(decompressedLength);
-        destinationBuffer.put(output, 0, destination.index);
-        
-        // Flip the buffer so people can read the compressed data
-        destinationBuffer.flip();
-
-        return destinationBuffer;
+    private static final ThreadLocal<Context> contexts = new ThreadLocal<Context>() {
+        @Override protected Context initialValue() {
+            return new Context(new SnappyCodec());
+        }
+    };
 
+    @Override protected Context getContext(int size) {
+        Context context = contexts.get();
+        ((SnappyCodec) context.codec).setSize(size);
+        return context;
     }
 
-    public ByteBuffer decompress(ByteBuffer sourceBuffer) {
-        
-        int decompressedSize = sourceBuffer.getInt();
-        byte[] destinationBytes = new byte[decompressedSize];
-        
-        ByteBuffer destinationByteBuffer = ByteBuffer.wrap(destinationBytes);
-
-        ByteFunction codec = new SnappyCodec(sourceBuffer.remaining());
-        
-        IndexedByteArray source = new IndexedByteArray(sourceBuffer.array(), sourceBuffer.position());
-        IndexedByteArray destination = new IndexedByteArray(destinationBytes, 0);
-        codec.inverse(source, destination);
-
-        return destinationByteBuffer;
+    /**
+     * Unlike the other strategies this version has always flipped the buffer it is given, so it
+     * still does; the two buffer version expects it to have been flipped already.
+     */
+    @Override public ByteBuffer compress(ByteBuffer sourceBuffer) {
+        sourceBuffer.flip();
+        return super.compress(sourceBuffer);
     }
 
 }
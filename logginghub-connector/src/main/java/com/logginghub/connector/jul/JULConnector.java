@@ -232,11 +232,66 @@ public class JULConnector extends Handler implements PropertyChangeListener, Sta
         String gcLogging = manager.getProperty(cname + ".gcLogging");
         String heapLogging = manager.getProperty(cname + ".heapLogging");
         String maximumQueuedMessages = manager.getProperty(cname + ".maximumQueuedMessages");
+        String dispatchQueueOverflowPolicy = manager.getProperty(cname + ".dispatchQueueOverflowPolicy");
+        String dispatchQueueBlockTimeout = manager.getProperty(cname + ".dispatchQueueBlockTimeout");
+        String dispatchBatchSize = manager.getProperty(cname + ".dispatchBatchSize");
+        String dispatchBatchTimeout = manager.getProperty(cname + ".dispatchBatchTimeout");
+        String spoolDirectory = manager.getProperty(cname + ".spoolDirectory");
+        String spoolSegmentSize = manager.getProperty(cname + ".spoolSegmentSize");
+        String spoolMaximumSize = manager.getProperty(cname + ".spoolMaximumSize");
+        String spoolReplayRate = manager.getProperty(cname + ".spoolReplayRate");
+        String hotStandby = manager.getProperty(cname + ".hotStandby");
+        String connectTimeout = manager.getProperty(cname + ".connectTimeout");
+        String parallelConnectAttempts = manager.getProperty(cname + ".parallelConnectAttempts");
         String dontThrowExceptionsIfHubIsntUp = manager.getProperty(cname + ".dontThrowExceptionsIfHubIsntUp");
 
         if(maximumQueuedMessages != null) {
             setMaximumQueuedMessages(Integer.parseInt(maximumQueuedMessages));
         }
+
+        if(dispatchQueueOverflowPolicy != null) {
+            setDispatchQueueOverflowPolicy(dispatchQueueOverflowPolicy);
+        }
+
+        if(dispatchQueueBlockTimeout != null) {
+            setDispatchQueueBlockTimeout(Long.parseLong(dispatchQueueBlockTimeout));
+        }
+
+        if(dispatchBatchSize != null) {
+            setDispatchBatchSize(Integer.parseInt(dispatchBatchSize));
+        }
+
+        if(dispatchBatchTimeout != null) {
+            setDispatchBatchTimeout(Long.parseLong(dispatchBatchTimeout));
+        }
+
+        if(spoolDirectory != null) {
+            setSpoolDirectory(spoolDirectory);
+        }
+
+        if(spoolSegmentSize != null) {
+            setSpoolSegmentSize(Integer.parseInt(spoolSegmentSize));
+        }
+
+        if(spoolMaximumSize != null) {
+            setSpoolMaximumSize(Long.parseLong(spoolMaximumSize));
+        }
+
+        if(spoolReplayRate != null) {
+            setSpoolReplayRate(Integer.parseInt(spoolReplayRate));
+        }
+
+        if(hotStandby != null) {
+            setHotStandby(Boolean.parseBoolean(hotStandby));
+        }
+
+        if(connectTimeout != null) {
+            setConnectTimeout(Integer.parseInt(connectTimeout));
+        }
+
+        if(parallelConnectAttempts != null) {
+            setParallelConnectAttempts(Integer.parseInt(parallelConnectAttempts));
+        }
         
         if(failureDelay != null){
             setFailureDelay(Long.parseLong(failureDelay));
@@ -336,6 +391,50 @@ public class JULConnector extends Handler implements PropertyChangeListener, Sta
         appenderHelper.setMaxDispatchQueueSize(maximumQueuedMessages);
     }
 
+    public void setDispatchQueueOverflowPolicy(String policy) {
+        appenderHelper.setDispatchQueueOverflowPolicy(policy);
+    }
+
+    public void setDispatchQueueBlockTimeout(long milliseconds) {
+        appenderHelper.setDispatchQueueBlockTimeout(milliseconds);
+    }
+
+    public void setDispatchBatchSize(int dispatchBatchSize) {
+        appenderHelper.setDispatchBatchSize(dispatchBatchSize);
+    }
+
+    public void setDispatchBatchTimeout(long microseconds) {
+        appenderHelper.setDispatchBatchTimeout(microseconds);
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        appenderHelper.setSpoolDirectory(spoolDirectory);
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        appenderHelper.setSpoolSegmentSize(spoolSegmentSize);
+    }
+
+    public void setSpoolMaximumSize(long spoolMaximumSize) {
+        appenderHelper.setSpoolMaximumSize(spoolMaximumSize);
+    }
+
+    public void setSpoolReplayRate(int eventsPerSecond) {
+        appenderHelper.setSpoolReplayRate(eventsPerSecond);
+    }
+
+    public void setHotStandby(boolean hotStandby) {
+        appenderHelper.setHotStandby(hotStandby);
+    }
+
+    public void setConnectTimeout(int milliseconds) {
+        appenderHelper.setConnectTimeout(milliseconds);
+    }
+
+    public void setParallelConnectAttempts(int parallelConnectAttempts) {
+        appenderHelper.setParallelConnectAttempts(parallelConnectAttempts);
+    }
+
     public void setGatheringCallerDetails(boolean gatheringCallerDetails) {
         appenderHelper.setGatheringCallerDetails(gatheringCallerDetails);
     }
@@ -184,7 +184,9 @@ public class Log4jConnector extends AppenderSkeleton implements StandardAppender
     
     @Override public void append(final LoggingEvent record) {
 
-        final Log4jDetailsSnapshot details = Log4jDetailsSnapshot.fromLoggingEvent(record, appenderHelper.getTimeProvider());
+        final Log4jDetailsSnapshot details = Log4jDetailsSnapshot.fromLoggingEvent(record,
+                                                                                     appenderHelper.getTimeProvider(),
+                                                                                     appenderHelper.isGatheringCallerDetails());
         appenderHelper.append(new AppenderHelperEventConvertor() {
             public LogEvent createLogEvent() {
                 Log4jLogEvent event = new Log4jLogEvent(record,
@@ -244,4 +246,52 @@ public class Log4jConnector extends AppenderSkeleton implements StandardAppender
         appenderHelper.setMaxDispatchQueueSize(maximumQueuedMessages);
     }
 
+    public void setDispatchQueueOverflowPolicy(String policy) {
+        appenderHelper.setDispatchQueueOverflowPolicy(policy);
+    }
+
+    public void setDispatchQueueBlockTimeout(long milliseconds) {
+        appenderHelper.setDispatchQueueBlockTimeout(milliseconds);
+    }
+
+    public void setDispatchBatchSize(int dispatchBatchSize) {
+        appenderHelper.setDispatchBatchSize(dispatchBatchSize);
+    }
+
+    public void setDispatchBatchTimeout(long microseconds) {
+        appenderHelper.setDispatchBatchTimeout(microseconds);
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        appenderHelper.setSpoolDirectory(spoolDirectory);
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        appenderHelper.setSpoolSegmentSize(spoolSegmentSize);
+    }
+
+    public void setSpoolMaximumSize(long spoolMaximumSize) {
+        appenderHelper.setSpoolMaximumSize(spoolMaximumSize);
+    }
+
+    public void setSpoolReplayRate(int eventsPerSecond) {
+        appenderHelper.setSpoolReplayRate(eventsPerSecond);
+    }
+
+    public void setHotStandby(boolean hotStandby) {
+        appenderHelper.setHotStandby(hotStandby);
+    }
+
+    public void setConnectTimeout(int milliseconds) {
+        appenderHelper.setConnectTimeout(milliseconds);
+    }
+
+    public void setParallelConnectAttempts(int parallelConnectAttempts) {
+        appenderHelper.setParallelConnectAttempts(parallelConnectAttempts);
+    }
+
+    public void setGatheringCallerDetails(boolean gatheringCallerDetails) {
+        appenderHelper.setGatheringCallerDetails(gatheringCallerDetails);
+    }
+
 }
@@ -1,5 +1,6 @@
 package com.logginghub.connector.log4j;
 
+import java.lang.reflect.Field;
 import java.util.Hashtable;
 
 import org.apache.log4j.MDC;
@@ -13,6 +14,12 @@ import com.logginghub.utils.TimeProvider;
  * Captures some aspects of the log events so we can dispatch them
  * correctly later on.
  * 
+ * Caller details are only captured if asked for. Log4j's own LocationInfo prints the whole stack
+ * trace to a string and then parses it, which is by far the most expensive part of appending an
+ * event - so instead we walk the stack trace elements ourselves and stop at the first frame after
+ * the logger. That only works on the thread that made the logging call though; if something like
+ * the AsyncAppender has already worked the location out on that thread we use that instead.
+ * 
  * @author James
  * 
  */
@@ -29,14 +36,54 @@ public class Log4jDetailsSnapshot {
     private Hashtable<String, Object> mdc;
     private long timestamp;
 
-    @SuppressWarnings("unchecked") public static Log4jDetailsSnapshot fromLoggingEvent(LoggingEvent loggingEvent, TimeProvider timeProvider) {
+    private static final String log4jPackage = "org.apache.log4j.";
+    private static final String connectorPackage = Log4jDetailsSnapshot.class.getPackage().getName() + ".";
+
+    /**
+     * Log4j 1.2.14 has no way of asking whether the location has been worked out without working it
+     * out, so we have to look at the field
+     */
+    private static final Field locationInfoField = findLocationInfoField();
+
+    public static Log4jDetailsSnapshot fromLoggingEvent(LoggingEvent loggingEvent, TimeProvider timeProvider) {
+        return fromLoggingEvent(loggingEvent, timeProvider, true);
+    }
+
+    @SuppressWarnings("unchecked") public static Log4jDetailsSnapshot fromLoggingEvent(LoggingEvent loggingEvent,
+                                                                                        TimeProvider timeProvider,
+                                                                                        boolean gatherCallerDetails) {
         Log4jDetailsSnapshot snapshot = new Log4jDetailsSnapshot();
 
-        LocationInfo locationInformation = loggingEvent.getLocationInformation();
-        snapshot.className = locationInformation.getClassName();
-        snapshot.fileName = locationInformation.getFileName();
-        snapshot.lineNumber = locationInformation.getLineNumber();
-        snapshot.methodName = locationInformation.getMethodName();
+        if (gatherCallerDetails) {
+            if (hasLocationInformation(loggingEvent)) {
+                LocationInfo locationInfo = loggingEvent.getLocationInformation();
+                snapshot.className = locationInfo.getClassName();
+                snapshot.fileName = locationInfo.getFileName();
+                snapshot.lineNumber = locationInfo.getLineNumber();
+                snapshot.methodName = locationInfo.getMethodName();
+            }
+            else {
+                // The stack is only any use if we are still on the thread that made the call
+                StackTraceElement caller = null;
+                if (isOriginatingThread(loggingEvent)) {
+                    caller = findCaller(loggingEvent.fqnOfCategoryClass);
+                }
+
+                if (caller != null) {
+                    snapshot.className = caller.getClassName();
+                    snapshot.fileName = caller.getFileName() != null ? caller.getFileName() : LocationInfo.NA;
+                    snapshot.lineNumber = caller.getLineNumber() >= 0 ? Integer.toString(caller.getLineNumber()) : LocationInfo.NA;
+                    snapshot.methodName = caller.getMethodName();
+                }
+                else {
+                    snapshot.className = LocationInfo.NA;
+                    snapshot.fileName = LocationInfo.NA;
+                    snapshot.lineNumber = LocationInfo.NA;
+                    snapshot.methodName = LocationInfo.NA;
+                }
+            }
+        }
+
         snapshot.threadName = loggingEvent.getThreadName();
         snapshot.loggingEvent = loggingEvent;
         snapshot.mdc = MDC.getContext();
@@ -52,7 +99,76 @@ public class Log4jDetailsSnapshot {
         return snapshot;
     }
 
- 
+    static boolean hasLocationInformation(LoggingEvent loggingEvent) {
+        if (locationInfoField != null) {
+            try {
+                return locationInfoField.get(loggingEvent) != null;
+            }
+            catch (IllegalAccessException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Anything that hands events over to another thread has to fix the thread name first, so if it
+     * doesn't match ours we aren't the thread that made the logging call.
+     */
+    private static boolean isOriginatingThread(LoggingEvent loggingEvent) {
+        return Thread.currentThread().getName().equals(loggingEvent.getThreadName());
+    }
+
+    private static Field findLocationInfoField() {
+        try {
+            Field field = LoggingEvent.class.getDeclaredField("locationInfo");
+            field.setAccessible(true);
+            return field;
+        }
+        catch (NoSuchFieldException e) {
+            return null;
+        }
+        catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Find the frame that called into the logger. This has to be called from the thread that made
+     * the logging call, as it looks at the current stack.
+     * 
+     * @param fqnOfLoggerClass
+     *            the class the logging call went through; the caller is the frame straight after
+     *            the last one from this class
+     * @return the calling frame, or null if we couldn't find one
+     */
+    static StackTraceElement findCaller(String fqnOfLoggerClass) {
+        StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+
+        if (fqnOfLoggerClass != null) {
+            boolean inLogger = false;
+            for (StackTraceElement element : stackTrace) {
+                if (element.getClassName().equals(fqnOfLoggerClass)) {
+                    inLogger = true;
+                }
+                else if (inLogger) {
+                    return element;
+                }
+            }
+        }
+
+        // Something has wrapped the logger and not told log4j about it, so settle for the first
+        // frame that isn't log4j or us
+        for (StackTraceElement element : stackTrace) {
+            String className = element.getClassName();
+            if (!className.startsWith(log4jPackage) && !className.startsWith(connectorPackage)) {
+                return element;
+            }
+        }
+
+        return null;
+    }
+
 
     public long getTimestamp() {
         return timestamp;
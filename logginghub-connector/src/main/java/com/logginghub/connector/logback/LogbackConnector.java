@@ -19,11 +19,10 @@ import com.logginghub.connector.common.SocketConnection.SlowSendingPolicy;
 import com.logginghub.utils.CpuLogger;
 import com.logginghub.utils.GCWatcher;
 import com.logginghub.utils.HeapLogger;
+import com.logginghub.utils.RingBuffer;
 import com.logginghub.utils.StandardAppenderFeatures;
 import com.logginghub.utils.TimeProvider;
 
-import edu.emory.mathcs.backport.java.util.concurrent.BlockingDeque;
-
 public class LogbackConnector extends AppenderBase<ILoggingEvent> implements StandardAppenderFeatures {
 
     private AppenderHelper appenderHelper;
@@ -225,7 +224,7 @@ public class LogbackConnector extends AppenderBase<ILoggingEvent> implements Sta
         appenderHelper.setSocketClient(socketClient);
     }
 
-    public BlockingDeque getEventsToBeDispatched() {
+    public RingBuffer<EventSnapshot> getEventsToBeDispatched() {
         return appenderHelper.getEventsToBeDispatched();
     }
 
@@ -241,6 +240,50 @@ public class LogbackConnector extends AppenderBase<ILoggingEvent> implements Sta
         appenderHelper.setMaxDispatchQueueSize(maximumQueuedMessages);
     }
 
+    public void setDispatchQueueOverflowPolicy(String policy) {
+        appenderHelper.setDispatchQueueOverflowPolicy(policy);
+    }
+
+    public void setDispatchQueueBlockTimeout(long milliseconds) {
+        appenderHelper.setDispatchQueueBlockTimeout(milliseconds);
+    }
+
+    public void setDispatchBatchSize(int dispatchBatchSize) {
+        appenderHelper.setDispatchBatchSize(dispatchBatchSize);
+    }
+
+    public void setDispatchBatchTimeout(long microseconds) {
+        appenderHelper.setDispatchBatchTimeout(microseconds);
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        appenderHelper.setSpoolDirectory(spoolDirectory);
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        appenderHelper.setSpoolSegmentSize(spoolSegmentSize);
+    }
+
+    public void setSpoolMaximumSize(long spoolMaximumSize) {
+        appenderHelper.setSpoolMaximumSize(spoolMaximumSize);
+    }
+
+    public void setSpoolReplayRate(int eventsPerSecond) {
+        appenderHelper.setSpoolReplayRate(eventsPerSecond);
+    }
+
+    public void setHotStandby(boolean hotStandby) {
+        appenderHelper.setHotStandby(hotStandby);
+    }
+
+    public void setConnectTimeout(int milliseconds) {
+        appenderHelper.setConnectTimeout(milliseconds);
+    }
+
+    public void setParallelConnectAttempts(int parallelConnectAttempts) {
+        appenderHelper.setParallelConnectAttempts(parallelConnectAttempts);
+    }
+
     public void setGCLogging(boolean value) {
         appenderHelper.setGCLogging(name);
     }
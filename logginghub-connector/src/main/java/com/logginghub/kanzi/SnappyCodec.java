@@ -159,7 +159,7 @@ public final class SnappyCodec implements ByteFunction {
         if (dst.length - destination.index < getMaxEncodedLength(count)) return false;
 
         // The block starts with the varint-encoded length of the decompressed bytes.
-        int dstIdx = destination.index + putUvarint(destination, (long) count);
+        int dstIdx = putUvarint(destination, (long) count);
 
         // Return early if src is short
         if (count <= 4) {
@@ -3,12 +3,14 @@ package com.logginghub.sof;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
-import com.logginghub.utils.Logger;
+/**
+ * Reads straight out of a ByteBuffer. This is on the hot path for every SOF message we receive, so
+ * it is final (letting the JIT inline the calls from the serialiser) and doesn't do any logging.
+ * The bulk methods avoid going through the interface a byte at a time.
+ */
+public final class ByteBufferReaderAbstraction implements ReaderAbstraction {
 
-public class ByteBufferReaderAbstraction implements ReaderAbstraction {
-
-    private static final Logger logger = Logger.getLoggerFor(ByteBufferReaderAbstraction.class);
-    private ByteBuffer buffer;
+    private final ByteBuffer buffer;
 
     public ByteBufferReaderAbstraction(ByteBuffer buffer) {
         this.buffer = buffer;
@@ -16,21 +18,17 @@ public class ByteBufferReaderAbstraction implements ReaderAbstraction {
 
     public void skip(long i) {
         buffer.position((int) (buffer.position() + i));
-        logger.fine("Skipped {} bytes to position '{}", i, buffer.position());
     }
 
     public short readShort() {
-        logger.fine("Reading short", buffer.position());
         return buffer.getShort();
     }
 
     public long readLong() {
-        logger.fine("Reading long", buffer.position());
         return buffer.getLong();
     }
 
     public int readInt() {
-        logger.fine("Reading int", buffer.position());
         return buffer.getInt();
     }
 
@@ -68,6 +66,59 @@ public class ByteBufferReaderAbstraction implements ReaderAbstraction {
         return value;
     }
 
+    /**
+     * Reads a varint in the format written by {@link SofSerialiser#writeInt(WriterAbstraction, int)}
+     */
+    public int readVarInt() {
+        int b = buffer.get() & 0xFF;
+        int n = b & 0x3F;
+        int cBits = 6;
+        boolean negative = (b & 0x40) != 0;
+        while ((b & 0x80) != 0) {
+            b = buffer.get() & 0xFF;
+            n |= ((b & 0x7F) << cBits);
+            cBits += 7;
+        }
+
+        if (negative) {
+            n = ~n;
+        }
+
+        return n;
+    }
+
+    /**
+     * Reads a varint in the format written by {@link SofSerialiser#writeLong(WriterAbstraction, long)}
+     */
+    public long readVarLong() {
+        int b = buffer.get() & 0xFF;
+        long result = b & 0x3F;
+        int cBits = 6;
+        boolean negative = (b & 0x40) != 0;
+        while ((b & 0x80) != 0) {
+            b = buffer.get() & 0xFF;
+            result |= ((long) (b & 0x7F)) << cBits;
+            cBits += 7;
+        }
+
+        if (negative) {
+            result = ~result;
+        }
+
+        return result;
+    }
+
+    public void skipVarInt() {
+        while ((buffer.get() & 0x80) != 0) {}
+    }
+
+    /**
+     * Copy the next length bytes into the caller's array in one go
+     */
+    public void readBytes(byte[] destination, int offset, int length) {
+        buffer.get(destination, offset, length);
+    }
+
     public boolean hasMore() {
         // TODO : this just doesn't look right - there might be loads of extra stuff on the end of
         // the buffer?!
@@ -79,10 +130,14 @@ public class ByteBufferReaderAbstraction implements ReaderAbstraction {
     }
 
     public void read(byte[] array, int position, int length) throws IOException {
-        buffer.put(array, position, length);
+        buffer.get(array, position, length);
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
     }
-    
+
     @Override public String toString() {
-        return buffer.toString();         
+        return buffer.toString();
     }
-};
\ No newline at end of file
+}
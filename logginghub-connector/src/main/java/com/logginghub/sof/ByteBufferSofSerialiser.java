@@ -4,7 +4,6 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
-import com.logginghub.utils.ReflectionUtils;
 
 /**
  * Alternative to the SofSerialiser which has too many static methods to be performant!
@@ -50,7 +49,7 @@ public class ByteBufferSofSerialiser {
                 WriterAbstraction tempWriter = SofStreamSerialiser.createWriterAbstraction(temporary);
 
                 DefaultSofWriter realWriter = new DefaultSofWriter(tempWriter, configuration);
-                serialisableObject.write(realWriter);
+                realWriter.writeFields(serialisableObject);
 
                 preEncoded = temporary.toByteArray();
                 preEncoded = SofSerialiser.compress(preEncoded);
@@ -87,7 +86,7 @@ public class ByteBufferSofSerialiser {
             }
             else {
                 // Write out the object
-                serialisableObject.write(realWriter);
+                realWriter.writeFields(serialisableObject);
             }
 
             int payloadEnd = writer.getPosition();
@@ -124,7 +123,7 @@ public class ByteBufferSofSerialiser {
                 throw new SofUnknownTypeException(version, length, flags, type, fieldCount);
             }
 
-            SerialisableObject serialisableObject = ReflectionUtils.instantiate(clazz);
+            SerialisableObject serialisableObject = configuration.instantiate(type, clazz);
 
             DefaultSofReader streamReader;
 
@@ -142,7 +141,7 @@ public class ByteBufferSofSerialiser {
             }
 
             long start = streamReader.getPosition();
-            serialisableObject.read(streamReader);
+            streamReader.readFields(serialisableObject);
             long end = streamReader.getPosition();
 
             long decoded = end - start;
@@ -3,7 +3,7 @@ package com.logginghub.sof;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
-public class ByteBufferWriterAbstraction implements WriterAbstraction {
+public class ByteBufferWriterAbstraction implements PatchableWriterAbstraction {
 
     private ByteBuffer buffer;
 
@@ -77,6 +77,10 @@ public class ByteBufferWriterAbstraction implements WriterAbstraction {
         buffer.putInt(index, value);
     }
 
+    public void setByte(int position, byte value) {
+        buffer.put(position, value);
+    }
+
     public void writeBuffer(ByteBuffer tempBuffer) {
         buffer.put(tempBuffer);
     }
@@ -28,6 +28,24 @@ public class DefaultSofReader implements SofReader {
         return reader.hasMore();
     }
 
+    /**
+     * Read all of the fields of the object, through its {@link SofCodec} if it has one.
+     */
+    void readFields(SerialisableObject object) throws SofException {
+        SofCodec<SerialisableObject> codec = configuration.getCodec(object.getClass());
+        if (codec != null && !configuration.isMicroFormat()) {
+            try {
+                codec.read(object, reader, this, configuration);
+            }
+            catch (IOException e) {
+                throw new SofException(e);
+            }
+        }
+        else {
+            object.read(this);
+        }
+    }
+
     public BigDecimal readBigDecimal(int field) throws SofException {
         try {
             if (!configuration.isMicroFormat()) {
@@ -429,6 +447,26 @@ public class DefaultSofReader implements SofReader {
 
     }
 
+    public SerialisableObject readLazyObject(int field) throws SofException {
+
+        try {
+            skipToField(field);
+
+            int type = SofSerialiser.readInt(reader);
+            if (type == DefaultSofWriter.TYPE_NULL_USER_TYPE) {
+                return null;
+            }
+            else {
+                SerialisableObject value = TypeCodex.readLazyObject(type, reader, configuration);
+                return value;
+            }
+        }
+        catch (IOException e) {
+            throw new SofException(e);
+        }
+
+    }
+
     public SerialisableObject[] readObjectArray(int field) throws SofException {
 
         try {
@@ -532,18 +570,36 @@ public class DefaultSofReader implements SofReader {
 
     public String readString(int field) throws SofException {
         try {
+            boolean byteLength;
             if (!configuration.isMicroFormat()) {
                 skipToField(field);
 
                 int type = SofSerialiser.readInt(reader);
-                if (type != DefaultSofWriter.TYPE_UTF8) {
-                    throw new SofException("Field type mismatch - call was for String ('{}'), but encoded type was '{}'",
+                if (type == DefaultSofWriter.TYPE_UTF8_BYTES) {
+                    byteLength = true;
+                }
+                else if (type == DefaultSofWriter.TYPE_UTF8) {
+                    byteLength = false;
+                }
+                else {
+                    throw new SofException("Field type mismatch - call was for String ('{}' or '{}'), but encoded type was '{}'",
+                                           DefaultSofWriter.TYPE_UTF8_BYTES,
                                            DefaultSofWriter.TYPE_UTF8,
                                            type);
                 }
             }
+            else {
+                // No type information in the micro format, so we have to trust the configuration
+                byteLength = configuration.isByteLengthStrings();
+            }
 
-            String value = TypeCodex.readString(reader);
+            String value;
+            if (byteLength) {
+                value = TypeCodex.readUTF8String(reader);
+            }
+            else {
+                value = TypeCodex.readString(reader);
+            }
             return value;
 
         }
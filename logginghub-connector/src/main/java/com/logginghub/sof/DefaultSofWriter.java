@@ -14,6 +14,10 @@ public class DefaultSofWriter implements SofWriter {
     private int fieldCount;
     private int lastIndex = Integer.MIN_VALUE;
 
+    private FieldOffsetTable fieldOffsets;
+    private long payloadStart;
+    private int nestingDepth = 0;
+
     private WriterAbstraction writer;
     public static final byte NOT_NULL = 1;
     public static final byte NULL = 0;
@@ -41,6 +45,7 @@ public class DefaultSofWriter implements SofWriter {
     public static final int TYPE_BIGDECIMAL_OBJECT = -22;
     public static final int TYPE_UNIFORM_OBJECT_ARRAY = -23;
     public static final int TYPE_NON_UNIFORM_OBJECT_ARRAY = -24;
+    public static final int TYPE_UTF8_BYTES = -25;
 
     private static final Logger logger = Logger.getLoggerFor(DefaultSofWriter.class); 
     
@@ -83,6 +88,42 @@ public class DefaultSofWriter implements SofWriter {
         return fieldCount;
     }
 
+    /**
+     * Start recording where each top level field is written, relative to the current position of
+     * the writer. Fields of nested objects aren't recorded.
+     */
+    void recordFieldOffsets() {
+        fieldOffsets = new FieldOffsetTable();
+        payloadStart = writer.getPosition();
+    }
+
+    FieldOffsetTable getFieldOffsets() {
+        return fieldOffsets;
+    }
+
+    /**
+     * Write all of the fields of the object, through its {@link SofCodec} if it has one. The codec
+     * can't record field offsets, so a top level object that is recording them always writes its
+     * own fields.
+     */
+    void writeFields(SerialisableObject object) throws SofException {
+        SofCodec<SerialisableObject> codec = configuration.getCodec(object.getClass());
+        if (codec != null && !configuration.isMicroFormat() && (fieldOffsets == null || nestingDepth > 0)) {
+            try {
+                // Fields written back through us are counted as they go, so this has to be added
+                // on after the write rather than in the same expression
+                int written = codec.write(object, writer, this, configuration);
+                fieldCount += written;
+            }
+            catch (IOException e) {
+                throw new SofException(e);
+            }
+        }
+        else {
+            object.write(this);
+        }
+    }
+
     public void write(int field, BigDecimal b) throws SofException {
         if (field <= lastIndex) {
             throw new SofException("Out of order field index - you tried to write index '{}' but the last index was '{}'",
@@ -458,7 +499,23 @@ public class DefaultSofWriter implements SofWriter {
                 throw new SofException(e);
             }
         }
+        else if (serialisableObject instanceof LazySofObject && !((LazySofObject) serialisableObject).isDecoded()) {
+            // Nobody has looked inside this one, so we can just copy the original bytes back out
+            LazySofObject lazy = (LazySofObject) serialisableObject;
+            try {
+                writeFieldHeaderAlways(field, lazy.getType());
+                SofSerialiser.writeInt(writer, lazy.getLength());
+                writer.write(lazy.getEncoded());
+            }
+            catch (IOException e) {
+                throw new SofException(e);
+            }
+        }
         else {
+            if (serialisableObject instanceof LazySofObject) {
+                // Its been decoded, and might have been changed since, so write the real thing
+                serialisableObject = ((LazySofObject) serialisableObject).getDecoded();
+            }
 
             // jshaw - hopefully all of the base types (Integer, Long etc) have been covered, so we
             // should just be left with user types.
@@ -470,23 +527,17 @@ public class DefaultSofWriter implements SofWriter {
             try {
                 writeFieldHeaderAlways(field, userType.intValue());
 
-                // Work out the encoded length
-                CountingWriterAbstraction countingWriter = new CountingWriterAbstraction();
-                DefaultSofWriter countingSofWriter = new DefaultSofWriter(countingWriter, configuration);
-
-                // First pass
-                serialisableObject.write(countingSofWriter);
-
                 // TODO : at this stage shouldn't we be going back to the top most entry point and
                 // writing out a full object header again? That way we could compress/encrypt object
                 // internals?
 
-                // Write the object length
-                int length = countingWriter.getLength();
-                SofSerialiser.writeInt(writer, length);
-
-                // Second pass
-                serialisableObject.write(this);
+                nestingDepth++;
+                try {
+                    SofSerialiser.writeLengthPrefixedObject(writer, serialisableObject, this, configuration);
+                }
+                finally {
+                    nestingDepth--;
+                }
 
             }
             catch (IOException e) {
@@ -600,8 +651,14 @@ public class DefaultSofWriter implements SofWriter {
         }
 
         try {
-            writeFieldHeader(field, TYPE_UTF8);
-            TypeCodex.writeString(writer, string);
+            if (configuration.isByteLengthStrings()) {
+                writeFieldHeader(field, TYPE_UTF8_BYTES);
+                TypeCodex.writeUTF8String(writer, string);
+            }
+            else {
+                writeFieldHeader(field, TYPE_UTF8);
+                TypeCodex.writeString(writer, string);
+            }
         }
         catch (IOException e) {
             throw new SofException(e);
@@ -632,6 +689,9 @@ public class DefaultSofWriter implements SofWriter {
     }
 
     private void writeFieldHeaderAlways(int field, int type) throws IOException, SofException {
+        if (fieldOffsets != null && nestingDepth == 0) {
+            fieldOffsets.add(field, (int) (writer.getPosition() - payloadStart));
+        }
         SofSerialiser.writeInt(writer, field);
         SofSerialiser.writeInt(writer, type);
         fieldCount++;
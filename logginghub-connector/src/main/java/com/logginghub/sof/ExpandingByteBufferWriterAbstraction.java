@@ -3,80 +3,129 @@ package com.logginghub.sof;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
-import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.WritableByteBuffer;
 
-public class ExpandingByteBufferWriterAbstraction implements WriterAbstraction {
+/**
+ * Writes into an ExpandingByteBuffer (or any other WritableByteBuffer). Like the {@link ByteBufferReaderAbstraction} this is final
+ * and goes straight to the underlying ByteBuffer once it has made sure there is room, skipping the
+ * per call logging in the ExpandingByteBuffer put methods.
+ */
+public final class ExpandingByteBufferWriterAbstraction implements PatchableWriterAbstraction {
 
-    private ExpandingByteBuffer buffer;
+    /**
+     * The most bytes a varint encoded int or long can take
+     */
+    private static final int maximumVarIntLength = 5;
+    private static final int maximumVarLongLength = 10;
 
-    public ExpandingByteBufferWriterAbstraction(ExpandingByteBuffer buffer) {
+    private final WritableByteBuffer buffer;
+
+    public ExpandingByteBufferWriterAbstraction(WritableByteBuffer buffer) {
         this.buffer = buffer;
     }
 
     public void writeShort(short value) {
-        buffer.putShort(value);
+        buffer.getBuffer(2).putShort(value);
     }
 
     public void writeLong(long l) {
-        buffer.putLong(l);
+        buffer.getBuffer(8).putLong(l);
     }
 
     public void writeFloat(float f) {
-        buffer.putFloat(f);
+        buffer.getBuffer(4).putFloat(f);
     }
 
     public void writeDouble(double d) {
-        buffer.putDouble(d);
+        buffer.getBuffer(8).putDouble(d);
     }
 
     public void writeChar(char c) {
-        buffer.putChar(c);
+        buffer.getBuffer(2).putChar(c);
     }
 
     public void writeByte(byte type) {
-        buffer.put(type);
+        buffer.getBuffer(1).put(type);
     }
 
     public void writeBoolean(boolean b) {
-        buffer.putBoolean(b);
+        buffer.getBuffer(1).put((byte) (b ? 1 : 0));
     }
 
     public void write(byte[] bytes) {
-        buffer.put(bytes);
+        buffer.getBuffer(bytes.length).put(bytes);
     }
 
     public void writeInt(int value) {
-        buffer.putInt(value);
+        buffer.getBuffer(4).putInt(value);
     }
 
     public void writeUnsignedByte(int value) throws IOException {
-        buffer.put((byte) (0x000000ff & value));
+        buffer.getBuffer(1).put((byte) (0x000000ff & value));
     }
 
     public void writeUnsignedShort(int value) throws IOException {
-//        int i = value >>> 8;
-//        int j = value >>> 8;
-//        
-//        
-//        int x = i & 0xFF;
-//        int y = j & 0xFF;
-//        
-//        buffer.put((byte) x);
-//        buffer.put((byte) y);
-        
-        buffer.putShort((short) value);
+        buffer.getBuffer(2).putShort((short) value);
+    }
+
+    /**
+     * Writes a varint in the format read by {@link SofSerialiser#readInt(ReaderAbstraction)}
+     */
+    public void writeVarInt(int n) {
+        ByteBuffer target = buffer.getBuffer(maximumVarIntLength);
+
+        int b = 0;
+        if (n < 0) {
+            b = 0x40;
+            n = ~n;
+        }
+        b |= (byte) (n & 0x3F);
+        n >>>= 6;
+        while (n != 0) {
+            b |= 0x80;
+            target.put((byte) b);
+            b = (n & 0x7F);
+            n >>>= 7;
+        }
+        target.put((byte) b);
+    }
+
+    /**
+     * Writes a varint in the format read by {@link SofSerialiser#readLong(ReaderAbstraction)}
+     */
+    public void writeVarLong(long value) {
+        ByteBuffer target = buffer.getBuffer(maximumVarLongLength);
+
+        int b = 0;
+        if (value < 0) {
+            b = 0x40;
+            value = ~value;
+        }
+        b |= (byte) (value & 0x3F);
+        value >>>= 6;
+        while (value != 0) {
+            b |= 0x80;
+            target.put((byte) b);
+            b = (int) (value & 0x7F);
+            value >>>= 7;
+        }
+        target.put((byte) b);
     }
 
     public int getPosition() {
-        return buffer.position();         
+        return buffer.position();
+    }
+
+    public void setByte(int position, byte value) {
+        buffer.setByte(position, value);
     }
 
     public void writeBuffer(ByteBuffer tempBuffer) {
-        buffer.put(tempBuffer);
+        buffer.getBuffer(tempBuffer.remaining()).put(tempBuffer);
     }
 
     public void write(byte[] value, int position, int length) throws IOException {
-        buffer.put(value, position, length);
+        buffer.getBuffer(length).put(value, position, length);
     }
 
 }
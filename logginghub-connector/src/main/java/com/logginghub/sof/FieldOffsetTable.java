@@ -0,0 +1,152 @@
+package com.logginghub.sof;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records where each top level field starts as an object is written, so the offsets can be appended
+ * to the end of the payload and {@link SofSerialiser#extract(byte[], int[], SofConfiguration)} can
+ * jump straight to a field rather than skipping over everything in front of it.
+ *
+ * The table sits inside the payload length in the header, so older readers just skip over it along
+ * with any other trailing fields they don't know about. It is laid out as :
+ *
+ * <pre>
+ * [field index][offset] * count   sorted by field index, each value width bytes
+ * count                           4 byte int
+ * width                           1 byte, 2 or 4
+ * </pre>
+ *
+ * The offsets are from the start of the payload to the field header. Two byte entries are used when
+ * every field index and offset fits, which is nearly always the case for log messages.
+ *
+ * @author James
+ */
+final class FieldOffsetTable {
+
+    public final static int trailerLength = 5;
+
+    private int[] fieldIndexes = new int[16];
+    private int[] offsets = new int[16];
+    private int count = 0;
+    private boolean sorted = true;
+
+    void add(int fieldIndex, int offset) {
+        if (count == fieldIndexes.length) {
+            int[] newIndexes = new int[count * 2];
+            int[] newOffsets = new int[count * 2];
+            System.arraycopy(fieldIndexes, 0, newIndexes, 0, count);
+            System.arraycopy(offsets, 0, newOffsets, 0, count);
+            fieldIndexes = newIndexes;
+            offsets = newOffsets;
+        }
+
+        if (count > 0 && fieldIndex <= fieldIndexes[count - 1]) {
+            sorted = false;
+        }
+
+        fieldIndexes[count] = fieldIndex;
+        offsets[count] = offset;
+        count++;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * @param payloadLength
+     *            the length of the fields in front of the table, which decides the entry width
+     */
+    int getEncodedLength(int payloadLength) {
+        return count * 2 * getWidth(payloadLength) + trailerLength;
+    }
+
+    void write(WriterAbstraction writer, int payloadLength) throws IOException {
+        if (!sorted) {
+            sort();
+        }
+
+        int width = getWidth(payloadLength);
+        for (int i = 0; i < count; i++) {
+            if (width == 2) {
+                writer.writeShort((short) fieldIndexes[i]);
+                writer.writeShort((short) offsets[i]);
+            }
+            else {
+                writer.writeInt(fieldIndexes[i]);
+                writer.writeInt(offsets[i]);
+            }
+        }
+
+        writer.writeInt(count);
+        writer.writeByte((byte) width);
+    }
+
+    private int getWidth(int payloadLength) {
+        int largest = payloadLength;
+        for (int i = 0; i < count; i++) {
+            if (fieldIndexes[i] < 0) {
+                return 4;
+            }
+            largest = Math.max(largest, fieldIndexes[i]);
+        }
+
+        return largest <= 0xFFFF ? 2 : 4;
+    }
+
+    private void sort() {
+        // Objects that write their fields out of order are rare and small, an insertion sort is fine
+        for (int i = 1; i < count; i++) {
+            int fieldIndex = fieldIndexes[i];
+            int offset = offsets[i];
+            int j = i - 1;
+            while (j >= 0 && fieldIndexes[j] > fieldIndex) {
+                fieldIndexes[j + 1] = fieldIndexes[j];
+                offsets[j + 1] = offsets[j];
+                j--;
+            }
+            fieldIndexes[j + 1] = fieldIndex;
+            offsets[j + 1] = offset;
+        }
+        sorted = true;
+    }
+
+    /**
+     * Look a field up in a table that was appended to the payload ending at payloadEnd.
+     *
+     * @return the offset of the field header from the start of the payload, or -1 if the object
+     *         doesn't have that field
+     */
+    static int find(ByteBuffer buffer, int payloadEnd, int fieldIndex) throws SofException {
+        int width = buffer.get(payloadEnd - 1);
+        int count = buffer.getInt(payloadEnd - trailerLength);
+        if ((width != 2 && width != 4) || count < 0) {
+            throw new SofException("Field offset table trailer looks corrupt : width {} count {}", width, count);
+        }
+
+        int entryLength = width * 2;
+        int tableStart = payloadEnd - trailerLength - (count * entryLength);
+
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int position = tableStart + middle * entryLength;
+            int candidate = width == 2 ? buffer.getShort(position) & 0xFFFF : buffer.getInt(position);
+
+            if (candidate < fieldIndex) {
+                low = middle + 1;
+            }
+            else if (candidate > fieldIndex) {
+                high = middle - 1;
+            }
+            else {
+                return width == 2 ? buffer.getShort(position + width) & 0xFFFF : buffer.getInt(position + width);
+            }
+        }
+
+        return -1;
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.logginghub.sof;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Stand-in for a nested object that hasn't been decoded yet. When the configuration has
+ * {@link SofConfiguration#isLazyDecodeOfNestedTypes()} set, {@link SofReader#readLazyObject(int)}
+ * copies the encoded bytes of the nested object into one of these rather than building the real
+ * object. The real object is only decoded if someone calls {@link #getObject()}.
+ *
+ * If it is written out again before it has been decoded, the writer copies the original bytes
+ * straight back out, so anything that just routes messages on (the hub fanning out channel
+ * messages for example) never pays for the payload at all.
+ *
+ * We have to take a copy of the bytes, as the buffer we were decoding from is reused as soon as
+ * the outer message has been read.
+ *
+ * @author James
+ */
+public class LazySofObject implements SerialisableObject {
+
+    private final int type;
+    private final byte[] encoded;
+    private final SofConfiguration configuration;
+
+    private volatile SerialisableObject decoded;
+
+    public LazySofObject(int type, byte[] encoded, SofConfiguration configuration) {
+        this.type = type;
+        this.encoded = encoded;
+        this.configuration = configuration;
+    }
+
+    /**
+     * @return the decoded object, decoding it from the saved bytes the first time this is called
+     */
+    public SerialisableObject getObject() throws SofException {
+        SerialisableObject object = decoded;
+        if (object == null) {
+            synchronized (this) {
+                object = decoded;
+                if (object == null) {
+                    object = decode();
+                    decoded = object;
+                }
+            }
+        }
+        return object;
+    }
+
+    private SerialisableObject decode() throws SofException {
+        Class<? extends SerialisableObject> clazz = configuration.resolve(type);
+        if (clazz == null) {
+            throw new SofException("Decode failed, lazy sub-object type '{}' has not been registered", type);
+        }
+
+        SerialisableObject object = configuration.instantiate(type, clazz);
+        ReaderAbstraction reader = new ByteBufferReaderAbstraction(ByteBuffer.wrap(encoded));
+        new DefaultSofReader(reader, configuration).readFields(object);
+        return object;
+    }
+
+    /**
+     * Helper for the getters of classes that read their nested objects lazily.
+     * 
+     * @return the object itself, or the decoded object if it was a lazy one
+     */
+    public static SerialisableObject resolve(SerialisableObject object) {
+        if (object instanceof LazySofObject) {
+            try {
+                return ((LazySofObject) object).getObject();
+            }
+            catch (SofException e) {
+                throw new SofRuntimeException(e, "Failed to decode lazy sub-object");
+            }
+        }
+        else {
+            return object;
+        }
+    }
+
+    public boolean isDecoded() {
+        return decoded != null;
+    }
+
+    SerialisableObject getDecoded() {
+        return decoded;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public int getLength() {
+        return encoded.length;
+    }
+
+    byte[] getEncoded() {
+        return encoded;
+    }
+
+    public void read(SofReader reader) throws SofException {
+        throw new SofException("Lazy objects can only be created from the bytes of an existing object");
+    }
+
+    public void write(SofWriter writer) throws SofException {
+        // The sof writer copies the bytes back out itself; we only end up here if we are the top
+        // level object, in which case we need the real thing to write the fields from
+        getObject().write(writer);
+    }
+
+    @Override public String toString() {
+        SerialisableObject object = decoded;
+        if (object != null) {
+            return object.toString();
+        }
+        else {
+            return "[LazySofObject type=" + type + ", length=" + encoded.length + "]";
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.logginghub.sof;
+
+/**
+ * A writer that can go back and overwrite bytes it has already written. This lets the single-pass
+ * encoding reserve a fixed width slot for a length and fill it in once the payload is done, rather
+ * than serialising everything twice to find out how long it is.
+ * 
+ * @author James
+ * 
+ */
+public interface PatchableWriterAbstraction extends WriterAbstraction {
+
+    void setByte(int position, byte value);
+
+}
@@ -0,0 +1,34 @@
+package com.logginghub.sof;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes the fields of one registered type straight to and from the wire, rather than
+ * going through a {@link DefaultSofWriter} or {@link DefaultSofReader} one field at a time. That
+ * saves the field header encoding and the skip-to-field and type checks on every field, which adds
+ * up for the types we see millions of.
+ *
+ * The bytes have to be exactly what the type's own read and write methods produce, as the other
+ * end may not have the codec; {@link TypeCodex#fieldHeader(int, int)} gives the precomputed
+ * headers to write and check. Codecs are only used for the standard format - micro format and
+ * objects that are recording a field offset table go through the type's own methods.
+ *
+ * @author James
+ */
+public interface SofCodec<T extends SerialisableObject> {
+
+    /**
+     * @param fields
+     *            a writer for anything the codec would rather not encode itself, such as nested
+     *            objects; fields written through it are counted by it
+     * @return the number of fields the codec wrote directly, for the object header
+     */
+    int write(T object, WriterAbstraction writer, SofWriter fields, SofConfiguration configuration) throws IOException, SofException;
+
+    /**
+     * @param fields
+     *            a reader for anything the codec would rather not decode itself, positioned in
+     *            step with the reader abstraction
+     */
+    void read(T object, ReaderAbstraction reader, SofReader fields, SofConfiguration configuration) throws IOException, SofException;
+}
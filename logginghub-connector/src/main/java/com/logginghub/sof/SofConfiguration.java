@@ -4,18 +4,25 @@ import java.util.HashMap;
 import java.util.Map;
 
 import com.logginghub.utils.Logger;
+import com.logginghub.utils.ReflectionUtils;
 
 public class SofConfiguration {
 
     private static final Logger logger = Logger.getLoggerFor(SofConfiguration.class);
     private Map<Class<? extends SerialisableObject>, Integer> typeIDByClass = new HashMap<Class<? extends SerialisableObject>, Integer>();
     private Map<Integer, Class<? extends SerialisableObject>> classByTypeID = new HashMap<Integer, Class<? extends SerialisableObject>>();
+    private Map<Integer, SofObjectFactory<? extends SerialisableObject>> factoryByTypeID = new HashMap<Integer, SofObjectFactory<? extends SerialisableObject>>();
+    private Map<Class<? extends SerialisableObject>, SofCodec<? extends SerialisableObject>> codecByClass = new HashMap<Class<? extends SerialisableObject>, SofCodec<? extends SerialisableObject>>();
 
     private Object lock = new Object();
     private boolean compressed;
     private boolean allowUnknownNestedTypes = false;
     private boolean lazyDecodeOfNestedTypes = false;
     private boolean microFormat = false;
+    private boolean singlePassEncoding = false;
+    private boolean byteLengthStrings = false;
+    private boolean fieldOffsetTable = false;
+    private boolean useCodecs = true;
 
     public void registerType(Class<? extends SerialisableObject> clazz, int id) {
 
@@ -41,15 +48,51 @@ public class SofConfiguration {
 
     }
 
+    /**
+     * Register a type along with a factory for creating new instances of it, rather than having
+     * them created reflectively.
+     */
+    public <T extends SerialisableObject> void registerType(Class<T> clazz, int id, SofObjectFactory<T> factory) {
+        synchronized (lock) {
+            registerType(clazz, id);
+            factoryByTypeID.put(id, factory);
+        }
+    }
+
+    /**
+     * Register a codec to read and write the fields of a type directly, see {@link SofCodec}. The
+     * type still has to be registered with its ID separately.
+     */
+    public <T extends SerialisableObject> void registerCodec(Class<T> clazz, SofCodec<T> codec) {
+        synchronized (lock) {
+            codecByClass.put(clazz, codec);
+        }
+    }
+
     public void unregisterType(int typeID) {
         synchronized (lock) {
+            factoryByTypeID.remove(typeID);
             Class<? extends SerialisableObject> clazz = classByTypeID.remove(typeID);
             if (clazz != null) {
                 typeIDByClass.remove(clazz);
+                codecByClass.remove(clazz);
             }
         }
     }
 
+    /**
+     * @return the codec registered for this class, or null if it hasn't got one or codecs have been
+     *         turned off
+     */
+    @SuppressWarnings("unchecked") public SofCodec<SerialisableObject> getCodec(Class<? extends SerialisableObject> clazz) {
+        if (useCodecs) {
+            return (SofCodec<SerialisableObject>) codecByClass.get(clazz);
+        }
+        else {
+            return null;
+        }
+    }
+
     public Class<? extends SerialisableObject> resolve(int typeID) {
         return classByTypeID.get(typeID);
     }
@@ -58,6 +101,26 @@ public class SofConfiguration {
         return typeIDByClass.get(clazz);
     }
 
+    /**
+     * Create a blank instance of the type registered with this ID, using its factory if it has one.
+     * 
+     * @param clazz
+     *            the class registered for this type, which the caller will already have resolved
+     */
+    public SerialisableObject instantiate(int typeID, Class<? extends SerialisableObject> clazz) {
+        SofObjectFactory<? extends SerialisableObject> factory = factoryByTypeID.get(typeID);
+        if (factory != null) {
+            return factory.create();
+        }
+        else {
+            return ReflectionUtils.instantiate(clazz);
+        }
+    }
+
+    public boolean hasFactory(int typeID) {
+        return factoryByTypeID.containsKey(typeID);
+    }
+
     public void setCompressed(boolean compressed) {
         this.compressed = compressed;
     }
@@ -74,6 +137,12 @@ public class SofConfiguration {
         return allowUnknownNestedTypes;
     }
 
+    /**
+     * When set, nested objects read with {@link SofReader#readLazyObject(int)} come back as
+     * {@link LazySofObject}s, which hold on to a copy of the encoded bytes and only decode them when
+     * asked. Plain {@link SofReader#readObject(int)} calls always decode straight away, as their
+     * callers expect the real type.
+     */
     public void setLazyDecodeOfNestedTypes(boolean lazyDecodeOfNestedTypes) {
         this.lazyDecodeOfNestedTypes = lazyDecodeOfNestedTypes;
     }
@@ -110,4 +179,62 @@ public class SofConfiguration {
         return microFormat;
     }
 
+    /**
+     * When set, objects written to a {@link PatchableWriterAbstraction} are serialised once, with
+     * fixed width slots reserved for the field count and lengths which are filled in afterwards,
+     * rather than being serialised a first time just to count the bytes. The padded slots cost a few
+     * extra bytes per object but are still valid varints, so the output can be read by any version
+     * of the reader.
+     */
+    public void setSinglePassEncoding(boolean singlePassEncoding) {
+        this.singlePassEncoding = singlePassEncoding;
+    }
+
+    public boolean isSinglePassEncoding() {
+        return singlePassEncoding;
+    }
+
+    /**
+     * When set, strings are written as {@link DefaultSofWriter#TYPE_UTF8_BYTES} - prefixed with
+     * their UTF-8 encoded length in bytes rather than their length in chars - so they can be
+     * decoded in one go and skipped without being walked. Readers understand both types whatever
+     * this is set to, but readers from before this type existed will fail on it, so only turn it on
+     * when everything at the other end has been upgraded. Micro format readers and writers must
+     * agree on this setting, as the type isn't on the wire.
+     */
+    public void setByteLengthStrings(boolean byteLengthStrings) {
+        this.byteLengthStrings = byteLengthStrings;
+    }
+
+    public boolean isByteLengthStrings() {
+        return byteLengthStrings;
+    }
+
+    /**
+     * When set, top level objects written by {@link SofSerialiser} have a table of their field
+     * offsets appended to the payload, so {@link SofSerialiser#extract(byte[], int[], SofConfiguration)}
+     * can go straight to the fields it wants. The table sits inside the payload length, so readers
+     * that don't know about it skip it like any other trailing data. It isn't written for compressed
+     * or micro format objects.
+     */
+    public void setFieldOffsetTable(boolean fieldOffsetTable) {
+        this.fieldOffsetTable = fieldOffsetTable;
+    }
+
+    public boolean isFieldOffsetTable() {
+        return fieldOffsetTable;
+    }
+
+    /**
+     * When cleared, types with a registered {@link SofCodec} go through their own read and write
+     * methods like everything else. The output is the same either way.
+     */
+    public void setUseCodecs(boolean useCodecs) {
+        this.useCodecs = useCodecs;
+    }
+
+    public boolean isUseCodecs() {
+        return useCodecs;
+    }
+
 }
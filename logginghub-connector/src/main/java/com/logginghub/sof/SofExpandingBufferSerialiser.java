@@ -4,12 +4,13 @@ import java.io.EOFException;
 import java.nio.ByteBuffer;
 
 import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.WritableByteBuffer;
 
 public class SofExpandingBufferSerialiser {
 
     public static byte[] write(SerialisableObject serialisableObject, SofConfiguration resolver) throws SofException {
         ExpandingByteBuffer buffer = new ExpandingByteBuffer();
-        WriterAbstraction writer = new ExpandingByteBufferWriterAbstraction(buffer);
+        ExpandingByteBufferWriterAbstraction writer = new ExpandingByteBufferWriterAbstraction(buffer);
         SofSerialiser.write(writer, serialisableObject, resolver);
         
         buffer.flip();
@@ -18,14 +19,14 @@ public class SofExpandingBufferSerialiser {
         return result;
     }
     
-    public static void write(final ExpandingByteBuffer buffer, SerialisableObject serialisableObject, SofConfiguration resolver) throws SofException {
-        WriterAbstraction writer = new ExpandingByteBufferWriterAbstraction(buffer);
+    public static void write(final WritableByteBuffer buffer, SerialisableObject serialisableObject, SofConfiguration resolver) throws SofException {
+        ExpandingByteBufferWriterAbstraction writer = new ExpandingByteBufferWriterAbstraction(buffer);
         SofSerialiser.write(writer, serialisableObject, resolver);
     }
 
     @SuppressWarnings("unchecked") public static <T extends SerialisableObject> T read(final ByteBuffer buffer, SofConfiguration resolver)
                     throws SofException, EOFException {
-        ReaderAbstraction reader = new ByteBufferReaderAbstraction(buffer);
+        ByteBufferReaderAbstraction reader = new ByteBufferReaderAbstraction(buffer);
         return SofSerialiser.read(reader, resolver);
     }
 
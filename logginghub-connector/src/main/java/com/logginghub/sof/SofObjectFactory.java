@@ -0,0 +1,12 @@
+package com.logginghub.sof;
+
+/**
+ * Creates new instances of a registered type for the decoder, so the hot message types don't have
+ * to go through reflection to get a blank object to read into. Types registered without one fall
+ * back to {@link com.logginghub.utils.ReflectionUtils#instantiate(Class)}.
+ * 
+ * @author James
+ */
+public interface SofObjectFactory<T extends SerialisableObject> {
+    T create();
+}
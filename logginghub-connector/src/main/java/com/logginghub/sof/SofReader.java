@@ -22,6 +22,13 @@ public interface SofReader {
 
     Object readObject(int field) throws SofException;
 
+    /**
+     * Read a nested object that the caller is happy to receive as a {@link LazySofObject}; if the
+     * configuration has lazy decoding of nested types turned on the object won't be decoded until
+     * it is asked for. Otherwise this is the same as {@link #readObject(int)}.
+     */
+    SerialisableObject readLazyObject(int field) throws SofException;
+
     boolean readBoolean(int field) throws SofException;
 
     char readChar(int field) throws SofException;
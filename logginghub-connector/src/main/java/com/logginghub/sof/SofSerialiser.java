@@ -5,16 +5,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
 import com.logginghub.utils.Destination;
+import com.logginghub.utils.ExpandingByteBuffer;
 import com.logginghub.utils.FileUtils;
 import com.logginghub.utils.FormattedRuntimeException;
 import com.logginghub.utils.Logger;
-import com.logginghub.utils.ReflectionUtils;
 
 public class SofSerialiser {
 
@@ -22,6 +23,17 @@ public class SofSerialiser {
     public static final int Version_Two_Bytes = 2;
     public static final int Version_Four_Bytes = 4;
 
+    /**
+     * The width of the padded varints used for the back-patched slots in single-pass encoding; five
+     * bytes is enough for any non-negative int
+     */
+    public static final int paddedIntLength = 5;
+
+    /**
+     * Header flag set when the payload ends with a {@link FieldOffsetTable}
+     */
+    public static final int Flag_Field_Offset_Table = 0x0002;
+
     private static final Logger logger = Logger.getLoggerFor(SofSerialiser.class);
 
     public static void write(WriterAbstraction writer, SerialisableObject serialisableObject, SofConfiguration configuration) throws SofException {
@@ -31,9 +43,28 @@ public class SofSerialiser {
             throw new SofException("Object class '{}' has not been registered", serialisableObject.getClass().getName());
         }
 
+        if (configuration.isSinglePassEncoding()) {
+            if (configuration.isCompressed()) {
+                writeCompressedSinglePass(writer, typeID, serialisableObject, configuration);
+                return;
+            }
+            else if (writer instanceof PatchableWriterAbstraction) {
+                writeSinglePass((PatchableWriterAbstraction) writer, typeID, serialisableObject, configuration);
+                return;
+            }
+
+            // jshaw - stream writers can't go back and patch the header, so they have to stick with
+            // the two-pass approach
+        }
+
+        boolean fieldOffsetTable = isWritingFieldOffsetTable(configuration);
+
         CountingWriterAbstraction counter = new CountingWriterAbstraction();
         DefaultSofWriter sofWriter = new DefaultSofWriter(counter, configuration);
-        serialisableObject.write(sofWriter);
+        if (fieldOffsetTable) {
+            sofWriter.recordFieldOffsets();
+        }
+        sofWriter.writeFields(serialisableObject);
 
         int flags = 0;
         if (configuration.isCompressed()) {
@@ -41,9 +72,15 @@ public class SofSerialiser {
         }
 
         // TODO : deal with uber massive objects?
-        int encodedLength = (int) counter.getLength();
+        int payloadLength = (int) counter.getLength();
+        int encodedLength = payloadLength;
         int fieldCount = sofWriter.getFieldCount();
 
+        if (fieldOffsetTable) {
+            flags |= Flag_Field_Offset_Table;
+            encodedLength += sofWriter.getFieldOffsets().getEncodedLength(payloadLength);
+        }
+
         // jshaw - we know at this point that encoded length contains:
         // * field types
         // * field indexes
@@ -65,7 +102,7 @@ public class SofSerialiser {
                 WriterAbstraction tempWriter = SofStreamSerialiser.createWriterAbstraction(temporary);
 
                 DefaultSofWriter realWriter = new DefaultSofWriter(tempWriter, configuration);
-                serialisableObject.write(realWriter);
+                realWriter.writeFields(serialisableObject);
 
                 encoded = temporary.toByteArray();
                 encoded = compress(encoded);
@@ -93,9 +130,15 @@ public class SofSerialiser {
             else {
                 // Write out the object
                 DefaultSofWriter realWriter = new DefaultSofWriter(writer, configuration);
+                if (fieldOffsetTable) {
+                    realWriter.recordFieldOffsets();
+                }
 
                 long start = writer.getPosition();
-                serialisableObject.write(realWriter);
+                realWriter.writeFields(serialisableObject);
+                if (fieldOffsetTable) {
+                    realWriter.getFieldOffsets().write(writer, payloadLength);
+                }
                 long end = writer.getPosition();
                 long size = end - start;
 
@@ -111,6 +154,142 @@ public class SofSerialiser {
         }
     }
 
+    private static void writeSinglePass(PatchableWriterAbstraction writer, int typeID, SerialisableObject serialisableObject, SofConfiguration configuration)
+                    throws SofException {
+        try {
+            boolean fieldOffsetTable = isWritingFieldOffsetTable(configuration);
+
+            writer.writeByte((byte) 1);
+            writer.writeByte((byte) (fieldOffsetTable ? Flag_Field_Offset_Table : 0));
+            SofSerialiser.writeInt(writer, typeID);
+
+            // Reserve the field count and length slots, we'll come back and fill them in
+            int fieldCountPosition = writer.getPosition();
+            writePaddedInt(writer, 0);
+            int lengthPosition = writer.getPosition();
+            writePaddedInt(writer, 0);
+
+            DefaultSofWriter realWriter = new DefaultSofWriter(writer, configuration);
+            if (fieldOffsetTable) {
+                realWriter.recordFieldOffsets();
+            }
+
+            int start = writer.getPosition();
+            realWriter.writeFields(serialisableObject);
+            if (fieldOffsetTable) {
+                realWriter.getFieldOffsets().write(writer, writer.getPosition() - start);
+            }
+            int end = writer.getPosition();
+
+            setPaddedInt(writer, fieldCountPosition, realWriter.getFieldCount());
+            setPaddedInt(writer, lengthPosition, end - start);
+        }
+        catch (IOException e) {
+            throw new SofException(e);
+        }
+    }
+
+    private static void writeCompressedSinglePass(WriterAbstraction writer, int typeID, SerialisableObject serialisableObject, SofConfiguration configuration)
+                    throws SofException {
+        try {
+            // The payload has to be encoded somewhere temporary before it can be compressed anyway,
+            // so we get the field count from that rather than doing a separate counting pass
+            ExpandingByteBuffer temporary = new ExpandingByteBuffer();
+            DefaultSofWriter realWriter = new DefaultSofWriter(new ExpandingByteBufferWriterAbstraction(temporary), configuration);
+            realWriter.writeFields(serialisableObject);
+
+            temporary.flip();
+            byte[] encoded = compress(temporary.getContents());
+
+            writer.writeByte((byte) 1);
+            writer.writeByte((byte) 0x0001);
+            SofSerialiser.writeInt(writer, typeID);
+            SofSerialiser.writeInt(writer, realWriter.getFieldCount());
+            SofSerialiser.writeInt(writer, encoded.length);
+            writer.write(encoded);
+        }
+        catch (IOException e) {
+            throw new SofException(e);
+        }
+    }
+
+    /**
+     * The table is only any use to readers that can see the field headers, and compressed payloads
+     * have to be inflated in full before anything can be extracted anyway
+     */
+    private static boolean isWritingFieldOffsetTable(SofConfiguration configuration) {
+        return configuration.isFieldOffsetTable() && !configuration.isCompressed() && !configuration.isMicroFormat();
+    }
+
+    /**
+     * Writes the encoded length of a nested object followed by the object itself. If the writer can
+     * be patched and single-pass encoding is on, the object is only serialised once; otherwise we
+     * have to do a counting pass first to find out the length.
+     */
+    static void writeLengthPrefixedObject(WriterAbstraction writer, SerialisableObject serialisableObject, DefaultSofWriter objectWriter, SofConfiguration configuration)
+                    throws IOException, SofException {
+
+        if (configuration.isSinglePassEncoding() && writer instanceof PatchableWriterAbstraction) {
+            PatchableWriterAbstraction patchable = (PatchableWriterAbstraction) writer;
+
+            int lengthPosition = patchable.getPosition();
+            writePaddedInt(patchable, 0);
+
+            int start = patchable.getPosition();
+            objectWriter.writeFields(serialisableObject);
+            int end = patchable.getPosition();
+
+            setPaddedInt(patchable, lengthPosition, end - start);
+        }
+        else {
+            // Work out the encoded length
+            CountingWriterAbstraction countingWriter = new CountingWriterAbstraction();
+            DefaultSofWriter countingSofWriter = new DefaultSofWriter(countingWriter, configuration);
+
+            // First pass
+            countingSofWriter.writeFields(serialisableObject);
+
+            // Write the object length
+            int length = countingWriter.getLength();
+            SofSerialiser.writeInt(writer, length);
+
+            // Second pass
+            objectWriter.writeFields(serialisableObject);
+        }
+    }
+
+    /**
+     * Writes a non-negative int as a varint that always takes {@link #paddedIntLength} bytes, by
+     * setting the continuation bit on the leading zero groups. {@link #readInt(ReaderAbstraction)}
+     * decodes it exactly as it would the minimal encoding.
+     */
+    public static void writePaddedInt(WriterAbstraction out, int n) throws IOException {
+        if (n < 0) {
+            throw new IllegalArgumentException("Padded ints must be positive, was " + n);
+        }
+
+        out.writeByte((byte) (0x80 | (n & 0x3F)));
+        out.writeByte((byte) (0x80 | ((n >>> 6) & 0x7F)));
+        out.writeByte((byte) (0x80 | ((n >>> 13) & 0x7F)));
+        out.writeByte((byte) (0x80 | ((n >>> 20) & 0x7F)));
+        out.writeByte((byte) ((n >>> 27) & 0x7F));
+    }
+
+    /**
+     * Overwrites a slot previously reserved with {@link #writePaddedInt(WriterAbstraction, int)}
+     */
+    public static void setPaddedInt(PatchableWriterAbstraction out, int position, int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Padded ints must be positive, was " + n);
+        }
+
+        out.setByte(position, (byte) (0x80 | (n & 0x3F)));
+        out.setByte(position + 1, (byte) (0x80 | ((n >>> 6) & 0x7F)));
+        out.setByte(position + 2, (byte) (0x80 | ((n >>> 13) & 0x7F)));
+        out.setByte(position + 3, (byte) (0x80 | ((n >>> 20) & 0x7F)));
+        out.setByte(position + 4, (byte) ((n >>> 27) & 0x7F));
+    }
+
     public static byte[] uncompress(byte[] input) {
         // Create the decompressor and give it the data to compress
         Inflater decompressor = new Inflater();
@@ -198,7 +377,7 @@ public class SofSerialiser {
                 throw new SofUnknownTypeException(header.version, header.length, header.flags, header.type, header.fieldCount);
             }
 
-            SerialisableObject serialisableObject = ReflectionUtils.instantiate(clazz);
+            SerialisableObject serialisableObject = configuration.instantiate(header.type, clazz);
 
             DefaultSofReader streamReader;
 
@@ -216,7 +395,7 @@ public class SofSerialiser {
             }
 
             long start = streamReader.getPosition();
-            serialisableObject.read(streamReader);
+            streamReader.readFields(serialisableObject);
             long end = streamReader.getPosition();
 
             long decoded = end - start;
@@ -247,6 +426,12 @@ public class SofSerialiser {
     }
 
     public static void writeInt(WriterAbstraction out, int n) throws IOException {
+        if (out instanceof ExpandingByteBufferWriterAbstraction) {
+            // The common case; going through the concrete class lets the whole thing be inlined
+            ((ExpandingByteBufferWriterAbstraction) out).writeVarInt(n);
+            return;
+        }
+
         // //logger.fine("Writing varint '{}' at position {}", n, out.getPosition());
         int bytes = 1;
 
@@ -270,6 +455,11 @@ public class SofSerialiser {
     }
 
     public static void writeLong(WriterAbstraction out, long value) throws IOException {
+        if (out instanceof ExpandingByteBufferWriterAbstraction) {
+            ((ExpandingByteBufferWriterAbstraction) out).writeVarLong(value);
+            return;
+        }
+
         // logger.fine("Writing varint '{}' at position {}", value, out.getPosition());
         int bytes = 1;
 
@@ -391,6 +581,11 @@ public class SofSerialiser {
     }
 
     public static void skipVarInt(ReaderAbstraction in) throws IOException {
+        if (in instanceof ByteBufferReaderAbstraction) {
+            ((ByteBufferReaderAbstraction) in).skipVarInt();
+            return;
+        }
+
         int b = in.readUnsignedByte();
         while ((b & 0x80) != 0) {
             b = in.readUnsignedByte();
@@ -398,6 +593,10 @@ public class SofSerialiser {
     }
 
     public static long readLong(ReaderAbstraction in) throws IOException {
+        if (in instanceof ByteBufferReaderAbstraction) {
+            return ((ByteBufferReaderAbstraction) in).readVarLong();
+        }
+
         int b = in.readUnsignedByte();
         long result = b & 0x3F; // load the first bit of data, masking out the sign and continuation
                                 // bits
@@ -422,6 +621,11 @@ public class SofSerialiser {
     }
 
     public static int readInt(ReaderAbstraction in) throws IOException {
+        if (in instanceof ByteBufferReaderAbstraction) {
+            // The common case; going through the concrete class lets the whole thing be inlined
+            return ((ByteBufferReaderAbstraction) in).readVarInt();
+        }
+
         int b = in.readUnsignedByte();
         int n = b & 0x3F;
         int cBits = 6;
@@ -440,45 +644,94 @@ public class SofSerialiser {
     }
 
     public static Object extract(byte[] bytes, int field, SofConfiguration sofConfiguration) throws SofException {
-        Object extract = null;
-        boolean found = false;
+        return extract(bytes, new int[] { field }, sofConfiguration)[0];
+    }
+
+    /**
+     * Decode just the requested fields from an encoded object, without decoding the object itself.
+     * If the object was written with a field offset table we jump straight to each field, otherwise
+     * we make a single scan through the fields skipping the ones we don't want.
+     * 
+     * @return the decoded values, in the same order as the field indexes asked for
+     */
+    public static Object[] extract(byte[] bytes, int[] fields, SofConfiguration sofConfiguration) throws SofException {
+        Object[] extracted = new Object[fields.length];
 
-        ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-        StreamReaderAbstraction reader = new StreamReaderAbstraction(bais, bytes.length);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        ByteBufferReaderAbstraction reader = new ByteBufferReaderAbstraction(buffer);
         try {
-            // Read the header
-            reader.readByte();
-            reader.readByte();
-            SofSerialiser.readInt(reader);
-            SofSerialiser.readInt(reader);
-            SofSerialiser.readInt(reader);
-
-            while (!found && reader.hasMore()) {
-                int fieldIndex = SofSerialiser.readInt(reader);
-                int fieldType = SofSerialiser.readInt(reader);
-
-                if (fieldIndex == field) {
-                    extract = decodeField(fieldType, reader, sofConfiguration);
-                    found = true;
+            SofHeader header = readHeader(reader);
+            int payloadStart = header.headerLength;
+            int payloadEnd = payloadStart + header.length;
+
+            if ((header.flags & Flag_Field_Offset_Table) != 0) {
+                for (int i = 0; i < fields.length; i++) {
+                    int offset = FieldOffsetTable.find(buffer, payloadEnd, fields[i]);
+                    if (offset == -1) {
+                        throw new SofException("Field index '{}' wasn't found in the object", fields[i]);
+                    }
+
+                    buffer.position(payloadStart + offset);
+                    SofSerialiser.readInt(reader);
+                    int fieldType = SofSerialiser.readInt(reader);
+                    extracted[i] = decodeField(fieldType, reader, sofConfiguration);
                 }
-                else {
-                    skipField(fieldType, reader);
+            }
+            else {
+                int remaining = fields.length;
+                boolean[] found = new boolean[fields.length];
+
+                while (remaining > 0 && buffer.position() < payloadEnd) {
+                    int fieldIndex = SofSerialiser.readInt(reader);
+                    int fieldType = SofSerialiser.readInt(reader);
+
+                    int wanted = -1;
+                    for (int i = 0; i < fields.length; i++) {
+                        if (fields[i] == fieldIndex && !found[i]) {
+                            wanted = i;
+                            break;
+                        }
+                    }
+
+                    if (wanted != -1) {
+                        Object decoded = decodeField(fieldType, reader, sofConfiguration);
+
+                        // The same field might have been asked for more than once
+                        for (int i = wanted; i < fields.length; i++) {
+                            if (fields[i] == fieldIndex) {
+                                extracted[i] = decoded;
+                                found[i] = true;
+                                remaining--;
+                            }
+                        }
+                    }
+                    else {
+                        skipField(fieldType, reader);
+                    }
+                }
+
+                for (int i = 0; i < fields.length; i++) {
+                    if (!found[i]) {
+                        throw new SofException("Field index '{}' wasn't found in the object", fields[i]);
+                    }
                 }
             }
         }
         catch (IOException e) {
             throw new SofException(e);
         }
-
-        if (!found) {
-            throw new SofException("Field index '{}' wasn't found in the object", field);
+        catch (BufferUnderflowException e) {
+            // Running off the end of the buffer means the bytes were truncated or corrupt
+            throw new SofException(e);
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new SofException(e);
         }
 
-        return extract;
-
+        return extracted;
     }
 
-    private static void skipField(int fieldType, StreamReaderAbstraction reader) throws IOException, SofException {
+    private static void skipField(int fieldType, ReaderAbstraction reader) throws IOException, SofException {
         switch (fieldType) {
             case DefaultSofWriter.TYPE_INT:
                 TypeCodex.skipInt(reader);
@@ -498,6 +751,9 @@ public class SofSerialiser {
             case DefaultSofWriter.TYPE_UTF8:
                 TypeCodex.skipString(reader);
                 break;
+            case DefaultSofWriter.TYPE_UTF8_BYTES:
+                TypeCodex.skipUTF8String(reader);
+                break;
             case DefaultSofWriter.TYPE_BYTE:
                 TypeCodex.skipByte(reader);
                 break;
@@ -559,7 +815,7 @@ public class SofSerialiser {
         }
     }
 
-    private static Object decodeField(int fieldType, StreamReaderAbstraction reader, SofConfiguration configuration) throws IOException, SofException {
+    private static Object decodeField(int fieldType, ReaderAbstraction reader, SofConfiguration configuration) throws IOException, SofException {
         Object decoded;
 
         switch (fieldType) {
@@ -581,6 +837,9 @@ public class SofSerialiser {
             case DefaultSofWriter.TYPE_UTF8:
                 decoded = TypeCodex.readString(reader);
                 break;
+            case DefaultSofWriter.TYPE_UTF8_BYTES:
+                decoded = TypeCodex.readUTF8String(reader);
+                break;
             case DefaultSofWriter.TYPE_BYTE:
                 decoded = TypeCodex.readByte(reader);
                 break;
@@ -79,19 +79,12 @@ public class StreamReaderAbstraction implements ReaderAbstraction {
     }
 
     public void read(byte[] array, int position, int length) throws IOException {
-        // TESTME
-        int read = 0;
-        while (read < length) {
-            read += dataStream.read(array, position + read, length);
-        }
-        count += read;
+        dataStream.readFully(array, position, length);
+        count += length;
     }
 
     public void read(byte[] contents) throws IOException {
-        int read = 0;
-        while (read < contents.length) {
-            read += dataStream.read(contents);
-        }
+        dataStream.readFully(contents);
         count += contents.length;
     }
 
@@ -3,30 +3,16 @@ package com.logginghub.sof;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CharsetEncoder;
 import java.util.Date;
 
 import com.logginghub.utils.Logger;
-import com.logginghub.utils.ReflectionUtils;
 import com.logginghub.utils.SizeOf;
 
 public class TypeCodex {
 
     private static ThreadLocalBuffers temporaryBuffers = new ThreadLocalBuffers();
-    private static ThreadLocalCharArrays temporaryCharArrays = new ThreadLocalCharArrays();
 
-    static private final CharsetEncoder encoder;
-    static private final CharsetDecoder decoder;
-    static private final int maxBytesPerChar;
-
-    static {
-        Charset charset = Charset.forName("UTF-8");
-        encoder = charset.newEncoder();
-        maxBytesPerChar = (int) Math.ceil(encoder.maxBytesPerChar());
-        decoder = charset.newDecoder();
-    }
+    private static final String utf8 = "UTF-8";
 
     private static final Logger logger = Logger.getLoggerFor(TypeCodex.class);
 
@@ -217,9 +203,9 @@ public class TypeCodex {
                     }
                 }
                 else {
-                    value = ReflectionUtils.instantiate(subclazz);
+                    value = sofConfiguration.instantiate(objectType, subclazz);
                     DefaultSofReader sofReader = new DefaultSofReader(reader, sofConfiguration);
-                    value.read(sofReader);
+                    sofReader.readFields(value);
                 }
 
                 array[i] = value;
@@ -254,9 +240,41 @@ public class TypeCodex {
             }
         }
         else {
-            value = ReflectionUtils.instantiate(clazz);
+            value = sofConfiguration.instantiate(type, clazz);
             DefaultSofReader sofReader = new DefaultSofReader(reader, sofConfiguration);
-            value.read(sofReader);
+            sofReader.readFields(value);
+        }
+
+        return value;
+    }
+
+    /**
+     * As {@link #readObject(int, ReaderAbstraction, SofConfiguration)}, but if the configuration
+     * asks for lazy decoding of nested types we just copy the encoded bytes into a
+     * {@link LazySofObject} and move on.
+     */
+    public static SerialisableObject readLazyObject(int type, ReaderAbstraction reader, SofConfiguration sofConfiguration) throws SofException,
+                    IOException {
+        if (!sofConfiguration.isLazyDecodeOfNestedTypes()) {
+            return readObject(type, reader, sofConfiguration);
+        }
+
+        int length = SofSerialiser.readInt(reader);
+
+        SerialisableObject value;
+        if (sofConfiguration.resolve(type) == null) {
+            if (sofConfiguration.isAllowUnknownNestedTypes()) {
+                value = null;
+                reader.skip(length);
+            }
+            else {
+                throw new SofException("Decode failed, sub-object type '{}' has not been registered", type);
+            }
+        }
+        else {
+            byte[] encoded = new byte[length];
+            reader.read(encoded);
+            value = new LazySofObject(type, encoded, sofConfiguration);
         }
 
         return value;
@@ -308,6 +326,115 @@ public class TypeCodex {
         return value;
     }
 
+    /**
+     * Writes the string with its UTF-8 encoded length up front rather than its char count, so the
+     * reader can decode it in one go and skip it without looking at the bytes. The chars are
+     * encoded into a scratch array and handed to the writer in a single call.
+     */
+    public static void writeUTF8String(WriterAbstraction writer, String string) throws IOException {
+        if (string == null) {
+            SofSerialiser.writeInt(writer, -1);
+        }
+        else {
+            int length = utf8Length(string);
+            SofSerialiser.writeInt(writer, length);
+
+            byte[] bytes = temporaryBuffers.get(length).array();
+            int encoded = encodeUTF8(string, bytes);
+            if (encoded != length) {
+                throw new IOException("Encoded string length " + encoded + " didn't match the expected length " + length);
+            }
+
+            writer.write(bytes, 0, length);
+        }
+    }
+
+    public static String readUTF8String(ReaderAbstraction reader) throws IOException, SofException {
+        int length = SofSerialiser.readInt(reader);
+        String value;
+        if (length == -1) {
+            value = null;
+        }
+        else if (length < 0) {
+            throw new SofException("Illegal string length '{}' decoded", length);
+        }
+        else if (length == 0) {
+            value = "";
+        }
+        else {
+            byte[] bytes = temporaryBuffers.get(length).array();
+            if (reader instanceof ByteBufferReaderAbstraction) {
+                ((ByteBufferReaderAbstraction) reader).readBytes(bytes, 0, length);
+            }
+            else {
+                reader.read(bytes, 0, length);
+            }
+            value = new String(bytes, 0, length, utf8);
+        }
+        return value;
+    }
+
+    /**
+     * @return the number of bytes the string takes up as UTF-8, with unpaired surrogates counted
+     *         as the single byte replacement character they are encoded as
+     */
+    public static int utf8Length(String string) {
+        int length = string.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            }
+            else if (c < 0x800) {
+                bytes += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            }
+            else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                bytes++;
+            }
+            else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private static int encodeUTF8(String string, byte[] bytes) {
+        int length = string.length();
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                bytes[position++] = (byte) (0xC0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // Same as the JDK encoder does with a lone surrogate
+                bytes[position++] = (byte) '?';
+            }
+            else {
+                bytes[position++] = (byte) (0xE0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return position;
+    }
+
     public static String[] readStringArray(ReaderAbstraction reader) throws IOException, SofException {
         String[] value;
 
@@ -400,9 +527,9 @@ public class TypeCodex {
                     // to skip it!
                     SofSerialiser.readInt(reader);
 
-                    object = ReflectionUtils.instantiate(encodedClass);
+                    object = sofConfiguration.instantiate(type, encodedClass);
                     DefaultSofReader sofReader = new DefaultSofReader(reader, sofConfiguration);
-                    object.read(sofReader);
+                    sofReader.readFields(object);
                 }
 
                 array[i] = object;
@@ -511,7 +638,7 @@ public class TypeCodex {
         }
     }
 
-    public static void skipNonUniformObjectArray(StreamReaderAbstraction reader) throws IOException {
+    public static void skipNonUniformObjectArray(ReaderAbstraction reader) throws IOException {
         int count = SofSerialiser.readInt(reader);
         for (int i = 0; i < count; i++) {
             int nullHint = reader.readByte();
@@ -530,7 +657,7 @@ public class TypeCodex {
         // Nothing to do, there is no encoding for null object type
     }
 
-    public static void skipObject(int fieldType, StreamReaderAbstraction reader) throws IOException {
+    public static void skipObject(int fieldType, ReaderAbstraction reader) throws IOException {
         int length = SofSerialiser.readInt(reader);
         reader.skip(length);
     }
@@ -552,6 +679,16 @@ public class TypeCodex {
             // Nothing more to skip
         }
         else {
+            // The length is in chars rather than bytes, so we have to walk each one
+            for (int i = 0; i < length; i++) {
+                SofSerialiser.skipChar(reader);
+            }
+        }
+    }
+
+    public static void skipUTF8String(ReaderAbstraction reader) throws IOException {
+        int length = SofSerialiser.readInt(reader);
+        if (length > 0) {
             reader.skip(length);
         }
     }
@@ -612,19 +749,8 @@ public class TypeCodex {
                     // Write the type ID
                     SofSerialiser.writeInt(writer, userType);
 
-                    // Work out the encoded length
-                    CountingWriterAbstraction countingWriter = new CountingWriterAbstraction();
-                    DefaultSofWriter countingSofWriter = new DefaultSofWriter(countingWriter, configuration);
-
-                    // First pass
-                    serialisableObject.write(countingSofWriter);
-
-                    // Write the object length
-                    int objectLength = countingWriter.getLength();
-                    SofSerialiser.writeInt(writer, objectLength);
-
-                    // Write the actual object
-                    serialisableObject.write(new DefaultSofWriter(writer, configuration));
+                    // Write the object length and then the actual object
+                    SofSerialiser.writeLengthPrefixedObject(writer, serialisableObject, new DefaultSofWriter(writer, configuration), configuration);
                 }
             }
         }
@@ -680,22 +806,83 @@ public class TypeCodex {
                 else {
                     writer.writeByte(DefaultSofWriter.NOT_NULL);
 
-                    // Work out the encoded length
-                    CountingWriterAbstraction countingWriter = new CountingWriterAbstraction();
-                    DefaultSofWriter countingSofWriter = new DefaultSofWriter(countingWriter, configuration);
+                    // Write the object length and then the actual object
+                    SofSerialiser.writeLengthPrefixedObject(writer, serialisableObject, new DefaultSofWriter(writer, configuration), configuration);
+                }
+            }
+        }
+    }
 
-                    // First pass
-                    serialisableObject.write(countingSofWriter);
+    /**
+     * @return the two varints of a field header packed into a short, as they come out on the wire
+     *         when the field index is under 64 and the type is one of the built in (negative) types
+     *         - both then fit in a single byte. Used by {@link SofCodec}s to write and check a
+     *         whole header in one go.
+     */
+    public static short fieldHeader(int field, int type) {
+        if (field < 0 || field > 0x3F || type >= 0 || type < -0x40) {
+            throw new IllegalArgumentException("Field " + field + " of type " + type + " doesn't have a single byte header");
+        }
+        return (short) ((field << 8) | 0x40 | ~type);
+    }
 
-                    // Write the object length
-                    int objectLength = countingWriter.getLength();
-                    SofSerialiser.writeInt(writer, objectLength);
+    public static void writeFieldHeader(WriterAbstraction writer, int field, int type) throws IOException {
+        writer.writeShort(fieldHeader(field, type));
+    }
 
-                    // Write the actual object
-                    serialisableObject.write(new DefaultSofWriter(writer, configuration));
-                }
-            }
+    /**
+     * Reads the next field header and checks it is the field and type we were expecting; with no
+     * out of order or missing fields to worry about this is all the {@link SofCodec}s need in place
+     * of {@link DefaultSofReader}'s skip to field.
+     */
+    public static void readFieldHeader(ReaderAbstraction reader, int field, int type) throws IOException, SofException {
+        if (!reader.hasMore()) {
+            throw new SofPartialDecodeException("No more bytes available from this reader");
+        }
+
+        short header = reader.readShort();
+        if (header != fieldHeader(field, type)) {
+            throw new SofException("Field header mismatch - expected field '{}' of type '{}', but the encoded header was '0x{}'",
+                                   field,
+                                   type,
+                                   Integer.toHexString(header & 0xFFFF));
+        }
+    }
+
+    public static void writeStringField(WriterAbstraction writer, int field, String string, boolean byteLength) throws IOException {
+        if (byteLength) {
+            writeFieldHeader(writer, field, DefaultSofWriter.TYPE_UTF8_BYTES);
+            writeUTF8String(writer, string);
         }
+        else {
+            writeFieldHeader(writer, field, DefaultSofWriter.TYPE_UTF8);
+            writeString(writer, string);
+        }
+    }
+
+    /**
+     * Reads a string field written with either of the string types, whatever our own configuration
+     * says, as {@link DefaultSofReader#readString(int)} does.
+     */
+    public static String readStringField(ReaderAbstraction reader, int field) throws IOException, SofException {
+        if (!reader.hasMore()) {
+            throw new SofPartialDecodeException("No more bytes available from this reader");
+        }
+
+        short header = reader.readShort();
+        String value;
+        if (header == fieldHeader(field, DefaultSofWriter.TYPE_UTF8_BYTES)) {
+            value = readUTF8String(reader);
+        }
+        else if (header == fieldHeader(field, DefaultSofWriter.TYPE_UTF8)) {
+            value = readString(reader);
+        }
+        else {
+            throw new SofException("Field header mismatch - expected string field '{}', but the encoded header was '0x{}'",
+                                   field,
+                                   Integer.toHexString(header & 0xFFFF));
+        }
+        return value;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,216 @@
+package com.logginghub.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles ByteBuffers so the encode and write paths don't have to keep allocating (and, for
+ * direct buffers, wait for the garbage collector to free) new ones. Requests are rounded up to a
+ * power of two size class between the smallest and largest sizes, and each class keeps a bounded
+ * free list; anything bigger than the largest class is allocated and dropped as normal.
+ *
+ * A buffer must not be used by the caller once it has been released, as it could be handed
+ * straight out to someone else.
+ *
+ * @author James
+ */
+public class BufferPool {
+
+    public final static int defaultSmallestSize = Integer.getInteger("bufferPool.smallestSize", 1024);
+    public final static int defaultLargestSize = Integer.getInteger("bufferPool.largestSize", 1024 * 1024);
+    public final static int defaultBuffersPerSize = Integer.getInteger("bufferPool.buffersPerSize", 64);
+
+    private static final BufferPool heapPool = new BufferPool(false, defaultSmallestSize, defaultLargestSize, defaultBuffersPerSize);
+    private static final BufferPool directPool = new BufferPool(true, defaultSmallestSize, defaultLargestSize, defaultBuffersPerSize);
+
+    private final boolean direct;
+    private final int smallestShift;
+    private final int buffersPerSize;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] freeLists;
+    private final AtomicInteger[] freeCounts;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    @SuppressWarnings("unchecked") public BufferPool(boolean direct, int smallestSize, int largestSize, int buffersPerSize) {
+        if (smallestSize <= 0 || largestSize < smallestSize) {
+            throw new IllegalArgumentException(StringUtils.format("Invalid buffer pool sizes, smallest {} largest {}", smallestSize, largestSize));
+        }
+
+        this.direct = direct;
+        this.buffersPerSize = buffersPerSize;
+        this.smallestShift = shiftFor(smallestSize);
+
+        int classes = shiftFor(largestSize) - smallestShift + 1;
+        freeLists = new ConcurrentLinkedQueue[classes];
+        freeCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            freeLists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            freeCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @return the shared pool of heap buffers
+     */
+    public static BufferPool getHeapPool() {
+        return heapPool;
+    }
+
+    /**
+     * @return the shared pool of direct buffers
+     */
+    public static BufferPool getDirectPool() {
+        return directPool;
+    }
+
+    /**
+     * @return a cleared buffer with at least the capacity requested
+     */
+    public ByteBuffer acquire(int capacity) {
+        acquired.incrementAndGet();
+
+        int sizeClass = sizeClassFor(capacity);
+        if (sizeClass == -1) {
+            allocated.incrementAndGet();
+            return allocate(capacity);
+        }
+
+        ByteBuffer buffer = freeLists[sizeClass].poll();
+        if (buffer != null) {
+            freeCounts[sizeClass].decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        allocated.incrementAndGet();
+        return allocate(getSizeOfClass(sizeClass));
+    }
+
+    /**
+     * Hand a buffer back to the pool. Buffers that didn't come from a pool like this one, or that
+     * would take their size class over its limit, are just dropped.
+     */
+    public void release(ByteBuffer buffer) {
+        released.incrementAndGet();
+
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClassFor(capacity);
+        if (buffer.isDirect() != direct || buffer.isReadOnly() || sizeClass == -1 || getSizeOfClass(sizeClass) != capacity) {
+            discarded.incrementAndGet();
+            return;
+        }
+
+        if (freeCounts[sizeClass].incrementAndGet() > buffersPerSize) {
+            freeCounts[sizeClass].decrementAndGet();
+            discarded.incrementAndGet();
+            return;
+        }
+
+        buffer.clear();
+        freeLists[sizeClass].offer(buffer);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getSizeClasses() {
+        return freeLists.length;
+    }
+
+    public int getSizeOfClass(int sizeClass) {
+        return 1 << (smallestShift + sizeClass);
+    }
+
+    /**
+     * @return the number of free buffers waiting in the size class
+     */
+    public int getPooledBuffers(int sizeClass) {
+        return freeCounts[sizeClass].get();
+    }
+
+    /**
+     * @return the number of free buffers waiting across all of the size classes
+     */
+    public int getPooledBuffers() {
+        int total = 0;
+        for (AtomicInteger count : freeCounts) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return the combined capacity of the free buffers
+     */
+    public long getPooledBytes() {
+        long total = 0;
+        for (int i = 0; i < freeCounts.length; i++) {
+            total += (long) freeCounts[i].get() * getSizeOfClass(i);
+        }
+        return total;
+    }
+
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * @return the number of acquires that couldn't be served from the free lists
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public long getReleased() {
+        return released.get();
+    }
+
+    /**
+     * @return the number of released buffers that weren't kept
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * @return the number of buffers that have been acquired and not released yet
+     */
+    public long getOutstanding() {
+        return acquired.get() - released.get();
+    }
+
+    @Override public String toString() {
+        return StringUtils.format("[BufferPool direct={} pooled={} ({} bytes) outstanding={} acquired={} allocated={} discarded={}]",
+                                  direct,
+                                  getPooledBuffers(),
+                                  getPooledBytes(),
+                                  getOutstanding(),
+                                  getAcquired(),
+                                  getAllocated(),
+                                  getDiscarded());
+    }
+
+    private int sizeClassFor(int capacity) {
+        int shift = capacity <= 1 ? 0 : shiftFor(capacity);
+        int sizeClass = Math.max(0, shift - smallestShift);
+        return sizeClass < freeLists.length ? sizeClass : -1;
+    }
+
+    /**
+     * @return the power of two shift of the smallest power of two that is at least size
+     */
+    private static int shiftFor(int size) {
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+}
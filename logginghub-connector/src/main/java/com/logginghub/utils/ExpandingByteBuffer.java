@@ -4,7 +4,7 @@ import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ExpandingByteBuffer {
+public class ExpandingByteBuffer implements WritableByteBuffer {
     private static Logger logger = Logger.getLogger(ExpandingByteBuffer.class.getName());
     private final static int startingSize = 4096;
 
@@ -19,7 +19,23 @@ public class ExpandingByteBuffer {
 
     private ByteBuffer buffer;
 
+    /**
+     * Where our buffers come from and go back to when we outgrow them, or null to just allocate
+     */
+    private final BufferPool pool;
+
     public ExpandingByteBuffer(int initialCapacity) {
+        this(initialCapacity, null);
+    }
+
+    /**
+     * Create a buffer that takes its storage from the pool, and hands the old storage back each
+     * time it grows. Anyone holding on to the ByteBuffer returned from {@link #getBuffer()} has to
+     * let go of it before writing anything else, as the write could grow the buffer and release
+     * the storage underneath them.
+     */
+    public ExpandingByteBuffer(int initialCapacity, BufferPool pool) {
+        this.pool = pool;
         buffer = allocate(initialCapacity);
     }
 
@@ -44,10 +60,6 @@ public class ExpandingByteBuffer {
     }
 
     private ByteBuffer resize(int newCapacity) {
-        if (newCapacity > 800000) {
-            System.out.println(newCapacity);
-        }
-
         if (logger.isLoggable(Level.FINER)) {
             logger.finer(String.format("Resizing buffer, current state '%s' newCapacity will be %d bytes", buffer, newCapacity));
         }
@@ -59,6 +71,10 @@ public class ExpandingByteBuffer {
         // Dump the whole lot into the new buffer
         newBuffer.put(buffer);
 
+        if (pool != null) {
+            pool.release(buffer);
+        }
+
         return newBuffer;
     }
 
@@ -78,6 +94,17 @@ public class ExpandingByteBuffer {
         return buffer;
     }
 
+    /**
+     * Hand the storage back to the pool if we have one; the buffer is empty afterwards, and will
+     * start growing again from nothing if it is written to.
+     */
+    public void release() {
+        if (pool != null) {
+            pool.release(buffer);
+        }
+        buffer = ByteBuffer.allocate(0);
+    }
+
     /**
      * Insert a byte at the index specified, moving the rest of the data.
      * 
@@ -120,6 +147,11 @@ public class ExpandingByteBuffer {
         buffer.putInt(index, length);
     }
 
+    public void setByte(int index, byte value) {
+        // Assumes the index is correctly set!
+        buffer.put(index, value);
+    }
+
     public void putInt(int value) {
         if (buffer.remaining() < sizeofInt) {
             getBuffer(sizeofInt).putInt(value);
@@ -269,7 +301,7 @@ public class ExpandingByteBuffer {
     }
 
     public void put(byte[] bytes, int offset, int length) {
-        getBuffer(length - offset).put(bytes, offset, length);
+        getBuffer(length).put(bytes, offset, length);
     }
 
     public void compact() {
@@ -289,7 +321,12 @@ public class ExpandingByteBuffer {
     }
 
     private ByteBuffer allocate(int capacity) {
-        return ByteBuffer.allocateDirect(capacity);
+        if (pool != null) {
+            return pool.acquire(capacity);
+        }
+        else {
+            return ByteBuffer.allocateDirect(capacity);
+        }
     }
 
     public void put(ExpandingByteBuffer src) {
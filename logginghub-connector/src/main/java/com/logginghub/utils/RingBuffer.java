@@ -0,0 +1,347 @@
+package com.logginghub.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated, bounded, lock-free ring buffer designed for many producer threads feeding a single
+ * consumer thread. Each slot carries a sequence number so producers can claim slots with a single
+ * CAS and the consumer can tell when a claimed slot has actually been published.
+ *
+ * The capacity is rounded up to the next power of two (and at least two) so slot indexes can be found
+ * with a mask.
+ *
+ * What happens when a producer finds the buffer full is controlled by the {@link OverflowPolicy}.
+ * Every event thrown away by the policy is counted exactly, see {@link #getDiscards()}.
+ *
+ * @author James
+ *
+ * @param <T>
+ */
+public class RingBuffer<T> {
+
+    public enum OverflowPolicy {
+        /**
+         * Make space by throwing away the item at the head of the buffer (the oldest one)
+         */
+        dropOldest,
+
+        /**
+         * Throw away the item being offered
+         */
+        dropNewest,
+
+        /**
+         * Wait for the consumer to make space, up to the configured block timeout; if the timeout
+         * expires the item being offered is thrown away
+         */
+        block
+    };
+
+    /**
+     * How long producers and the consumer park for between checks when they are waiting
+     */
+    private static final long parkNanos = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong discards;
+
+    private volatile Thread waitingConsumer = null;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.dropOldest;
+    private volatile long blockTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+
+    public RingBuffer(int requestedCapacity) {
+        this(requestedCapacity, new AtomicLong());
+    }
+
+    public RingBuffer(int requestedCapacity, OverflowPolicy overflowPolicy) {
+        this(requestedCapacity);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Creates a buffer to take over from another one with a different capacity. It has the same
+     * overflow policy and block timeout, and shares the discard count, so anything the previous
+     * buffer has discarded - or still discards, for producers that haven't moved over yet - is
+     * included in {@link #getDiscards()}.
+     */
+    public RingBuffer(int requestedCapacity, RingBuffer<T> previous) {
+        this(requestedCapacity, previous.discards);
+        this.overflowPolicy = previous.overflowPolicy;
+        this.blockTimeoutNanos = previous.blockTimeoutNanos;
+    }
+
+    private RingBuffer(int requestedCapacity, AtomicLong discards) {
+        if (requestedCapacity < 1) {
+            throw new IllegalArgumentException("Ring buffer capacity must be at least one, was " + requestedCapacity);
+        }
+
+        // The slot sequences can't tell a full slot from an empty one with only a single slot, so two
+        // is the smallest we go
+        int actualCapacity = 2;
+        while (actualCapacity < requestedCapacity) {
+            actualCapacity <<= 1;
+        }
+
+        this.capacity = actualCapacity;
+        this.mask = actualCapacity - 1;
+        this.elements = new AtomicReferenceArray<T>(actualCapacity);
+        this.sequences = new AtomicLongArray(actualCapacity);
+
+        this.discards = discards;
+
+        for (int i = 0; i < actualCapacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Add an item to the buffer, applying the overflow policy if it is full.
+     *
+     * @param item
+     * @return true if the item was added, false if it was discarded under the overflow policy
+     */
+    public boolean put(T item) {
+        if (item == null) {
+            throw new NullPointerException("Null items can't be added to the ring buffer");
+        }
+
+        boolean added = offer(item);
+        if (!added) {
+            switch (overflowPolicy) {
+                case dropOldest: {
+                    while (!added) {
+                        if (poll() != null) {
+                            discards.incrementAndGet();
+                        }
+                        added = offer(item);
+                    }
+                    break;
+                }
+                case dropNewest: {
+                    discards.incrementAndGet();
+                    break;
+                }
+                case block: {
+                    long deadline = System.nanoTime() + blockTimeoutNanos;
+                    while (!added && System.nanoTime() < deadline) {
+                        LockSupport.parkNanos(parkNanos);
+                        added = offer(item);
+                    }
+
+                    if (!added) {
+                        discards.incrementAndGet();
+                    }
+                    break;
+                }
+            }
+        }
+
+        return added;
+    }
+
+    /**
+     * Try and add an item to the buffer without applying the overflow policy.
+     *
+     * @param item
+     * @return true if the item was added, false if the buffer was full
+     */
+    public boolean offer(T item) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long sequence = sequences.get(index);
+            long difference = sequence - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.set(index, item);
+                    // Publishing the sequence after the element means the consumer never sees the
+                    // slot as full before the item is in it
+                    sequences.set(index, position + 1);
+                    wakeConsumer();
+                    return true;
+                }
+                else {
+                    position = tail.get();
+                }
+            }
+            else if (difference < 0) {
+                // The slot still holds an item from the previous lap - we are full
+                return false;
+            }
+            else {
+                // Another producer beat us to this slot
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the item at the head of the buffer.
+     *
+     * @return the oldest item, or null if the buffer is empty
+     */
+    public T poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) (position & mask);
+            long sequence = sequences.get(index);
+            long difference = sequence - (position + 1);
+
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    T item = elements.get(index);
+                    elements.set(index, null);
+                    sequences.set(index, position + capacity);
+                    return item;
+                }
+                else {
+                    // A producer enforcing the drop-oldest policy got there first
+                    position = head.get();
+                }
+            }
+            else if (difference < 0) {
+                // Nothing has been published into this slot yet
+                return null;
+            }
+            else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Wait for an item to become available. Only the consumer thread should call this.
+     *
+     * @return the oldest item in the buffer
+     * @throws InterruptedException
+     */
+    public T take() throws InterruptedException {
+        T item = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        return item;
+    }
+
+    /**
+     * Wait up to the timeout for an item to become available. Only the consumer thread should call
+     * this.
+     *
+     * @return the oldest item in the buffer, or null if the timeout expired
+     * @throws InterruptedException
+     */
+    public T poll(long timeout, TimeUnit units) throws InterruptedException {
+        T item = poll();
+        if (item != null) {
+            return item;
+        }
+
+        long timeoutNanos = units.toNanos(timeout);
+        long deadline = System.nanoTime() + timeoutNanos;
+        if (deadline < 0 && timeoutNanos > 0) {
+            deadline = Long.MAX_VALUE;
+        }
+
+        waitingConsumer = Thread.currentThread();
+        try {
+            while (true) {
+                // Have to re-check after publishing ourselves as the waiter, otherwise we could miss
+                // the wake up from a producer that published just before we did
+                item = poll();
+                if (item != null) {
+                    return item;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+
+                LockSupport.parkNanos(remaining);
+
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+        finally {
+            waitingConsumer = null;
+        }
+    }
+
+    private void wakeConsumer() {
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Remove everything currently in the buffer, passing each item to the destination.
+     *
+     * @param destination
+     * @return the number of items drained
+     */
+    public int drainTo(Destination<T> destination) {
+        int drained = 0;
+        T item;
+        while ((item = poll()) != null) {
+            destination.send(item);
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * @return the number of items in the buffer; this is only a snapshot as producers and the
+     *         consumer may be moving concurrently
+     */
+    public int size() {
+        // Read the head first so we never report a negative size
+        long currentHead = head.get();
+        long currentTail = tail.get();
+        long size = currentTail - currentHead;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDiscards() {
+        return discards.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public void setBlockTimeout(long amount, TimeUnit units) {
+        this.blockTimeoutNanos = units.toNanos(amount);
+    }
+
+    public long getBlockTimeoutMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockTimeoutNanos);
+    }
+
+    @Override public String toString() {
+        return "[RingBuffer capacity=" + capacity + ", size=" + size() + ", discards=" + discards.get() + ", policy=" + overflowPolicy + "]";
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.logginghub.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link WritableByteBuffer} that grows by chaining another segment from a {@link BufferPool} on
+ * to the end, rather than allocating a bigger buffer and copying everything across like the
+ * {@link ExpandingByteBuffer}. Every put asks for the space it needs up front, so a single value
+ * never straddles two segments; the segment it didn't fit in is just left with a little unused
+ * space at the end.
+ *
+ * It is meant to be written to, flipped and handed to a gathering write one segment at a time,
+ * then cleared - which returns all but the first segment to the pool. Positions are counted across
+ * all of the segments, so lengths can still be patched in with setInt and setByte.
+ *
+ * @author James
+ */
+public class SegmentedByteBuffer implements WritableByteBuffer {
+
+    public final static int defaultSegmentSize = Integer.getInteger("segmentedByteBuffer.segmentSize", 16 * 1024);
+
+    private final int segmentSize;
+    private final BufferPool pool;
+    private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+    /**
+     * The number of bytes written to every segment apart from the last one
+     */
+    private int sealedBytes = 0;
+
+    public SegmentedByteBuffer() {
+        this(defaultSegmentSize, BufferPool.getDirectPool());
+    }
+
+    public SegmentedByteBuffer(int segmentSize, BufferPool pool) {
+        this.segmentSize = segmentSize;
+        this.pool = pool;
+        segments.add(pool.acquire(segmentSize));
+    }
+
+    private ByteBuffer current() {
+        return segments.get(segments.size() - 1);
+    }
+
+    public ByteBuffer getBuffer(int extraCapacity) {
+        ByteBuffer current = current();
+        if (current.remaining() >= extraCapacity) {
+            return current;
+        }
+
+        ByteBuffer next = pool.acquire(Math.max(segmentSize, extraCapacity));
+        if (current.position() == 0 && segments.size() > 1) {
+            // Nothing has gone in to this one yet, so swap it rather than leave an empty segment
+            segments.remove(segments.size() - 1);
+            pool.release(current);
+        }
+        else {
+            sealedBytes += current.position();
+        }
+
+        segments.add(next);
+        return next;
+    }
+
+    public int position() {
+        return sealedBytes + current().position();
+    }
+
+    public void setByte(int index, byte value) {
+        int offset = index;
+        for (ByteBuffer segment : segments) {
+            if (offset < segment.position()) {
+                segment.put(offset, value);
+                return;
+            }
+            offset -= segment.position();
+        }
+        throw new IndexOutOfBoundsException(StringUtils.format("Index {} is past the {} bytes written", index, position()));
+    }
+
+    public void setInt(int index, int value) {
+        int offset = index;
+        for (ByteBuffer segment : segments) {
+            if (offset < segment.position()) {
+                if (offset + 4 <= segment.position()) {
+                    segment.putInt(offset, value);
+                }
+                else {
+                    // The int was written a byte at a time and ended up over a boundary
+                    setByte(index, (byte) (value >>> 24));
+                    setByte(index + 1, (byte) (value >>> 16));
+                    setByte(index + 2, (byte) (value >>> 8));
+                    setByte(index + 3, (byte) value);
+                }
+                return;
+            }
+            offset -= segment.position();
+        }
+        throw new IndexOutOfBoundsException(StringUtils.format("Index {} is past the {} bytes written", index, position()));
+    }
+
+    /**
+     * Flips every segment ready to be read
+     */
+    public void flip() {
+        for (ByteBuffer segment : segments) {
+            segment.flip();
+        }
+    }
+
+    /**
+     * @return the bytes left to read in all of the segments once the buffer has been flipped
+     */
+    public int remaining() {
+        int remaining = 0;
+        for (ByteBuffer segment : segments) {
+            remaining += segment.remaining();
+        }
+        return remaining;
+    }
+
+    /**
+     * @return a copy of everything left to read in all of the segments, once the buffer has been
+     *         flipped
+     */
+    public byte[] getContents() {
+        byte[] contents = new byte[remaining()];
+        int offset = 0;
+        for (ByteBuffer segment : segments) {
+            int length = segment.remaining();
+            segment.get(contents, offset, length);
+            offset += length;
+        }
+        return contents;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public ByteBuffer getSegment(int index) {
+        return segments.get(index);
+    }
+
+    /**
+     * Copy the segments into the array for a gathering write, in the same way as
+     * {@link List#toArray(Object[])} - a new array is only created if the one passed in is too small.
+     */
+    public ByteBuffer[] toArray(ByteBuffer[] array) {
+        return segments.toArray(array);
+    }
+
+    /**
+     * Empty the buffer, handing everything but the first segment back to the pool
+     */
+    public void clear() {
+        for (int i = segments.size() - 1; i > 0; i--) {
+            pool.release(segments.remove(i));
+        }
+
+        segments.get(0).clear();
+        sealedBytes = 0;
+    }
+
+    /**
+     * Hand every segment back to the pool; the buffer starts again from a fresh segment if it is
+     * written to afterwards
+     */
+    public void release() {
+        for (ByteBuffer segment : segments) {
+            pool.release(segment);
+        }
+        segments.clear();
+
+        segments.add(pool.acquire(segmentSize));
+        sealedBytes = 0;
+    }
+
+    public void put(byte value) {
+        getBuffer(1).put(value);
+    }
+
+    public void put(byte[] value) {
+        getBuffer(value.length).put(value);
+    }
+
+    public void put(byte[] bytes, int offset, int length) {
+        getBuffer(length).put(bytes, offset, length);
+    }
+
+    public void put(ByteBuffer buffer) {
+        getBuffer(buffer.remaining()).put(buffer);
+    }
+
+    public void putBoolean(boolean value) {
+        getBuffer(1).put((byte) (value ? 1 : 0));
+    }
+
+    public void putChar(char value) {
+        getBuffer(2).putChar(value);
+    }
+
+    public void putShort(short value) {
+        getBuffer(2).putShort(value);
+    }
+
+    public void putInt(int value) {
+        getBuffer(4).putInt(value);
+    }
+
+    public void putLong(long value) {
+        getBuffer(8).putLong(value);
+    }
+
+    public void putFloat(float value) {
+        getBuffer(4).putFloat(value);
+    }
+
+    public void putDouble(double value) {
+        getBuffer(8).putDouble(value);
+    }
+
+    @Override public String toString() {
+        return StringUtils.format("[SegmentedByteBuffer position={} segments={}]", position(), segments.size());
+    }
+}
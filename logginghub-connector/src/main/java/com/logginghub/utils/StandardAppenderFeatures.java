@@ -11,6 +11,17 @@ public interface StandardAppenderFeatures {
     void setPublishMachineTelemetry(boolean publishMachineTelemetry);
     void setPublishProcessTelemetry(boolean publishProcessTelemetry);
     void setMaximumQueuedMessages(int maximumQueuedMessages);
+    void setDispatchQueueOverflowPolicy(String policy);
+    void setDispatchQueueBlockTimeout(long milliseconds);
+    void setDispatchBatchSize(int dispatchBatchSize);
+    void setDispatchBatchTimeout(long microseconds);
+    void setSpoolDirectory(String spoolDirectory);
+    void setSpoolSegmentSize(int spoolSegmentSize);
+    void setSpoolMaximumSize(long spoolMaximumSize);
+    void setSpoolReplayRate(int eventsPerSecond);
+    void setHotStandby(boolean hotStandby);
+    void setConnectTimeout(int milliseconds);
+    void setParallelConnectAttempts(int parallelConnectAttempts);
     void setDontThrowExceptionsIfHubIsntUp(boolean dontThrowExceptionsIfHubIsntUp);
     void setSourceApplication(String sourceApplication);
     void setHost(String host);
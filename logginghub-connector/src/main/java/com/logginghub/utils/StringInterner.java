@@ -0,0 +1,300 @@
+package com.logginghub.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache mapping encoded byte sequences to the Strings they decode to. This is aimed at the
+ * low cardinality fields in log events (host names, logger names, thread names and so on) - we
+ * see the same few thousand values over and over again, and without this each one would be decoded
+ * into a brand new String.
+ *
+ * Lookups are keyed on the raw encoded bytes straight out of the buffer, so a hit skips the
+ * charset decoding entirely and doesn't allocate anything.
+ *
+ * The table is split into small sets of slots; a byte sequence can only live in the set its hash
+ * points at. When a set is full a clock sweep picks the victim - every hit marks the entry as
+ * referenced, and the sweep gives referenced entries a second chance before evicting them. This
+ * gives us most of the benefit of LRU without having to maintain a linked list on every hit.
+ *
+ * The interner is safe to share between threads. Entries are immutable and are replaced as a
+ * whole, so the worst a race can do is cost us a miss or evict something slightly early.
+ *
+ * @author James
+ */
+public class StringInterner {
+
+    /**
+     * The number of slots a given byte sequence could live in
+     */
+    public final static int setSize = 8;
+
+    private static final class Entry {
+        final byte[] bytes;
+        final int hash;
+        final String value;
+
+        Entry(byte[] bytes, int hash, String value) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    // Held by name as the String constructors that take a Charset are Java 6
+    private final String charsetName;
+    private final int capacity;
+    private final int setMask;
+    private final int maximumLength;
+
+    private final Entry[] entries;
+    private final boolean[] referenced;
+    private final int[] clockHands;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bypasses = new AtomicLong();
+
+    /**
+     * @param requestedCapacity
+     *            the most strings we'll hold on to; rounded up to a power of two, and at least one
+     *            set
+     * @param maximumLength
+     *            encoded strings longer than this (in bytes) are decoded normally rather than
+     *            cached
+     * @param charset
+     *            the charset the bytes were encoded with
+     */
+    public StringInterner(int requestedCapacity, int maximumLength, Charset charset) {
+        if (requestedCapacity < 1) {
+            throw new IllegalArgumentException("Interner capacity must be at least one, was " + requestedCapacity);
+        }
+
+        int actualCapacity = setSize;
+        while (actualCapacity < requestedCapacity) {
+            actualCapacity <<= 1;
+        }
+
+        this.capacity = actualCapacity;
+        this.setMask = (actualCapacity / setSize) - 1;
+        this.maximumLength = maximumLength;
+        this.charsetName = charset.name();
+
+        this.entries = new Entry[actualCapacity];
+        this.referenced = new boolean[actualCapacity];
+        this.clockHands = new int[actualCapacity / setSize];
+    }
+
+    /**
+     * Decode the next length bytes from the buffer into a String, using the cached copy if we've
+     * seen this byte sequence before. The buffer position is moved past the string either way.
+     *
+     * @param buffer
+     * @param length
+     *            the number of encoded bytes, which must all be available in the buffer
+     * @return
+     */
+    public String intern(ByteBuffer buffer, int length) {
+        int start = buffer.position();
+
+        String string;
+        if (length > maximumLength) {
+            bypasses.incrementAndGet();
+            string = decode(buffer, start, length);
+        }
+        else {
+            int hash = hash(buffer, start, length);
+            int set = (hash & setMask) * setSize;
+
+            string = null;
+            for (int i = 0; i < setSize; i++) {
+                Entry entry = entries[set + i];
+                if (entry != null && entry.hash == hash && matches(entry.bytes, buffer, start, length)) {
+                    referenced[set + i] = true;
+                    string = entry.value;
+                    break;
+                }
+            }
+
+            if (string != null) {
+                hits.incrementAndGet();
+            }
+            else {
+                misses.incrementAndGet();
+
+                byte[] bytes = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    bytes[i] = buffer.get(start + i);
+                }
+
+                string = newString(bytes, 0, length);
+                insert(set, new Entry(bytes, hash, string));
+            }
+        }
+
+        buffer.position(start + length);
+        return string;
+    }
+
+    private String decode(ByteBuffer buffer, int start, int length) {
+        if (buffer.hasArray()) {
+            return newString(buffer.array(), buffer.arrayOffset() + start, length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return newString(bytes, 0, length);
+        }
+    }
+
+    private String newString(byte[] bytes, int offset, int length) {
+        try {
+            return new String(bytes, offset, length, charsetName);
+        }
+        catch (UnsupportedEncodingException e) {
+            // Can't happen, we had the Charset itself to get the name from
+            throw new FormattedRuntimeException(e, "Charset '{}' isn't supported", charsetName);
+        }
+    }
+
+    private void insert(int set, Entry entry) {
+        int setIndex = set / setSize;
+
+        // Use an empty slot if there is one, otherwise sweep round the clock clearing the referenced
+        // flags until we find something that hasn't been used since we last passed it
+        int victim = -1;
+        for (int i = 0; i < setSize; i++) {
+            if (entries[set + i] == null) {
+                victim = set + i;
+                break;
+            }
+        }
+
+        if (victim == -1) {
+            int hand = clockHands[setIndex];
+            while (victim == -1) {
+                int slot = set + hand;
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                }
+                else {
+                    victim = slot;
+                }
+                hand = (hand + 1) & (setSize - 1);
+            }
+            clockHands[setIndex] = hand;
+            evictions.incrementAndGet();
+        }
+
+        referenced[victim] = false;
+        entries[victim] = entry;
+    }
+
+    private static int hash(ByteBuffer buffer, int start, int length) {
+        int hash = 1;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + buffer.get(start + i);
+        }
+
+        // Mix the bits up a bit so similar strings don't all land in the same set
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash;
+    }
+
+    private static boolean matches(byte[] bytes, ByteBuffer buffer, int start, int length) {
+        if (bytes.length != length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (bytes[i] != buffer.get(start + i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public void clear() {
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = null;
+            referenced[i] = false;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMaximumLength() {
+        return maximumLength;
+    }
+
+    /**
+     * @return the number of strings currently cached; this is only a snapshot if other threads are
+     *         using the interner
+     */
+    public int getSize() {
+        int size = 0;
+        for (int i = 0; i < capacity; i++) {
+            if (entries[i] != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of strings that were too long to be cached
+     */
+    public long getBypasses() {
+        return bypasses.get();
+    }
+
+    /**
+     * @return the proportion of lookups that were served from the cache, between 0 and 1
+     */
+    public double getHitRate() {
+        long currentHits = hits.get();
+        long total = currentHits + misses.get();
+        if (total == 0) {
+            return 0;
+        }
+        return currentHits / (double) total;
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        bypasses.set(0);
+    }
+
+    @Override public String toString() {
+        return String.format("[StringInterner capacity=%d, hits=%d, misses=%d, evictions=%d, hitRate=%.2f]",
+                             capacity,
+                             hits.get(),
+                             misses.get(),
+                             evictions.get(),
+                             getHitRate());
+    }
+}
@@ -0,0 +1,172 @@
+package com.logginghub.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel - a single thread drives any number of short lived timeouts (request
+ * timeouts, retry delays) without the cost of a java.util.Timer or a scheduled executor task per
+ * entry. Scheduling and cancelling are lock free; expiry is accurate to one tick. Tasks are run on
+ * the wheel thread so they must be quick.
+ *
+ * @author James
+ */
+public class TimerWheel {
+
+    public final static long defaultTickMillis = Long.getLong("timerWheel.tickMillis", 10);
+    public final static int defaultWheelSize = Integer.getInteger("timerWheel.wheelSize", 512);
+
+    private static final Logger logger = Logger.getLoggerFor(TimerWheel.class);
+
+    private static TimerWheel shared;
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<LinkedList<Entry>> buckets;
+    private final Queue<Entry> incoming = new ConcurrentLinkedQueue<Entry>();
+
+    private final long startNanos = System.nanoTime();
+    private long currentTick = 0;
+
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    public final class Entry {
+        private final long deadlineNanos;
+        private final Runnable task;
+        private long rounds;
+        private volatile boolean cancelled = false;
+        private volatile boolean expired = false;
+
+        private Entry(long deadlineNanos, Runnable task) {
+            this.deadlineNanos = deadlineNanos;
+            this.task = task;
+        }
+
+        /**
+         * @return true if the entry was cancelled before it expired
+         */
+        public boolean cancel() {
+            if (expired) {
+                return false;
+            }
+            cancelled = true;
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+    }
+
+    /**
+     * The wheel shared by everything in the process that just needs a cheap timeout.
+     */
+    public static synchronized TimerWheel getShared() {
+        if (shared == null) {
+            shared = new TimerWheel("LoggingHub-TimerWheel", defaultTickMillis, defaultWheelSize);
+        }
+        return shared;
+    }
+
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException(StringUtils.format("Wheel size must be a power of two, {} isn't", wheelSize));
+        }
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.mask = wheelSize - 1;
+        this.buckets = new ArrayList<LinkedList<Entry>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new LinkedList<Entry>());
+        }
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                runWheel();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Entry schedule(long delay, TimeUnit unit, Runnable task) {
+        Entry entry = new Entry(System.nanoTime() + unit.toNanos(delay), task);
+        incoming.add(entry);
+        return entry;
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void runWheel() {
+        while (running) {
+            long tickDeadline = startNanos + (currentTick + 1) * tickNanos;
+            long sleep = tickDeadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }
+                catch (InterruptedException e) {
+                    if (!running) {
+                        break;
+                    }
+                }
+            }
+
+            transferIncoming();
+            expireBucket(buckets.get((int) (currentTick & mask)));
+            currentTick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Entry entry;
+        while ((entry = incoming.poll()) != null) {
+            if (entry.cancelled) {
+                continue;
+            }
+
+            long ticks = (entry.deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+            ticks = Math.max(ticks, currentTick);
+            entry.rounds = (ticks - currentTick) / buckets.size();
+            buckets.get((int) (ticks & mask)).add(entry);
+        }
+    }
+
+    private void expireBucket(LinkedList<Entry> bucket) {
+        Iterator<Entry> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.cancelled) {
+                iterator.remove();
+            }
+            else if (entry.rounds > 0) {
+                entry.rounds--;
+            }
+            else {
+                iterator.remove();
+                entry.expired = true;
+                if (!entry.cancelled) {
+                    try {
+                        entry.task.run();
+                    }
+                    catch (RuntimeException e) {
+                        logger.warning(e, "Timer wheel task threw an exception");
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.logginghub.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The write side shared by {@link ExpandingByteBuffer} and {@link SegmentedByteBuffer}; all the
+ * encoders need is room for the next value, the position they have got to and the ability to patch
+ * lengths and flags in behind themselves once they know them.
+ *
+ * @author James
+ */
+public interface WritableByteBuffer {
+
+    /**
+     * @return a ByteBuffer positioned where the next value should go, with at least
+     *         <code>extraCapacity</code> bytes of space left in it
+     */
+    ByteBuffer getBuffer(int extraCapacity);
+
+    /**
+     * @return the number of bytes written so far
+     */
+    int position();
+
+    void setInt(int index, int value);
+
+    void setByte(int index, byte value);
+
+    void put(byte value);
+
+    void put(byte[] value);
+
+    void put(byte[] bytes, int offset, int length);
+
+    void put(ByteBuffer buffer);
+
+    void putBoolean(boolean value);
+
+    void putChar(char value);
+
+    void putShort(short value);
+
+    void putInt(int value);
+
+    void putLong(long value);
+
+    void putFloat(float value);
+
+    void putDouble(double value);
+}
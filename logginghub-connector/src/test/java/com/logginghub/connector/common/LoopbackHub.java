@@ -0,0 +1,125 @@
+package com.logginghub.connector.common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.utils.Bucket;
+import com.logginghub.utils.NetUtils;
+import com.logginghub.utils.Timeout;
+
+/**
+ * Just enough of a hub for connector tests: accepts connections on a free local port and collects
+ * the log events that arrive on any of them, along with which connection they came in on.
+ *
+ * @author James
+ */
+public class LoopbackHub {
+
+    /**
+     * An event and the index of the connection it arrived on; connections are numbered in the order
+     * they were accepted.
+     */
+    public static class ReceivedEvent {
+        private final int connectionIndex;
+        private final LogEvent event;
+
+        ReceivedEvent(int connectionIndex, LogEvent event) {
+            this.connectionIndex = connectionIndex;
+            this.event = event;
+        }
+
+        public int getConnectionIndex() {
+            return connectionIndex;
+        }
+
+        public LogEvent getEvent() {
+            return event;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final List<SocketConnection> connections = new CopyOnWriteArrayList<SocketConnection>();
+    private final Bucket<LogEvent> events = new Bucket<LogEvent>();
+    private final Bucket<ReceivedEvent> receivedEvents = new Bucket<ReceivedEvent>();
+    private int accepted = 0;
+
+    public LoopbackHub() throws IOException {
+        serverSocket = new ServerSocket(NetUtils.findFreePort());
+        events.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+        receivedEvents.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        final int index = accepted++;
+                        SocketConnection connection = new SocketConnection(socket, "hub-" + index);
+                        connection.addLoggingMessageListener(new LoggingMessageListener() {
+                            public void onNewLoggingMessage(LoggingMessage message) {
+                                if (message instanceof LogEventMessage) {
+                                    received(index, ((LogEventMessage) message).getLogEvent());
+                                }
+                                else if (message instanceof LogEventCollectionMessage) {
+                                    for (LogEvent event : ((LogEventCollectionMessage) message).getLogEventCollection()) {
+                                        received(index, event);
+                                    }
+                                }
+                            }
+                        });
+                        connections.add(connection);
+                        connection.start();
+                    }
+                }
+                catch (IOException e) {
+                    // Server socket closed
+                }
+            }
+        }, "LoopbackHub-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private synchronized void received(int connectionIndex, LogEvent event) {
+        // Keeps the two buckets in the same order
+        receivedEvents.add(new ReceivedEvent(connectionIndex, event));
+        events.add(event);
+    }
+
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress("localhost", serverSocket.getLocalPort());
+    }
+
+    public Bucket<LogEvent> getEvents() {
+        return events;
+    }
+
+    public Bucket<ReceivedEvent> getReceivedEvents() {
+        return receivedEvents;
+    }
+
+    public List<SocketConnection> getConnections() {
+        return connections;
+    }
+
+    /**
+     * Drop every client connection, but keep accepting new ones.
+     */
+    public void dropConnections() {
+        for (SocketConnection connection : connections) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        dropConnections();
+    }
+}
@@ -1,14 +1,23 @@
 package com.logginghub.connector.common;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
 import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import com.logginghub.connector.common.messages.LogEventMessage;
 import com.logginghub.utils.Bucket;
 import com.logginghub.utils.CpuLogger;
+import com.logginghub.utils.FileUtils;
 import com.logginghub.utils.GCWatcher;
 import com.logginghub.utils.HeapLogger;
 import com.logginghub.utils.NetUtils;
@@ -77,4 +86,272 @@ public class TestAppenderHelper {
         helper.close();
         
     }
+
+    @Test public void test_batched_dispatch() throws Exception {
+        AppenderHelper helper = new AppenderHelper("Test", new AppenderHelperCustomisationInterface() {
+            public HeapLogger createHeapLogger() {
+                return null;
+            }
+
+            public GCWatcher createGCWatcher() {
+                return null;
+            }
+
+            public CpuLogger createCPULogger() {
+                return null;
+            }
+        });
+
+        final Bucket<LoggingMessage> sent = new Bucket<LoggingMessage>();
+        helper.setSocketClient(new SocketClient() {
+            @Override public void send(LoggingMessage message) throws LoggingMessageSenderException {
+                sent.add(message);
+            }
+        });
+
+        helper.setDispatchBatchSize(10);
+        helper.setDispatchBatchTimeout(TimeUnit.SECONDS.toMicros(1));
+
+        AppenderHelperEventConvertor convertor = new AppenderHelperEventConvertor() {
+            public EventSnapshot createSnapshot() {
+                return new EventSnapshot() {
+                    public LogEvent rebuildEvent() {
+                        return createLogEvent();
+                    }
+                };
+            }
+
+            public LogEvent createLogEvent() {
+                return LogEventFactory.createFullLogEvent1();
+            }
+        };
+
+        for (int i = 0; i < 15; i++) {
+            helper.append(convertor);
+        }
+
+        sent.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+        sent.waitForMessages(2);
+        helper.waitUntilAllRecordsHaveBeenPublished();
+
+        // The first batch fills up, the remainder goes once the batch timeout expires
+        assertThat(sent.size(), is(2));
+        assertThat(sent.get(0), is(instanceOf(LogEventCollectionMessage.class)));
+        assertThat(((LogEventCollectionMessage) sent.get(0)).getLogEventCollection().size(), is(10));
+        assertThat(((LogEventCollectionMessage) sent.get(1)).getLogEventCollection().size(), is(5));
+
+        helper.close();
+    }
+
+    @Test public void test_batching_turned_off_with_a_batch_pending() throws Exception {
+        AppenderHelper helper = new AppenderHelper("Test", new AppenderHelperCustomisationInterface() {
+            public HeapLogger createHeapLogger() {
+                return null;
+            }
+
+            public GCWatcher createGCWatcher() {
+                return null;
+            }
+
+            public CpuLogger createCPULogger() {
+                return null;
+            }
+        });
+
+        final Bucket<LogEvent> received = new Bucket<LogEvent>();
+        final Bucket<LoggingMessage> failed = new Bucket<LoggingMessage>();
+        final boolean[] hubUp = new boolean[] { false };
+        helper.setSocketClient(new SocketClient() {
+            @Override public void send(LoggingMessage message) throws LoggingMessageSenderException {
+                if (!hubUp[0]) {
+                    failed.add(message);
+                    throw new LoggingMessageSenderException("Hub is down");
+                }
+
+                for (LogEvent event : ((LogEventCollectionMessage) message).getLogEventCollection()) {
+                    received.add(event);
+                }
+            }
+        });
+
+        helper.setDontThrowExceptionsIfHubIsntUp(true);
+        helper.setFailureDelay(10);
+        helper.setFailureDelayMaximum(50);
+        helper.setDispatchBatchSize(10);
+        helper.setDispatchBatchTimeout(TimeUnit.MILLISECONDS.toMicros(10));
+
+        AppenderHelperEventConvertor convertor = new AppenderHelperEventConvertor() {
+            public EventSnapshot createSnapshot() {
+                return new EventSnapshot() {
+                    public LogEvent rebuildEvent() {
+                        return createLogEvent();
+                    }
+                };
+            }
+
+            public LogEvent createLogEvent() {
+                return LogEventFactory.createFullLogEvent1();
+            }
+        };
+
+        for (int i = 0; i < 5; i++) {
+            helper.append(convertor);
+        }
+
+        failed.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+        failed.waitForMessages(1);
+
+        // The batch that failed should still go out as a batch once the hub is back
+        helper.setDispatchBatchSize(1);
+        hubUp[0] = true;
+
+        received.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+        received.waitForMessages(5);
+        helper.waitUntilAllRecordsHaveBeenPublished();
+        assertThat(received.size(), is(5));
+
+        helper.close();
+    }
+
+    @Test public void test_resize_dispatch_queue_whilst_appending() throws Exception {
+        final AppenderHelper helper = new AppenderHelper("Test", new AppenderHelperCustomisationInterface() {
+            public HeapLogger createHeapLogger() {
+                return null;
+            }
+
+            public GCWatcher createGCWatcher() {
+                return null;
+            }
+
+            public CpuLogger createCPULogger() {
+                return null;
+            }
+        });
+
+        final AtomicLong sent = new AtomicLong();
+        helper.setSocketClient(new SocketClient() {
+            @Override public void send(LoggingMessage message) throws LoggingMessageSenderException {
+                sent.incrementAndGet();
+            }
+        });
+
+        final AppenderHelperEventConvertor convertor = new AppenderHelperEventConvertor() {
+            public EventSnapshot createSnapshot() {
+                return new EventSnapshot() {
+                    public LogEvent rebuildEvent() {
+                        return createLogEvent();
+                    }
+                };
+            }
+
+            public LogEvent createLogEvent() {
+                return LogEventFactory.createFullLogEvent1();
+            }
+        };
+
+        final int threads = 4;
+        final int perThread = 20000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < perThread; j++) {
+                        helper.append(convertor);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        // Small queues, so some of the events get dropped and have to be counted
+        int resizes = 0;
+        while (done.getCount() > 0) {
+            helper.setMaxDispatchQueueSize(resizes++ % 2 == 0 ? 8 : 16);
+        }
+        done.await();
+
+        helper.waitUntilAllRecordsHaveBeenPublished();
+        assertThat(sent.get() + helper.getDiscards(), is((long) threads * perThread));
+
+        helper.close();
+    }
+
+    @Test public void test_spool_during_outage() throws Exception {
+        AppenderHelper helper = new AppenderHelper("Test", new AppenderHelperCustomisationInterface() {
+            public HeapLogger createHeapLogger() {
+                return null;
+            }
+
+            public GCWatcher createGCWatcher() {
+                return null;
+            }
+
+            public CpuLogger createCPULogger() {
+                return null;
+            }
+        });
+
+        final Bucket<LogEvent> received = new Bucket<LogEvent>();
+        final boolean[] hubUp = new boolean[] { false };
+        helper.setSocketClient(new SocketClient() {
+            @Override public void send(LoggingMessage message) throws LoggingMessageSenderException {
+                if (!hubUp[0]) {
+                    throw new LoggingMessageSenderException("Hub is down");
+                }
+
+                if (message instanceof LogEventCollectionMessage) {
+                    for (LogEvent event : ((LogEventCollectionMessage) message).getLogEventCollection()) {
+                        received.add(event);
+                    }
+                }
+                else {
+                    received.add(((LogEventMessage) message).getLogEvent());
+                }
+            }
+        });
+
+        File folder = FileUtils.createRandomTestFolderForClass(TestAppenderHelper.class);
+        helper.setSpoolDirectory(folder.getAbsolutePath());
+        helper.setSpoolReplayRate(0);
+        helper.setDontThrowExceptionsIfHubIsntUp(true);
+        helper.setFailureDelay(10);
+        helper.setFailureDelayMaximum(50);
+
+        // Far more than the dispatch queue can hold
+        helper.setMaxDispatchQueueSize(16);
+        int count = 500;
+        for (int i = 0; i < count; i++) {
+            final int sequence = i;
+            helper.append(new AppenderHelperEventConvertor() {
+                public EventSnapshot createSnapshot() {
+                    return new EventSnapshot() {
+                        public LogEvent rebuildEvent() {
+                            return createLogEvent();
+                        }
+                    };
+                }
+
+                public LogEvent createLogEvent() {
+                    DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+                    event.setSequenceNumber(sequence);
+                    return event;
+                }
+            });
+        }
+
+        assertThat(helper.getDiscards(), is(0L));
+        assertThat(received.size(), is(0));
+
+        hubUp[0] = true;
+
+        received.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+        received.waitForMessages(count);
+        helper.waitUntilAllRecordsHaveBeenPublished();
+
+        assertThat(received.size(), is(count));
+        assertThat(helper.getSpool().getDiscarded(), is(0L));
+        assertThat(helper.getSpool().isEmpty(), is(true));
+
+        helper.close();
+    }
 }
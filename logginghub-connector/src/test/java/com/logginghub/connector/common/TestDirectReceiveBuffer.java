@@ -0,0 +1,132 @@
+package com.logginghub.connector.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.utils.ExpandingByteBuffer;
+
+public class TestDirectReceiveBuffer {
+
+    /**
+     * Hands out the encoded bytes a few at a time, like a slow socket would
+     */
+    private static class ChunkedChannel implements ReadableByteChannel {
+        private final ByteBuffer source;
+        private final int chunkSize;
+
+        ChunkedChannel(ByteBuffer source, int chunkSize) {
+            this.source = source;
+            this.chunkSize = chunkSize;
+        }
+
+        public int read(ByteBuffer destination) throws IOException {
+            if (!source.hasRemaining()) {
+                return -1;
+            }
+
+            int count = Math.min(chunkSize, Math.min(source.remaining(), destination.remaining()));
+            ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + count);
+            destination.put(slice);
+            source.position(source.position() + count);
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() throws IOException {}
+    }
+
+    private int peakCapacity;
+
+    private List<LoggingMessage> readAll(DirectReceiveBuffer receiveBuffer, ReadableByteChannel channel) throws Exception {
+        LoggingMessageCodex codex = new LoggingMessageCodex();
+        List<LoggingMessage> decoded = new ArrayList<LoggingMessage>();
+
+        while (receiveBuffer.readFrom(channel) != -1) {
+            peakCapacity = Math.max(peakCapacity, receiveBuffer.getCapacity());
+            ByteBuffer buffer = receiveBuffer.beginDecode();
+            try {
+                while (buffer.hasRemaining()) {
+                    int position = buffer.position();
+                    try {
+                        decoded.add(codex.decode(buffer));
+                    }
+                    catch (PartialMessageException e) {
+                        buffer.position(position);
+                        break;
+                    }
+                }
+            }
+            finally {
+                receiveBuffer.endDecode();
+            }
+        }
+
+        return decoded;
+    }
+
+    @Test public void test_decode_in_place_with_partial_frames() throws Exception {
+        ExpandingByteBuffer encoded = new ExpandingByteBuffer();
+        LoggingMessageCodex codex = new LoggingMessageCodex();
+        int messages = 500;
+        for (int i = 0; i < messages; i++) {
+            DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+            event.setSequenceNumber(i);
+            codex.encode(encoded, new LogEventMessage(event));
+        }
+        encoded.flip();
+        int totalBytes = encoded.remaining();
+
+        // Small buffer and odd sized reads so frames keep straddling the end of the buffer
+        DirectReceiveBuffer receiveBuffer = new DirectReceiveBuffer(1024, 256);
+        List<LoggingMessage> decoded = readAll(receiveBuffer, new ChunkedChannel(encoded.getBuffer(), 97));
+
+        assertThat(decoded.size(), is(messages));
+        for (int i = 0; i < messages; i++) {
+            assertThat(((LogEventMessage) decoded.get(i)).getLogEvent().getSequenceNumber(), is((long) i));
+        }
+
+        assertThat(receiveBuffer.getBytesRead(), is((long) totalBytes));
+        assertThat(receiveBuffer.getPending(), is(0));
+        assertThat(receiveBuffer.getCapacity(), is(1024));
+
+        // Compacting should be the exception rather than happening on every read
+        assertThat(receiveBuffer.getCompactions() < totalBytes / 97 / 4, is(true));
+    }
+
+    @Test public void test_grows_for_large_frames() throws Exception {
+        ExpandingByteBuffer encoded = new ExpandingByteBuffer();
+        LoggingMessageCodex codex = new LoggingMessageCodex();
+
+        DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            message.append("large message ");
+        }
+        event.setMessage(message.toString());
+        codex.encode(encoded, new LogEventMessage(event));
+        encoded.flip();
+
+        DirectReceiveBuffer receiveBuffer = new DirectReceiveBuffer(1024, 256);
+        List<LoggingMessage> decoded = readAll(receiveBuffer, new ChunkedChannel(encoded.getBuffer(), 4096));
+
+        assertThat(decoded.size(), is(1));
+        assertThat(((LogEventMessage) decoded.get(0)).getLogEvent().getMessage(), is(message.toString()));
+        assertThat(peakCapacity >= 140000, is(true));
+
+        // Once the big frame has gone the buffer goes back to its original size
+        assertThat(receiveBuffer.getCapacity(), is(1024));
+    }
+}
@@ -0,0 +1,138 @@
+package com.logginghub.connector.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.logginghub.utils.FileUtils;
+
+public class TestDiskSpool {
+
+    private DefaultLogEvent createEvent(int sequence) {
+        DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+        event.setSequenceNumber(sequence);
+        return event;
+    }
+
+    @Test public void test_append_peek_remove_across_segments() throws Exception {
+        File folder = FileUtils.createRandomTestFolderForClass(TestDiskSpool.class);
+        DiskSpool spool = new DiskSpool(folder, 4096, 1024 * 1024);
+
+        int count = 200;
+        for (int i = 0; i < count; i++) {
+            assertThat(spool.append(createEvent(i)), is(true));
+        }
+
+        assertThat(spool.size(), is(count));
+        assertThat(spool.getSegmentCount() > 1, is(true));
+
+        // Peeking doesn't take anything off
+        List<LogEvent> peeked = new ArrayList<LogEvent>();
+        assertThat(spool.peek(50, peeked), is(50));
+        assertThat(spool.size(), is(count));
+        assertThat(peeked.get(0).getSequenceNumber(), is(0L));
+        assertThat(peeked.get(49).getSequenceNumber(), is(49L));
+        assertThat(peeked.get(49).getMessage(), is(createEvent(49).getMessage()));
+
+        spool.remove(50);
+        assertThat(spool.size(), is(count - 50));
+
+        int expected = 50;
+        while (!spool.isEmpty()) {
+            List<LogEvent> batch = new ArrayList<LogEvent>();
+            int read = spool.peek(30, batch);
+            for (LogEvent event : batch) {
+                assertThat(event.getSequenceNumber(), is((long) expected++));
+            }
+            spool.remove(read);
+        }
+
+        assertThat(expected, is(count));
+        assertThat(spool.getReplayed(), is((long) count));
+        assertThat(spool.getSegmentCount(), is(1));
+
+        // The segments get reused rather than new files being created
+        int files = folder.listFiles().length;
+        for (int i = 0; i < count; i++) {
+            spool.append(createEvent(i));
+        }
+        assertThat(folder.listFiles().length, is(files));
+
+        spool.close();
+    }
+
+    @Test public void test_recovers_after_reopen() throws Exception {
+        File folder = FileUtils.createRandomTestFolderForClass(TestDiskSpool.class);
+        DiskSpool spool = new DiskSpool(folder, 4096, 1024 * 1024);
+
+        for (int i = 0; i < 100; i++) {
+            spool.append(createEvent(i));
+        }
+
+        List<LogEvent> peeked = new ArrayList<LogEvent>();
+        spool.remove(spool.peek(40, peeked));
+        spool.close();
+
+        // The events are left on disk, but a closed spool has nothing more to give
+        assertThat(spool.isEmpty(), is(true));
+        assertThat(spool.size(), is(0));
+        assertThat(spool.peek(100, peeked), is(0));
+
+        DiskSpool reopened = new DiskSpool(folder, 4096, 1024 * 1024);
+        assertThat(reopened.size(), is(60));
+
+        List<LogEvent> remaining = new ArrayList<LogEvent>();
+        assertThat(reopened.peek(100, remaining), is(60));
+        assertThat(remaining.get(0).getSequenceNumber(), is(40L));
+        assertThat(remaining.get(59).getSequenceNumber(), is(99L));
+
+        // New events carry on after the recovered ones
+        reopened.append(createEvent(100));
+        remaining.clear();
+        reopened.peek(100, remaining);
+        assertThat(remaining.size(), is(61));
+        assertThat(remaining.get(60).getSequenceNumber(), is(100L));
+
+        reopened.close();
+    }
+
+    @Test public void test_size_cap_discards_oldest() throws Exception {
+        File folder = FileUtils.createRandomTestFolderForClass(TestDiskSpool.class);
+        DiskSpool spool = new DiskSpool(folder, 4096, 4 * 4096);
+
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            spool.append(createEvent(i));
+        }
+
+        assertThat(spool.getSegmentCount(), is(4));
+        assertThat(folder.listFiles().length, is(4));
+        assertThat(spool.getDiscarded() > 0, is(true));
+        assertThat(spool.size() + spool.getDiscarded(), is((long) count));
+
+        // Whatever is left is the newest events, still in order
+        List<LogEvent> remaining = new ArrayList<LogEvent>();
+        spool.peek(count, remaining);
+        assertThat(remaining.get(0).getSequenceNumber(), is(spool.getDiscarded()));
+        assertThat(remaining.get(remaining.size() - 1).getSequenceNumber(), is((long) count - 1));
+
+        // Events discarded between a peek and the remove aren't taken off a second time
+        List<LogEvent> peeked = new ArrayList<LogEvent>();
+        spool.peek(10, peeked);
+        long discardedBefore = spool.getDiscarded();
+        for (int i = 0; i < 200; i++) {
+            spool.append(createEvent(count + i));
+        }
+        long discardedSince = spool.getDiscarded() - discardedBefore;
+        int sizeBefore = spool.size();
+        spool.remove(10);
+        assertThat(spool.size(), is(sizeBefore - (int) Math.max(0, 10 - discardedSince)));
+
+        spool.close();
+    }
+}
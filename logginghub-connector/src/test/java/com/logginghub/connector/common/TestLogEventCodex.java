@@ -4,11 +4,15 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import com.logginghub.utils.BufferPool;
 import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.SegmentedByteBuffer;
 
 @RunWith(CustomRunner.class)
 public class TestLogEventCodex {
@@ -84,4 +88,174 @@ public class TestLogEventCodex {
         assertThat(decoded2.getChannel(), is("channel2"));
     }
 
+    @Test public void test_strings_are_utf8_on_the_wire() throws PartialMessageException {
+        String message = "caf\u00e9 \u65e5\u672c \ud83d\ude00";
+        event1.setMessage(message);
+        event1.setFormattedObject(new String[] { "\u00fc", null, "" });
+
+        LogEventCodex.encodeInternal_version1_with_channel_and_pid(buffer, event1);
+        buffer.flip();
+
+        // version, length, level, then the message string
+        ByteBuffer raw = buffer.getBuffer().duplicate();
+        raw.position(1 + 4 + 2);
+        byte[] expected = message.getBytes(AbstractCodex.wireCharset);
+        assertThat(raw.getInt(), is(expected.length));
+        byte[] actual = new byte[expected.length];
+        raw.get(actual);
+        assertThat(actual, is(expected));
+
+        LogEvent decoded = LogEventCodex.decode(buffer.getBuffer());
+        assertThat(decoded.getMessage(), is(message));
+        assertThat(decoded.getFormattedObject(), is(new String[] { "\u00fc", null, "" }));
+        assertThat(decoded.equals(event1), is(true));
+    }
+
+    @Test public void test_large_strings() throws PartialMessageException {
+        // Bigger than the codex will let its per-thread scratch arrays grow to
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            builder.append((char) ('a' + (i % 26)));
+            if (i % 100 == 0) {
+                builder.append('\u20ac');
+            }
+        }
+
+        event1.setFormattedException(builder.toString());
+        LogEventCodex.encodeInternal_version1_with_channel_and_pid(buffer, event1);
+        buffer.flip();
+
+        LogEvent decoded = LogEventCodex.decode(buffer.getBuffer());
+        assertThat(decoded.getFormattedException(), is(builder.toString()));
+    }
+
+    @Test public void test_repeated_fields_are_interned() throws PartialMessageException {
+        LogEventCodex.encode(buffer, event1);
+        LogEventCodex.encode(buffer, event1);
+        buffer.flip();
+
+        long hits = LogEventCodex.getInterner().getHits();
+
+        LogEvent first = LogEventCodex.decode(buffer.getBuffer());
+        LogEvent second = LogEventCodex.decode(buffer.getBuffer());
+
+        assertThat(second.equals(event1), is(true));
+        assertThat(first.getSourceHost() == second.getSourceHost(), is(true));
+        assertThat(first.getThreadName() == second.getThreadName(), is(true));
+        assertThat(first.getLoggerName() == second.getLoggerName(), is(true));
+
+        // The message is never interned
+        assertThat(first.getMessage() == second.getMessage(), is(false));
+        assertThat(LogEventCodex.getInterner().getHits() - hits >= 8, is(true));
+    }
+
+    @Test public void test_dictionary_encoding() throws PartialMessageException {
+        StringDictionary outgoing = new StringDictionary();
+        StringDictionary incoming = new StringDictionary();
+
+        ExpandingByteBuffer plain = new ExpandingByteBuffer();
+        LogEventCodex.encode(plain, event1);
+        int plainSize = plain.position();
+
+        LogEventCodex.encode(buffer, event1, outgoing);
+        int firstSize = buffer.position();
+        LogEventCodex.encode(buffer, event2, outgoing);
+        int secondSize = buffer.position() - firstSize;
+
+        // The second event only has to send references for everything apart from the new channel
+        assertThat(secondSize < plainSize / 2, is(true));
+        assertThat(outgoing.getSize(), is(8));
+
+        buffer.flip();
+        assertThat(LogEventCodex.decode(buffer.getBuffer(), incoming).equals(event1), is(true));
+        assertThat(LogEventCodex.decode(buffer.getBuffer(), incoming).equals(event2), is(true));
+        assertThat(buffer.getBuffer().remaining(), is(0));
+    }
+
+    @Test public void test_dictionary_partial_decode() throws PartialMessageException {
+        StringDictionary outgoing = new StringDictionary();
+        StringDictionary incoming = new StringDictionary();
+
+        LogEventCodex.encode(buffer, event1, outgoing);
+        buffer.flip();
+
+        ByteBuffer full = buffer.getBuffer();
+        ByteBuffer partial = full.duplicate();
+        partial.limit(full.limit() - 1);
+
+        try {
+            LogEventCodex.decode(partial, incoming);
+            throw new AssertionError("Should have been partial");
+        }
+        catch (PartialMessageException e) {
+            assertThat(partial.position(), is(0));
+        }
+
+        // Nothing should have been defined from the partial event
+        assertThat(incoming.getDefinitions(), is(0L));
+        assertThat(LogEventCodex.decode(full, incoming).equals(event1), is(true));
+    }
+
+    @Test public void test_dictionary_rollback() throws PartialMessageException {
+        StringDictionary outgoing = new StringDictionary();
+        StringDictionary incoming = new StringDictionary();
+
+        outgoing.mark();
+        LogEventCodex.encode(new ExpandingByteBuffer(), event1, outgoing);
+        outgoing.rollback();
+        assertThat(outgoing.getSize(), is(0));
+
+        // Having rolled back, the next encode has to send the definitions again
+        LogEventCodex.encode(buffer, event1, outgoing);
+        buffer.flip();
+        assertThat(LogEventCodex.decode(buffer.getBuffer(), incoming).equals(event1), is(true));
+    }
+
+    @Test public void test_dictionary_full() throws PartialMessageException {
+        StringDictionary outgoing = new StringDictionary(2);
+        StringDictionary incoming = new StringDictionary(2);
+
+        LogEventCodex.encode(buffer, event1, outgoing);
+        LogEventCodex.encode(buffer, event2, outgoing);
+        assertThat(outgoing.getSize(), is(2));
+        assertThat(outgoing.getLiterals() > 0, is(true));
+
+        buffer.flip();
+        assertThat(LogEventCodex.decode(buffer.getBuffer(), incoming).equals(event1), is(true));
+        assertThat(LogEventCodex.decode(buffer.getBuffer(), incoming).equals(event2), is(true));
+    }
+
+    @Test(expected = RuntimeException.class) public void test_dictionary_event_without_dictionary() throws PartialMessageException {
+        LogEventCodex.encode(buffer, event1, new StringDictionary());
+        buffer.flip();
+        LogEventCodex.decode(buffer.getBuffer());
+    }
+
+    @Test public void test_encode_keeps_what_is_already_in_the_buffer() throws PartialMessageException {
+        // Small enough that the event has to grow it part way through
+        ExpandingByteBuffer small = new ExpandingByteBuffer(16);
+        small.putInt(42);
+
+        LogEventCodex.encode(small, event2);
+        small.flip();
+
+        ByteBuffer contents = small.getBuffer();
+        assertThat(contents.getInt(), is(42));
+        assertThat(LogEventCodex.decode(contents).equals(event2), is(true));
+    }
+
+    @Test public void test_encode_into_segments() throws PartialMessageException {
+        BufferPool pool = new BufferPool(false, 64, 1024, 8);
+        SegmentedByteBuffer segmented = new SegmentedByteBuffer(64, pool);
+
+        LogEventCodex.encode(segmented, event1);
+        LogEventCodex.encode(segmented, event2);
+        assertThat(segmented.getSegmentCount() > 1, is(true));
+
+        segmented.flip();
+        ByteBuffer contents = ByteBuffer.wrap(segmented.getContents());
+        assertThat(LogEventCodex.decode(contents).equals(event1), is(true));
+        assertThat(LogEventCodex.decode(contents).equals(event2), is(true));
+        assertThat(contents.hasRemaining(), is(false));
+    }
 }
@@ -5,13 +5,16 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertTrue;
 
+import java.nio.ByteBuffer;
 import java.util.EnumSet;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import com.logginghub.connector.common.LoggingMessageCodex.Flags;
+import com.logginghub.connector.common.messages.ChannelMessage;
 import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.connector.common.serialisation.CompressionStrategyFactory;
 import com.logginghub.sof.SofException;
 import com.logginghub.utils.ExpandingByteBuffer;
 
@@ -64,6 +67,87 @@ import com.logginghub.utils.ExpandingByteBuffer;
         assertThat(decoded3.getMessage(), is("hello 3"));
     }
 
+    @Test public void test_sof_single_pass_round_trip() throws PartialMessageException {
+        LoggingMessageCodex encoder = new LoggingMessageCodex();
+        assertThat(encoder.getSofConfiguration().isSinglePassEncoding(), is(true));
+
+        DefaultLogEvent event = LogEventFactory.createFullLogEvent1("TestApp");
+        ExpandingByteBuffer buffer = new ExpandingByteBuffer();
+        encoder.encode(buffer, new ChannelMessage("events/TestApp", event));
+        buffer.flip();
+
+        // Readers that encode in two passes can still read the padded header slots
+        LoggingMessageCodex decoder = new LoggingMessageCodex();
+        decoder.getSofConfiguration().setSinglePassEncoding(false);
+
+        ChannelMessage decoded = (ChannelMessage) decoder.decode(buffer.getBuffer());
+        assertThat(buffer.getBuffer().hasRemaining(), is(false));
+        assertThat(decoded.getChannel(), is(ChannelMessage.parseChannel("events/TestApp")));
+
+        DefaultLogEvent decodedEvent = (DefaultLogEvent) decoded.getPayload();
+        assertThat(decodedEvent.getMessage(), is(event.getMessage()));
+        assertThat(decodedEvent.getSourceApplication(), is("TestApp"));
+        assertThat(decodedEvent.getSequenceNumber(), is(event.getSequenceNumber()));
+        assertThat(decodedEvent.getFormattedException(), is(event.getFormattedException()));
+    }
+
+    @Test public void test_sof_codecs_match_the_generic_encoding() throws PartialMessageException {
+        DefaultLogEvent full = LogEventFactory.createFullLogEvent1("TestApp");
+        DefaultLogEvent sparse = new DefaultLogEvent();
+        sparse.setMessage("Mostly nulls \u00e9\u4e2d");
+
+        for (boolean singlePass : new boolean[] { false, true }) {
+            for (boolean byteLengthStrings : new boolean[] { false, true }) {
+                for (DefaultLogEvent event : new DefaultLogEvent[] { full, sparse }) {
+                    LoggingMessageCodex codecs = new LoggingMessageCodex();
+                    codecs.getSofConfiguration().setSinglePassEncoding(singlePass);
+                    codecs.getSofConfiguration().setByteLengthStrings(byteLengthStrings);
+
+                    LoggingMessageCodex generic = new LoggingMessageCodex();
+                    generic.getSofConfiguration().setSinglePassEncoding(singlePass);
+                    generic.getSofConfiguration().setByteLengthStrings(byteLengthStrings);
+                    generic.getSofConfiguration().setUseCodecs(false);
+
+                    ChannelMessage message = new ChannelMessage("events/TestApp", event);
+                    byte[] withCodecs = encode(codecs, message);
+                    byte[] withoutCodecs = encode(generic, message);
+                    assertThat(withCodecs, is(withoutCodecs));
+
+                    // And each can read the other
+                    ChannelMessage decoded = (ChannelMessage) codecs.decode(ByteBuffer.wrap(withoutCodecs));
+                    assertThat(decoded.getChannel(), is(message.getChannel()));
+                    LogEventComparer.assertEquals(event, (DefaultLogEvent) decoded.getPayload());
+
+                    decoded = (ChannelMessage) generic.decode(ByteBuffer.wrap(withCodecs));
+                    LogEventComparer.assertEquals(event, (DefaultLogEvent) decoded.getPayload());
+                }
+            }
+        }
+    }
+
+    @Test public void test_sof_codec_passes_lazy_payloads_through() throws PartialMessageException {
+        LoggingMessageCodex codex = new LoggingMessageCodex();
+        codex.getSofConfiguration().setLazyDecodeOfNestedTypes(true);
+
+        DefaultLogEvent event = LogEventFactory.createFullLogEvent2("TestApp");
+        ChannelMessage routed = (ChannelMessage) codex.decode(ByteBuffer.wrap(encode(codex, new ChannelMessage("events/TestApp", event))));
+        assertThat(routed.isPayloadDecoded(), is(false));
+
+        byte[] reencoded = encode(codex, routed);
+        assertThat(routed.isPayloadDecoded(), is(false));
+
+        ChannelMessage received = (ChannelMessage) codex.decode(ByteBuffer.wrap(reencoded));
+        assertThat(received.getChannel(), is(ChannelMessage.parseChannel("events/TestApp")));
+        LogEventComparer.assertEquals(event, (DefaultLogEvent) received.getPayload());
+    }
+
+    private byte[] encode(LoggingMessageCodex codex, LoggingMessage message) {
+        ExpandingByteBuffer buffer = new ExpandingByteBuffer();
+        codex.encode(buffer, message);
+        buffer.flip();
+        return buffer.getContents();
+    }
+
     @Test public void testEventEncoding() throws PartialMessageException {
         LoggingMessageCodex decoder = new LoggingMessageCodex();
 
@@ -231,4 +315,58 @@ import com.logginghub.utils.ExpandingByteBuffer;
 
         LogEventComparer.assertEquals(collection, message.getLogEventCollection());
     }
+
+    @Test public void test_compressed_batch() throws PartialMessageException {
+        LoggingMessageCodex encoder = new LoggingMessageCodex();
+        LoggingMessageCodex decoder = new LoggingMessageCodex();
+
+        ExpandingByteBuffer buffer = new ExpandingByteBuffer();
+
+        // Nothing happens until compression has been enabled
+        encoder.encode(buffer, LogEventFactory.createFullLogEvent1("TestApp"));
+        assertThat(encoder.compressFrames(buffer, 0), is(false));
+        buffer.clear();
+
+        encoder.enableCompression(CompressionStrategyFactory.compression_lz4);
+
+        int count = 50;
+        for (int i = 0; i < count; i++) {
+            DefaultLogEvent event = LogEventFactory.createFullLogEvent1("TestApp");
+            event.setSequenceNumber(i);
+            encoder.encode(buffer, event);
+        }
+
+        int uncompressed = buffer.position();
+        assertThat(encoder.compressFrames(buffer, 0), is(true));
+        assertTrue(buffer.position() < uncompressed);
+        assertThat(encoder.getCompressionStats().getBytesBeforeCompression(), is((long) uncompressed));
+        assertThat(encoder.getCompressionStats().getBytesAfterCompression(), is((long) buffer.position()));
+        assertTrue(encoder.getCompressionStats().getCompressionRatio() > 1);
+
+        buffer.flip();
+        ByteBuffer wire = buffer.getBuffer();
+
+        // Only part of the batch has arrived
+        ByteBuffer partial = wire.duplicate();
+        partial.limit(wire.limit() - 1);
+        try {
+            decoder.decompressFrames(partial);
+            assertTrue("Should have been a partial message", false);
+        }
+        catch (PartialMessageException e) {
+            assertThat(partial.position(), is(0));
+        }
+
+        ByteBuffer frames = decoder.decompressFrames(wire);
+        assertThat(wire.hasRemaining(), is(false));
+        assertThat(frames.remaining(), is(uncompressed));
+
+        for (int i = 0; i < count; i++) {
+            LogEventMessage message = (LogEventMessage) decoder.decode(frames);
+            assertThat(message.getLogEvent().getSequenceNumber(), is((long) i));
+        }
+
+        assertThat(frames.hasRemaining(), is(false));
+        assertThat(decoder.getCompressionStats().getBytesAfterDecompression(), is((long) uncompressed));
+    }
 }
@@ -0,0 +1,164 @@
+package com.logginghub.connector.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.utils.Bucket;
+import com.logginghub.utils.NetUtils;
+import com.logginghub.utils.ThreadUtils;
+import com.logginghub.utils.Timeout;
+
+@RunWith(CustomRunner.class)
+public class TestReactorSocketConnection {
+
+    @Test public void test_many_connections_one_thread() throws Exception {
+        SocketReactor reactor = new SocketReactor("Test", 1);
+
+        int port = NetUtils.findFreePort();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress("localhost", port));
+
+        int connections = 5;
+        int messages = 200;
+
+        List<ReactorSocketConnection> clients = new ArrayList<ReactorSocketConnection>();
+        List<ReactorSocketConnection> servers = new ArrayList<ReactorSocketConnection>();
+        List<Bucket<LoggingMessage>> serverReceived = new ArrayList<Bucket<LoggingMessage>>();
+        List<Bucket<LoggingMessage>> clientReceived = new ArrayList<Bucket<LoggingMessage>>();
+        List<Bucket<String>> clientClosed = new ArrayList<Bucket<String>>();
+
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+            SocketChannel accepted = serverChannel.accept();
+
+            ReactorSocketConnection server = new ReactorSocketConnection(accepted, "server-" + i, reactor);
+            ReactorSocketConnection client = new ReactorSocketConnection(channel, "client-" + i, reactor);
+
+            serverReceived.add(listen(server));
+            clientReceived.add(listen(client));
+
+            final Bucket<String> closed = new Bucket<String>();
+            closed.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+            client.addConnectionListener(new ConnectionListener() {
+                public void onConnectionClosed(String reason) {
+                    closed.add(reason);
+                }
+            });
+            clientClosed.add(closed);
+
+            server.start();
+            client.start();
+
+            servers.add(server);
+            clients.add(client);
+        }
+
+        assertThat(reactor.getThreadCount(), is(1));
+        assertThat(reactor.getConnectionCount(), is(connections * 2));
+
+        for (int j = 0; j < messages; j++) {
+            for (int i = 0; i < connections; i++) {
+                DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+                event.setSequenceNumber(j);
+                clients.get(i).send(new LogEventMessage(event));
+            }
+        }
+
+        for (int i = 0; i < connections; i++) {
+            Bucket<LoggingMessage> received = serverReceived.get(i);
+            received.waitForMessages(messages);
+            assertThat(received.size(), is(messages));
+            for (int j = 0; j < messages; j++) {
+                assertThat(((LogEventMessage) received.get(j)).getLogEvent().getSequenceNumber(), is((long) j));
+            }
+
+            // And back the other way, through the blocking send
+            servers.get(i).sendBlocking(new LogEventMessage(LogEventFactory.createFullLogEvent1()));
+            clientReceived.get(i).waitForMessages(1);
+            assertThat(clientReceived.get(i).size(), is(1));
+        }
+
+        // Closing the server end should be noticed by the client
+        for (int i = 0; i < connections; i++) {
+            servers.get(i).close();
+            clientClosed.get(i).waitForMessages(1);
+            assertThat(clientClosed.get(i).size(), is(1));
+        }
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (reactor.getConnectionCount() > 0 && System.currentTimeMillis() < deadline) {
+            ThreadUtils.sleep(10);
+        }
+        assertThat(reactor.getConnectionCount(), is(0));
+
+        reactor.stop();
+        serverChannel.close();
+    }
+
+    @Test public void test_send_from_the_loop_thread_during_registration() throws Exception {
+        SocketReactor reactor = new SocketReactor("Test", 1);
+
+        int port = NetUtils.findFreePort();
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress("localhost", port));
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        SocketChannel accepted = serverChannel.accept();
+
+        ReactorSocketConnection server = new ReactorSocketConnection(accepted, "server", reactor);
+        Bucket<LoggingMessage> received = listen(server);
+        server.start();
+
+        // Queue messages from the loop thread after it has chosen the interest ops, but before the
+        // connection has its key
+        ReactorSocketConnection client = new ReactorSocketConnection(channel, "client", reactor) {
+            @Override void onRegistered(SelectionKey key) {
+                try {
+                    send(new LogEventMessage(LogEventFactory.createFullLogEvent1()));
+                    sendBlocking(new LogEventMessage(LogEventFactory.createFullLogEvent1()));
+                }
+                catch (LoggingMessageSenderException e) {
+                    throw new RuntimeException(e);
+                }
+                super.onRegistered(key);
+            }
+        };
+        client.start();
+
+        received.waitForMessages(2);
+        assertThat(received.size(), is(2));
+
+        // And the connection carries on writing afterwards
+        client.send(new LogEventMessage(LogEventFactory.createFullLogEvent1()));
+        received.waitForMessages(3);
+        assertThat(received.size(), is(3));
+
+        client.close();
+        server.close();
+        reactor.stop();
+        serverChannel.close();
+    }
+
+    private Bucket<LoggingMessage> listen(SocketConnection connection) {
+        final Bucket<LoggingMessage> received = new Bucket<LoggingMessage>();
+        received.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+        connection.addLoggingMessageListener(new LoggingMessageListener() {
+            public void onNewLoggingMessage(LoggingMessage message) {
+                received.add(message);
+            }
+        });
+        return received;
+    }
+}
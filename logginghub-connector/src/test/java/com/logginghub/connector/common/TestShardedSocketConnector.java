@@ -0,0 +1,143 @@
+package com.logginghub.connector.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.logginghub.connector.common.LoopbackHub.ReceivedEvent;
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.utils.Bucket;
+import com.logginghub.utils.FormattedRuntimeException;
+
+@RunWith(CustomRunner.class)
+public class TestShardedSocketConnector {
+
+    private LoopbackHub hub;
+
+    @Before public void setup() throws IOException {
+        hub = new LoopbackHub();
+    }
+
+    @After public void teardown() throws IOException {
+        hub.close();
+    }
+
+    @Test public void test_keyed_partitioning_keeps_order_per_logger() throws Exception {
+        ShardedSocketConnector connector = new ShardedSocketConnector("sharded", 4, MessagePartitioners.byLoggerName());
+        connector.addConnectionPoint(hub.getAddress());
+        connector.connect();
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(connector.getShard(i).isConnected(), is(true));
+        }
+
+        int loggers = 16;
+        int count = 400;
+
+        // Half singly, half in collections that mix loggers up and have to be split
+        LogEventCollection collection = new LogEventCollection();
+        for (int i = 0; i < count; i++) {
+            DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+            event.setLoggerName("logger" + (i % loggers));
+            event.setSequenceNumber(i);
+
+            if (i < count / 2) {
+                connector.send(new LogEventMessage(event));
+            }
+            else {
+                collection.add(event);
+                if (collection.size() == 20) {
+                    connector.send(new LogEventCollectionMessage(collection));
+                    collection = new LogEventCollection();
+                }
+            }
+        }
+
+        Bucket<ReceivedEvent> received = hub.getReceivedEvents();
+        received.waitForMessages(count);
+        assertThat(hub.getConnections().size(), is(4));
+
+        Map<String, Integer> connectionForLogger = new HashMap<String, Integer>();
+        Map<String, Long> lastSequence = new HashMap<String, Long>();
+        List<Integer> connectionsUsed = new ArrayList<Integer>();
+
+        for (ReceivedEvent receivedEvent : received) {
+            int connection = receivedEvent.getConnectionIndex();
+            LogEvent event = receivedEvent.getEvent();
+
+            Integer previousConnection = connectionForLogger.put(event.getLoggerName(), connection);
+            if (previousConnection != null) {
+                assertThat(previousConnection, is(connection));
+            }
+
+            Long previousSequence = lastSequence.put(event.getLoggerName(), event.getSequenceNumber());
+            if (previousSequence != null) {
+                assertThat(event.getSequenceNumber() > previousSequence, is(true));
+            }
+
+            if (!connectionsUsed.contains(connection)) {
+                connectionsUsed.add(connection);
+            }
+        }
+
+        assertThat(connectionForLogger.size(), is(loggers));
+        assertThat(connectionsUsed.size() > 1, is(true));
+
+        connector.close();
+    }
+
+    @Test public void test_socket_client_shards() throws Exception {
+        SocketClient client = new SocketClient("client", 3, MessagePartitioners.parse("Channel"));
+        assertThat(client.getConnector() instanceof ShardedSocketConnector, is(true));
+        assertThat(((ShardedSocketConnector) client.getConnector()).getShardCount(), is(3));
+
+        client = new SocketClient("client", 1, MessagePartitioners.parse("roundRobin"));
+        assertThat(client.getConnector() instanceof ShardedSocketConnector, is(false));
+    }
+
+    @Test public void test_parse_partitioner() throws Exception {
+        assertThat(MessagePartitioners.parse("roundRobin").isKeyed(), is(false));
+        assertThat(MessagePartitioners.parse(" loggername ").isKeyed(), is(true));
+        assertThat(MessagePartitioners.parse("CHANNEL").isKeyed(), is(true));
+
+        try {
+            MessagePartitioners.parse("random");
+            fail("Should have rejected an unknown partitioner");
+        }
+        catch (FormattedRuntimeException e) {}
+    }
+
+    @Test public void test_round_robin_spreads_over_every_shard() throws Exception {
+        ShardedSocketConnector connector = new ShardedSocketConnector("sharded", 3, MessagePartitioners.roundRobin());
+        connector.addConnectionPoint(hub.getAddress());
+        connector.connect();
+
+        for (int i = 0; i < 30; i++) {
+            connector.send(new LogEventMessage(LogEventFactory.createFullLogEvent1()));
+        }
+
+        hub.getReceivedEvents().waitForMessages(30);
+
+        int[] perConnection = new int[3];
+        for (ReceivedEvent receivedEvent : hub.getReceivedEvents()) {
+            perConnection[receivedEvent.getConnectionIndex()]++;
+        }
+
+        assertThat(perConnection[0], is(10));
+        assertThat(perConnection[1], is(10));
+        assertThat(perConnection[2], is(10));
+
+        connector.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.logginghub.connector.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.utils.Bucket;
+import com.logginghub.utils.NetUtils;
+import com.logginghub.utils.Timeout;
+
+@RunWith(CustomRunner.class)
+public class TestSocketChannelConnection {
+
+    @Test public void test_gathering_writes() throws Exception {
+        int port = NetUtils.findFreePort();
+        ServerSocket serverSocket = new ServerSocket(port);
+
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        Socket accepted = serverSocket.accept();
+
+        final Bucket<LoggingMessage> received = new Bucket<LoggingMessage>();
+        received.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+
+        SocketConnection server = new SocketConnection(accepted, "server");
+        server.addLoggingMessageListener(new LoggingMessageListener() {
+            public void onNewLoggingMessage(LoggingMessage message) {
+                received.add(message);
+            }
+        });
+        server.start();
+
+        final Bucket<String> closed = new Bucket<String>();
+        SocketChannelConnection client = new SocketChannelConnection(channel, "client");
+        client.addConnectionListener(new ConnectionListener() {
+            public void onConnectionClosed(String reason) {
+                closed.add(reason);
+            }
+        });
+
+        // Queue everything up before the writer starts so it all goes in as few writes as possible
+        int messages = 1000;
+        for (int i = 0; i < messages; i++) {
+            DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+            event.setSequenceNumber(i);
+            client.send(new LogEventMessage(event));
+        }
+
+        client.start();
+        received.waitForMessages(messages);
+
+        assertThat(received.size(), is(messages));
+        for (int i = 0; i < messages; i++) {
+            LogEventMessage message = (LogEventMessage) received.get(i);
+            assertThat(message.getLogEvent().getSequenceNumber(), is((long) i));
+        }
+
+        assertThat(client.getGatheringWrites() < messages / 10, is(true));
+        assertThat(server.getFramesDecoded(), is((long) messages));
+
+        // Blocking sends go straight out
+        client.sendBlocking(new LogEventMessage(LogEventFactory.createFullLogEvent1()));
+        received.waitForMessages(messages + 1);
+        assertThat(server.getBytesRead(), is(client.getBytesWritten()));
+
+        // The listeners should hear about the other end going away
+        server.close();
+        closed.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+        closed.waitForMessages(1);
+        assertThat(closed.size(), is(1));
+
+        client.close();
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,139 @@
+package com.logginghub.connector.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.logginghub.connector.common.messages.ChannelMessage;
+import com.logginghub.connector.common.messages.ChannelSubscriptionRequestMessage;
+import com.logginghub.connector.common.messages.ChannelSubscriptionResponseMessage;
+import com.logginghub.connector.common.messages.EventSubscriptionRequestMessage;
+import com.logginghub.connector.common.messages.EventSubscriptionResponseMessage;
+import com.logginghub.connector.common.messages.RequestResponseMessage;
+import com.logginghub.connector.common.messages.SubscriptionRequestMessage;
+import com.logginghub.connector.common.messages.SubscriptionResponseMessage;
+import com.logginghub.utils.Destination;
+
+public class TestSocketClient {
+
+    private List<LoggingMessage> sent = new CopyOnWriteArrayList<LoggingMessage>();
+    private SocketConnector connector;
+    private SocketClient client;
+
+    @Before public void setup() {
+        connector = new SocketConnector() {
+            @Override public void send(LoggingMessage message) throws LoggingMessageSenderException {
+                sent.add(message);
+            }
+
+            @Override public boolean isConnected() {
+                return true;
+            }
+        };
+
+        client = new SocketClient(connector);
+    }
+
+    @Test public void test_pipelined_requests_complete_out_of_order() throws Exception {
+        RequestFuture<RequestResponseMessage> first = client.subscribeAsync("a");
+        RequestFuture<RequestResponseMessage> second = client.subscribeAsync("b", "c", "d");
+
+        assertThat(sent.size(), is(2));
+        assertThat(client.getPendingRequestCount(), is(2));
+
+        // All three channels go in a single request
+        EventSubscriptionRequestMessage batch = (EventSubscriptionRequestMessage) sent.get(1);
+        assertThat(batch.getChannels().length, is(3));
+
+        client.handleMessage(new EventSubscriptionResponseMessage(second.getRequestID(), true, null, true, "b", "c", "d"));
+        assertThat(second.isDone(), is(true));
+        assertThat(first.isDone(), is(false));
+
+        client.handleMessage(new EventSubscriptionResponseMessage(first.getRequestID(), true, null, true, "a"));
+        assertThat(first.get().getRequestID(), is(first.getRequestID()));
+        assertThat(client.getPendingRequestCount(), is(0));
+    }
+
+    @Test public void test_request_timeout() throws Exception {
+        client.setRequestTimeout(50);
+        RequestFuture<RequestResponseMessage> future = client.subscribeAsync("a");
+
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            throw new AssertionError("Should have timed out");
+        }
+        catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(TimeoutException.class)));
+        }
+
+        assertThat(client.getPendingRequestCount(), is(0));
+
+        try {
+            client.subscribe("b");
+            throw new AssertionError("Should have timed out");
+        }
+        catch (LoggingMessageSenderException e) {
+            assertThat(e.getMessage().contains("timed out"), is(true));
+        }
+    }
+
+    @Test public void test_blocking_subscribe_with_response() throws Exception {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                while (sent.size() < 2) {
+                    Thread.yield();
+                }
+                client.handleMessage(new SubscriptionResponseMessage());
+                EventSubscriptionRequestMessage request = (EventSubscriptionRequestMessage) sent.get(1);
+                client.handleMessage(new EventSubscriptionResponseMessage(request.getRequestID(), true, null, true, request.getChannels()));
+            }
+        });
+        thread.start();
+
+        RequestFuture<LoggingMessage> global = client.subscribeAsync();
+        client.subscribe("a", "b");
+
+        assertThat(sent.get(0), is(instanceOf(SubscriptionRequestMessage.class)));
+        assertThat(global.get(), is(instanceOf(SubscriptionResponseMessage.class)));
+        assertThat(client.getPendingRequestCount(), is(0));
+    }
+
+    @Test public void test_connection_lost_fails_pending_requests() throws Exception {
+        Future<Boolean> channelFuture = client.addSubscription("channel", new Destination<ChannelMessage>() {
+            public void send(ChannelMessage t) {}
+        });
+        RequestFuture<RequestResponseMessage> future = client.subscribeAsync("a");
+
+        assertThat(sent.get(0), is(instanceOf(ChannelSubscriptionRequestMessage.class)));
+        assertThat(client.getPendingRequestCount(), is(2));
+
+        connector.onConnectionClosed("test");
+
+        assertThat(future.isFailed(), is(true));
+        assertThat(channelFuture.get(), is(false));
+        assertThat(client.getPendingRequestCount(), is(0));
+
+        // Reconnecting re-sends every channel subscription in a single request
+        client.addSubscription("other", new Destination<ChannelMessage>() {
+            public void send(ChannelMessage t) {}
+        });
+        sent.clear();
+        client.reestablishSubscriptions();
+        ChannelSubscriptionRequestMessage resubscribe = (ChannelSubscriptionRequestMessage) sent.get(0);
+        assertThat(resubscribe.getChannels().length, is(2));
+
+        // Only the request for the 'other' subscription is left waiting
+        client.handleMessage(new ChannelSubscriptionResponseMessage(resubscribe.getRequestID(), true, null, true, resubscribe.getChannels()));
+        assertThat(client.getPendingRequestCount(), is(1));
+    }
+}
@@ -1,15 +1,28 @@
 package com.logginghub.connector.common;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
 
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.connector.common.serialisation.CompressionStrategyFactory;
+import com.logginghub.utils.Bucket;
+import com.logginghub.utils.NetUtils;
+import com.logginghub.utils.Timeout;
+
 @RunWith(CustomRunner.class)
 public class TestSocketConnection {
 
@@ -61,4 +74,197 @@ public class TestSocketConnection {
         connection.close();
     }
 
+    @Test public void test_unsent_messages_retained_on_close() throws Exception {
+        Socket socket = Mockito.mock(Socket.class);
+        Mockito.when(socket.getOutputStream()).thenReturn(Mockito.mock(OutputStream.class));
+        Mockito.when(socket.getInputStream()).thenReturn(Mockito.mock(InputStream.class));
+
+        // Not started, so nothing gets taken off the write queue
+        SocketConnection connection = new SocketConnection(socket);
+        connection.setRetainUnsentMessages(true);
+
+        for (int i = 0; i < 3; i++) {
+            DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+            event.setSequenceNumber(i);
+            connection.send(new LogEventMessage(event));
+        }
+
+        connection.close();
+
+        List<LoggingMessage> unsent = connection.takeUnsentMessages();
+        assertThat(unsent.size(), is(3));
+        assertThat(((LogEventMessage) unsent.get(2)).getLogEvent().getSequenceNumber(), is(2L));
+        assertThat(connection.takeUnsentMessages().size(), is(0));
+
+        // Anything sent from now on is too late to be replayed, so the sender has to be told
+        try {
+            connection.send(new LogEventMessage(LogEventFactory.createFullLogEvent1()));
+            fail("Sending on a closed connection should have been refused");
+        }
+        catch (LoggingMessageSenderException e) {
+            assertThat(connection.takeUnsentMessages().size(), is(0));
+        }
+    }
+
+    @Test public void test_dictionary_encoding_negotiated() throws Exception {
+        Bucket<LoggingMessage> received = sendOverLoopback(true, true, 100);
+        for (int i = 0; i < 100; i++) {
+            LogEventMessage message = (LogEventMessage) received.get(i);
+            assertThat(message.getLogEvent().getSequenceNumber(), is((long) i));
+            assertThat(message.getLogEvent().getSourceApplication(), is(LogEventFactory.createFullLogEvent1().getSourceApplication()));
+        }
+    }
+
+    @Test public void test_dictionary_encoding_needs_both_ends() throws Exception {
+        sendOverLoopback(true, false, 10);
+        sendOverLoopback(false, true, 10);
+    }
+
+    @Test public void test_wire_compression_negotiated() throws Exception {
+        // Dictionary encoding too, to make sure the batches keep the frames in order
+        SocketConnection[] connections = compressOverLoopback(CompressionStrategyFactory.compression_lz4, CompressionStrategyFactory.compression_snappy, 2000);
+        SocketConnection client = connections[0];
+        SocketConnection server = connections[1];
+
+        assertThat(client.isCompressing(), is(true));
+        assertThat(server.isCompressing(), is(true));
+
+        WireCompressionStats clientStats = client.getCompressionStats();
+        WireCompressionStats serverStats = server.getCompressionStats();
+        assertThat(clientStats.getBatchesCompressed() > 0, is(true));
+        assertThat(clientStats.getCompressionRatio() > 1, is(true));
+        assertThat(serverStats.getBatchesDecompressed(), is(clientStats.getBatchesCompressed()));
+        assertThat(serverStats.getBytesAfterDecompression(), is(clientStats.getBytesBeforeCompression()));
+    }
+
+    @Test public void test_wire_compression_needs_both_ends() throws Exception {
+        SocketConnection[] connections = compressOverLoopback(CompressionStrategyFactory.compression_lz4, CompressionStrategyFactory.compression_none, 100);
+        assertThat(connections[0].isCompressing(), is(false));
+        assertThat(connections[1].getCompressionStats().getBatchesDecompressed(), is(0L));
+
+        connections = compressOverLoopback(CompressionStrategyFactory.compression_none, CompressionStrategyFactory.compression_lz4, 100);
+        assertThat(connections[0].isCompressing(), is(false));
+        assertThat(connections[1].isCompressing(), is(false));
+    }
+
+    private SocketConnection[] compressOverLoopback(byte clientCompression, byte serverCompression, int messages) throws Exception {
+        int port = NetUtils.findFreePort();
+        ServerSocket serverSocket = new ServerSocket(port);
+
+        Socket socket = new Socket("localhost", port);
+        Socket accepted = serverSocket.accept();
+
+        final Bucket<LoggingMessage> received = new Bucket<LoggingMessage>();
+        received.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+
+        SocketConnection server = new SocketConnection(accepted, "server");
+        server.setCompression(serverCompression);
+        server.setDictionaryEncoding(true);
+        server.addLoggingMessageListener(new LoggingMessageListener() {
+            public void onNewLoggingMessage(LoggingMessage message) {
+                received.add(message);
+            }
+        });
+
+        SocketConnection client = new SocketConnection(socket, "client");
+        client.setCompression(clientCompression);
+        client.setDictionaryEncoding(true);
+
+        server.start();
+        client.start();
+
+        server.waitForSend();
+        client.waitForSend();
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean expected = clientCompression != CompressionStrategyFactory.compression_none &&
+                           serverCompression != CompressionStrategyFactory.compression_none;
+        while ((client.isCompressing() != expected || !client.getCodex().isDictionaryEncoding()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        for (int i = 0; i < messages; i++) {
+            DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+            event.setSequenceNumber(i);
+            client.send(new LogEventMessage(event));
+        }
+
+        received.waitForMessages(messages);
+        assertThat(received.size(), is(messages));
+        for (int i = 0; i < messages; i++) {
+            LogEventMessage message = (LogEventMessage) received.get(i);
+            assertThat(message.getLogEvent().getSequenceNumber(), is((long) i));
+        }
+
+        client.close();
+        server.close();
+        serverSocket.close();
+
+        return new SocketConnection[] { client, server };
+    }
+
+    private Bucket<LoggingMessage> sendOverLoopback(boolean clientDictionary, boolean serverDictionary, int messages) throws Exception {
+        int port = NetUtils.findFreePort();
+        ServerSocket serverSocket = new ServerSocket(port);
+
+        Socket socket = new Socket("localhost", port);
+        Socket accepted = serverSocket.accept();
+
+        final Bucket<LoggingMessage> received = new Bucket<LoggingMessage>();
+        received.setTimeout(new Timeout(30, TimeUnit.SECONDS));
+
+        SocketConnection server = new SocketConnection(accepted, "server");
+        server.setDictionaryEncoding(serverDictionary);
+        server.addLoggingMessageListener(new LoggingMessageListener() {
+            public void onNewLoggingMessage(LoggingMessage message) {
+                received.add(message);
+            }
+        });
+
+        final Bucket<LoggingMessage> clientReceived = new Bucket<LoggingMessage>();
+        SocketConnection client = new SocketConnection(socket, "client");
+        client.setDictionaryEncoding(clientDictionary);
+        client.addLoggingMessageListener(new LoggingMessageListener() {
+            public void onNewLoggingMessage(LoggingMessage message) {
+                clientReceived.add(message);
+            }
+        });
+
+        server.start();
+        client.start();
+
+        // Give the capabilities messages time to cross before we start sending events
+        server.waitForSend();
+        client.waitForSend();
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean expected = clientDictionary && serverDictionary;
+        while (client.getCodex().isDictionaryEncoding() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        for (int i = 0; i < messages; i++) {
+            DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+            event.setSequenceNumber(i);
+            client.send(new LogEventMessage(event));
+        }
+
+        received.waitForMessages(messages);
+        assertThat(received.size(), is(messages));
+        assertThat(client.getCodex().isDictionaryEncoding(), is(expected));
+
+        // The capabilities messages are swallowed by the connections
+        assertThat(clientReceived.size(), is(0));
+
+        if (expected) {
+            assertThat(server.getCodex().getIncomingDictionary().getReferences() > 0, is(true));
+        }
+        else {
+            assertThat(server.getCodex().getIncomingDictionary().getReferences(), is(0L));
+        }
+
+        client.close();
+        server.close();
+        serverSocket.close();
+
+        return received;
+    }
 }
@@ -0,0 +1,132 @@
+package com.logginghub.connector.common;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.logginghub.connector.common.messages.LogEventMessage;
+import com.logginghub.utils.NetUtils;
+import com.logginghub.utils.ThreadUtils;
+
+@RunWith(CustomRunner.class)
+public class TestSocketConnector {
+
+    private LoopbackHub hubA;
+    private LoopbackHub hubB;
+    private SocketConnector connector;
+
+    @Before public void setup() throws Exception {
+        hubA = new LoopbackHub();
+        hubB = new LoopbackHub();
+        connector = new SocketConnector("test");
+        connector.setConnectTimeout(1000);
+    }
+
+    @After public void teardown() throws Exception {
+        connector.close();
+        hubA.close();
+        hubB.close();
+    }
+
+    @Test public void test_connect_moves_on_to_the_next_connection_point() throws Exception {
+        connector.addConnectionPoint(deadConnectionPoint());
+        connector.addConnectionPoint(hubA.getAddress());
+
+        connector.connect();
+
+        assertThat(connector.isConnected(), is(true));
+        assertThat(connector.getCurrentConnectionPoint(), is(hubA.getAddress()));
+    }
+
+    @Test public void test_parallel_connect() throws Exception {
+        connector.setParallelConnectAttempts(3);
+        connector.addConnectionPoint(deadConnectionPoint());
+        connector.addConnectionPoint(hubA.getAddress());
+        connector.addConnectionPoint(deadConnectionPoint());
+
+        connector.connect();
+
+        assertThat(connector.getCurrentConnectionPoint(), is(hubA.getAddress()));
+        ThreadUtils.repeatUntilTrue(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return hubA.getConnections().size() == 1;
+            }
+        });
+    }
+
+    @Test public void test_failover_to_hot_standby() throws Exception {
+        final AtomicInteger established = new AtomicInteger();
+        final AtomicInteger lost = new AtomicInteger();
+        connector.addSocketConnectorListener(new SocketConnectorListener() {
+            public void onConnectionEstablished() {
+                established.incrementAndGet();
+            }
+
+            public void onConnectionLost(String reason) {
+                lost.incrementAndGet();
+            }
+        });
+
+        connector.setHotStandby(true);
+        connector.setStandbyCheckInterval(20);
+        connector.addConnectionPoint(hubA.getAddress());
+        connector.addConnectionPoint(hubB.getAddress());
+        connector.connect();
+
+        assertThat(connector.getCurrentConnectionPoint(), is(hubA.getAddress()));
+
+        ThreadUtils.repeatUntilTrue(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return connector.getStandbyConnection() != null;
+            }
+        });
+        assertThat(connector.getStandbyConnectionPoint(), is(hubB.getAddress()));
+
+        connector.send(new LogEventMessage(createEvent(0)));
+        hubA.getEvents().waitForMessages(1);
+
+        // Take hub A away; we should go straight over to hub B without a reconnect
+        hubA.dropConnections();
+        ThreadUtils.repeatUntilTrue(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return connector.getFailovers() == 1;
+            }
+        });
+
+        assertThat(connector.isConnected(), is(true));
+        assertThat(connector.getCurrentConnectionPoint(), is(hubB.getAddress()));
+        assertThat(lost.get(), is(1));
+        assertThat(established.get(), is(2));
+
+        connector.send(new LogEventMessage(createEvent(1)));
+        hubB.getEvents().waitForMessages(1);
+        assertThat(hubB.getEvents().get(0).getSequenceNumber(), is(1L));
+
+        // And a new standby gets made to replace the one we used up
+        ThreadUtils.repeatUntilTrue(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return connector.getStandbyConnection() != null;
+            }
+        });
+        assertThat(connector.getStandbyConnectionPoint(), is(hubA.getAddress()));
+    }
+
+    private DefaultLogEvent createEvent(int sequence) {
+        DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+        event.setSequenceNumber(sequence);
+        return event;
+    }
+
+    private InetSocketAddress deadConnectionPoint() {
+        // Nothing is listening here
+        return new InetSocketAddress("localhost", NetUtils.findFreePort());
+    }
+}
@@ -10,6 +10,8 @@ import java.util.concurrent.Future;
 
 import org.junit.Test;
 
+import com.logginghub.connector.common.messages.ChannelMessage;
+import com.logginghub.utils.Bucket;
 import com.logginghub.utils.Destination;
 import com.logginghub.utils.LatchFuture;
 import com.logginghub.utils.MutableInt;
@@ -93,4 +95,53 @@ public class TestSubscriptionController {
         });
     }
 
+
+    @Test public void test_dispatch_routes_to_channel_and_parents() throws Exception {
+        SubscriptionController<Destination<ChannelMessage>> controller = new SubscriptionController<Destination<ChannelMessage>>() {
+            @Override protected Future<Boolean> handleFirstSubscription(String channel) {
+                return null;
+            }
+
+            @Override protected Future<Boolean> handleLastSubscription(String channel) {
+                return null;
+            }
+        };
+
+        Bucket<ChannelMessage> global = new Bucket<ChannelMessage>();
+        Bucket<ChannelMessage> parent = new Bucket<ChannelMessage>();
+        Bucket<ChannelMessage> child = new Bucket<ChannelMessage>();
+        Bucket<ChannelMessage> sibling = new Bucket<ChannelMessage>();
+
+        controller.addSubscription("", global);
+        controller.addSubscription("a/", parent);
+        controller.addSubscription("a/b/c", child);
+        controller.addSubscription("a/x", sibling);
+
+        controller.dispatch(new ChannelMessage("a/b/c", null), null);
+        controller.dispatch(new ChannelMessage("a/b", null), null);
+        controller.dispatch(new ChannelMessage("z", null), null);
+
+        assertThat(global.size(), is(3));
+        assertThat(parent.size(), is(2));
+        assertThat(child.size(), is(1));
+        assertThat(sibling.size(), is(0));
+
+        // The source of a message doesn't get it back
+        controller.dispatch(new ChannelMessage("a/b/c", null), child);
+        assertThat(child.size(), is(1));
+        assertThat(controller.getDestinations("a", "b", "c").size(), is(2));
+
+        // Removing the last subscriber prunes the branch, but leaves the parent alone
+        controller.removeSubscription("a/b/c", child);
+        controller.dispatch(new ChannelMessage("a/b/c", null), null);
+        assertThat(child.size(), is(1));
+        assertThat(parent.size(), is(4));
+        assertThat(controller.getChannels().contains("a/b/c"), is(false));
+
+        controller.removeAllSubscriptions(global);
+        controller.dispatch(new ChannelMessage("a", null), null);
+        assertThat(global.size(), is(5));
+        assertThat(parent.size(), is(5));
+    }
+
 }
@@ -1,12 +1,164 @@
 package com.logginghub.connector.common.messages;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.Test;
 
+import com.logginghub.connector.common.DefaultLogEvent;
+import com.logginghub.connector.common.LogEventComparer;
+import com.logginghub.connector.common.LogEventFactory;
+import com.logginghub.connector.common.LoggingMessage;
+import com.logginghub.connector.common.LoggingMessageCodex;
+import com.logginghub.utils.Destination;
+import com.logginghub.utils.ExpandingByteBuffer;
+import com.logginghub.utils.MutableInt;
+import com.logginghub.utils.Visitor;
+
 public class TestChannelMessage {
 
+    @Test public void test_lazy_payload_is_passed_through_without_decoding() throws Exception {
+        LoggingMessageCodex lazyCodex = new LoggingMessageCodex();
+        lazyCodex.getSofConfiguration().setLazyDecodeOfNestedTypes(true);
+        LoggingMessageCodex eagerCodex = new LoggingMessageCodex();
+
+        DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+        ChannelMessage original = new ChannelMessage("a/b", event);
+
+        ChannelMessage routed = (ChannelMessage) roundTrip(eagerCodex, lazyCodex, original);
+        assertThat(routed.getChannel(), is(new String[] { "a", "b" }));
+        assertThat(routed.isPayloadDecoded(), is(false));
+
+        // Send it on again without looking inside, the far end should get the full payload
+        ChannelMessage received = (ChannelMessage) roundTrip(lazyCodex, eagerCodex, routed);
+        assertThat(routed.isPayloadDecoded(), is(false));
+        assertThat(received.isPayloadDecoded(), is(true));
+        LogEventComparer.assertEquals(event, (DefaultLogEvent) received.getPayload());
+
+        // And it can still be decoded where it is
+        assertThat(routed.getPayload(), is(instanceOf(DefaultLogEvent.class)));
+        assertThat(routed.isPayloadDecoded(), is(true));
+        LogEventComparer.assertEquals(event, (DefaultLogEvent) routed.getPayload());
+    }
+
+    @Test public void test_lazy_historical_data_response() throws Exception {
+        LoggingMessageCodex lazyCodex = new LoggingMessageCodex();
+        lazyCodex.getSofConfiguration().setLazyDecodeOfNestedTypes(true);
+        LoggingMessageCodex eagerCodex = new LoggingMessageCodex();
+
+        DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+        HistoricalDataResponse response = new HistoricalDataResponse();
+        response.setEvents(new DefaultLogEvent[] { event, event });
+        response.setLastBatch(true);
+
+        HistoricalDataResponse routed = (HistoricalDataResponse) roundTrip(eagerCodex, lazyCodex, response);
+        HistoricalDataResponse received = (HistoricalDataResponse) roundTrip(lazyCodex, eagerCodex, routed);
+
+        assertThat(received.isLastBatch(), is(true));
+        assertThat(received.getEvents().length, is(2));
+        LogEventComparer.assertEquals(event, received.getEvents()[1]);
+
+        assertThat(routed.getEvents().length, is(2));
+        LogEventComparer.assertEquals(event, routed.getEvents()[0]);
+    }
+
+    @Test public void test_framed_historical_data_response() throws Exception {
+        LoggingMessageCodex lazyCodex = new LoggingMessageCodex();
+        lazyCodex.getSofConfiguration().setLazyDecodeOfNestedTypes(true);
+        LoggingMessageCodex eagerCodex = new LoggingMessageCodex();
+
+        DefaultLogEvent[] events = new DefaultLogEvent[2000];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = LogEventFactory.createFullLogEvent1();
+            events[i].setSequenceNumber(i);
+        }
+
+        HistoricalDataResponse response = new HistoricalDataResponse();
+        response.setFramedBlocks(true);
+        response.setEvents(events);
+
+        HistoricalDataResponse routed = (HistoricalDataResponse) roundTrip(eagerCodex, lazyCodex, response);
+        HistoricalDataResponse received = (HistoricalDataResponse) roundTrip(lazyCodex, eagerCodex, routed);
+
+        final MutableInt visited = new MutableInt(0);
+        routed.visitEvents(new Visitor<DefaultLogEvent>() {
+            public void visit(DefaultLogEvent t) {
+                assertThat(t.getSequenceNumber(), is((long) visited.value));
+                visited.increment();
+            }
+        });
+        assertThat(visited.value, is(events.length));
+
+        assertThat(received.getEvents().length, is(events.length));
+        LogEventComparer.assertEquals(events[1999], received.getEvents()[1999]);
+    }
+
+    @Test public void test_batched_historical_data_responses() throws Exception {
+        LoggingMessageCodex codex = new LoggingMessageCodex();
+
+        final List<HistoricalDataResponse> responses = new ArrayList<HistoricalDataResponse>();
+        HistoricalDataResponseBatcher batcher = new HistoricalDataResponseBatcher(5, 1024, 2, new Destination<HistoricalDataResponse>() {
+            public void send(HistoricalDataResponse response) {
+                responses.add(response);
+            }
+        });
+
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            DefaultLogEvent event = LogEventFactory.createFullLogEvent1();
+            event.setSequenceNumber(i);
+            batcher.add(event);
+        }
+        batcher.finish();
+
+        assertThat(responses.size() > 10, is(true));
+        assertThat(batcher.getResponses(), is(responses.size()));
+
+        // Each one is streamed straight out of the framed block it was read in, even without lazy
+        // decoding turned on
+        final MutableInt visited = new MutableInt(0);
+        for (int i = 0; i < responses.size(); i++) {
+            HistoricalDataResponse received = (HistoricalDataResponse) roundTrip(codex, codex, responses.get(i));
+            assertThat(received.getRequestID(), is(5));
+            assertThat(received.isLastBatch(), is(i == responses.size() - 1));
+
+            received.visitEvents(new Visitor<DefaultLogEvent>() {
+                public void visit(DefaultLogEvent t) {
+                    assertThat(t.getSequenceNumber(), is((long) visited.value));
+                    visited.increment();
+                }
+            });
+        }
+        assertThat(visited.value, is(count));
+
+        // And the events can still be had as an array
+        HistoricalDataResponse first = (HistoricalDataResponse) roundTrip(codex, codex, responses.get(0));
+        assertThat(first.getEvents()[0].getSequenceNumber(), is(0L));
+    }
+
+    private Object roundTrip(LoggingMessageCodex encoder, LoggingMessageCodex decoder, LoggingMessage message)
+                    throws Exception {
+        ExpandingByteBuffer buffer = new ExpandingByteBuffer();
+        encoder.encode(buffer, message);
+        buffer.flip();
+
+        ByteBuffer encoded = buffer.getBuffer();
+        Object decoded = decoder.decode(encoded);
+
+        // Scribble over the buffer to make sure the lazy objects took their own copy
+        encoded.clear();
+        while (encoded.hasRemaining()) {
+            encoded.put((byte) 0xff);
+        }
+
+        return decoded;
+    }
+
     @Test public void testParseChannel() throws Exception {
         assertThat(ChannelMessage.parseChannel("a/b/c"), is(new String[] { "a", "b", "c" }));
         assertThat(ChannelMessage.parseChannel("aaa/bbb/ccc"), is(new String[] { "aaa", "bbb", "ccc" }));
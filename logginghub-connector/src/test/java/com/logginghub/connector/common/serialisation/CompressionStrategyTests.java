@@ -0,0 +1,71 @@
+package com.logginghub.connector.common.serialisation;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Checks shared by the tests for each of the {@link CompressionStrategy}s.
+ */
+public class CompressionStrategyTests {
+
+    /**
+     * Round trips a block of text through the strategy's buffer methods, with heap buffers - some
+     * sliced so their arrays have offsets - and direct buffers on both sides, and checks the
+     * destination overflows rather than being written past.
+     */
+    public static void assertCallerBufferRoundTrip(CompressionStrategy compressionStrategy) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("Line ").append(i).append(" of some fairly repetitive log output\n");
+        }
+        byte[] original = builder.toString().getBytes();
+
+        // Heap buffers, sliced so the arrays have offsets, and direct buffers should all work
+        ByteBuffer[] sources = new ByteBuffer[] { ByteBuffer.wrap(original), slice(ByteBuffer.allocate(original.length + 10), 10, original.length), ByteBuffer.allocateDirect(original.length) };
+        for (ByteBuffer source : sources) {
+            source.clear();
+            source.put(original);
+            source.flip();
+
+            int maxLength = compressionStrategy.getMaxCompressedLength(original.length);
+            for (ByteBuffer compressed : new ByteBuffer[] { slice(ByteBuffer.allocate(maxLength + 3), 3, maxLength), ByteBuffer.allocateDirect(maxLength) }) {
+                compressionStrategy.compress(source, compressed);
+                assertThat(source.remaining(), is(0));
+                compressed.flip();
+                assertThat(compressed.remaining() < original.length, is(true));
+                assertThat(compressionStrategy.getDecompressedLength(compressed), is(original.length));
+
+                for (ByteBuffer decompressed : new ByteBuffer[] { ByteBuffer.allocate(original.length),
+                                                                   slice(ByteBuffer.allocate(original.length + 20), 5, original.length),
+                                                                   ByteBuffer.allocateDirect(original.length) }) {
+                    compressed.mark();
+                    compressionStrategy.decompress(compressed, decompressed);
+                    compressed.reset();
+
+                    decompressed.flip();
+                    byte[] roundTripped = new byte[decompressed.remaining()];
+                    decompressed.get(roundTripped);
+                    assertThat(new String(roundTripped), is(builder.toString()));
+                }
+
+                source.rewind();
+            }
+        }
+
+        try {
+            compressionStrategy.compress(ByteBuffer.wrap(original), ByteBuffer.allocate(10));
+            fail("Should have overflowed");
+        }
+        catch (BufferOverflowException e) {}
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer.slice();
+    }
+}
@@ -0,0 +1,101 @@
+package com.logginghub.connector.common.serialisation;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.logginghub.connector.common.DefaultLogEvent;
+import com.logginghub.connector.common.LogEventBuilder;
+import com.logginghub.sof.SofSerialiser;
+import com.logginghub.utils.Logger;
+import com.logginghub.utils.StringUtils;
+import com.logginghub.utils.Visitor;
+
+public class TestFramedCompressedBlock {
+
+    @SuppressWarnings("unchecked") @Test public void test_many_frames() throws Exception {
+        FramedCompressedBlock<DefaultLogEvent> block = new FramedCompressedBlock<DefaultLogEvent>(1024);
+
+        int count = 500;
+        for (int i = 0; i < count; i++) {
+            block.addObject(LogEventBuilder.create(i, Logger.info, "event " + i));
+        }
+
+        assertThat(block.getItems(), is(count));
+        assertThat(block.getFrameCount() > 10, is(true));
+
+        byte[] bytes = SofSerialiser.toBytes(block);
+        FramedCompressedBlock<DefaultLogEvent> decoded = SofSerialiser.fromBytes(bytes, FramedCompressedBlock.class);
+        assertThat(decoded.getItems(), is(count));
+
+        final List<DefaultLogEvent> events = new ArrayList<DefaultLogEvent>();
+        decoded.decodeObjects(new Visitor<DefaultLogEvent>() {
+            public void visit(DefaultLogEvent t) {
+                events.add(t);
+            }
+        });
+
+        assertThat(events.size(), is(count));
+        for (int i = 0; i < count; i++) {
+            assertThat(events.get(i).getMessage(), is("event " + i));
+            assertThat(events.get(i).getLocalCreationTimeMillis(), is((long) i));
+        }
+
+        DefaultLogEvent[] all = decoded.decodeAll(DefaultLogEvent.class);
+        assertThat(all.length, is(count));
+        assertThat(all[count - 1].getMessage(), is("event " + (count - 1)));
+
+        // The sending side can be decoded too
+        assertThat(block.decodeAll(DefaultLogEvent.class)[42].getMessage(), is("event 42"));
+    }
+
+    @SuppressWarnings("unchecked") @Test public void test_objects_bigger_than_a_frame() throws Exception {
+        FramedCompressedBlock<DefaultLogEvent> block = new FramedCompressedBlock<DefaultLogEvent>(256);
+        block.setCompressionStrategy(CompressionStrategyFactory.compression_zlib);
+
+        String big = StringUtils.repeat("big message ", 1000);
+        block.addObject(LogEventBuilder.create(0, Logger.info, "small"));
+        block.addObject(LogEventBuilder.create(1, Logger.info, big));
+        block.addObject(LogEventBuilder.create(2, Logger.info, "small again"));
+
+        byte[] bytes = SofSerialiser.toBytes(block);
+        FramedCompressedBlock<DefaultLogEvent> decoded = SofSerialiser.fromBytes(bytes, FramedCompressedBlock.class);
+
+        DefaultLogEvent[] all = decoded.decodeAll(DefaultLogEvent.class);
+        assertThat(all.length, is(3));
+        assertThat(all[0].getMessage(), is("small"));
+        assertThat(all[1].getMessage(), is(big));
+        assertThat(all[2].getMessage(), is("small again"));
+    }
+
+    @SuppressWarnings("unchecked") @Test public void test_empty() throws Exception {
+        FramedCompressedBlock<DefaultLogEvent> block = new FramedCompressedBlock<DefaultLogEvent>();
+
+        byte[] bytes = SofSerialiser.toBytes(block);
+        FramedCompressedBlock<DefaultLogEvent> decoded = SofSerialiser.fromBytes(bytes, FramedCompressedBlock.class);
+
+        assertThat(decoded.getFrameCount(), is(0));
+        assertThat(decoded.decodeAll(DefaultLogEvent.class).length, is(0));
+    }
+
+    @SuppressWarnings("unchecked") @Test public void test_compressed_block_bigger_than_the_buffer() throws Exception {
+        CompressedBlock<DefaultLogEvent> block = new CompressedBlock<DefaultLogEvent>();
+
+        // Well over the one megabyte the block starts with
+        String big = StringUtils.repeat("0123456789", 50000);
+        for (int i = 0; i < 4; i++) {
+            block.addObject(LogEventBuilder.create(i, Logger.info, big));
+        }
+
+        byte[] bytes = SofSerialiser.toBytes(block);
+        CompressedBlock<DefaultLogEvent> decoded = SofSerialiser.fromBytes(bytes, CompressedBlock.class);
+
+        DefaultLogEvent[] all = decoded.decodeAll(DefaultLogEvent.class);
+        assertThat(all.length, is(4));
+        assertThat(all[3].getMessage(), is(big));
+    }
+}
@@ -21,4 +21,8 @@ public class TestLZ4CompressionStrategy {
         byte[] decompressedArray = output.array();
         assertThat(new String(decompressedArray), is("Hello world"));
     }
+
+    @Test public void test_caller_buffers() throws Exception {
+        CompressionStrategyTests.assertCallerBufferRoundTrip(new LZ4CompressionStrategy());
+    }
 }
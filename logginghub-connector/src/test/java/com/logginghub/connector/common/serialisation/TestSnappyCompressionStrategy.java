@@ -22,4 +22,8 @@ public class TestSnappyCompressionStrategy {
         byte[] decompressedArray = output.array();
         assertThat(new String(decompressedArray), is("Hello world"));
     }
+
+    @Test public void test_caller_buffers() throws Exception {
+        CompressionStrategyTests.assertCallerBufferRoundTrip(new SnappyCompressionStrategy());
+    }
 }
@@ -0,0 +1,103 @@
+package com.logginghub.connector.log4j;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.AsyncAppender;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LocationInfo;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Test;
+
+public class TestLog4jDetailsSnapshot {
+
+    private final Logger logger = Logger.getLogger(TestLog4jDetailsSnapshot.class);
+
+    private static class SnapshotAppender extends AppenderSkeleton {
+        private final boolean gatherCallerDetails;
+        private Log4jDetailsSnapshot snapshot;
+
+        SnapshotAppender(boolean gatherCallerDetails) {
+            this.gatherCallerDetails = gatherCallerDetails;
+        }
+
+        @Override protected void append(LoggingEvent event) {
+            snapshot = Log4jDetailsSnapshot.fromLoggingEvent(event, null, gatherCallerDetails);
+        }
+
+        public boolean requiresLayout() {
+            return false;
+        }
+
+        public void close() {}
+    }
+
+    @After public void cleanup() {
+        logger.removeAllAppenders();
+    }
+
+    @Test public void test_caller_details_captured() {
+        SnapshotAppender appender = new SnapshotAppender(true);
+        logger.addAppender(appender);
+
+        logger.info("Hello");
+
+        Log4jDetailsSnapshot snapshot = appender.snapshot;
+        assertThat(snapshot.getClassName(), is(TestLog4jDetailsSnapshot.class.getName()));
+        assertThat(snapshot.getMethodName(), is("test_caller_details_captured"));
+        assertThat(snapshot.getFileName(), is("TestLog4jDetailsSnapshot.java"));
+        assertThat(snapshot.getLoggingEvent().getMessage().toString(), is("Hello"));
+    }
+
+    @Test public void test_caller_details_from_async_appender() {
+        SnapshotAppender appender = new SnapshotAppender(true);
+        AsyncAppender async = new AsyncAppender();
+        async.setLocationInfo(true);
+        async.addAppender(appender);
+        logger.addAppender(async);
+
+        logger.info("Hello");
+        async.close();
+
+        // The snapshot is taken on the async dispatcher thread, so it has to use the location the
+        // async appender worked out on ours
+        Log4jDetailsSnapshot snapshot = appender.snapshot;
+        assertThat(snapshot.getClassName(), is(TestLog4jDetailsSnapshot.class.getName()));
+        assertThat(snapshot.getMethodName(), is("test_caller_details_from_async_appender"));
+        assertThat(snapshot.getFileName(), is("TestLog4jDetailsSnapshot.java"));
+    }
+
+    @Test public void test_caller_details_unknown_off_the_logging_thread() {
+        SnapshotAppender appender = new SnapshotAppender(true);
+        AsyncAppender async = new AsyncAppender();
+        async.addAppender(appender);
+        logger.addAppender(async);
+
+        logger.info("Hello");
+        async.close();
+
+        // Without the location from the async appender the best we can do is say we don't know
+        Log4jDetailsSnapshot snapshot = appender.snapshot;
+        assertThat(snapshot.getClassName(), is(LocationInfo.NA));
+        assertThat(snapshot.getMethodName(), is(LocationInfo.NA));
+        assertThat(snapshot.getFileName(), is(LocationInfo.NA));
+        assertThat(snapshot.getLineNumber(), is(LocationInfo.NA));
+    }
+
+    @Test public void test_caller_details_not_captured() {
+        SnapshotAppender appender = new SnapshotAppender(false);
+        logger.addAppender(appender);
+
+        logger.warn("Hello");
+
+        Log4jDetailsSnapshot snapshot = appender.snapshot;
+        assertThat(snapshot.getClassName(), is(nullValue()));
+        assertThat(snapshot.getMethodName(), is(nullValue()));
+        assertThat(snapshot.getFileName(), is(nullValue()));
+        assertThat(snapshot.getLineNumber(), is(nullValue()));
+        assertThat(snapshot.getLoggingEvent().getMessage().toString(), is("Hello"));
+    }
+}
@@ -0,0 +1,82 @@
+package com.logginghub.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TestBufferPool {
+
+    @Test public void test_size_classes() {
+        BufferPool pool = new BufferPool(false, 1024, 8192, 2);
+        assertThat(pool.getSizeClasses(), is(4));
+
+        assertThat(pool.acquire(1).capacity(), is(1024));
+        assertThat(pool.acquire(1024).capacity(), is(1024));
+        assertThat(pool.acquire(1025).capacity(), is(2048));
+        assertThat(pool.acquire(8192).capacity(), is(8192));
+
+        // Too big to pool
+        assertThat(pool.acquire(8193).capacity(), is(8193));
+    }
+
+    @Test public void test_recycling() {
+        BufferPool pool = new BufferPool(true, 1024, 8192, 2);
+
+        ByteBuffer buffer = pool.acquire(3000);
+        assertThat(buffer.isDirect(), is(true));
+        buffer.putInt(1);
+        assertThat(pool.getOutstanding(), is(1L));
+
+        pool.release(buffer);
+        assertThat(pool.getPooledBuffers(), is(1));
+        assertThat(pool.getPooledBuffers(2), is(1));
+        assertThat(pool.getPooledBytes(), is(4096L));
+        assertThat(pool.getOutstanding(), is(0L));
+
+        ByteBuffer again = pool.acquire(4000);
+        assertThat(again, is(sameInstance(buffer)));
+        assertThat(again.position(), is(0));
+        assertThat(pool.getAllocated(), is(1L));
+        assertThat(pool.getPooledBuffers(), is(0));
+    }
+
+    @Test public void test_discards() {
+        BufferPool pool = new BufferPool(false, 1024, 8192, 2);
+
+        // Wrong kind, not a size class, and too many of one size
+        pool.release(ByteBuffer.allocateDirect(1024));
+        pool.release(ByteBuffer.allocate(1000));
+        pool.release(pool.acquire(1024));
+        pool.release(pool.acquire(1024));
+        pool.release(ByteBuffer.allocate(1024));
+        pool.release(ByteBuffer.allocate(1024));
+
+        assertThat(pool.getPooledBuffers(0), is(2));
+        assertThat(pool.getDiscarded(), is(3L));
+    }
+
+    @Test public void test_expanding_buffer_recycles_as_it_grows() {
+        BufferPool pool = new BufferPool(true, 1024, 65536, 4);
+        ExpandingByteBuffer buffer = new ExpandingByteBuffer(1024, pool);
+
+        for (int i = 0; i < 10000; i++) {
+            buffer.putInt(i);
+        }
+
+        // Every buffer it grew out of went back into the pool
+        assertThat(pool.getPooledBuffers(), is(6));
+        assertThat(pool.getOutstanding(), is(1L));
+
+        buffer.flip();
+        for (int i = 0; i < 10000; i++) {
+            assertThat(buffer.getBuffer().getInt(), is(i));
+        }
+
+        buffer.release();
+        assertThat(pool.getOutstanding(), is(0L));
+    }
+}
@@ -0,0 +1,171 @@
+package com.logginghub.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.logginghub.utils.RingBuffer.OverflowPolicy;
+
+public class TestRingBuffer {
+
+    @Test public void test_capacity_rounded_up() {
+        assertThat(new RingBuffer<String>(1).getCapacity(), is(2));
+        assertThat(new RingBuffer<String>(4).getCapacity(), is(4));
+        assertThat(new RingBuffer<String>(1000).getCapacity(), is(1024));
+    }
+
+    @Test public void test_fifo() throws InterruptedException {
+        RingBuffer<String> buffer = new RingBuffer<String>(4);
+        assertThat(buffer.isEmpty(), is(true));
+
+        // Go round the ring a few times to make sure the sequences wrap properly
+        for (int i = 0; i < 10; i++) {
+            buffer.put("a" + i);
+            buffer.put("b" + i);
+            assertThat(buffer.size(), is(2));
+            assertThat(buffer.take(), is("a" + i));
+            assertThat(buffer.poll(), is("b" + i));
+        }
+
+        assertThat(buffer.poll(), is(nullValue()));
+        assertThat(buffer.poll(10, TimeUnit.MILLISECONDS), is(nullValue()));
+        assertThat(buffer.getDiscards(), is(0L));
+    }
+
+    @Test public void test_drop_oldest() {
+        RingBuffer<String> buffer = new RingBuffer<String>(2, OverflowPolicy.dropOldest);
+        assertThat(buffer.put("a"), is(true));
+        assertThat(buffer.put("b"), is(true));
+        assertThat(buffer.put("c"), is(true));
+        assertThat(buffer.put("d"), is(true));
+
+        assertThat(buffer.getDiscards(), is(2L));
+        assertThat(buffer.poll(), is("c"));
+        assertThat(buffer.poll(), is("d"));
+        assertThat(buffer.poll(), is(nullValue()));
+    }
+
+    @Test public void test_drop_newest() {
+        RingBuffer<String> buffer = new RingBuffer<String>(2, OverflowPolicy.dropNewest);
+        assertThat(buffer.put("a"), is(true));
+        assertThat(buffer.put("b"), is(true));
+        assertThat(buffer.put("c"), is(false));
+        assertThat(buffer.put("d"), is(false));
+
+        assertThat(buffer.getDiscards(), is(2L));
+        assertThat(buffer.poll(), is("a"));
+        assertThat(buffer.poll(), is("b"));
+        assertThat(buffer.poll(), is(nullValue()));
+    }
+
+    @Test public void test_replacement_shares_discards() {
+        RingBuffer<String> buffer = new RingBuffer<String>(2, OverflowPolicy.dropNewest);
+        buffer.put("a");
+        buffer.put("b");
+        buffer.put("c");
+
+        RingBuffer<String> replacement = new RingBuffer<String>(4, buffer);
+        assertThat(replacement.getOverflowPolicy(), is(OverflowPolicy.dropNewest));
+        assertThat(replacement.getDiscards(), is(1L));
+
+        // A late producer still using the old buffer
+        buffer.put("d");
+        assertThat(replacement.getDiscards(), is(2L));
+    }
+
+    @Test public void test_block_times_out() {
+        RingBuffer<String> buffer = new RingBuffer<String>(2, OverflowPolicy.block);
+        buffer.setBlockTimeout(20, TimeUnit.MILLISECONDS);
+
+        assertThat(buffer.put("a"), is(true));
+        assertThat(buffer.put("a"), is(true));
+
+        long start = System.currentTimeMillis();
+        assertThat(buffer.put("b"), is(false));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertThat(elapsed >= 15, is(true));
+        assertThat(buffer.getDiscards(), is(1L));
+        assertThat(buffer.poll(), is("a"));
+    }
+
+    @Test public void test_block_waits_for_consumer() throws InterruptedException {
+        final RingBuffer<String> buffer = new RingBuffer<String>(2, OverflowPolicy.block);
+        buffer.setBlockTimeout(10, TimeUnit.SECONDS);
+        buffer.put("a");
+        buffer.put("a");
+
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        pool.execute(new Runnable() {
+            public void run() {
+                ThreadUtils.sleep(50);
+                buffer.poll();
+            }
+        });
+
+        assertThat(buffer.put("b"), is(true));
+        pool.shutdown();
+        assertThat(pool.awaitTermination(10, TimeUnit.SECONDS), is(true));
+
+        assertThat(buffer.getDiscards(), is(0L));
+        assertThat(buffer.poll(), is("a"));
+        assertThat(buffer.poll(), is("b"));
+    }
+
+    @Test public void test_multiple_producers_exact_accounting() throws InterruptedException {
+        final RingBuffer<Integer> buffer = new RingBuffer<Integer>(64, OverflowPolicy.dropOldest);
+
+        final int producers = 8;
+        final int perProducer = 20000;
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(producers);
+        final AtomicLong consumed = new AtomicLong();
+
+        ExecutorService pool = Executors.newFixedThreadPool(producers + 1);
+        for (int i = 0; i < producers; i++) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < perProducer; j++) {
+                            buffer.put(j);
+                        }
+                    }
+                    catch (InterruptedException e) {}
+                    finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+
+        final MutableBoolean producing = new MutableBoolean(true);
+        pool.execute(new Runnable() {
+            public void run() {
+                while (producing.getValue() || !buffer.isEmpty()) {
+                    if (buffer.poll() != null) {
+                        consumed.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        start.countDown();
+        assertThat(finished.await(20, TimeUnit.SECONDS), is(true));
+        producing.setValue(false);
+
+        pool.shutdown();
+        assertThat(pool.awaitTermination(20, TimeUnit.SECONDS), is(true));
+
+        assertThat(consumed.get() + buffer.getDiscards(), is((long) producers * perProducer));
+    }
+}
@@ -0,0 +1,73 @@
+package com.logginghub.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TestSegmentedByteBuffer {
+
+    @Test public void test_grows_by_segments() {
+        BufferPool pool = new BufferPool(false, 64, 1024, 8);
+        SegmentedByteBuffer buffer = new SegmentedByteBuffer(64, pool);
+
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        for (int i = 0; i < 100; i++) {
+            buffer.putLong(i);
+        }
+
+        // A big value gets a segment of its own
+        byte[] big = new byte[500];
+        big[499] = 9;
+        buffer.put(big);
+        buffer.put((byte) 7);
+
+        // Patch in a length that lives in the first segment
+        buffer.setInt(lengthPosition, buffer.position());
+
+        int length = buffer.position();
+        assertThat(length, is(4 + 800 + 500 + 1));
+        assertThat(buffer.getSegmentCount() > 10, is(true));
+        assertThat(buffer.getSegment(buffer.getSegmentCount() - 1).capacity(), is(512));
+
+        buffer.flip();
+        assertThat(buffer.remaining(), is(length));
+
+        ByteBuffer contents = ByteBuffer.wrap(buffer.getContents());
+        assertThat(contents.getInt(), is(length));
+        for (int i = 0; i < 100; i++) {
+            assertThat(contents.getLong(), is((long) i));
+        }
+        contents.position(contents.position() + 499);
+        assertThat(contents.get(), is((byte) 9));
+        assertThat(contents.get(), is((byte) 7));
+
+        int segments = buffer.getSegmentCount();
+        buffer.clear();
+        assertThat(buffer.getSegmentCount(), is(1));
+        assertThat(buffer.position(), is(0));
+        assertThat(pool.getReleased(), is((long) segments - 1));
+    }
+
+    @Test public void test_gather_array() {
+        BufferPool pool = new BufferPool(true, 64, 1024, 8);
+        SegmentedByteBuffer buffer = new SegmentedByteBuffer(64, pool);
+
+        for (int i = 0; i < 50; i++) {
+            buffer.putInt(i);
+        }
+
+        buffer.flip();
+        ByteBuffer[] array = buffer.toArray(new ByteBuffer[1]);
+        assertThat(array.length, is(buffer.getSegmentCount()));
+
+        int total = 0;
+        for (ByteBuffer segment : array) {
+            total += segment.remaining();
+        }
+        assertThat(total, is(200));
+    }
+}
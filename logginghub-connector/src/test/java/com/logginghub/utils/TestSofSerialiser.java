@@ -6,6 +6,7 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -24,6 +25,8 @@ import com.logginghub.sof.SerialisableObject;
 import com.logginghub.sof.SofConfiguration;
 import com.logginghub.sof.SofException;
 import com.logginghub.sof.SofExpandingBufferSerialiser;
+import com.logginghub.sof.SofHeader;
+import com.logginghub.sof.SofObjectFactory;
 import com.logginghub.sof.SofSerialiser;
 import com.logginghub.sof.SofStreamSerialiser;
 import com.logginghub.sof.StreamReaderAbstraction;
@@ -578,6 +581,41 @@ public class TestSofSerialiser {
         assertThat(decoded.getIntObject().getValue(), is(1111));
     }
 
+    @Test public void test_registered_factories() throws Exception {
+        final MutableInt created = new MutableInt(0);
+        sofConfiguration.registerType(SimpleNestedObject.class, 0);
+        sofConfiguration.registerType(SimpleIntObject.class, 1, new SofObjectFactory<SimpleIntObject>() {
+            public SimpleIntObject create() {
+                created.increment();
+                return new SimpleIntObject();
+            }
+        });
+
+        assertThat(sofConfiguration.hasFactory(0), is(false));
+        assertThat(sofConfiguration.hasFactory(1), is(true));
+
+        SimpleNestedObject object = new SimpleNestedObject();
+        object.setValue(2341);
+        object.setIntObject(new SimpleIntObject(1111));
+
+        byte[] bytes = SofStreamSerialiser.write(object, sofConfiguration);
+        SimpleNestedObject decoded = SofStreamSerialiser.read(bytes, sofConfiguration);
+
+        assertThat(decoded.getValue(), is(2341));
+        assertThat(decoded.getIntObject().getValue(), is(1111));
+        assertThat(created.value, is(1));
+
+        SimpleIntObject topLevel = SofExpandingBufferSerialiser.read(ByteBuffer.wrap(SofExpandingBufferSerialiser.write(new SimpleIntObject(7),
+                                                                                                                          sofConfiguration)),
+                                                                     sofConfiguration);
+        assertThat(topLevel.getValue(), is(7));
+        assertThat(created.value, is(2));
+
+        // Unregistering has to take the factory with it
+        sofConfiguration.unregisterType(1);
+        assertThat(sofConfiguration.hasFactory(1), is(false));
+    }
+
     @Test public void test_decode_unknown_nested_object() throws Exception {
 
         sofConfiguration.registerType(SimpleNestedObject.class, 0);
@@ -974,6 +1012,196 @@ public class TestSofSerialiser {
 
     }
 
+    @Test public void test_single_pass_encoding() throws Exception {
+
+        sofConfiguration.registerType(AllTypesDummyObject.class, 0);
+        sofConfiguration.registerType(SimpleIntegerObject.class, 1);
+        sofConfiguration.registerType(SimpleStringObject.class, 2);
+
+        AllTypesDummyObject subObject = new AllTypesDummyObject();
+        subObject.setShortType((short) 2221);
+        subObject.setSubObjectArray(new SimpleIntegerObject[] { new SimpleIntegerObject(7) });
+
+        AllTypesDummyObject object = new AllTypesDummyObject();
+        object.setShortType((short) 666);
+        object.setSubObject(subObject);
+        object.setSubObjectArray(new SimpleIntegerObject[] { new SimpleIntegerObject(5), null, new SimpleIntegerObject(10) });
+        object.setNonUniformSubObjectArray(new SerialisableObject[] { new SimpleIntegerObject(3), new SimpleStringObject("non-uniform") });
+
+        byte[] twoPass = SofExpandingBufferSerialiser.write(object, sofConfiguration);
+
+        sofConfiguration.setSinglePassEncoding(true);
+        byte[] singlePass = SofExpandingBufferSerialiser.write(object, sofConfiguration);
+
+        // Stream writers can't be patched so they should still produce the two-pass encoding
+        assertThat(SofStreamSerialiser.write(object, sofConfiguration), is(twoPass));
+
+        // The padded slots make it a bit bigger, but the normal reader has to be able to decode it
+        assertThat(singlePass.length > twoPass.length, is(true));
+        sofConfiguration.setSinglePassEncoding(false);
+
+        SofHeader twoPassHeader = SofSerialiser.readHeader(new StreamReaderAbstraction(new ByteArrayInputStream(twoPass), twoPass.length));
+        SofHeader singlePassHeader = SofSerialiser.readHeader(new StreamReaderAbstraction(new ByteArrayInputStream(singlePass), singlePass.length));
+        assertThat(singlePassHeader.fieldCount, is(twoPassHeader.fieldCount));
+        assertThat(singlePassHeader.length + singlePassHeader.headerLength, is(singlePass.length));
+
+        AllTypesDummyObject fromBytes = SofStreamSerialiser.read(singlePass, sofConfiguration);
+
+        assertThat(fromBytes.getShortType(), is((short) 666));
+        assertThat(fromBytes.getSubObject().getShortType(), is((short) 2221));
+        assertThat(fromBytes.getSubObject().getSubObjectArray()[0].getIntType(), is(7));
+        assertThat(fromBytes.getSubObjectArray().length, is(3));
+        assertThat(fromBytes.getSubObjectArray()[0].getIntType(), is(5));
+        assertThat(fromBytes.getSubObjectArray()[1], is(nullValue()));
+        assertThat(fromBytes.getSubObjectArray()[2].getIntType(), is(10));
+        assertThat(((SimpleIntegerObject) fromBytes.getNonUniformSubObjectArray()[0]).getIntType(), is(3));
+        assertThat(((SimpleStringObject) fromBytes.getNonUniformSubObjectArray()[1]).getValue(), is("non-uniform"));
+    }
+
+    @Test public void test_byte_length_strings() throws Exception {
+
+        sofConfiguration.registerType(AllTypesDummyObject.class, 0);
+        sofConfiguration.registerType(SimpleStringObject.class, 1);
+        sofConfiguration.registerType(SimpleIntegerObject.class, 2);
+
+        AllTypesDummyObject object = new AllTypesDummyObject();
+        object.setShortType((short) 666);
+        object.setStringObject("H\u00e9llo \u6709\ud83d\ude00");
+
+        byte[] charLength = SofStreamSerialiser.write(object, sofConfiguration);
+
+        sofConfiguration.setByteLengthStrings(true);
+        byte[] byteLength = SofStreamSerialiser.write(object, sofConfiguration);
+
+        // Skipping over the strings to get to the later fields has to work for both
+        assertThat((String) SofSerialiser.extract(byteLength, 23, sofConfiguration), is("H\u00e9llo \u6709\ud83d\ude00"));
+        assertThat((BigDecimal) SofSerialiser.extract(byteLength, 25, sofConfiguration), is(new BigDecimal("100.125")));
+        assertThat((BigDecimal) SofSerialiser.extract(charLength, 25, sofConfiguration), is(new BigDecimal("100.125")));
+
+        // And the reader has to cope with either, whatever it is configured to write
+        AllTypesDummyObject fromByteLength = SofStreamSerialiser.read(byteLength, sofConfiguration);
+        AllTypesDummyObject fromCharLength = SofStreamSerialiser.read(charLength, sofConfiguration);
+        assertThat(fromByteLength.getStringObject(), is("H\u00e9llo \u6709\ud83d\ude00"));
+        assertThat(fromByteLength.getSubStringObject().getValue(), is("nested string value"));
+        assertThat(fromCharLength.getStringObject(), is("H\u00e9llo \u6709\ud83d\ude00"));
+
+        sofConfiguration.setByteLengthStrings(false);
+        fromByteLength = SofStreamSerialiser.read(byteLength, sofConfiguration);
+        assertThat(fromByteLength.getStringObject(), is("H\u00e9llo \u6709\ud83d\ude00"));
+        assertThat(fromByteLength.getShortType(), is((short) 666));
+    }
+
+    @Test public void test_micro_format_byte_length_strings() throws Exception {
+        sofConfiguration.registerType(SimpleStringObject.class, 0);
+        sofConfiguration.setMicroFormat(true);
+        sofConfiguration.setByteLengthStrings(true);
+
+        byte[] bytes = SofExpandingBufferSerialiser.write(new SimpleStringObject("\u00e9\u00e9"), sofConfiguration);
+        SimpleStringObject decoded = SofExpandingBufferSerialiser.read(ByteBuffer.wrap(bytes), sofConfiguration);
+        assertThat(decoded.getValue(), is("\u00e9\u00e9"));
+    }
+
+    @Test public void test_field_offset_table() throws Exception {
+        sofConfiguration.registerType(AllTypesDummyObject.class, 0);
+        sofConfiguration.registerType(SimpleStringObject.class, 1);
+        sofConfiguration.registerType(SimpleIntegerObject.class, 2);
+
+        AllTypesDummyObject subObject = new AllTypesDummyObject();
+        subObject.setShortType((short) 2221);
+
+        AllTypesDummyObject object = new AllTypesDummyObject();
+        object.setShortType((short) 666);
+        object.setStringObject("tabled");
+        object.setSubObject(subObject);
+
+        byte[] withoutTable = SofStreamSerialiser.write(object, sofConfiguration);
+
+        sofConfiguration.setFieldOffsetTable(true);
+        byte[] twoPass = SofStreamSerialiser.write(object, sofConfiguration);
+
+        sofConfiguration.setSinglePassEncoding(true);
+        byte[] singlePass = SofExpandingBufferSerialiser.write(object, sofConfiguration);
+        sofConfiguration.setSinglePassEncoding(false);
+
+        SofHeader header = SofSerialiser.readHeader(new StreamReaderAbstraction(new ByteArrayInputStream(twoPass), twoPass.length));
+        assertThat(header.flags & SofSerialiser.Flag_Field_Offset_Table, is(SofSerialiser.Flag_Field_Offset_Table));
+        assertThat(header.headerLength + header.length, is(twoPass.length));
+
+        // The nested object's fields mustn't end up in the top level table, so all three encodings
+        // should give the same answers
+        int[] fields = new int[] { 25, 1, 23, 11, 12, 1 };
+        for (byte[] bytes : new byte[][] { withoutTable, twoPass, singlePass }) {
+            Object[] extracted = SofSerialiser.extract(bytes, fields, sofConfiguration);
+            assertThat((BigDecimal) extracted[0], is(new BigDecimal("100.125")));
+            assertThat((Short) extracted[1], is((short) 666));
+            assertThat((String) extracted[2], is("tabled"));
+            assertThat(((AllTypesDummyObject) extracted[3]).getShortType(), is((short) 2221));
+            assertThat(((SimpleStringObject) extracted[4]).getValue(), is("nested string value"));
+            assertThat((Short) extracted[5], is((short) 666));
+
+            assertThat((Integer) SofSerialiser.extract(bytes, 26, sofConfiguration), is(object.getSecondIntType()));
+
+            try {
+                SofSerialiser.extract(bytes, 27, sofConfiguration);
+                fail("Field 27 doesn't exist");
+            }
+            catch (SofException e) {
+                assertThat(e.getMessage(), is("Field index '27' wasn't found in the object"));
+            }
+
+            // Readers that don't use the table just skip over it
+            AllTypesDummyObject decoded = SofStreamSerialiser.read(bytes, sofConfiguration);
+            assertThat(decoded.getStringObject(), is("tabled"));
+            assertThat(decoded.getSubObject().getShortType(), is((short) 2221));
+        }
+    }
+
+    @Test public void test_single_pass_encoding_with_compression() throws Exception {
+
+        sofConfiguration.registerType(AllTypesDummyObject.class, 0);
+        sofConfiguration.registerType(SimpleStringObject.class, 1);
+        sofConfiguration.registerType(SimpleIntegerObject.class, 2);
+
+        AllTypesDummyObject subObject = new AllTypesDummyObject();
+        subObject.setShortType((short) 2221);
+
+        AllTypesDummyObject object = new AllTypesDummyObject();
+        object.setIntType(666);
+        object.setSubObject(subObject);
+
+        sofConfiguration.setCompressed(true);
+        byte[] twoPass = SofStreamSerialiser.write(object, sofConfiguration);
+
+        sofConfiguration.setSinglePassEncoding(true);
+        byte[] singlePass = SofStreamSerialiser.write(object, sofConfiguration);
+
+        sofConfiguration.setSinglePassEncoding(false);
+        sofConfiguration.setCompressed(false);
+
+        AllTypesDummyObject fromBytes = SofStreamSerialiser.read(singlePass, sofConfiguration);
+        assertThat(fromBytes.getIntType(), is(666));
+        assertThat(fromBytes.getSubObject().getShortType(), is((short) 2221));
+
+        SofHeader twoPassHeader = SofSerialiser.readHeader(new StreamReaderAbstraction(new ByteArrayInputStream(twoPass), twoPass.length));
+        SofHeader singlePassHeader = SofSerialiser.readHeader(new StreamReaderAbstraction(new ByteArrayInputStream(singlePass), singlePass.length));
+        assertThat(singlePassHeader.fieldCount, is(twoPassHeader.fieldCount));
+    }
+
+    @Test public void test_padded_int_encoding() throws Exception {
+        int[] values = new int[] { 0, 1, 63, 64, 8191, 8192, 1048575, 1048576, Integer.MAX_VALUE };
+        for (int value : values) {
+            ExpandingByteBuffer buffer = new ExpandingByteBuffer();
+            ExpandingByteBufferWriterAbstraction out = new ExpandingByteBufferWriterAbstraction(buffer);
+            SofSerialiser.writePaddedInt(out, 0);
+            SofSerialiser.setPaddedInt(out, 0, value);
+            assertThat(buffer.getBuffer().position(), is(SofSerialiser.paddedIntLength));
+
+            ByteBuffer byteBuffer = buffer.getBuffer();
+            byteBuffer.flip();
+            assertThat(SofSerialiser.readInt(new ByteBufferReaderAbstraction(byteBuffer)), is(value));
+        }
+    }
+
     @Test public void test_int_encoding() throws Exception {
 
         validateInt(-65, 2);
@@ -1032,6 +1260,12 @@ public class TestSofSerialiser {
         int readInt2 = SofSerialiser.readInt(in2);
         assertThat(readInt2, is(value));
 
+        // The buffer specific fast paths have to agree with the generic versions byte for byte
+        buffer2.rewind();
+        byte[] fastBytes = new byte[buffer2.remaining()];
+        buffer2.get(fastBytes);
+        assertThat(fastBytes, is(byteArray));
+        assertThat(SofSerialiser.readInt(new ByteBufferReaderAbstraction(ByteBuffer.wrap(byteArray))), is(value));
     }
     
     private void validateLong(long value, int length) throws IOException {
@@ -1055,6 +1289,12 @@ public class TestSofSerialiser {
         long read2 = SofSerialiser.readLong(in2);
         assertThat(read2, is(value));
 
+        // The buffer specific fast paths have to agree with the generic versions byte for byte
+        buffer2.rewind();
+        byte[] fastBytes = new byte[buffer2.remaining()];
+        buffer2.get(fastBytes);
+        assertThat(fastBytes, is(byteArray));
+        assertThat(SofSerialiser.readLong(new ByteBufferReaderAbstraction(ByteBuffer.wrap(byteArray))), is(value));
     }
 
 }
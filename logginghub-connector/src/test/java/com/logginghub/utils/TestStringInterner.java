@@ -0,0 +1,83 @@
+package com.logginghub.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class TestStringInterner {
+
+    private final Charset utf8 = Charset.forName("UTF-8");
+
+    private ByteBuffer encode(String string) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(100);
+        buffer.put("xx".getBytes(utf8));
+        buffer.put(string.getBytes(utf8));
+        buffer.put("yy".getBytes(utf8));
+        buffer.flip();
+        buffer.position(2);
+        return buffer;
+    }
+
+    @Test public void test_hits_and_misses() {
+        StringInterner interner = new StringInterner(16, 64, utf8);
+
+        ByteBuffer buffer = encode("caf\u00e9");
+        String first = interner.intern(buffer, 5);
+        assertThat(first, is("caf\u00e9"));
+        assertThat(buffer.position(), is(7));
+
+        String second = interner.intern(encode("caf\u00e9"), 5);
+        assertThat(second == first, is(true));
+
+        assertThat(interner.getHits(), is(1L));
+        assertThat(interner.getMisses(), is(1L));
+        assertThat(interner.getHitRate(), is(0.5d));
+        assertThat(interner.getSize(), is(1));
+    }
+
+    @Test public void test_long_strings_bypass_the_cache() {
+        StringInterner interner = new StringInterner(16, 3, utf8);
+
+        String first = interner.intern(encode("hello"), 5);
+        String second = interner.intern(encode("hello"), 5);
+
+        assertThat(first, is("hello"));
+        assertThat(second, is("hello"));
+        assertThat(first == second, is(false));
+        assertThat(interner.getBypasses(), is(2L));
+        assertThat(interner.getSize(), is(0));
+    }
+
+    @Test public void test_capacity_is_bounded() {
+        StringInterner interner = new StringInterner(16, 64, utf8);
+
+        for (int i = 0; i < 1000; i++) {
+            String value = "value-" + i;
+            assertThat(interner.intern(encode(value), value.length()), is(value));
+        }
+
+        assertThat(interner.getCapacity(), is(16));
+        assertThat(interner.getSize() <= 16, is(true));
+        assertThat(interner.getEvictions() >= 1000 - 16, is(true));
+    }
+
+    @Test public void test_referenced_entries_survive_eviction() {
+        // A single set, so everything competes for the same slots
+        StringInterner interner = new StringInterner(StringInterner.setSize, 64, utf8);
+
+        String hot = interner.intern(encode("hot"), 3);
+        for (int i = 0; i < 100; i++) {
+            String value = "cold-" + i;
+            interner.intern(encode(value), value.length());
+
+            // Keep touching the hot value so the clock always gives it a second chance
+            assertThat(interner.intern(encode("hot"), 3) == hot, is(true));
+        }
+
+        assertThat(interner.getHits(), is(100L));
+    }
+}
@@ -0,0 +1,61 @@
+package com.logginghub.utils;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestTimerWheel {
+
+    private TimerWheel wheel = new TimerWheel("TestTimerWheel", 5, 16);
+
+    @After public void stop() {
+        wheel.stop();
+    }
+
+    @Test public void test_expiry() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        long start = System.nanoTime();
+
+        // The longest of these is more than one full rotation of the wheel
+        wheel.schedule(10, TimeUnit.MILLISECONDS, countDown(latch));
+        wheel.schedule(50, TimeUnit.MILLISECONDS, countDown(latch));
+        wheel.schedule(200, TimeUnit.MILLISECONDS, countDown(latch));
+
+        assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200, is(true));
+    }
+
+    @Test public void test_cancel() throws Exception {
+        final AtomicInteger fired = new AtomicInteger();
+        Runnable task = new Runnable() {
+            public void run() {
+                fired.incrementAndGet();
+            }
+        };
+
+        TimerWheel.Entry cancelled = wheel.schedule(20, TimeUnit.MILLISECONDS, task);
+        TimerWheel.Entry kept = wheel.schedule(20, TimeUnit.MILLISECONDS, task);
+        assertThat(cancelled.cancel(), is(true));
+
+        ThreadUtils.sleep(200);
+
+        assertThat(fired.get(), is(1));
+        assertThat(cancelled.isExpired(), is(false));
+        assertThat(kept.isExpired(), is(true));
+        assertThat(kept.cancel(), is(false));
+    }
+
+    private Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+}
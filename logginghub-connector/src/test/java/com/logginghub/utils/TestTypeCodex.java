@@ -24,6 +24,27 @@ public class TestTypeCodex {
         assertThat(TypeCodex.readString(reader), is("Hello world"));
     }
     
+    @Test public void test_utf8_string() throws Exception {
+        String[] strings = new String[] { "Hello world", "", null, "\u00e9\u6709\ud83d\ude00", "lone \ud83d surrogate" };
+
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        WriterAbstraction writer = new ByteBufferWriterAbstraction(buffer);
+        for (String string : strings) {
+            TypeCodex.writeUTF8String(writer, string);
+        }
+        buffer.flip();
+
+        ReaderAbstraction reader = new ByteBufferReaderAbstraction(buffer);
+        assertThat(TypeCodex.readUTF8String(reader), is("Hello world"));
+        TypeCodex.skipUTF8String(reader);
+        TypeCodex.skipUTF8String(reader);
+        assertThat(TypeCodex.readUTF8String(reader), is("\u00e9\u6709\ud83d\ude00"));
+        assertThat(TypeCodex.readUTF8String(reader), is("lone ? surrogate"));
+        assertThat(buffer.hasRemaining(), is(false));
+
+        assertThat(TypeCodex.utf8Length("\u00e9\u6709\ud83d\ude00"), is("\u00e9\u6709\ud83d\ude00".getBytes("UTF-8").length));
+    }
+
     // jshaw - this doesn't work because the fast string encoder relies on utf 8
     @Test public void test_string_utf16() throws Exception {
         ByteBuffer buffer = ByteBuffer.allocate(1024);